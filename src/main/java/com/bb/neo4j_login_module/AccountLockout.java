@@ -0,0 +1,231 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AccountLockout enforces account lockout from in memory counters, so a locked account is
+ * rejected before Neo4J is queried and a brute force attack costs nothing on the database.
+ *
+ * Failed logins are counted per user in a sliding window made up of a ring of time slots.
+ * Once the number of failures within the window reaches the threshold the account is locked
+ * for the configured duration. The lock is persisted asynchronously to the credential node,
+ * as lockedUntil, through the LoginAuditWriter, and the counters are reloaded from the
+ * credential nodes when the store is created.
+ *
+ * @author Scott Stanley
+ */
+class AccountLockout {
+    private static final Logger LOG = LoggerFactory.getLogger(AccountLockout.class);
+
+    static final String LOCKED_UNTIL = "lockedUntil";
+
+    private static final int SLOTS = 10;
+    private static final String RELOAD_QUERY =
+            "MATCH (n:%1$s) "
+            + "WHERE n." + LOCKED_UNTIL + " > datetime() "
+            + "   OR n." + LoginAuditWriter.LAST_FAILED_AT + " > datetime() - duration({milliseconds: $window}) "
+            + "RETURN n.%2$s AS username, "
+            + "       n." + LoginAuditWriter.FAILED_LOGIN_COUNT + " AS failures, "
+            + "       n." + LoginAuditWriter.LAST_FAILED_AT + ".epochMillis AS lastFailedAt, "
+            + "       n." + LOCKED_UNTIL + ".epochMillis AS lockedUntil";
+
+    private final Neo4jUserStore m_store;
+    private final int m_threshold;
+    private final long m_windowMs;
+    private final long m_slotMs;
+    private final long m_durationMs;
+    private final String m_reloadQuery;
+    private final Map<String,FailureCounter> m_counters = new ConcurrentHashMap<String,FailureCounter>();
+
+
+    /**
+     * Create a new AccountLockout.
+     *
+     * @param store The store providing the Neo4J driver and audit writer
+     * @param config The login module configuration
+     */
+    AccountLockout(final Neo4jUserStore store, final Neo4jLoginConfig config) {
+        m_store = store;
+        m_threshold = config.getLockoutThreshold();
+        m_windowMs = config.getLockoutWindowMs();
+        m_slotMs = Math.max(1, m_windowMs / SLOTS);
+        m_durationMs = config.getLockoutDurationMs();
+        m_reloadQuery = String.format(RELOAD_QUERY, config.getNodeType(), config.getUsernameProp());
+    }
+
+    /**
+     * Is the account for the given username currently locked?
+     *
+     * @param username The username
+     * @return true if the account is locked
+     */
+    boolean isLocked(final String username) {
+        FailureCounter counter = m_counters.get(m_store.normalizeUsername(username));
+        return counter != null && counter.m_lockedUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Record a failed login, locking the account if the threshold has been reached.
+     *
+     * @param username The username from the credential node
+     */
+    void loginFailed(final String username) {
+        long now = System.currentTimeMillis();
+        FailureCounter counter = m_counters.computeIfAbsent(m_store.normalizeUsername(username),
+                                                            k -> new FailureCounter());
+
+        if (counter.record(now, 1) >= m_threshold && counter.m_lockedUntil <= now) {
+            counter.m_lockedUntil = now + m_durationMs;
+            LOG.info("Locking account " + username + " for " + m_durationMs + "ms");
+
+            LoginAuditWriter auditWriter = m_store.getAuditWriter();
+            if (auditWriter != null) {
+                auditWriter.accountLocked(username, counter.m_lockedUntil);
+            }
+        }
+    }
+
+    /**
+     * Record a successful login, clearing the failures for the user.
+     *
+     * @param username The username from the credential node
+     * @return true if failures were being tracked for the user
+     */
+    boolean loginSucceeded(final String username) {
+        return m_counters.remove(m_store.normalizeUsername(username)) != null;
+    }
+
+    /**
+     * Get the number of users with failures being tracked.
+     *
+     * @return The number of users
+     */
+    int getTrackedCount() {
+        return m_counters.size();
+    }
+
+    /**
+     * Remove the counters for users who are not locked and have no failures within the window.
+     */
+    void evictExpired() {
+        long now = System.currentTimeMillis();
+
+        Iterator<FailureCounter> iter = m_counters.values().iterator();
+        while (iter.hasNext()) {
+            FailureCounter counter = iter.next();
+            if (counter.m_lockedUntil <= now && counter.sum(now) == 0) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Reload the failures and locks persisted on the credential nodes.
+     */
+    void reload() {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("window", m_windowMs);
+
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (Neo4jShard shard : m_store.getShards()) {
+            count += reload(shard, params, now);
+        }
+
+        LOG.debug("Reloaded lockout state for " + count + " users");
+    }
+
+    /**
+     * Reload the failures and locks persisted on the credential nodes of a shard.
+     *
+     * @param shard The shard
+     * @param params The query parameters
+     * @param now The current time in milliseconds
+     * @return The number of users reloaded
+     */
+    private int reload(final Neo4jShard shard, final Map<String,Object> params, final long now) {
+        int count = 0;
+        try (Session sess = shard.session()) {
+            Result res = sess.run(new Query(m_reloadQuery, params));
+            while (res.hasNext()) {
+                Record rec = res.next();
+                String username = m_store.normalizeUsername(rec.get("username").asString());
+                FailureCounter counter = m_counters.computeIfAbsent(username, k -> new FailureCounter());
+
+                Value lastFailedAt = rec.get("lastFailedAt");
+                Value failures = rec.get("failures");
+                if (! lastFailedAt.isNull() && ! failures.isNull() && lastFailedAt.asLong() > now - m_windowMs) {
+                    counter.record(lastFailedAt.asLong(), Math.min(failures.asLong(), m_threshold));
+                }
+
+                Value lockedUntil = rec.get("lockedUntil");
+                if (! lockedUntil.isNull()) {
+                    counter.m_lockedUntil = Math.max(counter.m_lockedUntil, lockedUntil.asLong());
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The failed logins for a user, counted in a ring of time slots covering the window.
+     */
+    private class FailureCounter {
+        private final AtomicLongArray m_counts = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray m_epochs = new AtomicLongArray(SLOTS);
+        private volatile long m_lockedUntil = 0;
+
+        /**
+         * Add failures to the slot for the given time.
+         *
+         * @return The number of failures within the window
+         */
+        private long record(final long time, final long failures) {
+            long epoch = time / m_slotMs;
+            int slot = (int) (epoch % SLOTS);
+
+            long slotEpoch = m_epochs.get(slot);
+            if (slotEpoch < epoch && m_epochs.compareAndSet(slot, slotEpoch, epoch)) {
+                m_counts.set(slot, 0);
+            }
+
+            if (m_epochs.get(slot) == epoch) {
+                m_counts.addAndGet(slot, failures);
+            }
+
+            return sum(System.currentTimeMillis());
+        }
+
+        /**
+         * Get the number of failures within the window.
+         */
+        private long sum(final long now) {
+            long oldest = now / m_slotMs - SLOTS + 1;
+
+            long sum = 0;
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (m_epochs.get(slot) >= oldest) {
+                    sum += m_counts.get(slot);
+                }
+            }
+
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.procedure.Context;
+import org.neo4j.procedure.Description;
+import org.neo4j.procedure.Mode;
+import org.neo4j.procedure.Name;
+import org.neo4j.procedure.Procedure;
+
+/**
+ * AuthLookupProcedures are Neo4J procedures looking up credential nodes on the server, used by
+ * the login module when lookupProcedure is set. Each lookup is a direct seek on the index of
+ * the lookup property, and returns only the username, credential and roles of the user rather
+ * than the credential node, so the server neither plans a query per lookup nor serializes
+ * properties the login module does not read.
+ *
+ * The procedures are installed by copying the module's JAR file to the plugins directory of
+ * every Neo4J server, and allowing them with dbms.security.procedures.allowlist=auth.* if an
+ * allowlist is configured. They are,
+ *
+ *     auth.lookup      : the user by its username, with the roles held in a property
+ *     auth.lookupBatch : the users for a list of usernames, with the roles held in a property
+ *     auth.lookupWithRoles : the user by its username, with the roles held by relationships to
+ *                        role nodes, and optionally the roles those roles inherit
+ *
+ * A lookup returns a row for every node holding the username, so a client can tell when a
+ * username is ambiguous.
+ *
+ * @author Scott Stanley
+ */
+public class AuthLookupProcedures {
+    @Context
+    public Transaction m_tx;
+
+
+    /**
+     * A user found by a lookup.
+     */
+    public static class AuthUser {
+        public String key;
+        public String username;
+        public String credential;
+        public Object roles;
+
+        AuthUser(final String key, final String username, final String credential, final Object roles) {
+            this.key = key;
+            this.username = username;
+            this.credential = credential;
+            this.roles = roles;
+        }
+    }
+
+    /**
+     * Look up a user, with the roles held in a property of the credential node.
+     *
+     * @param label The label of the credential nodes
+     * @param usernameProp The property holding the username
+     * @param username The username to look up
+     * @param credentialProp The property holding the credential
+     * @param rolesProp The property holding the roles, null or empty to not return roles
+     * @param lookupProp The property looked up, null or empty to look up the username property
+     * @return The users found
+     */
+    @Procedure(name = "auth.lookup", mode = Mode.READ)
+    @Description("auth.lookup(label, usernameProp, username, credentialProp = 'password', rolesProp = 'roles', "
+                 + "lookupProp = '') - Look up the username, credential and roles of a user")
+    public Stream<AuthUser> lookup(@Name("label") final String label,
+                                   @Name("usernameProp") final String usernameProp,
+                                   @Name("username") final String username,
+                                   @Name(value = "credentialProp", defaultValue = "password") final String credentialProp,
+                                   @Name(value = "rolesProp", defaultValue = "roles") final String rolesProp,
+                                   @Name(value = "lookupProp", defaultValue = "") final String lookupProp) {
+        List<AuthUser> users = new ArrayList<AuthUser>();
+        find(label, usernameProp, lookupProp, username, credentialProp, rolesProp, users);
+        return users.stream();
+    }
+
+    /**
+     * Look up a list of users, with the roles held in a property of the credential node.
+     *
+     * @param label The label of the credential nodes
+     * @param usernameProp The property holding the username
+     * @param usernames The usernames to look up
+     * @param credentialProp The property holding the credential
+     * @param rolesProp The property holding the roles, null or empty to not return roles
+     * @param lookupProp The property looked up, null or empty to look up the username property
+     * @return The users found, keyed by the username looked up
+     */
+    @Procedure(name = "auth.lookupBatch", mode = Mode.READ)
+    @Description("auth.lookupBatch(label, usernameProp, usernames, credentialProp = 'password', rolesProp = 'roles', "
+                 + "lookupProp = '') - Look up the username, credential and roles of a list of users")
+    public Stream<AuthUser> lookupBatch(@Name("label") final String label,
+                                        @Name("usernameProp") final String usernameProp,
+                                        @Name("usernames") final List<String> usernames,
+                                        @Name(value = "credentialProp", defaultValue = "password") final String credentialProp,
+                                        @Name(value = "rolesProp", defaultValue = "roles") final String rolesProp,
+                                        @Name(value = "lookupProp", defaultValue = "") final String lookupProp) {
+        List<AuthUser> users = new ArrayList<AuthUser>();
+        for (String username : new LinkedHashSet<String>(usernames)) {
+            find(label, usernameProp, lookupProp, username, credentialProp, rolesProp, users);
+        }
+        return users.stream();
+    }
+
+    /**
+     * Look up a user, with the roles held by relationships to role nodes. If the inheritance
+     * relationship is given, the roles inherited from those roles are returned as well.
+     *
+     * @param label The label of the credential nodes
+     * @param usernameProp The property holding the username
+     * @param username The username to look up
+     * @param credentialProp The property holding the credential
+     * @param roleRelationship The relationship from a credential node to its role nodes
+     * @param roleLabel The label of the role nodes
+     * @param roleNameProp The property holding the name of a role
+     * @param inheritsRelationship The relationship from a role to the roles it inherits, null
+     *            or empty to only return the roles assigned directly
+     * @param lookupProp The property looked up, null or empty to look up the username property
+     * @return The users found
+     */
+    @Procedure(name = "auth.lookupWithRoles", mode = Mode.READ)
+    @Description("auth.lookupWithRoles(label, usernameProp, username, credentialProp, roleRelationship, "
+                 + "roleLabel = 'Role', roleNameProp = 'name', inheritsRelationship = '', lookupProp = '') "
+                 + "- Look up the username, credential and roles of a user from its role relationships")
+    public Stream<AuthUser> lookupWithRoles(@Name("label") final String label,
+                                            @Name("usernameProp") final String usernameProp,
+                                            @Name("username") final String username,
+                                            @Name("credentialProp") final String credentialProp,
+                                            @Name("roleRelationship") final String roleRelationship,
+                                            @Name(value = "roleLabel", defaultValue = "Role") final String roleLabel,
+                                            @Name(value = "roleNameProp", defaultValue = "name") final String roleNameProp,
+                                            @Name(value = "inheritsRelationship", defaultValue = "") final String inheritsRelationship,
+                                            @Name(value = "lookupProp", defaultValue = "") final String lookupProp) {
+        List<AuthUser> users = new ArrayList<AuthUser>();
+        String key = isSet(lookupProp) ? lookupProp : usernameProp;
+        Label roleNodeLabel = Label.label(roleLabel);
+        RelationshipType hasRole = RelationshipType.withName(roleRelationship);
+        RelationshipType inherits = isSet(inheritsRelationship) ? RelationshipType.withName(inheritsRelationship)
+                                                                   : null;
+
+        try (ResourceIterator<Node> nodes = m_tx.findNodes(Label.label(label), key, username)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                List<String> roles = new ArrayList<String>();
+                Set<Node> visited = new HashSet<Node>();
+                Deque<Node> pending = new ArrayDeque<Node>();
+                for (Relationship rel : node.getRelationships(Direction.OUTGOING, hasRole)) {
+                    pending.add(rel.getEndNode());
+                }
+
+                // Roles are visited once, so cycles in the inheritance are tolerated
+                while (! pending.isEmpty()) {
+                    Node role = pending.poll();
+                    if (! role.hasLabel(roleNodeLabel) || ! visited.add(role)) {
+                        continue;
+                    }
+                    Object name = role.getProperty(roleNameProp, null);
+                    if (name instanceof String) {
+                        roles.add((String) name);
+                    }
+                    if (inherits != null) {
+                        for (Relationship rel : role.getRelationships(Direction.OUTGOING, inherits)) {
+                            pending.add(rel.getEndNode());
+                        }
+                    }
+                }
+
+                users.add(toUser(username, node, usernameProp, credentialProp, roles));
+            }
+        }
+        return users.stream();
+    }
+
+    /**
+     * Find the credential nodes holding a username, through the index on the lookup property.
+     */
+    private void find(final String label, final String usernameProp, final String lookupProp,
+                      final String username, final String credentialProp, final String rolesProp,
+                      final List<AuthUser> users) {
+        String key = isSet(lookupProp) ? lookupProp : usernameProp;
+        try (ResourceIterator<Node> nodes = m_tx.findNodes(Label.label(label), key, username)) {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                Object roles = isSet(rolesProp) ? toList(node.getProperty(rolesProp, null)) : null;
+                users.add(toUser(username, node, usernameProp, credentialProp, roles));
+            }
+        }
+    }
+
+    private static boolean isSet(final String str) {
+        return str != null && ! str.isEmpty();
+    }
+
+    private static AuthUser toUser(final String key, final Node node, final String usernameProp,
+                                   final String credentialProp, final Object roles) {
+        Object username = node.getProperty(usernameProp, null);
+        Object credential = node.getProperty(credentialProp, null);
+        return new AuthUser(key, (username != null) ? username.toString() : null,
+                            (credential != null) ? credential.toString() : null, roles);
+    }
+
+    /**
+     * Convert an array property to a list, leaving any other value as it is.
+     */
+    private static Object toList(final Object value) {
+        if (value == null || ! value.getClass().isArray()) {
+            return value;
+        }
+
+        int length = Array.getLength(value);
+        List<Object> list = new ArrayList<Object>(length);
+        for (int i = 0; i < length; i++) {
+            list.add(Array.get(value, i));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CacheVersionPoller keeps the user caches on every server consistent without any messaging
+ * between them. Whenever a credential node is changed its credVersion property is set to the
+ * next value of a version marker node, which is done by Neo4jCredentialVersion.bump() in the
+ * same transaction as the change. Each server polls the marker with a single tiny query and,
+ * when it has moved, invalidates only the users whose credVersion is newer than the version
+ * it last saw.
+ *
+ * Deleted credential nodes are found from the tombstones bump() records for them.
+ *
+ * If the marker moves backwards, because it was deleted or reset, all cached users are
+ * invalidated.
+ *
+ * When roles are resolved from relationships, the marker for the role node type is read in the
+ * same query, and the role hierarchy is reloaded whenever it moves.
+ *
+ * The poll runs in a read session, so on a cluster it is served by a reader rather than the
+ * leader.
+ *
+ * When the store is sharded, each shard has its own marker, bumped in the transactions changing
+ * its credential nodes, and is polled by its own poller. Only the primary shard's poller reads
+ * the role marker.
+ *
+ * @author Scott Stanley
+ */
+class CacheVersionPoller
+        implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(CacheVersionPoller.class);
+
+    private static final String VERSION_QUERY =
+            "OPTIONAL MATCH (v:" + Neo4jCredentialVersion.VERSION_LABEL + " {nodeType: $nodeType}) "
+            + "OPTIONAL MATCH (r:" + Neo4jCredentialVersion.VERSION_LABEL + " {nodeType: $roleNodeType}) "
+            + "RETURN coalesce(v." + Neo4jCredentialVersion.VERSION_PROP + ", 0), "
+            + "coalesce(r." + Neo4jCredentialVersion.VERSION_PROP + ", 0)";
+    private static final String CHANGED_QUERY =
+            "MATCH (n:%1$s) WHERE n." + Neo4jCredentialVersion.CRED_VERSION_PROP + " > $since "
+            + "RETURN n.%2$s AS username "
+            + "UNION "
+            + "MATCH (d:" + Neo4jCredentialVersion.DELETED_LABEL + " {nodeType: $nodeType}) "
+            + "WHERE d." + Neo4jCredentialVersion.CRED_VERSION_PROP + " > $since "
+            + "RETURN d.username AS username";
+
+    private final Neo4jUserStore m_store;
+    private final Neo4jShard m_shard;
+    private final String m_nodeType;
+    private final String m_roleNodeType;
+    private final String m_changedQuery;
+    private volatile long m_version = -1;
+    private volatile long m_roleVersion = -1;
+
+
+    /**
+     * Create a new CacheVersionPoller.
+     *
+     * @param store The store holding the cached users
+     * @param config The login module configuration
+     * @param shard The shard whose marker is polled
+     * @param pollRoles true to also poll the role marker
+     */
+    CacheVersionPoller(final Neo4jUserStore store, final Neo4jLoginConfig config, final Neo4jShard shard,
+                       final boolean pollRoles) {
+        m_store = store;
+        m_shard = shard;
+        m_nodeType = config.getNodeType();
+        m_roleNodeType = (pollRoles && config.isRoleRelationships()) ? config.getRoleNodeType() : null;
+        m_changedQuery = String.format(CHANGED_QUERY, config.getNodeType(), config.getUsernameProp());
+    }
+
+    /**
+     * Get the version last seen.
+     *
+     * @return The version, or -1 if the marker has not been read
+     */
+    long getVersion() {
+        return m_version;
+    }
+
+    /**
+     * Get the role version last seen.
+     *
+     * @return The version, or -1 if the marker has not been read
+     */
+    long getRoleVersion() {
+        return m_roleVersion;
+    }
+
+    /**
+     * Poll the version marker, invalidating the users changed since the last poll.
+     */
+    @Override
+    public void run() {
+        try {
+            poll();
+        } catch (Throwable th) {
+            LOG.warn("Failed polling the credential version", th);
+        }
+    }
+
+    private void poll()
+            throws Neo4jLoginException {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("nodeType", m_nodeType);
+        params.put("roleNodeType", m_roleNodeType);
+
+        try (Session sess = m_shard.getDriver().session(m_shard.getReadConfig())) {
+            Record versions = sess.run(new Query(VERSION_QUERY, params)).single();
+            long version = versions.get(0).asLong();
+            long since = m_version;
+
+            if (m_roleNodeType != null) {
+                pollRoles(versions.get(1).asLong());
+            }
+
+            if (since < 0 || version == since) {
+                m_version = version;
+                return;
+            }
+
+            if (version < since) {
+                LOG.info("Credential version reset from " + since + " to " + version + ", invalidating all users");
+                m_store.invalidateAllUsers();
+                m_version = version;
+                return;
+            }
+
+            params.remove("roleNodeType");
+            params.put("since", since);
+            Result res = sess.run(new Query(m_changedQuery, params));
+            int count = 0;
+            while (res.hasNext()) {
+                Record rec = res.next();
+                m_store.invalidateUser(rec.get(0).asString());
+                count++;
+            }
+
+            LOG.debug("Credential version moved from " + since + " to " + version + ", invalidated " + count + " users");
+            m_version = version;
+        }
+    }
+
+    private void pollRoles(final long roleVersion)
+            throws Neo4jLoginException {
+        long since = m_roleVersion;
+        if (since >= 0 && roleVersion != since) {
+            LOG.info("Role version moved from " + since + " to " + roleVersion + ", reloading the role hierarchy");
+            m_store.reloadRoleHierarchy();
+        }
+        m_roleVersion = roleVersion;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CircuitBreaker stops user lookups from queuing behind an unavailable Neo4J. After the
+ * configured number of consecutive failed lookups the breaker opens and lookups fail
+ * immediately. Once the reset time has passed a single lookup is allowed through, closing
+ * the breaker if it succeeds and opening it again if it fails.
+ *
+ * @author Scott Stanley
+ */
+class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The state of the breaker.
+     */
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int m_threshold;
+    private final long m_resetMs;
+    private final AtomicInteger m_failures = new AtomicInteger();
+    private final AtomicLong m_openedAt = new AtomicLong(-1);
+
+
+    /**
+     * Create a new CircuitBreaker.
+     *
+     * @param config The login module configuration
+     */
+    CircuitBreaker(final Neo4jLoginConfig config) {
+        m_threshold = config.getCircuitBreakerThreshold();
+        m_resetMs = config.getCircuitBreakerResetMs();
+    }
+
+    /**
+     * Get the current state of the breaker.
+     *
+     * @return The state
+     */
+    State getState() {
+        long openedAt = m_openedAt.get();
+        if (openedAt < 0) {
+            return State.CLOSED;
+        }
+
+        return (System.currentTimeMillis() - openedAt >= m_resetMs) ? State.HALF_OPEN : State.OPEN;
+    }
+
+    /**
+     * Is a lookup allowed? While half open only the first caller is allowed through, by
+     * moving the opening time forward so subsequent callers see the breaker open.
+     *
+     * @return true if the lookup may be attempted
+     */
+    boolean allowRequest() {
+        long openedAt = m_openedAt.get();
+        if (openedAt < 0) {
+            return true;
+        }
+
+        long now = System.currentTimeMillis();
+        return now - openedAt >= m_resetMs && m_openedAt.compareAndSet(openedAt, now);
+    }
+
+    /**
+     * Record a successful lookup, closing the breaker.
+     */
+    void recordSuccess() {
+        m_failures.set(0);
+        if (m_openedAt.getAndSet(-1) >= 0) {
+            LOG.info("Circuit breaker closed");
+        }
+    }
+
+    /**
+     * Record a failed lookup, opening the breaker once the threshold has been reached.
+     */
+    void recordFailure() {
+        if (m_failures.incrementAndGet() >= m_threshold) {
+            long now = System.currentTimeMillis();
+            if (m_openedAt.getAndSet(now) < 0) {
+                LOG.warn("Circuit breaker opened after " + m_failures.get() + " failed lookups");
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CompactCredentialStore holds the usernames, credentials and roles of every user in a
+ * handful of large arrays, so millions of users can be kept in memory without the per object
+ * overhead of Neo4jUser, UserPrincipal, Credential and the role lists.
+ *
+ * Each user is a single record appended to a byte arena,
+ *   [username length][username UTF-8][credential length][credential UTF-8][role count][role ids]
+ * with the lengths, count and role ids written as variable length ints and the role ids
+ * assigned by the RoleRegistry. Records are found through a primitive open addressing hash
+ * table, of int entry ids probed linearly, with the hash and arena address of each entry held
+ * in parallel arrays. Looking up a user compares the username against the arena without
+ * allocating, and a Neo4jUser is only decoded for a user which is found.
+ *
+ * Replacing or removing a user leaves its old record in the arena. The arena is compacted
+ * when the entries are next rebuilt, or once half of it is no longer referenced.
+ *
+ * @author Scott Stanley
+ */
+class CompactCredentialStore {
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+    private static final int MIN_PAGE_SIZE = 1 << 16;
+    private static final int MAX_PAGE_SIZE = 1 << 24;
+    private static final int MIN_ENTRIES = 16;
+
+    private final RoleRegistry m_roles;
+    private final ReadWriteLock m_lock = new ReentrantReadWriteLock();
+
+    private byte[][] m_pages = new byte[0][];
+    private int m_pagePos = 0;
+    private long m_usedBytes = 0;
+    private long m_wastedBytes = 0;
+
+    private int[] m_slots = new int[MIN_ENTRIES * 2];
+    private long[] m_addresses = new long[MIN_ENTRIES];
+    private int[] m_hashes = new int[MIN_ENTRIES];
+    private int m_entryCount = 0;
+    private int m_size = 0;
+
+
+    /**
+     * Create a new CompactCredentialStore.
+     *
+     * @param roles The registry assigning role ids
+     */
+    CompactCredentialStore(final RoleRegistry roles) {
+        m_roles = roles;
+    }
+
+    /**
+     * Get the user with the given username.
+     *
+     * @param username The username
+     * @return The user, or null if the username is not stored
+     */
+    Neo4jUser get(final String username) {
+        m_lock.readLock().lock();
+        try {
+            int entry = find(username, hash(username));
+            return (entry >= 0) ? decode(m_addresses[entry]) : null;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Does the store hold the given username?
+     *
+     * @param username The username
+     * @return true if the username is stored
+     */
+    boolean contains(final String username) {
+        m_lock.readLock().lock();
+        try {
+            return find(username, hash(username)) >= 0;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store a user, replacing any user stored with the same username.
+     *
+     * @param username The username
+     * @param credential The credential, as stored on the credential node
+     * @param roles The role names
+     */
+    void put(final String username, final String credential, final List<String> roles) {
+        put(username, credential, m_roles.toRoleSet(roles));
+    }
+
+    /**
+     * Store a user, replacing any user stored with the same username.
+     *
+     * @param username The username
+     * @param credential The credential, as stored on the credential node
+     * @param roles The role ids, assigned by the registry of this store
+     */
+    void put(final String username, final String credential, final RoleSet roles) {
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        byte[] credentialBytes = credential.getBytes(StandardCharsets.UTF_8);
+        int[] roleIds = new int[roles.size()];
+        int length = varIntLength(usernameBytes.length) + usernameBytes.length
+                     + varIntLength(credentialBytes.length) + credentialBytes.length
+                     + varIntLength(roleIds.length);
+        int i = 0;
+        for (int id = roles.nextId(0); id >= 0; id = roles.nextId(id + 1)) {
+            roleIds[i++] = id;
+            length += varIntLength(id);
+        }
+
+        m_lock.writeLock().lock();
+        try {
+            int hash = hash(username);
+            int entry = find(username, hash);
+            if (entry < 0) {
+                if (m_entryCount == m_addresses.length) {
+                    rebuild();
+                }
+                entry = m_entryCount++;
+                m_hashes[entry] = hash;
+                insertSlot(entry, hash);
+                m_size++;
+            } else {
+                m_wastedBytes += recordLength(m_addresses[entry]);
+            }
+
+            long address = allocate(length);
+            byte[] page = m_pages[page(address)];
+            int pos = offset(address);
+            pos = writeBytes(page, pos, usernameBytes);
+            pos = writeBytes(page, pos, credentialBytes);
+            pos = writeVarInt(page, pos, roleIds.length);
+            for (int roleId : roleIds) {
+                pos = writeVarInt(page, pos, roleId);
+            }
+            m_addresses[entry] = address;
+
+            if (m_wastedBytes > MIN_PAGE_SIZE && m_wastedBytes > m_usedBytes / 2) {
+                rebuild();
+            }
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @param username The username
+     * @return true if the user was stored
+     */
+    boolean remove(final String username) {
+        m_lock.writeLock().lock();
+        try {
+            int hash = hash(username);
+            int mask = m_slots.length - 1;
+            for (int slot = hash & mask; m_slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+                int entry = m_slots[slot] - 1;
+                if (entry >= 0 && m_hashes[entry] == hash && matches(username, m_addresses[entry])) {
+                    m_wastedBytes += recordLength(m_addresses[entry]);
+                    m_addresses[entry] = -1;
+                    m_slots[slot] = TOMBSTONE;
+                    m_size--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            m_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of users stored.
+     *
+     * @return The number of users
+     */
+    int size() {
+        m_lock.readLock().lock();
+        try {
+            return m_size;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the memory held by the arena and hash table, excluding the object headers of the
+     * handful of arrays.
+     *
+     * @return The number of bytes
+     */
+    long getMemoryUsage() {
+        m_lock.readLock().lock();
+        try {
+            long bytes = 4L * m_slots.length + 8L * m_addresses.length + 4L * m_hashes.length;
+            for (byte[] page : m_pages) {
+                bytes += page.length;
+            }
+            return bytes;
+        } finally {
+            m_lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the entry for a username.
+     *
+     * @return The entry, or -1 if the username is not stored
+     */
+    private int find(final String username, final int hash) {
+        int mask = m_slots.length - 1;
+        for (int slot = hash & mask; m_slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int entry = m_slots[slot] - 1;
+            if (entry >= 0 && m_hashes[entry] == hash && matches(username, m_addresses[entry])) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void insertSlot(final int entry, final int hash) {
+        int mask = m_slots.length - 1;
+        int slot = hash & mask;
+        while (m_slots[slot] > EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        m_slots[slot] = entry + 1;
+    }
+
+    /**
+     * Rebuild the entries, dropping removed entries and the records no longer referenced, and
+     * growing the table if more than half of the entries are live.
+     */
+    private void rebuild() {
+        int capacity = m_addresses.length;
+        if (m_size >= capacity / 2) {
+            capacity += capacity >> 1;
+        }
+
+        byte[][] oldPages = m_pages;
+        long[] oldAddresses = m_addresses;
+        int[] oldHashes = m_hashes;
+        int oldCount = m_entryCount;
+
+        m_pages = new byte[0][];
+        m_pagePos = 0;
+        m_usedBytes = 0;
+        m_wastedBytes = 0;
+        m_slots = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        m_addresses = new long[capacity];
+        m_hashes = new int[capacity];
+        m_entryCount = 0;
+
+        for (int i = 0; i < oldCount; i++) {
+            if (oldAddresses[i] < 0) {
+                continue;
+            }
+            byte[] oldPage = oldPages[page(oldAddresses[i])];
+            int oldPos = offset(oldAddresses[i]);
+            int length = recordLength(oldPage, oldPos);
+
+            long address = allocate(length);
+            System.arraycopy(oldPage, oldPos, m_pages[page(address)], offset(address), length);
+
+            int entry = m_entryCount++;
+            m_addresses[entry] = address;
+            m_hashes[entry] = oldHashes[i];
+            insertSlot(entry, oldHashes[i]);
+        }
+    }
+
+    /**
+     * Allocate space for a record in the arena. Records never span pages, and pages double in
+     * size up to the maximum page size.
+     *
+     * @return The address of the record
+     */
+    private long allocate(final int length) {
+        int pageCount = m_pages.length;
+        if (pageCount == 0 || m_pagePos + length > m_pages[pageCount - 1].length) {
+            int size = (pageCount == 0) ? MIN_PAGE_SIZE
+                                        : (int) Math.min(MAX_PAGE_SIZE, 2L * m_pages[pageCount - 1].length);
+            size = Math.max(size, length);
+            m_pages = Arrays.copyOf(m_pages, pageCount + 1);
+            m_pages[pageCount] = new byte[size];
+            m_pagePos = 0;
+            pageCount++;
+        }
+
+        long address = ((long) (pageCount - 1) << 32) | m_pagePos;
+        m_pagePos += length;
+        m_usedBytes += length;
+        return address;
+    }
+
+    /**
+     * Does the username match the username of the record, comparing the UTF-8 encoding of
+     * the username against the arena without allocating.
+     */
+    private boolean matches(final String username, final long address) {
+        byte[] page = m_pages[page(address)];
+        int pos = offset(address);
+        int length = readVarInt(page, pos);
+        pos += varIntLength(length);
+        int end = pos + length;
+
+        int len = username.length();
+        for (int i = 0; i < len; i++) {
+            int c = username.charAt(i);
+            if (c < 0x80) {
+                if (pos >= end || page[pos++] != (byte) c) {
+                    return false;
+                }
+                continue;
+            }
+
+            int cp = username.codePointAt(i);
+            if (Character.isSupplementaryCodePoint(cp)) {
+                i++;
+            } else if (Character.isSurrogate((char) cp)) {
+                // Lone surrogates are encoded by String.getBytes() as '?'
+                cp = '?';
+            }
+
+            int n = (cp < 0x80) ? 1 : (cp < 0x800) ? 2 : (cp < 0x10000) ? 3 : 4;
+            if (pos + n > end) {
+                return false;
+            }
+            if (n == 1) {
+                if (page[pos++] != (byte) cp) {
+                    return false;
+                }
+            } else {
+                int shift = 6 * (n - 1);
+                int lead = (n == 2) ? 0xC0 : (n == 3) ? 0xE0 : 0xF0;
+                if (page[pos++] != (byte) (lead | (cp >> shift))) {
+                    return false;
+                }
+                for (shift -= 6; shift >= 0; shift -= 6) {
+                    if (page[pos++] != (byte) (0x80 | ((cp >> shift) & 0x3F))) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return pos == end;
+    }
+
+    /**
+     * Decode the record at the given address into a Neo4jUser.
+     */
+    private Neo4jUser decode(final long address) {
+        byte[] page = m_pages[page(address)];
+        int pos = offset(address);
+
+        int length = readVarInt(page, pos);
+        pos += varIntLength(length);
+        String username = new String(page, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+
+        length = readVarInt(page, pos);
+        pos += varIntLength(length);
+        String credential = new String(page, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+
+        int count = readVarInt(page, pos);
+        pos += varIntLength(count);
+        int[] roleIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            roleIds[i] = readVarInt(page, pos);
+            pos += varIntLength(roleIds[i]);
+        }
+
+        return new Neo4jUser(username, credential, new RoleSet(roleIds, count), m_roles);
+    }
+
+    private int recordLength(final long address) {
+        return recordLength(m_pages[page(address)], offset(address));
+    }
+
+    private static int recordLength(final byte[] page, final int start) {
+        int pos = start;
+        for (int field = 0; field < 2; field++) {
+            int length = readVarInt(page, pos);
+            pos += varIntLength(length) + length;
+        }
+
+        int count = readVarInt(page, pos);
+        pos += varIntLength(count);
+        for (int i = 0; i < count; i++) {
+            pos += varIntLength(readVarInt(page, pos));
+        }
+
+        return pos - start;
+    }
+
+    private static int hash(final String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int page(final long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(final long address) {
+        return (int) address;
+    }
+
+    private static int writeBytes(final byte[] page, final int pos, final byte[] bytes) {
+        int p = writeVarInt(page, pos, bytes.length);
+        System.arraycopy(bytes, 0, page, p, bytes.length);
+        return p + bytes.length;
+    }
+
+    private static int writeVarInt(final byte[] page, final int pos, final int value) {
+        int p = pos;
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            page[p++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        page[p++] = (byte) v;
+        return p;
+    }
+
+    private static int readVarInt(final byte[] page, final int pos) {
+        int p = pos;
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[p++];
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int varIntLength(final int value) {
+        return (value < 1 << 7) ? 1 : (value < 1 << 14) ? 2 : (value < 1 << 21) ? 3 : (value < 1 << 28) ? 4 : 5;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ConcurrencyLimiter bounds the number of user lookups in flight, tuning the limit from the
+ * observed lookup latency with the TCP Vegas algorithm. The lowest latency seen estimates the
+ * latency without queueing, and the lookups queued in Neo4J and the driver are estimated as
+ * limit * (1 - minLatency / latency). The limit grows while that queue is short, and shrinks
+ * when it is long or a lookup fails, so lookups wait here rather than piling up in the driver
+ * when Neo4J slows down.
+ *
+ * A lookup over the limit waits up to the queue timeout for another to complete, and is shed
+ * with a LookupShedException if none does. The lowest latency is re-measured periodically, so
+ * the limit follows a lasting change in latency, for example a failover to a more distant
+ * member.
+ *
+ * @author Scott Stanley
+ */
+class ConcurrencyLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+    private static final int MIN_LIMIT = 1;
+    private static final int PROBE_INTERVAL = 1000;
+
+    private final int m_maxLimit;
+    private final long m_queueTimeoutNanos;
+    private final Neo4jLoginMetrics m_metrics;
+    private double m_limit;
+    private int m_inFlight = 0;
+    private long m_minLatencyNanos = Long.MAX_VALUE;
+    private long m_samples = 0;
+
+
+    /**
+     * Create a new ConcurrencyLimiter.
+     *
+     * @param config The login module configuration
+     * @param metrics The metrics counting shed lookups
+     */
+    ConcurrencyLimiter(final Neo4jLoginConfig config, final Neo4jLoginMetrics metrics) {
+        m_maxLimit = Math.max(MIN_LIMIT, config.getConcurrencyMaxLimit());
+        m_limit = Math.max(MIN_LIMIT, Math.min(m_maxLimit, config.getConcurrencyInitialLimit()));
+        m_queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getConcurrencyQueueTimeoutMs());
+        m_metrics = metrics;
+    }
+
+    /**
+     * Start a lookup, waiting up to the queue timeout if the limit has been reached.
+     *
+     * @return The start time of the lookup, to be passed to release
+     * @throws LookupShedException if the lookup was shed
+     * @throws Neo4jLoginException if interrupted while waiting
+     */
+    synchronized long acquire()
+            throws Neo4jLoginException {
+        if (m_inFlight >= (int) m_limit) {
+            long deadline = System.nanoTime() + m_queueTimeoutNanos;
+            while (m_inFlight >= (int) m_limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    m_metrics.lookupShed();
+                    throw new LookupShedException("Lookup shed, " + m_inFlight + " lookups in flight");
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new Neo4jLoginException("Interrupted waiting to lookup user", ex);
+                }
+            }
+        }
+
+        m_inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * Complete a lookup, updating the limit from its latency.
+     *
+     * @param startNanos The start time returned by acquire
+     * @param failed true if the lookup failed
+     */
+    synchronized void release(final long startNanos, final boolean failed) {
+        int inFlight = m_inFlight--;
+        long latencyNanos = Math.max(1, System.nanoTime() - startNanos);
+        double limit = m_limit;
+        double step = Math.max(1, Math.log10(limit));
+
+        if (failed) {
+            limit -= step;
+        } else {
+            // Periodically start again from the latest latency, so the estimate can rise
+            m_minLatencyNanos = (++m_samples % PROBE_INTERVAL == 0) ? latencyNanos
+                    : Math.min(m_minLatencyNanos, latencyNanos);
+
+            // Only grow the limit while it is being used
+            if (inFlight * 2 >= limit) {
+                double queue = Math.ceil(limit * (1 - (double) m_minLatencyNanos / latencyNanos));
+                if (queue <= step) {
+                    limit += 6 * step;
+                } else if (queue < 3 * step) {
+                    limit += step;
+                } else if (queue > 6 * step) {
+                    limit -= step;
+                }
+            }
+        }
+
+        limit = Math.max(MIN_LIMIT, Math.min(m_maxLimit, limit));
+        if ((int) limit != (int) m_limit) {
+            LOG.debug("Concurrency limit {} -> {}", (int) m_limit, (int) limit);
+        }
+        m_limit = limit;
+        notifyAll();
+    }
+
+    /**
+     * Get the current limit on lookups in flight.
+     *
+     * @return The limit
+     */
+    synchronized int getLimit() {
+        return (int) m_limit;
+    }
+
+    /**
+     * Get the number of lookups in flight.
+     *
+     * @return The number of lookups
+     */
+    synchronized int getInFlight() {
+        return m_inFlight;
+    }
+}
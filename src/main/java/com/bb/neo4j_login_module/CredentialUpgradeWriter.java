@@ -0,0 +1,259 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.eclipse.jetty.util.security.Password;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CredentialUpgradeWriter rewrites credentials stored using a legacy hash with the configured
+ * modern hash. Upgrades are queued by the login path after a successful login and applied by
+ * a background thread in batched UNWIND write transactions, so no login waits for the write.
+ * The new credential is hashed on the hash pool when the upgrade is queued, so the shared
+ * scheduler never runs the hash and no plain text password is held while the upgrade waits.
+ *
+ * A failed batch is retried with an exponential backoff until the configured number of
+ * retries is exhausted. An upgrade is only applied if the stored credential has not been
+ * changed since it was read, so a concurrent password change is never overwritten.
+ *
+ * @author Scott Stanley
+ */
+class CredentialUpgradeWriter
+        implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialUpgradeWriter.class);
+
+    private static final int MAX_PENDING = 10000;
+    private static final String UPGRADE_QUERY =
+            "UNWIND $upgrades AS u "
+            + "MATCH (n:%s {%s: u.username}) WHERE n.%s = u.oldCreds "
+            + "SET n.%s = u.newCreds";
+
+    private final Neo4jUserStore m_store;
+    private final Neo4jLoginConfig m_config;
+    private final String m_query;
+    private final Executor m_hashPool;
+    private final Map<String,Upgrade> m_pending = new ConcurrentHashMap<String,Upgrade>();
+    private final Set<String> m_hashing = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * Create a new CredentialUpgradeWriter.
+     *
+     * @param store The store providing the Neo4J driver
+     * @param config The login module configuration
+     * @param hashPool The pool on which the new credentials are hashed
+     */
+    CredentialUpgradeWriter(final Neo4jUserStore store, final Neo4jLoginConfig config, final Executor hashPool) {
+        m_store = store;
+        m_config = config;
+        m_hashPool = hashPool;
+        m_query = String.format(UPGRADE_QUERY, config.getNodeType(), config.getLookupUsernameProp(),
+                                config.getCredentialsProp(), config.getCredentialsProp());
+    }
+
+    /**
+     * Queue an upgrade of the credential for the given user, hashing the new credential on the
+     * hash pool. Only one upgrade is held per user, and upgrades are dropped if too many are
+     * already pending.
+     *
+     * @param user The user who successfully logged in
+     * @param password The password provided by the user
+     */
+    void queue(final Neo4jUser user, final Object password) {
+        String plainText = toPlainText(password);
+        if (plainText == null) {
+            LOG.debug("Unable to upgrade credential, unsupported password type");
+            return;
+        }
+
+        if (m_pending.size() + m_hashing.size() >= MAX_PENDING) {
+            LOG.debug("Unable to upgrade credential, too many upgrades pending");
+            return;
+        }
+
+        String username = m_store.normalizeUsername(user.getUserPrincipal().getName());
+        if (m_pending.containsKey(username) || ! m_hashing.add(username)) {
+            return;
+        }
+
+        String oldCreds = user.getCredential();
+        try {
+            m_hashPool.execute(() -> {
+                try {
+                    String newCreds = PBKDF2Credential.digest(plainText, m_config.getUpgradeIterations());
+                    m_pending.putIfAbsent(username, new Upgrade(username, oldCreds, newCreds));
+                } catch (Throwable th) {
+                    LOG.warn("Failed hashing upgraded credential for " + username, th);
+                } finally {
+                    m_hashing.remove(username);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            m_hashing.remove(username);
+            LOG.debug("Unable to upgrade credential, the store is closed");
+        }
+    }
+
+    /**
+     * Get the number of upgrades waiting to be written.
+     *
+     * @return The number of pending upgrades
+     */
+    int getPendingCount() {
+        return m_pending.size();
+    }
+
+    /**
+     * Write the next batch of pending upgrades to Neo4J.
+     */
+    @Override
+    public void run() {
+        try {
+            List<Upgrade> batch = nextBatch();
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            try {
+                write(batch);
+            } catch (Throwable th) {
+                LOG.warn("Failed upgrading " + batch.size() + " credentials", th);
+                retry(batch);
+            }
+        } catch (Throwable th) {
+            LOG.error("Credential upgrade failed", th);
+        }
+    }
+
+    /**
+     * Remove the next batch of upgrades ready to be written from the pending upgrades.
+     *
+     * @return The batch, which may be empty
+     */
+    private List<Upgrade> nextBatch() {
+        List<Upgrade> batch = new ArrayList<Upgrade>();
+        long now = System.currentTimeMillis();
+
+        Iterator<Upgrade> iter = m_pending.values().iterator();
+        while (iter.hasNext() && batch.size() < m_config.getUpgradeBatchSize()) {
+            Upgrade upgrade = iter.next();
+            if (upgrade.m_notBefore <= now) {
+                iter.remove();
+                batch.add(upgrade);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Write the batch, in a transaction per shard.
+     *
+     * @param batch The upgrades to write
+     */
+    private void write(final List<Upgrade> batch) {
+        Map<Neo4jShard,List<Upgrade>> shardUpgrades = new LinkedHashMap<Neo4jShard,List<Upgrade>>();
+        for (Upgrade upgrade : batch) {
+            shardUpgrades.computeIfAbsent(m_store.getShard(upgrade.m_username), k -> new ArrayList<Upgrade>())
+                         .add(upgrade);
+        }
+
+        // Each shard is written in its own transaction, and removed from the batch once
+        // written so only the upgrades of a failed shard are retried
+        int written = 0;
+        for (Map.Entry<Neo4jShard,List<Upgrade>> shard : shardUpgrades.entrySet()) {
+            List<Map<String,Object>> upgrades = new ArrayList<Map<String,Object>>();
+            for (Upgrade upgrade : shard.getValue()) {
+                Map<String,Object> row = new HashMap<String,Object>();
+                row.put("username", upgrade.m_username);
+                row.put("oldCreds", upgrade.m_oldCreds);
+                row.put("newCreds", upgrade.m_newCreds);
+                upgrades.add(row);
+            }
+
+            Map<String,Object> params = new HashMap<String,Object>();
+            params.put("upgrades", upgrades);
+            Query query = new Query(m_query, params);
+
+            try (Session sess = shard.getKey().session()) {
+                sess.writeTransaction(tx -> tx.run(query).consume());
+            }
+
+            // Cached users still hold the legacy credential
+            for (Upgrade upgrade : shard.getValue()) {
+                m_store.invalidateUser(upgrade.m_username);
+            }
+            batch.removeAll(shard.getValue());
+            written += shard.getValue().size();
+        }
+
+        LOG.debug("Upgraded " + written + " credentials");
+    }
+
+    /**
+     * Return a failed batch to the pending upgrades, dropping any which have exhausted their retries.
+     *
+     * @param batch The failed upgrades
+     */
+    private void retry(final List<Upgrade> batch) {
+        long now = System.currentTimeMillis();
+
+        for (Upgrade upgrade : batch) {
+            upgrade.m_attempts++;
+            if (upgrade.m_attempts > m_config.getUpgradeMaxRetries()) {
+                LOG.warn("Dropping credential upgrade for " + upgrade.m_username
+                         + " after " + upgrade.m_attempts + " attempts");
+            } else {
+                upgrade.m_notBefore = now + (m_config.getUpgradeIntervalMs() << upgrade.m_attempts);
+                m_pending.putIfAbsent(upgrade.m_username, upgrade);
+            }
+        }
+    }
+
+    /**
+     * Get the plain text of the password provided by the user.
+     *
+     * @return The plain text, or null if the password type is not supported
+     */
+    private static String toPlainText(final Object password) {
+        if (String.class.isInstance(password) || Password.class.isInstance(password)) {
+            return password.toString();
+        } else if (char[].class.isInstance(password)) {
+            return new String((char[]) password);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * A pending credential upgrade.
+     */
+    private static class Upgrade {
+        private final String m_username;
+        private final String m_oldCreds;
+        private final String m_newCreds;
+        private int m_attempts = 0;
+        private long m_notBefore = 0;
+
+        Upgrade(final String username, final String oldCreds, final String newCreds) {
+            m_username = username;
+            m_oldCreds = oldCreds;
+            m_newCreds = newCreds;
+        }
+    }
+}
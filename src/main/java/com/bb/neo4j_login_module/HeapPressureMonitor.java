@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HeapPressureMonitor calls back when the heap is still over a threshold after a garbage
+ * collection, so memory held only to save work, such as cached users, can be released before
+ * it contributes to an OutOfMemoryError.
+ *
+ * The collection usage threshold is set on each heap pool supporting one, typically the old
+ * generation, as a fraction of the pool's maximum size. The JVM notifies after each collection
+ * leaving the pool over the threshold, so the callback repeats for as long as the pressure
+ * lasts. The thresholds are JVM wide, so the lowest fraction of the monitors in a JVM applies.
+ *
+ * @author Scott Stanley
+ */
+class HeapPressureMonitor
+        implements NotificationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(HeapPressureMonitor.class);
+
+    private final Runnable m_onPressure;
+    private final List<MemoryPoolMXBean> m_pools = new ArrayList<MemoryPoolMXBean>();
+
+
+    /**
+     * Create and start a new HeapPressureMonitor.
+     *
+     * @param threshold The fraction, between zero and one, of each pool's maximum size
+     * @param onPressure Called, on a JMX notification thread, when a pool is over the threshold
+     *            after a collection
+     */
+    HeapPressureMonitor(final double threshold, final Runnable onPressure) {
+        m_onPressure = onPressure;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getUsage();
+            if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+                    && usage != null && usage.getMax() > 0) {
+                long bytes = (long) (usage.getMax() * threshold);
+                long current = pool.getCollectionUsageThreshold();
+                if (current == 0 || bytes < current) {
+                    pool.setCollectionUsageThreshold(bytes);
+                }
+                m_pools.add(pool);
+                LOG.debug("Monitoring heap pool {} over {} bytes", pool.getName(), pool.getCollectionUsageThreshold());
+            }
+        }
+
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+    }
+
+    /**
+     * Get the heap pools monitored.
+     *
+     * @return The pool names
+     */
+    String[] getPoolNames() {
+        String[] names = new String[m_pools.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = m_pools.get(i).getName();
+        }
+        return names;
+    }
+
+    @Override
+    public void handleNotification(final Notification notification, final Object handback) {
+        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            LOG.warn("Heap over the threshold after collection, releasing cached users");
+            try {
+                m_onPressure.run();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed releasing memory under heap pressure", ex);
+            }
+        }
+    }
+
+    /**
+     * Stop monitoring. The thresholds are left in place, as other monitors may rely on them.
+     */
+    void close() {
+        try {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        } catch (ListenerNotFoundException ex) {
+            LOG.debug("Heap pressure listener already removed", ex);
+        }
+    }
+}
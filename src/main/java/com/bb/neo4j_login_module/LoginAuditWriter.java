@@ -0,0 +1,301 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LoginAuditWriter records the outcome of logins on the credential node. Outcomes are
+ * aggregated in memory, coalescing all of the logins for a user into a single entry, and
+ * flushed periodically to Neo4J in one batched UNWIND write transaction.
+ *
+ * The following properties are maintained on the credential node,
+ *   * lastLoginAt : The time of the last successful login
+ *   * failedLoginCount : The number of failed logins since the last successful login
+ *   * lastFailedAt : The time of the last failed login
+ *   * lockedUntil : The time an account locked by the AccountLockout is unlocked
+ *
+ * When only account lockout is enabled, without auditLogins, the writer just persists the
+ * lockout state. Failures and locks are written, and a successful login is only written when
+ * it clears failures being tracked, resetting failedLoginCount without setting lastLoginAt.
+ *
+ * @author Scott Stanley
+ */
+class LoginAuditWriter
+        implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(LoginAuditWriter.class);
+
+    static final String LAST_LOGIN_AT = "lastLoginAt";
+    static final String FAILED_LOGIN_COUNT = "failedLoginCount";
+    static final String LAST_FAILED_AT = "lastFailedAt";
+
+    private static final String AUDIT_QUERY =
+            "UNWIND $entries AS e "
+            + "MATCH (n:%1$s {%2$s: e.username}) "
+            + "FOREACH (_ IN CASE WHEN e.lastLoginAt IS NULL THEN [] ELSE [1] END | "
+            + "  SET n." + LAST_LOGIN_AT + " = datetime({epochMillis: e.lastLoginAt})) "
+            + "FOREACH (_ IN CASE WHEN e.reset THEN [1] ELSE [] END | "
+            + "  SET n." + FAILED_LOGIN_COUNT + " = e.failures) "
+            + "FOREACH (_ IN CASE WHEN e.reset THEN [] ELSE [1] END | "
+            + "  SET n." + FAILED_LOGIN_COUNT + " = coalesce(n." + FAILED_LOGIN_COUNT + ", 0) + e.failures) "
+            + "FOREACH (_ IN CASE WHEN e.lastFailedAt IS NULL THEN [] ELSE [1] END | "
+            + "  SET n." + LAST_FAILED_AT + " = datetime({epochMillis: e.lastFailedAt})) "
+            + "FOREACH (_ IN CASE WHEN e.lockedUntil IS NULL THEN [] ELSE [1] END | "
+            + "  SET n." + AccountLockout.LOCKED_UNTIL + " = datetime({epochMillis: e.lockedUntil}))";
+
+    private final Neo4jUserStore m_store;
+    private final Neo4jLoginConfig m_config;
+    private final String m_query;
+    private final ConcurrentHashMap<String,AuditEntry> m_pending = new ConcurrentHashMap<String,AuditEntry>();
+
+
+    /**
+     * Create a new LoginAuditWriter.
+     *
+     * @param store The store providing the Neo4J driver
+     * @param config The login module configuration
+     */
+    LoginAuditWriter(final Neo4jUserStore store, final Neo4jLoginConfig config) {
+        m_store = store;
+        m_config = config;
+        m_query = String.format(AUDIT_QUERY, config.getNodeType(), config.getLookupUsernameProp());
+    }
+
+    /**
+     * Record a successful login.
+     *
+     * @param username The username from the credential node
+     */
+    void loginSucceeded(final String username) {
+        long now = System.currentTimeMillis();
+        m_pending.compute(m_store.normalizeUsername(username), (k, entry) -> {
+            AuditEntry e = (entry != null) ? entry : new AuditEntry();
+            e.m_lastLoginAt = now;
+            e.m_reset = true;
+            e.m_failures = 0;
+            return e;
+        });
+    }
+
+    /**
+     * Record that a successful login cleared the failures of a user, without recording the
+     * login itself.
+     *
+     * @param username The username from the credential node
+     */
+    void failuresCleared(final String username) {
+        m_pending.compute(m_store.normalizeUsername(username), (k, entry) -> {
+            AuditEntry e = (entry != null) ? entry : new AuditEntry();
+            e.m_reset = true;
+            e.m_failures = 0;
+            return e;
+        });
+    }
+
+    /**
+     * Record a failed login.
+     *
+     * @param username The username from the credential node
+     */
+    void loginFailed(final String username) {
+        long now = System.currentTimeMillis();
+        m_pending.compute(m_store.normalizeUsername(username), (k, entry) -> {
+            AuditEntry e = (entry != null) ? entry : new AuditEntry();
+            e.m_failures++;
+            e.m_lastFailedAt = now;
+            return e;
+        });
+    }
+
+    /**
+     * Record that an account has been locked.
+     *
+     * @param username The username from the credential node
+     * @param lockedUntil The time, in epoch milliseconds, the account is unlocked
+     */
+    void accountLocked(final String username, final long lockedUntil) {
+        m_pending.compute(m_store.normalizeUsername(username), (k, entry) -> {
+            AuditEntry e = (entry != null) ? entry : new AuditEntry();
+            e.m_lockedUntil = lockedUntil;
+            return e;
+        });
+    }
+
+    /**
+     * Get the number of users with outcomes waiting to be written.
+     *
+     * @return The number of pending entries
+     */
+    int getPendingCount() {
+        return m_pending.size();
+    }
+
+    /**
+     * Write the next batch of pending entries to Neo4J.
+     */
+    @Override
+    public void run() {
+        try {
+            flush();
+        } catch (Throwable th) {
+            LOG.error("Login audit failed", th);
+        }
+    }
+
+    /**
+     * Write all pending entries to Neo4J, one batch at a time, stopping at the first failure.
+     */
+    void flushAll() {
+        while (! m_pending.isEmpty()) {
+            if (! flush()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Discard all pending entries.
+     */
+    void discard() {
+        if (! m_pending.isEmpty()) {
+            LOG.info("Discarding login audit entries for " + m_pending.size() + " users");
+            m_pending.clear();
+        }
+    }
+
+    /**
+     * Write the next batch of pending entries to Neo4J. If the write fails the entries are
+     * returned to the pending entries, merged with any outcomes recorded since.
+     *
+     * @return true if the batch was written
+     */
+    private boolean flush() {
+        Map<String,AuditEntry> batch = nextBatch();
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        try {
+            write(batch);
+            return true;
+        } catch (Throwable th) {
+            LOG.warn("Failed writing login audit for " + batch.size() + " users", th);
+            for (Map.Entry<String,AuditEntry> entry : batch.entrySet()) {
+                m_pending.merge(entry.getKey(), entry.getValue(), (later, failed) -> failed.followedBy(later));
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Remove the next batch of entries from the pending entries.
+     *
+     * @return The batch, which may be empty
+     */
+    private Map<String,AuditEntry> nextBatch() {
+        Map<String,AuditEntry> batch = new HashMap<String,AuditEntry>();
+
+        Iterator<String> iter = m_pending.keySet().iterator();
+        while (iter.hasNext() && batch.size() < m_config.getAuditMaxBatchSize()) {
+            String username = iter.next();
+            AuditEntry entry = m_pending.remove(username);
+            if (entry != null) {
+                batch.put(username, entry);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Write the batch in a single transaction per shard. The entries written are removed from
+     * the batch, so if a shard fails only its entries remain to be retried.
+     *
+     * @param batch The entries to write
+     */
+    private void write(final Map<String,AuditEntry> batch) {
+        Map<Neo4jShard,List<Map<String,Object>>> shardEntries = new LinkedHashMap<Neo4jShard,List<Map<String,Object>>>();
+        for (Map.Entry<String,AuditEntry> entry : batch.entrySet()) {
+            AuditEntry e = entry.getValue();
+
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("username", entry.getKey());
+            row.put("lastLoginAt", e.m_lastLoginAt);
+            row.put("reset", e.m_reset);
+            row.put("failures", e.m_failures);
+            row.put("lastFailedAt", e.m_lastFailedAt);
+            row.put("lockedUntil", e.m_lockedUntil);
+            shardEntries.computeIfAbsent(m_store.getShard(entry.getKey()), k -> new ArrayList<Map<String,Object>>())
+                        .add(row);
+        }
+
+        int written = 0;
+        for (Map.Entry<Neo4jShard,List<Map<String,Object>>> shard : shardEntries.entrySet()) {
+            Map<String,Object> params = new HashMap<String,Object>();
+            params.put("entries", shard.getValue());
+            Query query = new Query(m_query, params);
+
+            try (Session sess = shard.getKey().session()) {
+                sess.writeTransaction(tx -> tx.run(query).consume());
+            }
+
+            for (Map<String,Object> row : shard.getValue()) {
+                batch.remove(row.get("username"));
+            }
+            written += shard.getValue().size();
+        }
+
+        LOG.debug("Wrote login audit for " + written + " users");
+    }
+
+    /**
+     * The login outcomes for a user since the last write.
+     */
+    private static class AuditEntry {
+        private Long m_lastLoginAt = null;
+        private boolean m_reset = false;
+        private int m_failures = 0;
+        private Long m_lastFailedAt = null;
+        private Long m_lockedUntil = null;
+
+        /**
+         * Combine this entry with the outcomes recorded after it.
+         *
+         * @param later The later outcomes
+         * @return This entry, updated
+         */
+        private AuditEntry followedBy(final AuditEntry later) {
+            if (later.m_lastLoginAt != null) {
+                m_lastLoginAt = later.m_lastLoginAt;
+            }
+            if (later.m_reset) {
+                m_reset = true;
+                m_failures = later.m_failures;
+            } else {
+                m_failures += later.m_failures;
+            }
+
+            if (later.m_lastFailedAt != null) {
+                m_lastFailedAt = later.m_lastFailedAt;
+            }
+
+            if (later.m_lockedUntil != null) {
+                m_lockedUntil = later.m_lockedUntil;
+            }
+
+            return this;
+        }
+    }
+}
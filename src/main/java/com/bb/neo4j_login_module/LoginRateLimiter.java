@@ -0,0 +1,162 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LoginRateLimiter limits the rate of login attempts per username and per client address
+ * using lock free token buckets. Attempts over the limit are rejected before Neo4J is
+ * queried, so an attack does not translate into load on the database.
+ *
+ * Buckets are created on demand and evicted once they have refilled, meaning they have not
+ * been used recently. Eviction scans a bounded number of buckets on each run, resuming where
+ * the previous run stopped, so the cost of eviction is bounded however many buckets exist.
+ *
+ * The number of buckets held for each limit is capped, so attempts spraying random usernames
+ * can not grow the buckets faster than they are evicted until the heap runs out. Once the cap
+ * is reached, attempts for usernames or addresses without a bucket share a single overflow
+ * bucket with the same limit, so the spray is limited as if it were a single user, while the
+ * usernames and addresses already tracked keep their own buckets.
+ *
+ * @author Scott Stanley
+ */
+class LoginRateLimiter {
+    static final long EVICTION_INTERVAL_MS = 10000;
+    private static final int EVICTION_SCAN_LIMIT = 10000;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final Neo4jLoginMetrics m_metrics;
+    private final Limit m_userLimit;
+    private final Limit m_addressLimit;
+
+
+    /**
+     * Create a new LoginRateLimiter.
+     *
+     * @param config The login module configuration
+     * @param metrics The metrics updated when a login is rejected
+     */
+    LoginRateLimiter(final Neo4jLoginConfig config, final Neo4jLoginMetrics metrics) {
+        m_metrics = metrics;
+        m_userLimit = (config.getRateLimitPerUser() > 0)
+                ? new Limit(config.getRateLimitPerUser(), config.getRateLimitUserBurst(), config.getRateLimitMaxBuckets())
+                : null;
+        m_addressLimit = (config.getRateLimitPerAddress() > 0)
+                ? new Limit(config.getRateLimitPerAddress(), config.getRateLimitAddressBurst(),
+                            config.getRateLimitMaxBuckets())
+                : null;
+    }
+
+    /**
+     * Is the rate of logins limited per client address?
+     *
+     * @return true if the client address is needed
+     */
+    boolean isAddressLimited() {
+        return m_addressLimit != null;
+    }
+
+    /**
+     * Check a login attempt against the rate limits, taking a token from each bucket.
+     *
+     * @param username The username
+     * @param address The client address, or null if it is not known
+     * @throws RateLimitedLoginException if a rate limit has been exceeded
+     */
+    void check(final String username, final String address)
+            throws RateLimitedLoginException {
+        long now = System.nanoTime();
+
+        if (m_addressLimit != null && address != null && ! m_addressLimit.tryAcquire(address, now)) {
+            m_metrics.addressRateLimited();
+            throw new RateLimitedLoginException("Too many login attempts from client address");
+        }
+
+        if (m_userLimit != null && ! m_userLimit.tryAcquire(username, now)) {
+            m_metrics.userRateLimited();
+            throw new RateLimitedLoginException("Too many login attempts for user");
+        }
+    }
+
+    /**
+     * Evict buckets which have not been used recently.
+     */
+    void evictIdle() {
+        long now = System.nanoTime();
+
+        if (m_userLimit != null) {
+            m_userLimit.evictIdle(now);
+        }
+        if (m_addressLimit != null) {
+            m_addressLimit.evictIdle(now);
+        }
+    }
+
+    /**
+     * Get the number of per username buckets.
+     *
+     * @return The number of buckets
+     */
+    int getUserBucketCount() {
+        return (m_userLimit != null) ? m_userLimit.m_buckets.size() : 0;
+    }
+
+    /**
+     * Get the number of per client address buckets.
+     *
+     * @return The number of buckets
+     */
+    int getAddressBucketCount() {
+        return (m_addressLimit != null) ? m_addressLimit.m_buckets.size() : 0;
+    }
+
+    /**
+     * A rate limit and the buckets tracking it.
+     */
+    private static class Limit {
+        private final long m_intervalNanos;
+        private final int m_burst;
+        private final int m_maxBuckets;
+        private final ConcurrentHashMap<String,TokenBucket> m_buckets = new ConcurrentHashMap<String,TokenBucket>();
+        private final TokenBucket m_overflow;
+        private Iterator<TokenBucket> m_evictionIter = null;
+
+        Limit(final double perSecond, final int burst, final int maxBuckets) {
+            m_intervalNanos = Math.max(1, (long) (NANOS_PER_SECOND / perSecond));
+            m_burst = burst;
+            m_maxBuckets = maxBuckets;
+            m_overflow = new TokenBucket(m_intervalNanos, m_burst, System.nanoTime());
+        }
+
+        private boolean tryAcquire(final String key, final long now) {
+            TokenBucket bucket = m_buckets.get(key);
+            if (bucket == null) {
+                // The cap is checked before the bucket is added, so racing attempts may
+                // overshoot it by the number of threads
+                bucket = (m_buckets.size() < m_maxBuckets)
+                        ? m_buckets.computeIfAbsent(key, k -> new TokenBucket(m_intervalNanos, m_burst, now))
+                        : m_overflow;
+            }
+
+            return bucket.tryAcquire(now);
+        }
+
+        private void evictIdle(final long now) {
+            for (int scanned = 0; scanned < EVICTION_SCAN_LIMIT; scanned++) {
+                if (m_evictionIter == null || ! m_evictionIter.hasNext()) {
+                    if (scanned > 0 || m_buckets.isEmpty()) {
+                        return;
+                    }
+                    m_evictionIter = m_buckets.values().iterator();
+                }
+
+                if (m_evictionIter.next().isFull(now)) {
+                    m_evictionIter.remove();
+                }
+            }
+        }
+    }
+}
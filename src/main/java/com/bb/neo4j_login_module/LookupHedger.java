@@ -0,0 +1,363 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LookupHedger cuts the tail latency of user lookups caused by a single slow cluster member.
+ * Each lookup is run on the routing driver, and if it has not returned after the rolling 95th
+ * percentile latency, the same lookup is sent directly to a read capable member and the first
+ * answer is taken. The loser runs to completion in the background and its answer is discarded.
+ *
+ * Lookups are only handed to the hedger's threads when a hedge could be sent. Until the
+ * latency has been timed, or while no member, credit or in flight slot is available, the
+ * lookup is run on the caller's thread.
+ *
+ * The read capable members are discovered from the routing table, each with its own direct
+ * bolt:// driver. The member hedged to is chosen at random, so with a single member the hedge
+ * only avoids a slow connection rather than a slow server.
+ *
+ * Hedging adds load, so it is capped in two ways. Each lookup earns the hedge rate in credits,
+ * up to a small burst, and each hedge spends one credit, limiting hedges to that fraction of
+ * lookups. The number of hedges in flight is also capped, so a cluster wide slowdown, when
+ * every lookup is past the 95th percentile, does not double the load.
+ *
+ * @author Scott Stanley
+ */
+class LookupHedger {
+    private static final Logger LOG = LoggerFactory.getLogger(LookupHedger.class);
+    private static final String ROUTING_QUERY = "CALL dbms.routing.getRoutingTable({}) YIELD servers "
+                                                + "UNWIND servers AS server WITH server WHERE server.role = 'READ' "
+                                                + "UNWIND server.addresses AS address RETURN address";
+    private static final SessionConfig READ_SESSION = SessionConfig.builder()
+                                                                   .withDefaultAccessMode(AccessMode.READ)
+                                                                   .build();
+    static final long MEMBER_REFRESH_MS = 30000;
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+    private static final int WINDOW_SIZE = 512;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_INTERVAL = 16;
+    private static final long CREDIT = 1000000;
+    private static final long MAX_CREDITS = 10 * CREDIT;
+
+    private final Function<String,Driver> m_driverFactory;
+    private final LookupProfiler m_profiler;
+    private final Neo4jLoginMetrics m_metrics;
+    private final long m_creditPerLookup;
+    private final int m_maxInFlight;
+    private final ExecutorService m_pool;
+    private final AtomicLong m_credits = new AtomicLong();
+    private final AtomicInteger m_inFlightHedges = new AtomicInteger();
+    private final long[] m_latencies = new long[WINDOW_SIZE];
+    private long m_latencyCount = 0;
+    private volatile long m_hedgeDelayNanos = 0;
+    private volatile Map<String,Driver> m_members = Collections.emptyMap();
+    private boolean m_closed = false;
+
+
+    /**
+     * Create a new LookupHedger.
+     *
+     * @param config The login module configuration
+     * @param driverFactory Creates the direct driver for a member URI
+     * @param profiler The profiler recording lookups
+     * @param metrics The metrics counting hedges
+     */
+    LookupHedger(final Neo4jLoginConfig config, final Function<String,Driver> driverFactory,
+                 final LookupProfiler profiler, final Neo4jLoginMetrics metrics) {
+        m_driverFactory = driverFactory;
+        m_profiler = profiler;
+        m_metrics = metrics;
+        m_creditPerLookup = (long) (config.getHedgeMaxRate() * CREDIT);
+        m_maxInFlight = config.getHedgeMaxInFlight();
+
+        AtomicInteger count = new AtomicInteger();
+        m_pool = Executors.newCachedThreadPool(r -> {
+            Thread th = new Thread(r, "neo4j-login-lookup-" + count.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+    }
+
+    /**
+     * Run a lookup, hedging it to another member if it is slow. The lookup may be run twice,
+     * it must not have side effects outside its transaction.
+     *
+     * @param driver The routing driver
+     * @param lookup The lookup, run against the driver given
+     * @return The first record returned by either lookup
+     * @throws RuntimeException the error of the lookup, or of the hedge if both failed
+     */
+    Record lookup(final Driver driver, final Function<Driver,Record> lookup) {
+        long start = System.nanoTime();
+        m_credits.accumulateAndGet(m_creditPerLookup, (credits, credit) -> Math.min(MAX_CREDITS, credits + credit));
+
+        // When no hedge could be sent the lookup is run on the caller's thread, so an unhedged
+        // lookup costs no more than it would without the hedger
+        long delayNanos = m_hedgeDelayNanos;
+        if (! canHedge(delayNanos)) {
+            Record rec = lookup.apply(driver);
+            recordLatency(System.nanoTime() - start);
+            return rec;
+        }
+
+        CompletableFuture<Record> primary = submit(driver, lookup);
+        primary.thenRun(() -> recordLatency(System.nanoTime() - start));
+        try {
+            return primary.get(delayNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            Driver member = getMember();
+            if (member != null && tryAcquireHedge()) {
+                return hedge(primary, member, lookup);
+            }
+        } catch (ExecutionException ex) {
+            return join(primary);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for lookup", ex);
+        }
+        return join(primary);
+    }
+
+    /**
+     * Refresh the read capable members from the routing table, creating a direct driver for
+     * each new member and closing the drivers of members which have gone.
+     *
+     * @param driver The routing driver
+     */
+    void refreshMembers(final Driver driver) {
+        List<String> addresses = new ArrayList<String>();
+        try (Session sess = driver.session(READ_SESSION)) {
+            Result res = sess.run(ROUTING_QUERY);
+            while (res.hasNext()) {
+                addresses.add(res.next().get(0).asString());
+            }
+        } catch (Throwable th) {
+            LOG.warn("Failed refreshing cluster members, hedging to the previous members", th);
+            return;
+        }
+
+        // Connect to new members before hedging to them, so a hedge does not wait on the handshake
+        Map<String,Driver> members = new HashMap<String,Driver>();
+        for (String address : addresses) {
+            Driver member = m_members.get(address);
+            if (member == null) {
+                member = m_driverFactory.apply("bolt://" + address);
+                try {
+                    member.verifyConnectivity();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Failed connecting to cluster member " + address + ", not hedging to it", ex);
+                    closeDriver(member);
+                    continue;
+                }
+            }
+            members.put(address, member);
+        }
+
+        List<Driver> removed = new ArrayList<Driver>();
+        synchronized (this) {
+            if (m_closed) {
+                removed.addAll(members.values());
+            } else {
+                for (Map.Entry<String,Driver> entry : m_members.entrySet()) {
+                    if (! members.containsKey(entry.getKey())) {
+                        removed.add(entry.getValue());
+                    }
+                }
+                m_members = members;
+                LOG.debug("Hedging lookups to {}", members.keySet());
+            }
+        }
+
+        for (Driver member : removed) {
+            closeDriver(member);
+        }
+    }
+
+    /**
+     * Get the addresses of the members lookups are hedged to.
+     *
+     * @return The member addresses
+     */
+    String[] getMembers() {
+        return m_members.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Get the delay after which a lookup is hedged, the rolling 95th percentile latency.
+     *
+     * @return The delay in nanoseconds, zero until enough lookups have been timed
+     */
+    long getHedgeDelayNanos() {
+        return m_hedgeDelayNanos;
+    }
+
+    /**
+     * Get the number of hedged lookups in flight.
+     *
+     * @return The number of hedges
+     */
+    int getInFlightHedges() {
+        return m_inFlightHedges.get();
+    }
+
+    /**
+     * Close the hedger, waiting for outstanding lookups before closing the member drivers.
+     */
+    void close() {
+        Map<String,Driver> members;
+        synchronized (this) {
+            m_closed = true;
+            members = m_members;
+            m_members = Collections.emptyMap();
+        }
+
+        m_pool.shutdown();
+        try {
+            if (! m_pool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("Closing with lookups outstanding");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Driver member : members.values()) {
+            closeDriver(member);
+        }
+    }
+
+    private Record hedge(final CompletableFuture<Record> primary, final Driver member,
+                         final Function<Driver,Record> lookup) {
+        m_metrics.lookupHedged();
+        CompletableFuture<Record> first = new CompletableFuture<Record>();
+        AtomicBoolean answered = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+
+        primary.whenComplete((rec, th) -> {
+            if (th == null) {
+                if (answered.compareAndSet(false, true)) {
+                    first.complete(rec);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(th);
+            }
+        });
+        submit(member, lookup).whenComplete((rec, th) -> {
+            m_inFlightHedges.decrementAndGet();
+            if (th == null) {
+                // Counted before the caller is released, so the count includes this lookup
+                if (answered.compareAndSet(false, true)) {
+                    m_metrics.lookupHedgeWon();
+                    first.complete(rec);
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(th);
+            }
+        });
+
+        return join(first);
+    }
+
+    private CompletableFuture<Record> submit(final Driver driver, final Function<Driver,Record> lookup) {
+        return CompletableFuture.supplyAsync(m_profiler.traced(() -> lookup.apply(driver)), m_pool);
+    }
+
+    /**
+     * Check whether a lookup could be hedged, without reserving the hedge. The check is
+     * repeated by tryAcquireHedge() when the hedge is sent.
+     */
+    private boolean canHedge(final long delayNanos) {
+        return delayNanos > 0 && ! m_members.isEmpty() && m_credits.get() >= CREDIT
+               && m_inFlightHedges.get() < m_maxInFlight;
+    }
+
+    private boolean tryAcquireHedge() {
+        if (m_inFlightHedges.incrementAndGet() > m_maxInFlight) {
+            m_inFlightHedges.decrementAndGet();
+            return false;
+        }
+
+        while (true) {
+            long credits = m_credits.get();
+            if (credits < CREDIT) {
+                m_inFlightHedges.decrementAndGet();
+                return false;
+            }
+            if (m_credits.compareAndSet(credits, credits - CREDIT)) {
+                return true;
+            }
+        }
+    }
+
+    private Driver getMember() {
+        Driver[] members = m_members.values().toArray(new Driver[0]);
+        if (members.length == 0) {
+            return null;
+        }
+        return members[ThreadLocalRandom.current().nextInt(members.length)];
+    }
+
+    private void recordLatency(final long latencyNanos) {
+        synchronized (m_latencies) {
+            m_latencies[(int) (m_latencyCount++ % WINDOW_SIZE)] = latencyNanos;
+            if (m_latencyCount >= MIN_SAMPLES && m_latencyCount % RECOMPUTE_INTERVAL == 0) {
+                int samples = (int) Math.min(m_latencyCount, WINDOW_SIZE);
+                long[] sorted = Arrays.copyOf(m_latencies, samples);
+                Arrays.sort(sorted);
+                m_hedgeDelayNanos = sorted[(int) Math.ceil(samples * 0.95) - 1];
+            }
+        }
+    }
+
+    private static Record join(final CompletableFuture<Record> lookup) {
+        try {
+            return lookup.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Lookup failed", cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for lookup", ex);
+        }
+    }
+
+    private static void closeDriver(final Driver driver) {
+        try {
+            driver.close();
+        } catch (RuntimeException ex) {
+            LOG.error("Failed closing member driver", ex);
+        }
+    }
+}
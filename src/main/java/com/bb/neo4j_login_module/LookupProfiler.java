@@ -0,0 +1,283 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.neo4j.driver.summary.ProfiledPlan;
+import org.neo4j.driver.summary.ResultSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LookupProfiler records the ResultSummary of every user lookup query, aggregating the time
+ * until the result was available and consumed per server, so network latency, planner
+ * regressions and lagging replicas can be told apart. A sample of the lookups may be run with
+ * PROFILE, adding the db hits and operator tree.
+ *
+ * When a slow login threshold is set, the lookups run by each login are collected on the
+ * thread running the login, and a structured entry is written to the
+ * com.bb.neo4j_login_module.SlowLogin logger for each login taking longer than the threshold.
+ *
+ * @author Scott Stanley
+ */
+class LookupProfiler {
+    private static final Logger SLOW_LOG = LoggerFactory.getLogger("com.bb.neo4j_login_module.SlowLogin");
+
+    private final double m_profileSampleRate;
+    private final long m_slowLoginNanos;
+    private final Map<String,ServerStats> m_serverStats = new ConcurrentHashMap<String,ServerStats>();
+    private final ThreadLocal<LoginTrace> m_trace = new ThreadLocal<LoginTrace>();
+
+
+    /**
+     * Create a new LookupProfiler.
+     *
+     * @param config The login module configuration
+     */
+    LookupProfiler(final Neo4jLoginConfig config) {
+        m_profileSampleRate = config.getProfileSampleRate();
+        m_slowLoginNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowLoginMs());
+    }
+
+    /**
+     * Get the query to run for a lookup, prefixed with PROFILE if the lookup is sampled.
+     *
+     * @param query The lookup query
+     * @return The query to run
+     */
+    String prepare(final String query) {
+        if (m_profileSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < m_profileSampleRate) {
+            return "PROFILE " + query;
+        }
+        return query;
+    }
+
+    /**
+     * Record the summary of a lookup query.
+     *
+     * @param name The name of the lookup
+     * @param summary The summary of the consumed result
+     */
+    void record(final String name, final ResultSummary summary) {
+        Profile profile = new Profile(name, summary);
+        m_serverStats.computeIfAbsent(profile.m_server, server -> new ServerStats()).record(profile);
+
+        LoginTrace trace = m_trace.get();
+        if (trace != null) {
+            trace.m_profiles.add(profile);
+        }
+    }
+
+    /**
+     * Wrap a lookup to be run on another thread, so its summary is added to the login being
+     * timed on the current thread.
+     *
+     * @param lookup The lookup
+     * @return The wrapped lookup
+     */
+    <T> Supplier<T> traced(final Supplier<T> lookup) {
+        LoginTrace trace = m_trace.get();
+        if (trace == null) {
+            return lookup;
+        }
+
+        return () -> {
+            m_trace.set(trace);
+            try {
+                return lookup.get();
+            } finally {
+                m_trace.remove();
+            }
+        };
+    }
+
+    /**
+     * Start timing a login on the current thread.
+     */
+    void loginStarted() {
+        if (m_slowLoginNanos > 0) {
+            m_trace.set(new LoginTrace());
+        }
+    }
+
+    /**
+     * Finish timing a login on the current thread, logging it if it was slow.
+     *
+     * @param username The username
+     * @param outcome The outcome of the login
+     * @return The slow login entry logged, or null if the login was not slow
+     */
+    String loginFinished(final String username, final String outcome) {
+        LoginTrace trace = m_trace.get();
+        if (trace == null) {
+            return null;
+        }
+        m_trace.remove();
+
+        long elapsedNanos = System.nanoTime() - trace.m_startNanos;
+        if (elapsedNanos >= m_slowLoginNanos) {
+            StringBuilder sb = new StringBuilder("slowLogin user=").append(username)
+                    .append(" outcome=").append(outcome)
+                    .append(" totalMs=").append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+                    .append(" lookups=").append(trace.m_profiles.size());
+            // A hedged lookup which lost may still be adding its summary
+            synchronized (trace.m_profiles) {
+                for (Profile profile : trace.m_profiles) {
+                    sb.append(' ').append(profile);
+                }
+            }
+            SLOW_LOG.warn(sb.toString());
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Get the lookup statistics for each server, as formatted strings.
+     *
+     * @return The statistics, ordered by server address
+     */
+    String[] getServerStats() {
+        List<String> stats = new ArrayList<String>();
+        for (Map.Entry<String,ServerStats> entry : new TreeMap<String,ServerStats>(m_serverStats).entrySet()) {
+            stats.add("server=" + entry.getKey() + " " + entry.getValue());
+        }
+        return stats.toArray(new String[stats.size()]);
+    }
+
+    /**
+     * Get the lookup statistics for a server.
+     *
+     * @param server The server address
+     * @return The statistics, or null if no lookups have run on the server
+     */
+    ServerStats getServerStats(final String server) {
+        return m_serverStats.get(server);
+    }
+
+    /**
+     * The summary of a single lookup query.
+     */
+    static final class Profile {
+        private final String m_name;
+        private final String m_server;
+        private final long m_availableMs;
+        private final long m_consumedMs;
+        private final long m_dbHits;
+        private final String m_plan;
+
+        Profile(final String name, final ResultSummary summary) {
+            m_name = name;
+            m_server = (summary.server() != null) ? summary.server().address() : "unknown";
+            m_availableMs = summary.resultAvailableAfter(TimeUnit.MILLISECONDS);
+            m_consumedMs = summary.resultConsumedAfter(TimeUnit.MILLISECONDS);
+            if (summary.hasProfile()) {
+                ProfiledPlan plan = summary.profile();
+                m_dbHits = getDbHits(plan);
+                StringBuilder sb = new StringBuilder();
+                appendPlan(sb, plan);
+                m_plan = sb.toString();
+            } else {
+                m_dbHits = -1;
+                m_plan = null;
+            }
+        }
+
+        long getDbHits() {
+            return m_dbHits;
+        }
+
+        String getPlan() {
+            return m_plan;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(m_name).append("={server=").append(m_server)
+                    .append(" availableMs=").append(m_availableMs)
+                    .append(" consumedMs=").append(m_consumedMs);
+            if (m_plan != null) {
+                sb.append(" dbHits=").append(m_dbHits).append(" plan=").append(m_plan);
+            }
+            return sb.append('}').toString();
+        }
+
+        private static long getDbHits(final ProfiledPlan plan) {
+            long dbHits = plan.dbHits();
+            for (ProfiledPlan child : plan.children()) {
+                dbHits += getDbHits(child);
+            }
+            return dbHits;
+        }
+
+        private static void appendPlan(final StringBuilder sb, final ProfiledPlan plan) {
+            sb.append(plan.operatorType()).append("(dbHits=").append(plan.dbHits())
+              .append(" rows=").append(plan.records());
+            for (ProfiledPlan child : plan.children()) {
+                sb.append(' ');
+                appendPlan(sb, child);
+            }
+            sb.append(')');
+        }
+    }
+
+    /**
+     * The lookup statistics aggregated for a server.
+     */
+    static final class ServerStats {
+        private final LongAdder m_count = new LongAdder();
+        private final LongAdder m_availableMs = new LongAdder();
+        private final LongAdder m_consumedMs = new LongAdder();
+        private final AtomicLong m_maxAvailableMs = new AtomicLong();
+        private final LongAdder m_profiledCount = new LongAdder();
+        private final LongAdder m_dbHits = new LongAdder();
+
+        void record(final Profile profile) {
+            m_count.increment();
+            m_availableMs.add(profile.m_availableMs);
+            m_consumedMs.add(profile.m_consumedMs);
+            m_maxAvailableMs.accumulateAndGet(profile.m_availableMs, Math::max);
+            if (profile.m_plan != null) {
+                m_profiledCount.increment();
+                m_dbHits.add(profile.m_dbHits);
+            }
+        }
+
+        long getCount() {
+            return m_count.sum();
+        }
+
+        long getProfiledCount() {
+            return m_profiledCount.sum();
+        }
+
+        @Override
+        public String toString() {
+            long count = m_count.sum();
+            long profiled = m_profiledCount.sum();
+            return "lookups=" + count
+                   + " avgAvailableMs=" + ((count > 0) ? (double) m_availableMs.sum() / count : 0)
+                   + " avgConsumedMs=" + ((count > 0) ? (double) m_consumedMs.sum() / count : 0)
+                   + " maxAvailableMs=" + m_maxAvailableMs.get()
+                   + " profiled=" + profiled
+                   + " avgDbHits=" + ((profiled > 0) ? (double) m_dbHits.sum() / profiled : 0);
+        }
+    }
+
+    private static final class LoginTrace {
+        private final long m_startNanos = System.nanoTime();
+        private final List<Profile> m_profiles = Collections.synchronizedList(new ArrayList<Profile>());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionWork;
+import org.neo4j.driver.exceptions.AuthorizationExpiredException;
+import org.neo4j.driver.exceptions.ServiceUnavailableException;
+import org.neo4j.driver.exceptions.SessionExpiredException;
+import org.neo4j.driver.exceptions.TransientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LookupRetry runs user lookups in read transactions, retrying the errors a cluster raises
+ * while a leader is elected, the routing table changes or a member restarts, so a transient
+ * blip costs a few milliseconds rather than a failed login.
+ *
+ * The driver's own managed transaction retry starts backing off at one second and is
+ * configured for the whole driver, shared with the background writers. Lookups instead back
+ * off from the configured delay, doubling up to a cap, with full jitter so logins failing
+ * together do not retry together, until the maximum retry time has passed.
+ *
+ * @author Scott Stanley
+ */
+class LookupRetry {
+    private static final Logger LOG = LoggerFactory.getLogger(LookupRetry.class);
+    private static final SessionConfig READ_SESSION = SessionConfig.builder()
+                                                                   .withDefaultAccessMode(AccessMode.READ)
+                                                                   .build();
+    private static final long MAX_DELAY_MS = 1000;
+
+    private final long m_maxRetryTimeMs;
+    private final long m_initialDelayMs;
+    private final Neo4jLoginMetrics m_metrics;
+
+
+    /**
+     * Create a new LookupRetry.
+     *
+     * @param config The login module configuration
+     * @param metrics The metrics counting retries
+     */
+    LookupRetry(final Neo4jLoginConfig config, final Neo4jLoginMetrics metrics) {
+        m_maxRetryTimeMs = config.getLookupMaxRetryTimeMs();
+        m_initialDelayMs = Math.max(1, config.getLookupRetryDelayMs());
+        m_metrics = metrics;
+    }
+
+    /**
+     * Run the work in a read transaction, retrying transient errors. The work may be run more
+     * than once, it must not have side effects outside the transaction.
+     *
+     * @param driver The driver
+     * @param work The work to run
+     * @return The result of the work
+     * @throws RuntimeException the last error if it is not transient or the retry time has passed
+     */
+    <T> T readTransaction(final Driver driver, final TransactionWork<T> work) {
+        return readTransaction(driver, READ_SESSION, work);
+    }
+
+    /**
+     * Run the work in a read transaction with the given session configuration, retrying
+     * transient errors.
+     *
+     * @param driver The driver
+     * @param sessionConfig The configuration of the session, which should be read access
+     * @param work The work to run
+     * @return The result of the work
+     * @throws RuntimeException the last error if it is not transient or the retry time has passed
+     */
+    <T> T readTransaction(final Driver driver, final SessionConfig sessionConfig, final TransactionWork<T> work) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_maxRetryTimeMs);
+        long delayMs = m_initialDelayMs;
+
+        while (true) {
+            try (Session sess = driver.session(sessionConfig);
+                 Transaction tx = sess.beginTransaction()) {
+                T result = work.execute(tx);
+                tx.commit();
+                return result;
+            } catch (RuntimeException ex) {
+                long sleepMs = ThreadLocalRandom.current().nextLong(delayMs + 1);
+                if (! isRetryable(ex) || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sleepMs) >= deadline) {
+                    throw ex;
+                }
+
+                LOG.debug("Retrying lookup in {}ms: {}", sleepMs, ex.getMessage());
+                m_metrics.lookupRetried();
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                delayMs = Math.min(delayMs * 2, MAX_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Is the error transient, so the lookup may succeed if retried? These are the errors the
+     * driver's managed transactions retry.
+     *
+     * @param th The error
+     * @return true if the lookup should be retried
+     */
+    static boolean isRetryable(final Throwable th) {
+        if (th instanceof TransientException) {
+            // Transactions terminated by an administrator, or by the lock client stopping, are not transient
+            String code = ((TransientException) th).code();
+            return ! "Neo.TransientError.Transaction.Terminated".equals(code)
+                   && ! "Neo.TransientError.Transaction.LockClientStopped".equals(code);
+        }
+        return th instanceof ServiceUnavailableException
+               || th instanceof SessionExpiredException
+               || th instanceof AuthorizationExpiredException;
+    }
+}
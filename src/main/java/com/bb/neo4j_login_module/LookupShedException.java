@@ -0,0 +1,20 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+/**
+ * Thrown when a user lookup is shed because the lookups already in flight have reached the
+ * adaptive concurrency limit, and no lookup completed within the queue timeout. Neo4J is not
+ * queried, and the lookup is not counted as a failure by the circuit breaker.
+ *
+ * @author Scott Stanley
+ */
+public class LookupShedException
+        extends Neo4jLoginException {
+    private static final long serialVersionUID = 2920446817303862153L;
+
+    public LookupShedException(String msg) {
+        super(msg);
+    }
+}
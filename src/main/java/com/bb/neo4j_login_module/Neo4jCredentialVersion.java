@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.QueryRunner;
+
+/**
+ * Neo4jCredentialVersion is used by applications changing credential nodes to tell the
+ * servers caching them. bump() increments the version marker for the node type and stamps
+ * the changed credential node with the new version, and should be run in the same
+ * transaction as the change, for example,
+ *
+ *     try (Session sess = driver.session()) {
+ *         sess.writeTransaction(tx -> {
+ *             tx.run("MATCH (n:CredentialNode {username: $username}) SET n.password = $password", params);
+ *             return Neo4jCredentialVersion.bump(tx, "CredentialNode", "username", username);
+ *         });
+ *     }
+ *
+ * Applications which can not use this class may run BUMP_QUERY directly, formatted with the
+ * node type and username property.
+ *
+ * Deleting a credential node is also a change, and bump() is called after the delete in the
+ * same transaction. Finding no credential node, it records a Neo4jLoginDeleted tombstone for
+ * the username with the new version, so the servers drop the deleted user. Tombstones are
+ * only needed until every server has polled, and pruneDeleted() removes those older than a
+ * given age.
+ *
+ * When roles are resolved from relationships to role nodes, applications changing the role
+ * nodes or the inheritance relationships between them call bumpRoles() in the same way, so the
+ * role hierarchy held by each server is reloaded. Changes to the roles assigned to a single
+ * user only require bump() for that user.
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jCredentialVersion {
+    public static final String VERSION_LABEL = "Neo4jLoginVersion";
+    public static final String VERSION_PROP = "version";
+    public static final String CRED_VERSION_PROP = "credVersion";
+    public static final String DELETED_LABEL = "Neo4jLoginDeleted";
+    public static final String DELETED_AT_PROP = "deletedAt";
+
+    public static final String BUMP_QUERY =
+            "MERGE (v:" + VERSION_LABEL + " {nodeType: $nodeType}) "
+            + "SET v." + VERSION_PROP + " = coalesce(v." + VERSION_PROP + ", 0) + 1 "
+            + "WITH v "
+            + "OPTIONAL MATCH (n:%1$s {%2$s: $username}) "
+            + "SET n." + CRED_VERSION_PROP + " = v." + VERSION_PROP + " "
+            + "FOREACH (deleted IN CASE WHEN n IS NULL THEN [1] ELSE [] END | "
+            + "MERGE (d:" + DELETED_LABEL + " {nodeType: $nodeType, username: $username}) "
+            + "SET d." + CRED_VERSION_PROP + " = v." + VERSION_PROP + ", d." + DELETED_AT_PROP + " = timestamp()) "
+            + "RETURN v." + VERSION_PROP;
+
+    public static final String PRUNE_DELETED_QUERY =
+            "MATCH (d:" + DELETED_LABEL + " {nodeType: $nodeType}) "
+            + "WHERE d." + DELETED_AT_PROP + " < timestamp() - $maxAgeMs "
+            + "DELETE d "
+            + "RETURN count(*)";
+
+    public static final String ROLE_BUMP_QUERY =
+            "MERGE (v:" + VERSION_LABEL + " {nodeType: $nodeType}) "
+            + "SET v." + VERSION_PROP + " = coalesce(v." + VERSION_PROP + ", 0) + 1 "
+            + "RETURN v." + VERSION_PROP;
+
+
+    private Neo4jCredentialVersion() {
+    }
+
+    /**
+     * Increment the version marker and stamp the credential node with the new version, or
+     * record a tombstone if the credential node has been deleted.
+     *
+     * @param runner The transaction changing the credential node
+     * @param nodeType The credential node type
+     * @param usernameProp The username property of the credential node
+     * @param username The username of the changed credential node
+     * @return The new version
+     */
+    public static long bump(final QueryRunner runner, final String nodeType,
+                            final String usernameProp, final String username) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("nodeType", nodeType);
+        params.put("username", username);
+
+        return runner.run(new Query(String.format(BUMP_QUERY, nodeType, usernameProp), params))
+                     .single().get(0).asLong();
+    }
+
+    /**
+     * Remove the tombstones of deleted credential nodes older than the given age. The age must
+     * be longer than the poll interval of every server, and than any outage of Neo4J, or a
+     * server may never drop the deleted user.
+     *
+     * @param runner The transaction
+     * @param nodeType The credential node type
+     * @param maxAgeMs The age in milliseconds above which tombstones are removed
+     * @return The number of tombstones removed
+     */
+    public static long pruneDeleted(final QueryRunner runner, final String nodeType, final long maxAgeMs) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("nodeType", nodeType);
+        params.put("maxAgeMs", maxAgeMs);
+
+        return runner.run(new Query(PRUNE_DELETED_QUERY, params)).single().get(0).asLong();
+    }
+
+    /**
+     * Increment the version marker for the role node type, after the role nodes or the
+     * inheritance relationships between them have changed.
+     *
+     * @param runner The transaction changing the role nodes
+     * @param roleNodeType The role node type
+     * @return The new version
+     */
+    public static long bumpRoles(final QueryRunner runner, final String roleNodeType) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("nodeType", roleNodeType);
+
+        return runner.run(new Query(ROLE_BUMP_QUERY, params)).single().get(0).asLong();
+    }
+}
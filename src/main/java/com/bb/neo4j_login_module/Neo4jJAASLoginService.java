@@ -0,0 +1,100 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+
+import javax.security.auth.Subject;
+
+import org.eclipse.jetty.jaas.JAASLoginService;
+import org.eclipse.jetty.security.DefaultIdentityService;
+import org.eclipse.jetty.server.UserIdentity;
+
+import jakarta.servlet.ServletRequest;
+
+/**
+ * A JAASLoginService which understands the Neo4jRoleSetPrincipal attached by Neo4jLoginModule
+ * when the compositeRoles option is set. Jetty's JAASLoginService takes the name of each role
+ * principal as one role, so it must be replaced with this class for the roles held in a
+ * Neo4jRoleSetPrincipal to be honored.
+ *
+ * With the default IdentityService, role checks test the role set directly and the role names
+ * are never expanded. Otherwise, the role names are expanded into the groups passed to the
+ * IdentityService.
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jJAASLoginService
+        extends JAASLoginService {
+
+    /**
+     * Create a new Neo4jJAASLoginService.
+     */
+    public Neo4jJAASLoginService() {
+    }
+
+    /**
+     * Create a new Neo4jJAASLoginService.
+     *
+     * @param name The realm name
+     */
+    public Neo4jJAASLoginService(final String name) {
+        super(name);
+    }
+
+    /**
+     * Authenticate the user through JAAS.
+     *
+     * @param username The username
+     * @param credentials The credentials provided by the user
+     * @param request The request being authenticated
+     * @return The UserIdentity, or null if the user could not be authenticated
+     */
+    @Override
+    public UserIdentity login(final String username, final Object credentials, final ServletRequest request) {
+        UserIdentity identity = super.login(username, credentials, request);
+        if (identity == null || ! isDefaultIdentityService()) {
+            return identity;
+        }
+
+        Neo4jRoleSetPrincipal roles = getRoleSetPrincipal(identity.getSubject());
+        if (roles == null) {
+            return identity;
+        }
+        return new Neo4jUserIdentity(identity.getSubject(), identity.getUserPrincipal(), roles, identity);
+    }
+
+    /**
+     * Get the role names for the subject, expanding any Neo4jRoleSetPrincipal unless role checks
+     * will test the role set directly.
+     *
+     * @param subject The authenticated subject
+     * @return The role names
+     */
+    @Override
+    protected String[] getGroups(final Subject subject) {
+        String[] groups = super.getGroups(subject);
+
+        Neo4jRoleSetPrincipal roles = getRoleSetPrincipal(subject);
+        if (roles == null || isDefaultIdentityService()) {
+            return groups;
+        }
+
+        String[] roleNames = roles.getRoleNames();
+        String[] allGroups = Arrays.copyOf(groups, groups.length + roleNames.length);
+        System.arraycopy(roleNames, 0, allGroups, groups.length, roleNames.length);
+        return allGroups;
+    }
+
+    private boolean isDefaultIdentityService() {
+        return DefaultIdentityService.class.equals(_identityService.getClass());
+    }
+
+    private static Neo4jRoleSetPrincipal getRoleSetPrincipal(final Subject subject) {
+        for (Neo4jRoleSetPrincipal roles : subject.getPrincipals(Neo4jRoleSetPrincipal.class)) {
+            return roles;
+        }
+        return null;
+    }
+}
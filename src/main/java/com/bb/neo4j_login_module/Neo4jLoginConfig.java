@@ -0,0 +1,844 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Neo4jLoginConfig holds the configuration options provided to the login module. Two
+ * configurations with the same options are equal, which allows login modules configured
+ * identically to share the same Neo4jUserStore.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jLoginConfig {
+    static final String UPGRADE_ALGORITHM = "PBKDF2";
+    static final int DEFAULT_UPGRADE_ITERATIONS = 100000;
+    static final int DEFAULT_UPGRADE_BATCH_SIZE = 100;
+    static final int DEFAULT_UPGRADE_MAX_RETRIES = 5;
+    static final long DEFAULT_UPGRADE_INTERVAL_MS = 1000;
+    static final long DEFAULT_AUDIT_FLUSH_INTERVAL_MS = 5000;
+    static final int DEFAULT_AUDIT_MAX_BATCH_SIZE = 500;
+    static final String AUDIT_SHUTDOWN_FLUSH = "flush";
+    static final String AUDIT_SHUTDOWN_DISCARD = "discard";
+    static final long DEFAULT_LOCKOUT_WINDOW_MS = 300000;
+    static final long DEFAULT_LOCKOUT_DURATION_MS = 900000;
+    static final int DEFAULT_RATE_LIMIT_MAX_BUCKETS = 100000;
+    static final int DEFAULT_CACHE_MAX_ENTRIES = 10000;
+    static final long DEFAULT_SNAPSHOT_RELOAD_MS = 3600000;
+    static final long DEFAULT_CIRCUIT_BREAKER_RESET_MS = 30000;
+    static final long DEFAULT_LOOKUP_MAX_RETRY_TIME_MS = 1000;
+    static final long DEFAULT_LOOKUP_RETRY_DELAY_MS = 10;
+    static final double DEFAULT_HEDGE_MAX_RATE = 0.05;
+    static final int DEFAULT_HEDGE_MAX_IN_FLIGHT = 4;
+    static final int DEFAULT_CONCURRENCY_INITIAL_LIMIT = 20;
+    static final int DEFAULT_CONCURRENCY_MAX_LIMIT = 200;
+    static final long DEFAULT_CONCURRENCY_QUEUE_TIMEOUT_MS = 50;
+    static final String NORMALIZED_USERNAME_SUFFIX = "Normalized";
+    static final int DEFAULT_NORMALIZED_BACKFILL_BATCH_SIZE = 1000;
+    static final String DEFAULT_ROLE_NODE_TYPE = "Role";
+    static final String DEFAULT_ROLE_NAME_PROP = "name";
+    static final String DEFAULT_ROLE_INHERITS = "INHERITS";
+
+    private final Map<String,String> m_options;
+
+    private final String m_neo4jUser;
+    private final String m_neo4jPassword;
+    private final String m_neo4jUri;
+    private final List<String> m_shards = new ArrayList<String>();
+    private final String m_nodeType;
+    private final String m_usernameProp;
+    private final String m_credentialsProp;
+    private final String m_rolesProp;
+
+    private final boolean m_upgradeCredentials;
+    private final int m_upgradeIterations;
+    private final int m_upgradeBatchSize;
+    private final int m_upgradeMaxRetries;
+    private final long m_upgradeIntervalMs;
+
+    private final boolean m_auditLogins;
+    private final long m_auditFlushIntervalMs;
+    private final int m_auditMaxBatchSize;
+    private final boolean m_auditFlushOnShutdown;
+
+    private final int m_lockoutThreshold;
+    private final long m_lockoutWindowMs;
+    private final long m_lockoutDurationMs;
+
+    private final double m_rateLimitPerUser;
+    private final int m_rateLimitUserBurst;
+    private final double m_rateLimitPerAddress;
+    private final int m_rateLimitAddressBurst;
+    private final int m_rateLimitMaxBuckets;
+
+    private final UsernameNormalizer m_usernameNormalizer;
+    private final String m_normalizedUsernameProp;
+    private final int m_normalizedBackfillBatchSize;
+    private final long m_normalizedBackfillIntervalMs;
+
+    private final long m_cacheTtlMs;
+    private final int m_cacheMaxEntries;
+    private final double m_cacheRefreshAhead;
+    private final long m_cacheMaxBytes;
+    private final double m_cacheHeapThreshold;
+    private final long m_cacheVersionPollMs;
+    private final boolean m_userSnapshot;
+    private final long m_snapshotReloadMs;
+
+    private final boolean m_compositeRoles;
+    private final String m_roleRelationship;
+    private final String m_roleNodeType;
+    private final String m_roleNameProp;
+    private final String m_roleInherits;
+    private final boolean m_pipelinedLogin;
+    private final int m_verificationThreads;
+    private final boolean m_lazyRoles;
+
+    private final boolean m_jmxEnabled;
+    private final String m_realmName;
+
+    private final boolean m_lookupProcedure;
+    private final long m_connectionTimeoutMs;
+    private final long m_lookupMaxRetryTimeMs;
+    private final long m_lookupRetryDelayMs;
+
+    private final boolean m_hedgeLookups;
+    private final double m_hedgeMaxRate;
+    private final int m_hedgeMaxInFlight;
+
+    private final boolean m_adaptiveConcurrency;
+    private final int m_concurrencyInitialLimit;
+    private final int m_concurrencyMaxLimit;
+    private final long m_concurrencyQueueTimeoutMs;
+
+    private final int m_circuitBreakerThreshold;
+    private final long m_circuitBreakerResetMs;
+
+    private final long m_slowLoginMs;
+    private final double m_profileSampleRate;
+
+
+    /**
+     * Create a new configuration from the options provided to the login module.
+     *
+     * @param options The login module options
+     */
+    Neo4jLoginConfig(final Map<String,?> options) {
+        m_options = new TreeMap<String,String>();
+        for (Map.Entry<String,?> entry : options.entrySet()) {
+            if (entry.getValue() != null) {
+                m_options.put(entry.getKey(), entry.getValue().toString());
+            }
+        }
+
+        m_nodeType = getString(Neo4jLoginModule.NODE_TYPE, null);
+        m_usernameProp = getString(Neo4jLoginModule.USERNAME_PROP, null);
+        m_credentialsProp = getString(Neo4jLoginModule.CREDS_PROP, null);
+        m_rolesProp = getString(Neo4jLoginModule.ROLES_PROP, null);
+        m_neo4jUser = getString(Neo4jLoginModule.NEO4J_USER_PROP, null);
+        m_neo4jPassword = getString(Neo4jLoginModule.NEO4J_PASSWORD_PROP, null);
+        m_neo4jUri = getString(Neo4jLoginModule.NEO4J_URI_PROP, null);
+        String shards = getString(Neo4jLoginModule.SHARDS_PROP, null);
+        if (shards != null) {
+            for (String shard : shards.split(",")) {
+                if (! shard.trim().isEmpty()) {
+                    m_shards.add(shard.trim());
+                }
+            }
+        }
+
+        m_usernameNormalizer = new UsernameNormalizer(getString(Neo4jLoginModule.USERNAME_NORMALIZATION_PROP,
+                                                                UsernameNormalizer.MODE_NONE));
+        m_normalizedUsernameProp = getString(Neo4jLoginModule.NORMALIZED_USERNAME_PROP,
+                                             m_usernameProp + NORMALIZED_USERNAME_SUFFIX);
+        m_normalizedBackfillBatchSize = getInt(Neo4jLoginModule.NORMALIZED_BACKFILL_BATCH_SIZE_PROP,
+                                               DEFAULT_NORMALIZED_BACKFILL_BATCH_SIZE);
+        m_normalizedBackfillIntervalMs = getLong(Neo4jLoginModule.NORMALIZED_BACKFILL_INTERVAL_PROP, 0);
+
+        String upgradeAlgorithm = getString(Neo4jLoginModule.UPGRADE_CREDS_PROP, null);
+        if (upgradeAlgorithm == null || upgradeAlgorithm.equalsIgnoreCase("false")) {
+            m_upgradeCredentials = false;
+        } else if (upgradeAlgorithm.equalsIgnoreCase("true")
+                || upgradeAlgorithm.equalsIgnoreCase(UPGRADE_ALGORITHM)) {
+            m_upgradeCredentials = true;
+        } else {
+            throw new IllegalArgumentException("Unsupported credential upgrade algorithm, " + upgradeAlgorithm);
+        }
+        m_upgradeIterations = getInt(Neo4jLoginModule.UPGRADE_ITERATIONS_PROP, DEFAULT_UPGRADE_ITERATIONS);
+        m_upgradeBatchSize = getInt(Neo4jLoginModule.UPGRADE_BATCH_SIZE_PROP, DEFAULT_UPGRADE_BATCH_SIZE);
+        m_upgradeMaxRetries = getInt(Neo4jLoginModule.UPGRADE_MAX_RETRIES_PROP, DEFAULT_UPGRADE_MAX_RETRIES);
+        m_upgradeIntervalMs = getLong(Neo4jLoginModule.UPGRADE_INTERVAL_PROP, DEFAULT_UPGRADE_INTERVAL_MS);
+
+        m_auditLogins = getBoolean(Neo4jLoginModule.AUDIT_LOGINS_PROP, false);
+        m_auditFlushIntervalMs = getLong(Neo4jLoginModule.AUDIT_FLUSH_INTERVAL_PROP, DEFAULT_AUDIT_FLUSH_INTERVAL_MS);
+        m_auditMaxBatchSize = getInt(Neo4jLoginModule.AUDIT_MAX_BATCH_SIZE_PROP, DEFAULT_AUDIT_MAX_BATCH_SIZE);
+        String auditOnShutdown = getString(Neo4jLoginModule.AUDIT_ON_SHUTDOWN_PROP, AUDIT_SHUTDOWN_FLUSH);
+        if (auditOnShutdown.equalsIgnoreCase(AUDIT_SHUTDOWN_FLUSH)) {
+            m_auditFlushOnShutdown = true;
+        } else if (auditOnShutdown.equalsIgnoreCase(AUDIT_SHUTDOWN_DISCARD)) {
+            m_auditFlushOnShutdown = false;
+        } else {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.AUDIT_ON_SHUTDOWN_PROP 
+                                               + ", " + auditOnShutdown);
+        }
+
+        m_lockoutThreshold = getInt(Neo4jLoginModule.LOCKOUT_THRESHOLD_PROP, 0);
+        m_lockoutWindowMs = getLong(Neo4jLoginModule.LOCKOUT_WINDOW_PROP, DEFAULT_LOCKOUT_WINDOW_MS);
+        m_lockoutDurationMs = getLong(Neo4jLoginModule.LOCKOUT_DURATION_PROP, DEFAULT_LOCKOUT_DURATION_MS);
+
+        m_rateLimitPerUser = getDouble(Neo4jLoginModule.RATE_LIMIT_PER_USER_PROP, 0);
+        m_rateLimitUserBurst = getInt(Neo4jLoginModule.RATE_LIMIT_USER_BURST_PROP, 
+                                      (int) Math.max(1, Math.ceil(m_rateLimitPerUser)));
+        m_rateLimitPerAddress = getDouble(Neo4jLoginModule.RATE_LIMIT_PER_ADDRESS_PROP, 0);
+        m_rateLimitAddressBurst = getInt(Neo4jLoginModule.RATE_LIMIT_ADDRESS_BURST_PROP, 
+                                         (int) Math.max(1, Math.ceil(m_rateLimitPerAddress)));
+        m_rateLimitMaxBuckets = getInt(Neo4jLoginModule.RATE_LIMIT_MAX_BUCKETS_PROP, DEFAULT_RATE_LIMIT_MAX_BUCKETS);
+        if (m_rateLimitMaxBuckets <= 0) {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.RATE_LIMIT_MAX_BUCKETS_PROP
+                                               + ", " + m_rateLimitMaxBuckets);
+        }
+
+        m_cacheTtlMs = getLong(Neo4jLoginModule.CACHE_TTL_PROP, 0);
+        m_cacheMaxEntries = getInt(Neo4jLoginModule.CACHE_MAX_ENTRIES_PROP, DEFAULT_CACHE_MAX_ENTRIES);
+        m_cacheRefreshAhead = getDouble(Neo4jLoginModule.CACHE_REFRESH_AHEAD_PROP, 0);
+        if (m_cacheRefreshAhead < 0 || m_cacheRefreshAhead > 1) {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.CACHE_REFRESH_AHEAD_PROP
+                                               + ", " + m_cacheRefreshAhead);
+        }
+        m_cacheMaxBytes = getLong(Neo4jLoginModule.CACHE_MAX_BYTES_PROP, 0);
+        m_cacheHeapThreshold = getDouble(Neo4jLoginModule.CACHE_HEAP_THRESHOLD_PROP, 0);
+        if (m_cacheHeapThreshold < 0 || m_cacheHeapThreshold > 1) {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.CACHE_HEAP_THRESHOLD_PROP
+                                               + ", " + m_cacheHeapThreshold);
+        }
+        m_cacheVersionPollMs = getLong(Neo4jLoginModule.CACHE_VERSION_POLL_PROP, 0);
+        m_userSnapshot = getBoolean(Neo4jLoginModule.USER_SNAPSHOT_PROP, false);
+        m_snapshotReloadMs = getLong(Neo4jLoginModule.SNAPSHOT_RELOAD_PROP, DEFAULT_SNAPSHOT_RELOAD_MS);
+
+        m_compositeRoles = getBoolean(Neo4jLoginModule.COMPOSITE_ROLES_PROP, false);
+        m_roleRelationship = getString(Neo4jLoginModule.ROLE_RELATIONSHIP_PROP, null);
+        m_roleNodeType = getString(Neo4jLoginModule.ROLE_NODE_TYPE_PROP, DEFAULT_ROLE_NODE_TYPE);
+        m_roleNameProp = getString(Neo4jLoginModule.ROLE_NAME_PROP, DEFAULT_ROLE_NAME_PROP);
+        m_roleInherits = getString(Neo4jLoginModule.ROLE_INHERITS_PROP, DEFAULT_ROLE_INHERITS);
+        m_pipelinedLogin = getBoolean(Neo4jLoginModule.PIPELINED_LOGIN_PROP, false);
+        m_verificationThreads = getInt(Neo4jLoginModule.VERIFICATION_THREADS_PROP,
+                                       Runtime.getRuntime().availableProcessors());
+        m_lazyRoles = getBoolean(Neo4jLoginModule.LAZY_ROLES_PROP, false);
+
+        m_jmxEnabled = getBoolean(Neo4jLoginModule.JMX_ENABLED_PROP, false);
+        m_realmName = getString(Neo4jLoginModule.REALM_NAME_PROP, m_nodeType);
+
+        m_lookupProcedure = getBoolean(Neo4jLoginModule.LOOKUP_PROCEDURE_PROP, false);
+        m_connectionTimeoutMs = getLong(Neo4jLoginModule.CONNECTION_TIMEOUT_PROP, 0);
+        m_lookupMaxRetryTimeMs = getLong(Neo4jLoginModule.LOOKUP_MAX_RETRY_TIME_PROP, DEFAULT_LOOKUP_MAX_RETRY_TIME_MS);
+        m_lookupRetryDelayMs = getLong(Neo4jLoginModule.LOOKUP_RETRY_DELAY_PROP, DEFAULT_LOOKUP_RETRY_DELAY_MS);
+
+        m_hedgeLookups = getBoolean(Neo4jLoginModule.HEDGE_LOOKUPS_PROP, false);
+        m_hedgeMaxRate = getDouble(Neo4jLoginModule.HEDGE_MAX_RATE_PROP, DEFAULT_HEDGE_MAX_RATE);
+        if (m_hedgeMaxRate < 0 || m_hedgeMaxRate > 1) {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.HEDGE_MAX_RATE_PROP
+                                               + ", " + m_hedgeMaxRate);
+        }
+        m_hedgeMaxInFlight = getInt(Neo4jLoginModule.HEDGE_MAX_IN_FLIGHT_PROP, DEFAULT_HEDGE_MAX_IN_FLIGHT);
+
+        m_adaptiveConcurrency = getBoolean(Neo4jLoginModule.ADAPTIVE_CONCURRENCY_PROP, false);
+        m_concurrencyInitialLimit = getInt(Neo4jLoginModule.CONCURRENCY_INITIAL_LIMIT_PROP,
+                                           DEFAULT_CONCURRENCY_INITIAL_LIMIT);
+        m_concurrencyMaxLimit = getInt(Neo4jLoginModule.CONCURRENCY_MAX_LIMIT_PROP, DEFAULT_CONCURRENCY_MAX_LIMIT);
+        m_concurrencyQueueTimeoutMs = getLong(Neo4jLoginModule.CONCURRENCY_QUEUE_TIMEOUT_PROP,
+                                              DEFAULT_CONCURRENCY_QUEUE_TIMEOUT_MS);
+
+        m_circuitBreakerThreshold = getInt(Neo4jLoginModule.CIRCUIT_BREAKER_THRESHOLD_PROP, 0);
+        m_circuitBreakerResetMs = getLong(Neo4jLoginModule.CIRCUIT_BREAKER_RESET_PROP, DEFAULT_CIRCUIT_BREAKER_RESET_MS);
+
+        m_slowLoginMs = getLong(Neo4jLoginModule.SLOW_LOGIN_PROP, 0);
+        m_profileSampleRate = getDouble(Neo4jLoginModule.PROFILE_SAMPLE_RATE_PROP, 0);
+        if (m_profileSampleRate < 0 || m_profileSampleRate > 1) {
+            throw new IllegalArgumentException("Invalid value for " + Neo4jLoginModule.PROFILE_SAMPLE_RATE_PROP
+                                               + ", " + m_profileSampleRate);
+        }
+    }
+
+    String getNeo4jUser() {
+        return m_neo4jUser;
+    }
+
+    String getNeo4jPassword() {
+        return m_neo4jPassword;
+    }
+
+    String getNeo4jUri() {
+        return m_neo4jUri;
+    }
+
+    /**
+     * Are users spread across several shards, rather than held in the database at the neo4jUri?
+     *
+     * @return true if shards are configured
+     */
+    boolean isSharded() {
+        return ! m_shards.isEmpty();
+    }
+
+    /**
+     * Get the shards holding the credential nodes.
+     *
+     * @return The shards, each as [name=]uri[#database], empty if the store is not sharded
+     */
+    List<String> getShards() {
+        return m_shards;
+    }
+
+    String getNodeType() {
+        return m_nodeType;
+    }
+
+    String getUsernameProp() {
+        return m_usernameProp;
+    }
+
+    String getCredentialsProp() {
+        return m_credentialsProp;
+    }
+
+    /**
+     * Get the normalizer applied to usernames before they are looked up.
+     *
+     * @return The normalizer, which leaves usernames unchanged if normalization is not enabled
+     */
+    UsernameNormalizer getUsernameNormalizer() {
+        return m_usernameNormalizer;
+    }
+
+    /**
+     * Are usernames normalized, and looked up against the normalized username property?
+     *
+     * @return true if a normalization mode other than none is configured
+     */
+    boolean isUsernameNormalized() {
+        return m_usernameNormalizer.isEnabled();
+    }
+
+    String getNormalizedUsernameProp() {
+        return m_normalizedUsernameProp;
+    }
+
+    /**
+     * Get the property credential nodes are looked up by.
+     *
+     * @return The normalized username property if usernames are normalized, otherwise the
+     *         username property
+     */
+    String getLookupUsernameProp() {
+        return isUsernameNormalized() ? m_normalizedUsernameProp : m_usernameProp;
+    }
+
+    int getNormalizedBackfillBatchSize() {
+        return m_normalizedBackfillBatchSize;
+    }
+
+    /**
+     * Get the interval at which credential nodes missing the normalized username are backfilled.
+     *
+     * @return The interval in milliseconds, or zero if the backfill is not scheduled
+     */
+    long getNormalizedBackfillIntervalMs() {
+        return isUsernameNormalized() ? m_normalizedBackfillIntervalMs : 0;
+    }
+
+    String getRolesProp() {
+        return m_rolesProp;
+    }
+
+    /**
+     * Should credentials stored using a legacy hash be upgraded after a successful login?
+     *
+     * @return true if legacy credentials should be upgraded
+     */
+    boolean isUpgradeCredentials() {
+        return m_upgradeCredentials;
+    }
+
+    int getUpgradeIterations() {
+        return m_upgradeIterations;
+    }
+
+    int getUpgradeBatchSize() {
+        return m_upgradeBatchSize;
+    }
+
+    int getUpgradeMaxRetries() {
+        return m_upgradeMaxRetries;
+    }
+
+    long getUpgradeIntervalMs() {
+        return m_upgradeIntervalMs;
+    }
+
+    /**
+     * Should the outcome of logins be recorded on the credential node?
+     *
+     * @return true if logins should be audited
+     */
+    boolean isAuditLogins() {
+        return m_auditLogins;
+    }
+
+    long getAuditFlushIntervalMs() {
+        return m_auditFlushIntervalMs;
+    }
+
+    int getAuditMaxBatchSize() {
+        return m_auditMaxBatchSize;
+    }
+
+    /**
+     * Should pending audit entries be written when the store is closed, or discarded?
+     *
+     * @return true if pending entries should be written
+     */
+    boolean isAuditFlushOnShutdown() {
+        return m_auditFlushOnShutdown;
+    }
+
+    /**
+     * Are accounts locked after repeated failed logins?
+     *
+     * @return true if account lockout is enabled
+     */
+    boolean isLockoutEnabled() {
+        return m_lockoutThreshold > 0;
+    }
+
+    int getLockoutThreshold() {
+        return m_lockoutThreshold;
+    }
+
+    long getLockoutWindowMs() {
+        return m_lockoutWindowMs;
+    }
+
+    long getLockoutDurationMs() {
+        return m_lockoutDurationMs;
+    }
+
+    /**
+     * Is the rate of logins limited per username or per client address?
+     *
+     * @return true if rate limiting is enabled
+     */
+    boolean isRateLimited() {
+        return m_rateLimitPerUser > 0 || m_rateLimitPerAddress > 0;
+    }
+
+    double getRateLimitPerUser() {
+        return m_rateLimitPerUser;
+    }
+
+    int getRateLimitUserBurst() {
+        return m_rateLimitUserBurst;
+    }
+
+    double getRateLimitPerAddress() {
+        return m_rateLimitPerAddress;
+    }
+
+    int getRateLimitAddressBurst() {
+        return m_rateLimitAddressBurst;
+    }
+
+    /**
+     * Get the maximum number of buckets held for each rate limit. Usernames or client
+     * addresses seen once the limit is reached share a single overflow bucket.
+     *
+     * @return The maximum number of buckets
+     */
+    int getRateLimitMaxBuckets() {
+        return m_rateLimitMaxBuckets;
+    }
+
+    /**
+     * Are users loaded from Neo4J cached?
+     *
+     * @return true if the user cache is enabled
+     */
+    boolean isCacheEnabled() {
+        return m_cacheTtlMs > 0;
+    }
+
+    long getCacheTtlMs() {
+        return m_cacheTtlMs;
+    }
+
+    int getCacheMaxEntries() {
+        return m_cacheMaxEntries;
+    }
+
+    /**
+     * Are cached users reloaded in the background when read late in their time to live?
+     *
+     * @return true if the cache is enabled with a refresh ahead fraction below one
+     */
+    boolean isCacheRefreshAhead() {
+        return isCacheEnabled() && m_cacheRefreshAhead > 0 && m_cacheRefreshAhead < 1;
+    }
+
+    /**
+     * Get the fraction of the time to live after which a cached user is refreshed when read.
+     *
+     * @return The fraction, between zero and one
+     */
+    double getCacheRefreshAhead() {
+        return m_cacheRefreshAhead;
+    }
+
+    /**
+     * Get the maximum estimated size of the cached users.
+     *
+     * @return The size in bytes, or zero if the cache is bounded only by entries
+     */
+    long getCacheMaxBytes() {
+        return m_cacheMaxBytes;
+    }
+
+    /**
+     * Is the cache shed when the heap is over a threshold after a garbage collection?
+     *
+     * @return true if the cache is enabled with a heap threshold
+     */
+    boolean isCacheHeapShedding() {
+        return isCacheEnabled() && m_cacheHeapThreshold > 0;
+    }
+
+    /**
+     * Get the fraction of the heap's maximum size over which the cache is shed.
+     *
+     * @return The fraction, between zero and one
+     */
+    double getCacheHeapThreshold() {
+        return m_cacheHeapThreshold;
+    }
+
+    /**
+     * Is the version marker polled to invalidate users changed on other servers, and to refresh
+     * the role hierarchy?
+     *
+     * @return true if the cache, snapshot or role relationships are enabled and the poll interval
+     *         is greater than zero
+     */
+    boolean isCacheVersionPolled() {
+        return (isCacheEnabled() || m_userSnapshot || isRoleRelationships()) && m_cacheVersionPollMs > 0;
+    }
+
+    long getCacheVersionPollMs() {
+        return m_cacheVersionPollMs;
+    }
+
+    /**
+     * Are all users held in memory, in a CompactCredentialStore?
+     *
+     * @return true if the user snapshot is enabled
+     */
+    boolean isUserSnapshot() {
+        return m_userSnapshot;
+    }
+
+    /**
+     * Get the interval the snapshot is reloaded at, so users deleted or changed without
+     * bumping the version marker are dropped.
+     *
+     * @return The interval in milliseconds, zero if the snapshot is only loaded once
+     */
+    long getSnapshotReloadMs() {
+        return m_snapshotReloadMs;
+    }
+
+    /**
+     * Are the roles of a user attached to the Subject as a single Neo4jRoleSetPrincipal,
+     * rather than one JAASRole per role?
+     *
+     * Lazily loaded roles can only be attached this way.
+     *
+     * @return true if roles are attached as a composite principal
+     */
+    boolean isCompositeRoles() {
+        return m_compositeRoles || isLazyRoles();
+    }
+
+    /**
+     * Are roles resolved from relationships to role nodes, rather than from the roles property
+     * of the credential node?
+     *
+     * @return true if the role relationship is defined
+     */
+    boolean isRoleRelationships() {
+        return m_roleRelationship != null;
+    }
+
+    String getRoleRelationship() {
+        return m_roleRelationship;
+    }
+
+    String getRoleNodeType() {
+        return m_roleNodeType;
+    }
+
+    String getRoleNameProp() {
+        return m_roleNameProp;
+    }
+
+    String getRoleInherits() {
+        return m_roleInherits;
+    }
+
+    /**
+     * Are passwords verified while the roles are fetched? This only applies when roles are
+     * resolved from relationships, as otherwise the roles are returned with the credential.
+     *
+     * @return true if pipelined login is enabled, roles are resolved from relationships and
+     *         roles are not loaded lazily
+     */
+    boolean isPipelinedLogin() {
+        return m_pipelinedLogin && isRoleRelationships() && ! isLazyRoles();
+    }
+
+    /**
+     * Are the roles of a user loaded on the first role check, rather than with the user? The
+     * snapshot always holds the roles of every user, so roles are never lazy with the snapshot.
+     *
+     * @return true if roles are loaded lazily
+     */
+    boolean isLazyRoles() {
+        return m_lazyRoles && ! m_userSnapshot;
+    }
+
+    int getVerificationThreads() {
+        return m_verificationThreads;
+    }
+
+    /**
+     * Is the JMX MBean registered, and are driver metrics collected for it?
+     *
+     * @return true if JMX is enabled
+     */
+    boolean isJmxEnabled() {
+        return m_jmxEnabled;
+    }
+
+    /**
+     * Get the realm name identifying the store, used to name its JMX MBean.
+     *
+     * @return The realm name, the node type if not configured
+     */
+    String getRealmName() {
+        return m_realmName;
+    }
+
+    /**
+     * Are users looked up through the auth.lookup procedures installed on the Neo4J servers,
+     * rather than by Cypher queries?
+     *
+     * @return true if users are looked up through the procedures
+     */
+    boolean isLookupProcedure() {
+        return m_lookupProcedure;
+    }
+
+    /**
+     * Get the time allowed to open a connection to Neo4J, including the Bolt handshake.
+     *
+     * @return The timeout in milliseconds, zero for the driver default
+     */
+    long getConnectionTimeoutMs() {
+        return m_connectionTimeoutMs;
+    }
+
+    /**
+     * Get the time within which a lookup failing with a transient error is retried.
+     *
+     * @return The maximum retry time in milliseconds, zero if lookups are not retried
+     */
+    long getLookupMaxRetryTimeMs() {
+        return m_lookupMaxRetryTimeMs;
+    }
+
+    long getLookupRetryDelayMs() {
+        return m_lookupRetryDelayMs;
+    }
+
+    /**
+     * Are slow user lookups hedged, by sending the same lookup to another cluster member?
+     * Lookups are not hedged across shards.
+     *
+     * @return true if lookups are hedged
+     */
+    boolean isHedgeLookups() {
+        return m_hedgeLookups && m_hedgeMaxRate > 0 && m_hedgeMaxInFlight > 0 && ! isSharded();
+    }
+
+    /**
+     * Get the maximum fraction of user lookups which may be hedged.
+     *
+     * @return The hedge rate, between zero and one
+     */
+    double getHedgeMaxRate() {
+        return m_hedgeMaxRate;
+    }
+
+    int getHedgeMaxInFlight() {
+        return m_hedgeMaxInFlight;
+    }
+
+    /**
+     * Is the number of user lookups in flight bounded by a limit tuned from their latency?
+     *
+     * @return true if the adaptive concurrency limit is enabled
+     */
+    boolean isAdaptiveConcurrency() {
+        return m_adaptiveConcurrency;
+    }
+
+    int getConcurrencyInitialLimit() {
+        return m_concurrencyInitialLimit;
+    }
+
+    int getConcurrencyMaxLimit() {
+        return m_concurrencyMaxLimit;
+    }
+
+    /**
+     * Get the time a lookup over the concurrency limit waits before it is shed.
+     *
+     * @return The queue timeout in milliseconds
+     */
+    long getConcurrencyQueueTimeoutMs() {
+        return m_concurrencyQueueTimeoutMs;
+    }
+
+    /**
+     * Is the circuit breaker around user lookups enabled?
+     *
+     * @return true if the circuit breaker threshold is greater than zero
+     */
+    boolean isCircuitBreakerEnabled() {
+        return m_circuitBreakerThreshold > 0;
+    }
+
+    int getCircuitBreakerThreshold() {
+        return m_circuitBreakerThreshold;
+    }
+
+    long getCircuitBreakerResetMs() {
+        return m_circuitBreakerResetMs;
+    }
+
+    /**
+     * Get the total login time above which a slow login entry is logged.
+     *
+     * @return The threshold in milliseconds, zero if slow logins are not logged
+     */
+    long getSlowLoginMs() {
+        return m_slowLoginMs;
+    }
+
+    /**
+     * Get the fraction of user lookups run with PROFILE.
+     *
+     * @return The sample rate, between zero and one
+     */
+    double getProfileSampleRate() {
+        return m_profileSampleRate;
+    }
+
+    /**
+     * Get a string option.
+     *
+     * @param name The option name
+     * @param defaultValue The value returned if the option is not defined
+     * @return The option value
+     */
+    private String getString(final String name, final String defaultValue) {
+        String value = m_options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Get an integer option.
+     *
+     * @param name The option name
+     * @param defaultValue The value returned if the option is not defined
+     * @return The option value
+     */
+    private int getInt(final String name, final int defaultValue) {
+        String value = m_options.get(name);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ", " + value, ex);
+        }
+    }
+
+    /**
+     * Get a long option.
+     *
+     * @param name The option name
+     * @param defaultValue The value returned if the option is not defined
+     * @return The option value
+     */
+    private long getLong(final String name, final long defaultValue) {
+        String value = m_options.get(name);
+        try {
+            return value != null ? Long.parseLong(value.trim()) : defaultValue;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ", " + value, ex);
+        }
+    }
+
+    /**
+     * Get a double option.
+     *
+     * @param name The option name
+     * @param defaultValue The value returned if the option is not defined
+     * @return The option value
+     */
+    private double getDouble(final String name, final double defaultValue) {
+        String value = m_options.get(name);
+        try {
+            return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid value for " + name + ", " + value, ex);
+        }
+    }
+
+    /**
+     * Get a boolean option.
+     *
+     * @param name The option name
+     * @param defaultValue The value returned if the option is not defined
+     * @return The option value
+     */
+    private boolean getBoolean(final String name, final boolean defaultValue) {
+        String value = m_options.get(name);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj)
+            return true;
+        if (! Neo4jLoginConfig.class.isInstance(obj))
+            return false;
+
+        return m_options.equals(((Neo4jLoginConfig) obj).m_options);
+    }
+
+    @Override
+    public int hashCode() {
+        return m_options.hashCode();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Neo4jLoginMetrics holds the counters maintained by a Neo4jUserStore.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jLoginMetrics {
+    private final LongAdder m_userRateLimited = new LongAdder();
+    private final LongAdder m_addressRateLimited = new LongAdder();
+    private final LongAdder m_loginSucceeded = new LongAdder();
+    private final LongAdder m_loginFailed = new LongAdder();
+    private final LongAdder m_accountLocked = new LongAdder();
+    private final LongAdder m_userNotFound = new LongAdder();
+    private final LongAdder m_lookupFailed = new LongAdder();
+    private final LongAdder m_lookupRetried = new LongAdder();
+    private final LongAdder m_lookupHedged = new LongAdder();
+    private final LongAdder m_lookupHedgeWon = new LongAdder();
+    private final LongAdder m_lookupShed = new LongAdder();
+    private final LongAdder m_roleFetchCancelled = new LongAdder();
+    private final LongAdder m_lazyRoleLoads = new LongAdder();
+
+
+    void userRateLimited() {
+        m_userRateLimited.increment();
+    }
+
+    /**
+     * Get the number of logins rejected by the per username rate limit.
+     *
+     * @return The number of logins
+     */
+    long getUserRateLimitedCount() {
+        return m_userRateLimited.sum();
+    }
+
+    void addressRateLimited() {
+        m_addressRateLimited.increment();
+    }
+
+    /**
+     * Get the number of logins rejected by the per client address rate limit.
+     *
+     * @return The number of logins
+     */
+    long getAddressRateLimitedCount() {
+        return m_addressRateLimited.sum();
+    }
+
+    void loginSucceeded() {
+        m_loginSucceeded.increment();
+    }
+
+    /**
+     * Get the number of successful logins.
+     *
+     * @return The number of logins
+     */
+    long getLoginSucceededCount() {
+        return m_loginSucceeded.sum();
+    }
+
+    void loginFailed() {
+        m_loginFailed.increment();
+    }
+
+    /**
+     * Get the number of logins which failed to validate the credentials.
+     *
+     * @return The number of logins
+     */
+    long getLoginFailedCount() {
+        return m_loginFailed.sum();
+    }
+
+    void accountLocked() {
+        m_accountLocked.increment();
+    }
+
+    /**
+     * Get the number of logins rejected because the account was locked.
+     *
+     * @return The number of logins
+     */
+    long getAccountLockedCount() {
+        return m_accountLocked.sum();
+    }
+
+    void userNotFound() {
+        m_userNotFound.increment();
+    }
+
+    /**
+     * Get the number of logins for a username with no credential node.
+     *
+     * @return The number of logins
+     */
+    long getUserNotFoundCount() {
+        return m_userNotFound.sum();
+    }
+
+    void lookupFailed() {
+        m_lookupFailed.increment();
+    }
+
+    /**
+     * Get the number of user lookups which failed, including those rejected by the circuit breaker.
+     *
+     * @return The number of lookups
+     */
+    long getLookupFailedCount() {
+        return m_lookupFailed.sum();
+    }
+
+    void lookupRetried() {
+        m_lookupRetried.increment();
+    }
+
+    /**
+     * Get the number of times a lookup was retried after a transient error.
+     *
+     * @return The number of retries
+     */
+    long getLookupRetryCount() {
+        return m_lookupRetried.sum();
+    }
+
+    void lookupHedged() {
+        m_lookupHedged.increment();
+    }
+
+    /**
+     * Get the number of lookups hedged by sending them to a second cluster member.
+     *
+     * @return The number of hedged lookups
+     */
+    long getLookupHedgedCount() {
+        return m_lookupHedged.sum();
+    }
+
+    void lookupHedgeWon() {
+        m_lookupHedgeWon.increment();
+    }
+
+    /**
+     * Get the number of hedged lookups answered first by the second cluster member.
+     *
+     * @return The number of hedges which won
+     */
+    long getLookupHedgeWonCount() {
+        return m_lookupHedgeWon.sum();
+    }
+
+    void lookupShed() {
+        m_lookupShed.increment();
+    }
+
+    /**
+     * Get the number of lookups shed by the adaptive concurrency limit.
+     *
+     * @return The number of shed lookups
+     */
+    long getLookupShedCount() {
+        return m_lookupShed.sum();
+    }
+
+    void roleFetchCancelled() {
+        m_roleFetchCancelled.increment();
+    }
+
+    /**
+     * Get the number of pipelined role fetches cancelled because the password was not verified.
+     *
+     * @return The number of role fetches
+     */
+    long getRoleFetchCancelledCount() {
+        return m_roleFetchCancelled.sum();
+    }
+
+    void lazyRolesLoaded() {
+        m_lazyRoleLoads.increment();
+    }
+
+    /**
+     * Get the number of times the roles of a user were loaded on the first role check.
+     *
+     * @return The number of role loads
+     */
+    long getLazyRoleLoadCount() {
+        return m_lazyRoleLoads.sum();
+    }
+}
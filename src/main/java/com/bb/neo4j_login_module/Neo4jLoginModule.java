@@ -4,33 +4,25 @@
 package com.bb.neo4j_login_module;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.security.Principal;
 import java.util.Map;
+import java.util.Set;
 
 import javax.security.auth.Subject;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.CallbackHandler;
 import javax.security.auth.callback.NameCallback;
 import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.AccountLockedException;
 import javax.security.auth.login.FailedLoginException;
 import javax.security.auth.login.LoginException;
 import javax.security.auth.spi.LoginModule;
 
+import jakarta.servlet.ServletRequest;
+
+import org.eclipse.jetty.jaas.JAASRole;
 import org.eclipse.jetty.jaas.callback.ObjectCallback;
-import org.neo4j.driver.AuthToken;
-import org.neo4j.driver.AuthTokens;
-import org.neo4j.driver.Config;
-import org.neo4j.driver.Driver;
-import org.neo4j.driver.GraphDatabase;
-import org.neo4j.driver.Query;
-import org.neo4j.driver.Record;
-import org.neo4j.driver.Result;
-import org.neo4j.driver.Session;
-import org.neo4j.driver.Value;
-import org.neo4j.driver.internal.types.InternalTypeSystem;
-import org.neo4j.driver.types.Node;
+import org.eclipse.jetty.jaas.callback.ServletRequestCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,18 +51,68 @@ public class Neo4jLoginModule
     public static String NEO4J_USER_PROP = "neo4jUser";
     public static String NEO4J_PASSWORD_PROP = "neo4jPassword";
     public static String NEO4J_URI_PROP = "neo4jUri";
+    public static String UPGRADE_CREDS_PROP = "upgradeCredentials";
+    public static String UPGRADE_ITERATIONS_PROP = "upgradeIterations";
+    public static String UPGRADE_BATCH_SIZE_PROP = "upgradeBatchSize";
+    public static String UPGRADE_MAX_RETRIES_PROP = "upgradeMaxRetries";
+    public static String UPGRADE_INTERVAL_PROP = "upgradeIntervalMs";
+    public static String AUDIT_LOGINS_PROP = "auditLogins";
+    public static String AUDIT_FLUSH_INTERVAL_PROP = "auditFlushIntervalMs";
+    public static String AUDIT_MAX_BATCH_SIZE_PROP = "auditMaxBatchSize";
+    public static String AUDIT_ON_SHUTDOWN_PROP = "auditOnShutdown";
+    public static String LOCKOUT_THRESHOLD_PROP = "lockoutThreshold";
+    public static String LOCKOUT_WINDOW_PROP = "lockoutWindowMs";
+    public static String LOCKOUT_DURATION_PROP = "lockoutDurationMs";
+    public static String RATE_LIMIT_PER_USER_PROP = "rateLimitPerUser";
+    public static String RATE_LIMIT_USER_BURST_PROP = "rateLimitUserBurst";
+    public static String RATE_LIMIT_PER_ADDRESS_PROP = "rateLimitPerAddress";
+    public static String RATE_LIMIT_ADDRESS_BURST_PROP = "rateLimitAddressBurst";
+    public static String RATE_LIMIT_MAX_BUCKETS_PROP = "rateLimitMaxBuckets";
+    public static String CACHE_TTL_PROP = "cacheTtlMs";
+    public static String CACHE_MAX_ENTRIES_PROP = "cacheMaxEntries";
+    public static String CACHE_VERSION_POLL_PROP = "cacheVersionPollMs";
+    public static String USER_SNAPSHOT_PROP = "userSnapshot";
+    public static String SNAPSHOT_RELOAD_PROP = "snapshotReloadMs";
+    public static String JMX_ENABLED_PROP = "jmxEnabled";
+    public static String REALM_NAME_PROP = "realmName";
+    public static String CIRCUIT_BREAKER_THRESHOLD_PROP = "circuitBreakerThreshold";
+    public static String CIRCUIT_BREAKER_RESET_PROP = "circuitBreakerResetMs";
+    public static String COMPOSITE_ROLES_PROP = "compositeRoles";
+    public static String ROLE_RELATIONSHIP_PROP = "roleRelationship";
+    public static String ROLE_NODE_TYPE_PROP = "roleNodeType";
+    public static String ROLE_NAME_PROP = "roleNameProp";
+    public static String ROLE_INHERITS_PROP = "roleInheritsRelationship";
+    public static String PIPELINED_LOGIN_PROP = "pipelinedLogin";
+    public static String VERIFICATION_THREADS_PROP = "verificationThreads";
+    public static String LAZY_ROLES_PROP = "lazyRoles";
+    public static String SLOW_LOGIN_PROP = "slowLoginMs";
+    public static String PROFILE_SAMPLE_RATE_PROP = "profileSampleRate";
+    public static String CONNECTION_TIMEOUT_PROP = "connectionTimeoutMs";
+    public static String LOOKUP_MAX_RETRY_TIME_PROP = "lookupMaxRetryTimeMs";
+    public static String LOOKUP_RETRY_DELAY_PROP = "lookupRetryDelayMs";
+    public static String HEDGE_LOOKUPS_PROP = "hedgeLookups";
+    public static String HEDGE_MAX_RATE_PROP = "hedgeMaxRate";
+    public static String HEDGE_MAX_IN_FLIGHT_PROP = "hedgeMaxInFlight";
+    public static String ADAPTIVE_CONCURRENCY_PROP = "adaptiveConcurrency";
+    public static String CONCURRENCY_INITIAL_LIMIT_PROP = "concurrencyInitialLimit";
+    public static String CONCURRENCY_MAX_LIMIT_PROP = "concurrencyMaxLimit";
+    public static String CONCURRENCY_QUEUE_TIMEOUT_PROP = "concurrencyQueueTimeoutMs";
+    public static String CACHE_REFRESH_AHEAD_PROP = "cacheRefreshAhead";
+    public static String CACHE_MAX_BYTES_PROP = "cacheMaxBytes";
+    public static String CACHE_HEAP_THRESHOLD_PROP = "cacheHeapThreshold";
+    public static String USERNAME_NORMALIZATION_PROP = "usernameNormalization";
+    public static String NORMALIZED_USERNAME_PROP = "normalizedUsernameProp";
+    public static String NORMALIZED_BACKFILL_BATCH_SIZE_PROP = "normalizedBackfillBatchSize";
+    public static String NORMALIZED_BACKFILL_INTERVAL_PROP = "normalizedBackfillIntervalMs";
+    public static String SHARDS_PROP = "shards";
+    public static String LOOKUP_PROCEDURE_PROP = "lookupProcedure";
     
-    private String m_neo4jUser = null;
-    private String m_neo4jPassword = null;
-    private String m_neo4jUri = null;
-    private String m_nodeType = null;
-    private String m_usernameProp = null;
-    private String m_credentialsProp = null;
-    private String m_rolesProp = null;
+    private Neo4jUserStore m_store = null;
     
     private CallbackHandler m_callbackHandler = null;
     private Subject m_subject = null;
     private Neo4jUser m_user = null;
+    private PipelinedLogin m_pendingLogin = null;
     private Boolean m_isAuthenticated = null;
     private Boolean m_isCommitted = null;
     private Boolean m_isAborted = null;
@@ -78,8 +120,8 @@ public class Neo4jLoginModule
 
     
     /**
-     * Initialize this login module.  Retrieve the configuration properties from the 
-     * options and save the subject and callback handler.
+     * Initialize this login module.  Retrieve the shared Neo4jUserStore for the configuration 
+     * properties in the options and save the subject and callback handler.
      * 
      * @param subject
      * @param callbackHandler
@@ -89,18 +131,12 @@ public class Neo4jLoginModule
     @Override
     public void initialize(Subject subject, CallbackHandler callbackHandler, 
                            Map<String, ?> sharedState, Map<String, ?> options) {
-        LOG.debug("initialize: " + subject + " options: " + options);
+        LOG.debug("initialize: {} options: {}", subject, options);
 
         this.m_callbackHandler = callbackHandler;
         this.m_subject = subject;
         
-        m_nodeType = String.class.cast(options.get(NODE_TYPE));
-        m_usernameProp = String.class.cast(options.get(USERNAME_PROP));
-        m_credentialsProp = String.class.cast(options.get(CREDS_PROP));
-        m_rolesProp = String.class.cast(options.get(ROLES_PROP));
-        m_neo4jUser = String.class.cast(options.get(NEO4J_USER_PROP));
-        m_neo4jPassword = String.class.cast(options.get(NEO4J_PASSWORD_PROP));
-        m_neo4jUri = String.class.cast(options.get(NEO4J_URI_PROP));            
+        m_store = Neo4jUserStore.getInstance(options);
     }
 
     
@@ -109,6 +145,9 @@ public class Neo4jLoginModule
      * 
      * @return true if the authentication succeeded, or false if this LoginModule should be ignored.
      * @throws FailedLoginException if the provided credentials are not correct
+     * @throws RateLimitedLoginException if the rate limit for the user or client address is exceeded
+     * @throws AccountLockedException if the account is locked after repeated failed logins
+     * @throws LookupShedException if the user lookup was shed because Neo4J is overloaded
      * @throws LoginException if the authentication fails for any other reason
      */
     @Override
@@ -127,15 +166,66 @@ public class Neo4jLoginModule
             throw new FailedLoginException("Username or password undefined");
         }
 
+        LookupProfiler profiler = m_store.getProfiler();
+        profiler.loginStarted();
+        String outcome = "error";
+        try {
+            boolean handled = authenticate(up);
+            outcome = handled ? "succeeded" : "notFound";
+            return handled;
+        } catch (FailedLoginException ex) {
+            outcome = "failed";
+            throw ex;
+        } catch (LookupShedException ex) {
+            outcome = "shed";
+            throw ex;
+        } finally {
+            profiler.loginFinished(up.m_username, outcome);
+        }
+    }
+
+    /**
+     * Authenticate the provided username and password against the user held in Neo4J.
+     * 
+     * @param up The username and password provided
+     * @return true if the authentication succeeded, or false if the user was not found
+     * @throws FailedLoginException if the provided credentials are not correct
+     * @throws LoginException if the authentication fails for any other reason
+     */
+    private boolean authenticate(final UsernamePassword up) 
+            throws LoginException {
+        // Reject logins over the rate limit and locked accounts before querying Neo4J
+        if (m_store.isRateLimited()) {
+            m_store.checkRateLimit(up.m_username, getClientAddress());
+        }
+        m_store.checkLockout(up.m_username);
+
         //
         // Get credentials from system and authenticate
         //
+        m_pendingLogin = null;
+        if (m_store.isPipelinedLogin() && m_store.getCachedUser(up.m_username) == null) {
+            return pipelinedLogin(up);
+        }
+
         m_user = getUser(up.m_username);
         if (m_user != null) {
             // If the user was found in the system, authenticate the credentials
-            if (m_user.getUserPrincipal().authenticate(up.m_password)) {
+            boolean authenticated = m_user.getUserPrincipal().authenticate(up.m_password);
+            if (! authenticated) {
+                // The cached user may predate a password change
+                Neo4jUser reloaded = m_store.reloadIfStale(m_user);
+                if (reloaded != null) {
+                    m_user = reloaded;
+                    authenticated = m_user.getUserPrincipal().authenticate(up.m_password);
+                }
+            }
+
+            if (authenticated) {
                 setIsAuthenticated(true);
+                m_store.loginSucceeded(m_user, up.m_password);
             } else {
+                m_store.loginFailed(m_user);
                 throw new FailedLoginException("Failed to validate credentials");
             }
         } else {
@@ -143,12 +233,42 @@ public class Neo4jLoginModule
             // store, we return false indicating we can not handle this
             // login attempt and should be ignored.  Some other LoginModule
             // may be able to handle this login attempt.
+            m_store.getMetrics().userNotFound();
             return false;
         }
         
         return true;
     }
     
+    /**
+     * Authenticate the user with the password verified while the roles are fetched. The roles
+     * are joined in commit().
+     * 
+     * @param up The username and password provided
+     * @return true if the authentication succeeded, or false if the user was not found
+     * @throws FailedLoginException if the provided credentials are not correct
+     * @throws LoginException if the authentication fails for any other reason
+     */
+    private boolean pipelinedLogin(final UsernamePassword up) 
+            throws LoginException {
+        PipelinedLogin pending = m_store.startPipelinedLogin(up.m_username, up.m_password);
+        if (pending == null) {
+            m_store.getMetrics().userNotFound();
+            return false;
+        }
+
+        m_user = pending.getCredentialUser();
+        if (pending.awaitVerification()) {
+            m_pendingLogin = pending;
+            setIsAuthenticated(true);
+            m_store.loginSucceeded(m_user, up.m_password);
+            return true;
+        } else {
+            m_store.loginFailed(m_user);
+            throw new FailedLoginException("Failed to validate credentials");
+        }
+    }
+    
     /**
      * Abort the login process.  
      * 
@@ -163,6 +283,10 @@ public class Neo4jLoginModule
         setIsAborted(false);
         
         // Clear any saved state in the Subject as well as locally
+        if (m_pendingLogin != null) {
+            m_pendingLogin.cancel();
+            m_pendingLogin = null;
+        }
         if (m_user != null) {
             try {
                 cleanPrincipals();
@@ -212,8 +336,22 @@ public class Neo4jLoginModule
             // If login was successful, apply the Principal and Roles, clear 
             // locally held state, set commit success and return true
             try {
+                // A pipelined login completes once the roles have been fetched
+                if (m_pendingLogin != null) {
+                    m_user = m_pendingLogin.join();
+                    m_pendingLogin = null;
+                }
+
                 m_subject.getPrincipals().add(m_user.getUserPrincipal());
-                m_subject.getPrincipals().addAll(m_user.getRoles());
+                if (m_store.getConfig().isCompositeRoles()) {
+                    m_subject.getPrincipals().add(m_user.getRoleSetPrincipal());
+                } else {
+                    // Subject copies the collection passed to addAll, adding one at a time does not
+                    Set<Principal> principals = m_subject.getPrincipals();
+                    for (JAASRole role : m_user.getRoles()) {
+                        principals.add(role);
+                    }
+                }
                 setIsCommitted(true);
             } catch (Throwable th) {
                 // In the event of a failure trying to commit, throw an exception
@@ -260,7 +398,14 @@ public class Neo4jLoginModule
      */
     private void cleanPrincipals() {
         m_subject.getPrincipals().remove(m_user.getUserPrincipal());
-        m_subject.getPrincipals().removeAll(m_user.getRoles());
+        if (m_store.getConfig().isCompositeRoles()) {
+            m_subject.getPrincipals().remove(m_user.getRoleSetPrincipal());
+        } else {
+            Set<Principal> principals = m_subject.getPrincipals();
+            for (JAASRole role : m_user.getRoles()) {
+                principals.remove(role);
+            }
+        }
     }
     
     /**
@@ -271,50 +416,7 @@ public class Neo4jLoginModule
      */
     Neo4jUser getUser(final String username) 
             throws Neo4jLoginException {
-        Neo4jUser user = null;
-        
-        AuthToken token = AuthTokens.basic(m_neo4jUser, m_neo4jPassword);
-        String query = "MATCH (n:%s {%s:$username}) RETURN n";
-        Query neo4jQuery = new Query(String.format(query, m_nodeType, m_usernameProp));
-        
-        Map<String,Object> params = new HashMap<String,Object>();
-        params.put("username", username);
-
-        Config conf = Config.defaultConfig();
-        try (Driver driver = GraphDatabase.driver(m_neo4jUri, token, conf);
-             Session sess = driver.session()) {
-            
-            Result res = sess.run(neo4jQuery.withParameters(params));
-            
-            if (res.hasNext()) {
-                Record rec = res.next();
-                Node n = rec.get(0).asNode();
-                
-                
-                String nodeUsername = n.get(m_usernameProp).asString();
-                String creds = n.get(m_credentialsProp).asString();
-                Value rolesVal = n.get(m_rolesProp);
-                
-                List<String> roles = new ArrayList<String>();
-                if (rolesVal.hasType(InternalTypeSystem.TYPE_SYSTEM.STRING())) {
-                    roles.add(rolesVal.asString());
-                } else if (rolesVal.hasType(InternalTypeSystem.TYPE_SYSTEM.LIST())) {
-                    for (Object role : rolesVal.asList()) {
-                     roles.add(String.class.cast(role));   
-                    }
-                } else {
-                    throw new Neo4jLoginException("Unexpected role value type, " + rolesVal.type());
-                }
-                
-                user = new Neo4jUser(nodeUsername, creds, roles);
-            }
-
-        } catch (Throwable th) {
-            LOG.error("Failed obtaining user", th);
-            throw new Neo4jLoginException("Failed obtaining user", th);
-        }
-        
-        return user;
+        return m_store.getUser(username);
     }
     
     
@@ -349,6 +451,29 @@ public class Neo4jLoginModule
         return up;
     }
 
+    /**
+     * Get the address of the client attempting to login, if the callback handler supplies 
+     * the servlet request.  The address is only needed when logins are rate limited by 
+     * client address.
+     * 
+     * @return The client address, or null if it is not needed or not available
+     */
+    private String getClientAddress() {
+        if (! m_store.isAddressRateLimited())
+            return null;
+        
+        try {
+            ServletRequestCallback callback = new ServletRequestCallback();
+            m_callbackHandler.handle(new Callback[] { callback });
+            
+            ServletRequest request = callback.getRequest();
+            return (request != null) ? request.getRemoteAddr() : null;
+        } catch (IOException | UnsupportedCallbackException e) {
+            LOG.debug("Client address not available: {}", e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Set the value for isAuthenticated.
      * 
@@ -419,7 +544,7 @@ public class Neo4jLoginModule
     /**
      * A container class used to represent the username and password provided by the user.
      */
-    class UsernamePassword {
+    static class UsernamePassword {
         private String m_username = null;
         private Object m_password = null;
         
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
+import javax.security.auth.login.LoginException;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.eclipse.jetty.security.AbstractLoginService;
+import org.eclipse.jetty.security.DefaultIdentityService;
+import org.eclipse.jetty.security.RolePrincipal;
+import org.eclipse.jetty.security.UserPrincipal;
+import org.eclipse.jetty.server.UserIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.ServletRequest;
+
+/**
+ * A Jetty LoginService authenticating users against a Neo4J graph database. This is an
+ * alternative to configuring Neo4jLoginModule through the JAASLoginService, which creates a
+ * LoginContext, reads the JAAS configuration and instantiates a new LoginModule for every
+ * authentication. Neo4jLoginService is configured once, in neo4j-authentication.xml, and
+ * authenticates directly against the shared Neo4jUserStore.
+ *
+ * The same node schema, options and role semantics as Neo4jLoginModule are supported, and a
+ * Neo4jLoginService configured with the same options as a Neo4jLoginModule shares its store.
+ * The core options have their own setters, and any other option may be set using setOption().
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jLoginService
+        extends AbstractLoginService {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jLoginService.class);
+
+    private final Map<String,String> m_options = new HashMap<String,String>();
+    private Neo4jUserStore m_store = null;
+
+
+    /**
+     * Create a new Neo4jLoginService.
+     */
+    public Neo4jLoginService() {
+    }
+
+    /**
+     * Create a new Neo4jLoginService.
+     *
+     * @param name The realm name
+     */
+    public Neo4jLoginService(final String name) {
+        setName(name);
+    }
+
+    public void setNeo4jUser(final String neo4jUser) {
+        setOption(Neo4jLoginModule.NEO4J_USER_PROP, neo4jUser);
+    }
+
+    public void setNeo4jPassword(final String neo4jPassword) {
+        setOption(Neo4jLoginModule.NEO4J_PASSWORD_PROP, neo4jPassword);
+    }
+
+    public void setNeo4jUri(final String neo4jUri) {
+        setOption(Neo4jLoginModule.NEO4J_URI_PROP, neo4jUri);
+    }
+
+    public void setNodeType(final String nodeType) {
+        setOption(Neo4jLoginModule.NODE_TYPE, nodeType);
+    }
+
+    public void setUsernameProp(final String usernameProp) {
+        setOption(Neo4jLoginModule.USERNAME_PROP, usernameProp);
+    }
+
+    public void setCredsProp(final String credsProp) {
+        setOption(Neo4jLoginModule.CREDS_PROP, credsProp);
+    }
+
+    public void setRolesProp(final String rolesProp) {
+        setOption(Neo4jLoginModule.ROLES_PROP, rolesProp);
+    }
+
+    /**
+     * Set one of the options supported by Neo4jLoginModule.
+     *
+     * @param name The option name
+     * @param value The option value
+     */
+    public void setOption(final String name, final String value) {
+        if (isStarted()) {
+            throw new IllegalStateException("Options can not be changed once started");
+        }
+
+        m_options.put(name, value);
+    }
+
+    /**
+     * Get the store used by this service.
+     *
+     * @return The store, or null if the service has not been started
+     */
+    Neo4jUserStore getStore() {
+        return m_store;
+    }
+
+    /**
+     * Start the service, acquiring the shared Neo4jUserStore for the configured options.
+     */
+    @Override
+    protected void doStart()
+            throws Exception {
+        m_store = Neo4jUserStore.acquire(new Neo4jLoginConfig(m_options));
+        try {
+            super.doStart();
+        } catch (Exception ex) {
+            Neo4jUserStore.release(m_store);
+            m_store = null;
+            throw ex;
+        }
+    }
+
+    /**
+     * Stop the service, releasing the store. The store and its driver are closed once no
+     * other service or Neo4jUserStoreLifeCycle holds it.
+     */
+    @Override
+    protected void doStop()
+            throws Exception {
+        super.doStop();
+        if (m_store != null) {
+            Neo4jUserStore.release(m_store);
+            m_store = null;
+        }
+    }
+
+    /**
+     * Authenticate the user, applying the same checks as Neo4jLoginModule.login().
+     *
+     * @param username The username
+     * @param credentials The credentials provided by the user
+     * @param request The request being authenticated
+     * @return The UserIdentity, or null if the user could not be authenticated
+     */
+    @Override
+    public UserIdentity login(final String username, final Object credentials, final ServletRequest request) {
+        if (username == null || credentials == null) {
+            return null;
+        }
+
+        LookupProfiler profiler = m_store.getProfiler();
+        profiler.loginStarted();
+        String outcome = "error";
+        try {
+            UserIdentity identity = authenticate(username, credentials, request);
+            outcome = (identity != null) ? "succeeded" : "rejected";
+            return identity;
+        } catch (FailedLoginException ex) {
+            LOG.debug("Login failed for {}: {}", username, ex.getMessage());
+            outcome = "failed";
+            return null;
+        } catch (LookupShedException ex) {
+            LOG.debug("Login shed for {}: {}", username, ex.getMessage());
+            outcome = "shed";
+            return null;
+        } catch (LoginException ex) {
+            LOG.debug("Login failed for {}: {}", username, ex.getMessage());
+            return null;
+        } finally {
+            profiler.loginFinished(username, outcome);
+        }
+    }
+
+    /**
+     * Authenticate the username and credentials against the user held in Neo4J.
+     *
+     * @param username The username
+     * @param credentials The credentials provided by the user
+     * @param request The request being authenticated, may be null
+     * @return The UserIdentity, or null if the user was not found or the credentials are not correct
+     * @throws LoginException if the login was rejected or the authentication failed
+     */
+    private UserIdentity authenticate(final String username, final Object credentials, final ServletRequest request)
+            throws LoginException {
+        // Reject logins over the rate limit and locked accounts before querying Neo4J
+        if (m_store.isRateLimited()) {
+            m_store.checkRateLimit(username, (request != null) ? request.getRemoteAddr() : null);
+        }
+        m_store.checkLockout(username);
+
+        if (m_store.isPipelinedLogin() && m_store.getCachedUser(username) == null) {
+            return pipelinedLogin(username, credentials);
+        }
+
+        Neo4jUser user = m_store.getUser(username);
+        if (user == null) {
+            m_store.getMetrics().userNotFound();
+            return null;
+        }
+
+        UserPrincipal userPrincipal = user.getUserPrincipal();
+        boolean authenticated = userPrincipal.authenticate(credentials);
+        if (! authenticated) {
+            // The cached user may predate a password change
+            Neo4jUser reloaded = m_store.reloadIfStale(user);
+            if (reloaded != null) {
+                user = reloaded;
+                userPrincipal = user.getUserPrincipal();
+                authenticated = userPrincipal.authenticate(credentials);
+            }
+        }
+
+        if (! authenticated) {
+            m_store.loginFailed(user);
+            return null;
+        }
+        m_store.loginSucceeded(user, credentials);
+        return newUserIdentity(user);
+    }
+
+    /**
+     * Authenticate the user with the password verified while the roles are fetched.
+     *
+     * @param username The username
+     * @param credentials The credentials provided by the user
+     * @return The UserIdentity, or null if the user could not be authenticated
+     * @throws LoginException if the authentication failed
+     */
+    private UserIdentity pipelinedLogin(final String username, final Object credentials)
+            throws LoginException {
+        PipelinedLogin pending = m_store.startPipelinedLogin(username, credentials);
+        if (pending == null) {
+            m_store.getMetrics().userNotFound();
+            return null;
+        }
+
+        if (! pending.awaitVerification()) {
+            m_store.loginFailed(pending.getCredentialUser());
+            return null;
+        }
+        m_store.loginSucceeded(pending.getCredentialUser(), credentials);
+        return newUserIdentity(pending.join());
+    }
+
+    /**
+     * Create the UserIdentity for an authenticated user.
+     *
+     * @param user The user
+     * @return The UserIdentity
+     */
+    private UserIdentity newUserIdentity(final Neo4jUser user) {
+        UserPrincipal userPrincipal = user.getUserPrincipal();
+        Subject subject = new Subject();
+        userPrincipal.configureSubject(subject);
+        if (m_store.getConfig().isCompositeRoles()) {
+            subject.getPrincipals().add(user.getRoleSetPrincipal());
+        } else {
+            Set<Principal> principals = subject.getPrincipals();
+            for (JAASRole role : user.getRoles()) {
+                principals.add(role);
+            }
+        }
+        subject.setReadOnly();
+
+        // Role checks test the role set of the user, unless a custom IdentityService is configured
+        if (DefaultIdentityService.class.equals(_identityService.getClass())) {
+            return new Neo4jUserIdentity(subject, user);
+        }
+        return _identityService.newUserIdentity(subject, userPrincipal, 
+                                                user.getRoleSetPrincipal().getRoleNames());
+    }
+
+    /**
+     * Load the user from Neo4J.
+     *
+     * @param username The username
+     * @return The UserPrincipal, or null if the user was not found or could not be loaded
+     */
+    @Override
+    protected UserPrincipal loadUserInfo(final String username) {
+        try {
+            Neo4jUser user = m_store.getUser(username);
+            return (user != null) ? user.getUserPrincipal() : null;
+        } catch (Neo4jLoginException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Load the roles for the user from Neo4J.
+     *
+     * @param userPrincipal The user
+     * @return The roles
+     */
+    @Override
+    protected List<RolePrincipal> loadRoleInfo(final UserPrincipal userPrincipal) {
+        List<RolePrincipal> roles = new ArrayList<RolePrincipal>();
+        try {
+            Neo4jUser user = m_store.getUser(userPrincipal.getName());
+            if (user != null) {
+                for (JAASRole role : user.getRoles()) {
+                    roles.add(new RolePrincipal(role.getName()));
+                }
+            }
+        } catch (Neo4jLoginException ex) {
+            LOG.debug("Failed loading roles for {}: {}", userPrincipal.getName(), ex.getMessage());
+        }
+
+        return roles;
+    }
+}
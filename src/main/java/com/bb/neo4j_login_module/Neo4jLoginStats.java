@@ -0,0 +1,309 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+import org.neo4j.driver.ConnectionPoolMetrics;
+import org.neo4j.driver.Driver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neo4jLoginStats exposes the statistics and administrative operations of a Neo4jUserStore
+ * through JMX.
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jLoginStats
+        implements Neo4jLoginStatsMBean {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jLoginStats.class);
+
+    static final String DOMAIN = "com.bb.neo4j_login_module";
+
+    private final Neo4jUserStore m_store;
+
+
+    /**
+     * Create a new Neo4jLoginStats.
+     *
+     * @param store The store to expose
+     */
+    Neo4jLoginStats(final Neo4jUserStore store) {
+        m_store = store;
+    }
+
+    @Override
+    public String getRealmName() {
+        return m_store.getConfig().getRealmName();
+    }
+
+    @Override
+    public int getPoolInUse() {
+        return (int) sumPools(ConnectionPoolMetrics::inUse);
+    }
+
+    @Override
+    public int getPoolIdle() {
+        return (int) sumPools(ConnectionPoolMetrics::idle);
+    }
+
+    @Override
+    public int getPoolCreating() {
+        return (int) sumPools(ConnectionPoolMetrics::creating);
+    }
+
+    @Override
+    public long getPoolCreated() {
+        return sumPools(ConnectionPoolMetrics::created);
+    }
+
+    @Override
+    public long getPoolFailedToCreate() {
+        return sumPools(ConnectionPoolMetrics::failedToCreate);
+    }
+
+    @Override
+    public long getPoolClosed() {
+        return sumPools(ConnectionPoolMetrics::closed);
+    }
+
+    @Override
+    public int getPoolAcquiring() {
+        return (int) sumPools(ConnectionPoolMetrics::acquiring);
+    }
+
+    @Override
+    public long getPoolAcquired() {
+        return sumPools(ConnectionPoolMetrics::acquired);
+    }
+
+    @Override
+    public long getPoolTimedOutToAcquire() {
+        return sumPools(ConnectionPoolMetrics::timedOutToAcquire);
+    }
+
+    @Override
+    public boolean isCacheEnabled() {
+        return m_store.getCache() != null;
+    }
+
+    @Override
+    public int getCacheSize() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.size() : 0;
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getHitCount() : 0;
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getMissCount() : 0;
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHitCount();
+        long total = hits + getCacheMissCount();
+        return (total > 0) ? (double) hits / total : 0.0;
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getEvictionCount() : 0;
+    }
+
+    @Override
+    public long getCacheRefreshCount() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getRefreshCount() : 0;
+    }
+
+    @Override
+    public long getCacheWeight() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getWeight() : 0;
+    }
+
+    @Override
+    public long getCacheHeapShedCount() {
+        Neo4jUserCache cache = m_store.getCache();
+        return (cache != null) ? cache.getHeapShedCount() : 0;
+    }
+
+    @Override
+    public long getCacheVersion() {
+        CacheVersionPoller poller = m_store.getVersionPoller();
+        return (poller != null) ? poller.getVersion() : -1;
+    }
+
+    @Override
+    public int getSnapshotSize() {
+        CompactCredentialStore snapshot = m_store.getSnapshot();
+        return (snapshot != null) ? snapshot.size() : 0;
+    }
+
+    @Override
+    public long getSnapshotMemoryBytes() {
+        CompactCredentialStore snapshot = m_store.getSnapshot();
+        return (snapshot != null) ? snapshot.getMemoryUsage() : 0;
+    }
+
+    @Override
+    public int getInFlightLookups() {
+        return m_store.getInFlightLookups();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        CircuitBreaker breaker = m_store.getCircuitBreaker();
+        return (breaker != null) ? breaker.getState().name() : "DISABLED";
+    }
+
+    @Override
+    public String[] getLookupServerStats() {
+        return m_store.getProfiler().getServerStats();
+    }
+
+    @Override
+    public long getLoginSucceededCount() {
+        return m_store.getMetrics().getLoginSucceededCount();
+    }
+
+    @Override
+    public long getLoginFailedCount() {
+        return m_store.getMetrics().getLoginFailedCount();
+    }
+
+    @Override
+    public long getAccountLockedCount() {
+        return m_store.getMetrics().getAccountLockedCount();
+    }
+
+    @Override
+    public long getUserNotFoundCount() {
+        return m_store.getMetrics().getUserNotFoundCount();
+    }
+
+    @Override
+    public long getUserRateLimitedCount() {
+        return m_store.getMetrics().getUserRateLimitedCount();
+    }
+
+    @Override
+    public long getAddressRateLimitedCount() {
+        return m_store.getMetrics().getAddressRateLimitedCount();
+    }
+
+    @Override
+    public long getLookupFailedCount() {
+        return m_store.getMetrics().getLookupFailedCount();
+    }
+
+    @Override
+    public long getLookupRetryCount() {
+        return m_store.getMetrics().getLookupRetryCount();
+    }
+
+    @Override
+    public long getLookupHedgedCount() {
+        return m_store.getMetrics().getLookupHedgedCount();
+    }
+
+    @Override
+    public long getLookupHedgeWonCount() {
+        return m_store.getMetrics().getLookupHedgeWonCount();
+    }
+
+    @Override
+    public long getLookupShedCount() {
+        return m_store.getMetrics().getLookupShedCount();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        ConcurrencyLimiter limiter = m_store.getConcurrencyLimiter();
+        return (limiter != null) ? limiter.getLimit() : -1;
+    }
+
+    @Override
+    public String[] getShardStats() {
+        List<Neo4jShard> shards = m_store.getShards();
+        String[] stats = new String[shards.size()];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = shards.get(i).toString();
+        }
+        return stats;
+    }
+
+    @Override
+    public void invalidateUser(final String username) {
+        LOG.info("Invalidating cached user " + username);
+        m_store.invalidateUser(username);
+    }
+
+    @Override
+    public void flushCaches() {
+        LOG.info("Flushing cached users");
+        Neo4jUserCache cache = m_store.getCache();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void reloadSnapshot() {
+        LOG.info("Reloading user snapshot");
+        try {
+            m_store.reloadSnapshot();
+        } catch (Neo4jLoginException ex) {
+            // Only JDK types may cross the JMX boundary
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public int backfillNormalizedUsernames() {
+        LOG.info("Backfilling normalized usernames");
+        try {
+            return m_store.backfillNormalizedUsernames(true);
+        } catch (Neo4jLoginException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Sum a connection pool metric over all of the pools.
+     *
+     * @param metric The metric
+     * @return The sum over the shards, zero if no driver has been created
+     */
+    private long sumPools(final ToLongFunction<ConnectionPoolMetrics> metric) {
+        long sum = 0;
+        for (ConnectionPoolMetrics pool : getPoolMetrics()) {
+            sum += metric.applyAsLong(pool);
+        }
+        return sum;
+    }
+
+    private Collection<ConnectionPoolMetrics> getPoolMetrics() {
+        List<ConnectionPoolMetrics> pools = new ArrayList<ConnectionPoolMetrics>();
+        for (Neo4jShard shard : m_store.getShards()) {
+            Driver driver = shard.getDriverIfCreated();
+            if (driver != null && driver.isMetricsEnabled()) {
+                pools.addAll(driver.metrics().connectionPoolMetrics());
+            }
+        }
+        return pools;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+/**
+ * The JMX management interface of a Neo4jUserStore, registered once per realm as
+ * com.bb.neo4j_login_module:type=Neo4jLoginStats,realm=&lt;realmName&gt;.
+ *
+ * The connection pool attributes are summed over all of the pools held by the driver, and
+ * are zero until the driver has been created.
+ *
+ * @author Scott Stanley
+ */
+public interface Neo4jLoginStatsMBean {
+    String getRealmName();
+
+    int getPoolInUse();
+
+    int getPoolIdle();
+
+    int getPoolCreating();
+
+    long getPoolCreated();
+
+    long getPoolFailedToCreate();
+
+    long getPoolClosed();
+
+    int getPoolAcquiring();
+
+    long getPoolAcquired();
+
+    long getPoolTimedOutToAcquire();
+
+    boolean isCacheEnabled();
+
+    int getCacheSize();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    double getCacheHitRatio();
+
+    long getCacheEvictionCount();
+
+    long getCacheRefreshCount();
+
+    long getCacheWeight();
+
+    long getCacheHeapShedCount();
+
+    long getCacheVersion();
+
+    int getSnapshotSize();
+
+    long getSnapshotMemoryBytes();
+
+    int getInFlightLookups();
+
+    String getCircuitBreakerState();
+
+    String[] getLookupServerStats();
+
+    long getLoginSucceededCount();
+
+    long getLoginFailedCount();
+
+    long getAccountLockedCount();
+
+    long getUserNotFoundCount();
+
+    long getUserRateLimitedCount();
+
+    long getAddressRateLimitedCount();
+
+    long getLookupFailedCount();
+
+    long getLookupRetryCount();
+
+    long getLookupHedgedCount();
+
+    long getLookupHedgeWonCount();
+
+    long getLookupShedCount();
+
+    int getConcurrencyLimit();
+
+    String[] getShardStats();
+
+    /**
+     * Remove a user from the cache, so the next login reads the credential node.
+     *
+     * @param username The username
+     */
+    void invalidateUser(String username);
+
+    /**
+     * Remove all users from the cache.
+     */
+    void flushCaches();
+
+    /**
+     * Discard the users and account lockout state held in memory and reload them from Neo4J.
+     */
+    void reloadSnapshot();
+
+    /**
+     * Create the index on the normalized username property, and set the property on every
+     * credential node where it is missing or no longer matches the username.
+     *
+     * @return The number of credential nodes updated
+     */
+    int backfillNormalizedUsernames();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.security.Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neo4jRoleSetPrincipal carries all of the roles of a user as a single principal, attached to
+ * the Subject in place of one JAASRole per role when the compositeRoles option is set. The
+ * Subject principal set scans linearly on every add and remove, so attaching thousands of
+ * roles one at a time is quadratic, while attaching this principal is a single add. Role
+ * checks are a bit test in the RoleSet of the user.
+ *
+ * When the lazyRoles option is set the roles are not loaded with the user. They are loaded
+ * the first time a role is checked, and held from then on, so authentication-only requests
+ * never fetch or decode roles.
+ *
+ * Jetty's JAASLoginService only understands one role per principal, use Neo4jJAASLoginService
+ * to have the roles held here honored by role checks.
+ *
+ * @author Scott Stanley
+ */
+public final class Neo4jRoleSetPrincipal
+        implements Principal {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jRoleSetPrincipal.class);
+
+    private final String m_username;
+    private final RoleLoader m_loader;
+    private final RoleRegistry m_registry;
+    private volatile RoleSet m_roles;
+
+
+    /**
+     * Create a new Neo4jRoleSetPrincipal.
+     *
+     * @param username The name of the user holding the roles
+     * @param roles The role ids
+     * @param registry The registry which assigned the role ids
+     */
+    Neo4jRoleSetPrincipal(final String username, final RoleSet roles, final RoleRegistry registry) {
+        m_username = username;
+        m_loader = null;
+        m_registry = registry;
+        m_roles = roles;
+    }
+
+    /**
+     * Create a new Neo4jRoleSetPrincipal whose roles are loaded on first use.
+     *
+     * @param username The name of the user holding the roles
+     * @param loader The loader for the roles of the user
+     * @param registry The registry which assigns the role ids
+     */
+    Neo4jRoleSetPrincipal(final String username, final RoleLoader loader, final RoleRegistry registry) {
+        m_username = username;
+        m_loader = loader;
+        m_registry = registry;
+        m_roles = null;
+    }
+
+    /**
+     * Get the name of the principal, the name of the user holding the roles.
+     *
+     * @return The name
+     */
+    @Override
+    public String getName() {
+        return m_username;
+    }
+
+    /**
+     * Does this principal hold the given role?
+     *
+     * @param role The role name
+     * @return true if the role is held
+     */
+    public boolean isUserInRole(final String role) {
+        return m_registry.isUserInRole(getRoleSet(), role);
+    }
+
+    /**
+     * Get the number of roles held.
+     *
+     * @return The number of roles
+     */
+    public int size() {
+        return getRoleSet().size();
+    }
+
+    /**
+     * Get the names of all of the roles held. This creates a new array of the names, it is only
+     * intended for callers which require the full list.
+     *
+     * @return The role names
+     */
+    public String[] getRoleNames() {
+        RoleSet roles = getRoleSet();
+        String[] names = new String[roles.size()];
+        int i = 0;
+        for (int id = roles.nextId(0); id >= 0; id = roles.nextId(id + 1)) {
+            names[i++] = m_registry.getName(id);
+        }
+        return names;
+    }
+
+    /**
+     * Have the roles been loaded?
+     *
+     * @return true if the roles are held
+     */
+    boolean isLoaded() {
+        return m_roles != null;
+    }
+
+    /**
+     * Get the role ids, loading them if they have not been loaded. If the roles can not be
+     * loaded no roles are held, so every role check fails, and loading is retried on the next
+     * check.
+     *
+     * @return The role ids
+     */
+    RoleSet getRoleSet() {
+        RoleSet roles = m_roles;
+        if (roles != null) {
+            return roles;
+        }
+
+        synchronized (this) {
+            if (m_roles == null) {
+                try {
+                    m_roles = m_loader.load(m_username);
+                } catch (Neo4jLoginException ex) {
+                    LOG.error("Failed loading roles for " + m_username + ", no roles are held", ex);
+                    return RoleSet.EMPTY;
+                }
+            }
+            return m_roles;
+        }
+    }
+
+    @Override
+    public String toString() {
+        RoleSet roles = m_roles;
+        return Neo4jRoleSetPrincipal.class.getSimpleName() + "('" + m_username + "', "
+               + ((roles != null) ? roles.size() + " roles)" : "roles not loaded)");
+    }
+
+    /**
+     * Loads the roles of a user on first use.
+     */
+    interface RoleLoader {
+        /**
+         * Load the roles of a user.
+         *
+         * @param username The username
+         * @return The role ids
+         * @throws Neo4jLoginException if the roles could not be loaded
+         */
+        RoleSet load(String username)
+                throws Neo4jLoginException;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.ConnectionPoolMetrics;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.async.AsyncSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neo4jShard is one of the Neo4J databases holding credential nodes, with its own pooled driver
+ * and lookup counters. A shard is configured as [name=]uri[#database], and is identified by its
+ * name if given, otherwise by its URI and database. Users are assigned to shards by their
+ * identifier, so naming shards lets a shard move to a new URI without moving its users.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jShard {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jShard.class);
+
+    private final String m_id;
+    private final String m_uri;
+    private final String m_database;
+    private final SessionConfig m_sessionConfig;
+    private final SessionConfig m_readConfig;
+    private final Function<String,Driver> m_driverFactory;
+    private final LongAdder m_lookups = new LongAdder();
+    private final LongAdder m_failures = new LongAdder();
+    private final LongAdder m_lookupNanos = new LongAdder();
+    private Driver m_driver = null;
+
+
+    /**
+     * Create a new Neo4jShard.
+     *
+     * @param spec The shard, as [name=]uri[#database], or null if the neo4jUri is not
+     *            configured, in which case creating the driver fails
+     * @param driverFactory Creates the driver for the shard's URI
+     * @throws IllegalArgumentException if the shard has no URI
+     */
+    Neo4jShard(final String spec, final Function<String,Driver> driverFactory) {
+        if (spec == null) {
+            m_uri = null;
+            m_database = null;
+            m_id = "";
+            m_driverFactory = driverFactory;
+            m_sessionConfig = SessionConfig.defaultConfig();
+            m_readConfig = SessionConfig.builder().withDefaultAccessMode(AccessMode.READ).build();
+            return;
+        }
+
+        String uri = spec.trim();
+        String name = null;
+        int nameEnd = uri.indexOf('=');
+        if (nameEnd >= 0 && nameEnd < uri.indexOf(':')) {
+            name = uri.substring(0, nameEnd).trim();
+            uri = uri.substring(nameEnd + 1).trim();
+        }
+
+        String database = null;
+        int databaseStart = uri.lastIndexOf('#');
+        if (databaseStart >= 0) {
+            database = uri.substring(databaseStart + 1).trim();
+            uri = uri.substring(0, databaseStart).trim();
+        }
+        if (uri.isEmpty()) {
+            throw new IllegalArgumentException("Invalid shard, " + spec);
+        }
+
+        m_uri = uri;
+        m_database = (database == null || database.isEmpty()) ? null : database;
+        m_id = (name != null && ! name.isEmpty()) ? name : (m_database != null) ? m_uri + "#" + m_database : m_uri;
+        m_driverFactory = driverFactory;
+
+        SessionConfig.Builder sessionConfig = SessionConfig.builder();
+        SessionConfig.Builder readConfig = SessionConfig.builder().withDefaultAccessMode(AccessMode.READ);
+        if (m_database != null) {
+            sessionConfig.withDatabase(m_database);
+            readConfig.withDatabase(m_database);
+        }
+        m_sessionConfig = sessionConfig.build();
+        m_readConfig = readConfig.build();
+    }
+
+    /**
+     * Get the identifier users are assigned to the shard by.
+     *
+     * @return The identifier
+     */
+    String getId() {
+        return m_id;
+    }
+
+    String getUri() {
+        return m_uri;
+    }
+
+    /**
+     * Get the database holding the credential nodes.
+     *
+     * @return The database, or null for the server's default database
+     */
+    String getDatabase() {
+        return m_database;
+    }
+
+    /**
+     * Get the driver for the shard, creating it on first use.
+     *
+     * @return The driver
+     */
+    synchronized Driver getDriver() {
+        if (m_driver == null) {
+            m_driver = m_driverFactory.apply(m_uri);
+        }
+        return m_driver;
+    }
+
+    /**
+     * Get the driver for the shard, without creating it.
+     *
+     * @return The driver, or null if it has not been created
+     */
+    synchronized Driver getDriverIfCreated() {
+        return m_driver;
+    }
+
+    /**
+     * Open a session on the shard's database.
+     *
+     * @return The session
+     */
+    Session session() {
+        return getDriver().session(m_sessionConfig);
+    }
+
+    /**
+     * Open an asynchronous session on the shard's database.
+     *
+     * @return The session
+     */
+    AsyncSession asyncSession() {
+        return getDriver().asyncSession(m_sessionConfig);
+    }
+
+    /**
+     * Get the configuration of read sessions on the shard's database.
+     *
+     * @return The session configuration
+     */
+    SessionConfig getReadConfig() {
+        return m_readConfig;
+    }
+
+    /**
+     * Record a user lookup on the shard.
+     *
+     * @param startNanos The start time of the lookup
+     * @param failed true if the lookup failed
+     */
+    void lookupCompleted(final long startNanos, final boolean failed) {
+        m_lookups.increment();
+        m_lookupNanos.add(System.nanoTime() - startNanos);
+        if (failed) {
+            m_failures.increment();
+        }
+    }
+
+    long getLookupCount() {
+        return m_lookups.sum();
+    }
+
+    long getLookupFailedCount() {
+        return m_failures.sum();
+    }
+
+    /**
+     * Close the driver, if it was created.
+     */
+    synchronized void close() {
+        if (m_driver != null) {
+            try {
+                m_driver.close();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed closing Neo4jDriver for shard " + m_id, ex);
+            } finally {
+                m_driver = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        long lookups = m_lookups.sum();
+        double meanMs = (lookups > 0) ? (double) m_lookupNanos.sum() / lookups / TimeUnit.MILLISECONDS.toNanos(1) : 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append("shard=").append(m_id)
+          .append(" lookups=").append(lookups)
+          .append(" failures=").append(m_failures.sum())
+          .append(String.format(" meanMs=%.2f", meanMs));
+
+        Driver driver = getDriverIfCreated();
+        if (driver != null && driver.isMetricsEnabled()) {
+            int inUse = 0;
+            int idle = 0;
+            for (ConnectionPoolMetrics pool : driver.metrics().connectionPoolMetrics()) {
+                inUse += pool.inUse();
+                idle += pool.idle();
+            }
+            sb.append(" inUse=").append(inUse).append(" idle=").append(idle);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Config;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neo4jShardRebalancer moves credential nodes to the shard which owns them under the shards
+ * option, after shards have been added or removed. Rebalancing is done in two steps, so
+ * every user can login throughout,
+ *
+ *   1. copy() is run with the new list of shards, while the servers still use the old list.
+ *      Every credential node held by a shard which no longer owns it is copied, with all of
+ *      its properties, to the owning shard.
+ *   2. Once the servers have been deployed with the new list of shards, prune() deletes the
+ *      nodes left on the shards which no longer own them. A node is only deleted if the
+ *      owning shard holds a node with the same username.
+ *
+ * Changes made to a user between the copy and the deploy are not copied, so copy() should be
+ * run again just before deploying. When roles are resolved from relationships, the
+ * relationships of a copied user are recreated on the owning shard to the role nodes of the
+ * same name, and relationships to roles the user no longer holds are removed. Role nodes are
+ * not moved, so they must already exist on every shard, and a batch holding a user with a
+ * role missing from the owning shard fails without copying, leaving its users unpruned.
+ *
+ * The rebalancer is created with the options of the Neo4jLoginModule, and scans each shard
+ * in batches paged by username, each a range seek on the index of the username property, so
+ * a large label is never held in one transaction nor scanned once per batch.
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jShardRebalancer {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jShardRebalancer.class);
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final String READ_QUERY =
+            "MATCH (n:%1$s) WHERE n.%2$s > $after "
+            + "RETURN id(n) AS id, n.%2$s AS username, properties(n) AS props, %3$s AS roles "
+            + "ORDER BY n.%2$s LIMIT $batchSize";
+    private static final String ROLES_EXPRESSION = "[(n)-[:%1$s]->(r:%2$s) | r.%3$s]";
+    private static final String COPY_QUERY =
+            "UNWIND $users AS u "
+            + "MERGE (n:%1$s {%2$s: u.username}) "
+            + "SET n = u.props";
+    private static final String COPY_ROLES_QUERY =
+            COPY_QUERY + " "
+            + "WITH n, u "
+            + "CALL { "
+            + "  WITH n, u "
+            + "  OPTIONAL MATCH (n)-[old:%3$s]->(o) WHERE NOT o.%5$s IN u.roles "
+            + "  DELETE old "
+            + "} "
+            + "UNWIND u.roles AS roleName "
+            + "OPTIONAL MATCH (r:%4$s {%5$s: roleName}) "
+            + "FOREACH (role IN CASE WHEN r IS NULL THEN [] ELSE [r] END | MERGE (n)-[:%3$s]->(role)) "
+            + "WITH u, roleName, r WHERE r IS NULL "
+            + "RETURN u.username AS username, roleName AS role";
+    private static final String EXISTS_QUERY =
+            "UNWIND $usernames AS username "
+            + "MATCH (n:%1$s {%2$s: username}) "
+            + "RETURN DISTINCT n.%2$s AS username";
+    private static final String DELETE_QUERY =
+            "UNWIND $users AS u "
+            + "MATCH (n:%1$s) WHERE id(n) = u.id AND n.%2$s = u.username "
+            + "DETACH DELETE n";
+
+    private final Neo4jLoginConfig m_config;
+    private final ShardRouter m_router;
+    private final String m_readQuery;
+    private final String m_copyQuery;
+    private final String m_existsQuery;
+    private final String m_deleteQuery;
+    private int m_batchSize = DEFAULT_BATCH_SIZE;
+
+
+    /**
+     * Create a new Neo4jShardRebalancer.
+     *
+     * @param options The options of the Neo4jLoginModule, with the new list of shards
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    public Neo4jShardRebalancer(final Map<String,?> options) {
+        m_config = new Neo4jLoginConfig(options);
+        m_router = new ShardRouter(m_config, uri -> {
+            Config.ConfigBuilder driverConfig = Config.builder();
+            if (m_config.getConnectionTimeoutMs() > 0) {
+                driverConfig.withConnectionTimeout(m_config.getConnectionTimeoutMs(), TimeUnit.MILLISECONDS);
+            }
+            return GraphDatabase.driver(uri, AuthTokens.basic(m_config.getNeo4jUser(), m_config.getNeo4jPassword()),
+                                        driverConfig.build());
+        });
+
+        String nodeType = m_config.getNodeType();
+        String usernameProp = m_config.getUsernameProp();
+        if (m_config.isRoleRelationships()) {
+            m_readQuery = String.format(READ_QUERY, nodeType, usernameProp,
+                                        String.format(ROLES_EXPRESSION, m_config.getRoleRelationship(),
+                                                      m_config.getRoleNodeType(), m_config.getRoleNameProp()));
+            m_copyQuery = String.format(COPY_ROLES_QUERY, nodeType, usernameProp, m_config.getRoleRelationship(),
+                                        m_config.getRoleNodeType(), m_config.getRoleNameProp());
+        } else {
+            m_readQuery = String.format(READ_QUERY, nodeType, usernameProp, "[]");
+            m_copyQuery = String.format(COPY_QUERY, nodeType, usernameProp);
+        }
+        m_existsQuery = String.format(EXISTS_QUERY, nodeType, usernameProp);
+        m_deleteQuery = String.format(DELETE_QUERY, nodeType, usernameProp);
+    }
+
+    /**
+     * Set the number of credential nodes read from a shard in each transaction.
+     *
+     * @param batchSize The batch size
+     */
+    public void setBatchSize(final int batchSize) {
+        m_batchSize = batchSize;
+    }
+
+    /**
+     * Copy every credential node held by a shard which does not own it to the owning shard.
+     *
+     * @return The number of nodes copied
+     * @throws Neo4jLoginException if the copy failed
+     */
+    public int copy()
+            throws Neo4jLoginException {
+        return scan(true);
+    }
+
+    /**
+     * Delete every credential node held by a shard which does not own it, if the owning shard
+     * holds a copy.
+     *
+     * @return The number of nodes deleted
+     * @throws Neo4jLoginException if the prune failed
+     */
+    public int prune()
+            throws Neo4jLoginException {
+        return scan(false);
+    }
+
+    /**
+     * Copy and then prune the misplaced credential nodes. This is only safe while no server
+     * is using the shards, since servers using the old list of shards can no longer find the
+     * users which were moved.
+     *
+     * @return The number of nodes moved
+     * @throws Neo4jLoginException if the rebalance failed
+     */
+    public int rebalance()
+            throws Neo4jLoginException {
+        copy();
+        return prune();
+    }
+
+    /**
+     * Close the drivers of the shards.
+     */
+    public void close() {
+        m_router.close();
+    }
+
+    /**
+     * Scan every shard for misplaced credential nodes, copying or deleting them.
+     *
+     * @param copy true to copy the nodes to their owning shard, false to delete them
+     * @return The number of nodes copied or deleted
+     * @throws Neo4jLoginException if the scan failed
+     */
+    private int scan(final boolean copy)
+            throws Neo4jLoginException {
+        long start = System.currentTimeMillis();
+        int moved = 0;
+        for (Neo4jShard shard : m_router.getShards()) {
+            try {
+                String after = "";
+                while (true) {
+                    List<Record> batch = readBatch(shard, after);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    after = batch.get(batch.size() - 1).get("username").asString();
+
+                    Map<Neo4jShard,List<Record>> misplaced = new LinkedHashMap<Neo4jShard,List<Record>>();
+                    for (Record rec : batch) {
+                        String username = rec.get("username").asString();
+                        Neo4jShard owner = m_router.route(m_config.getUsernameNormalizer().normalize(username));
+                        if (owner != shard) {
+                            misplaced.computeIfAbsent(owner, k -> new ArrayList<Record>()).add(rec);
+                        }
+                    }
+
+                    for (Map.Entry<Neo4jShard,List<Record>> entry : misplaced.entrySet()) {
+                        moved += copy ? copyUsers(entry.getKey(), entry.getValue())
+                                      : deleteUsers(shard, entry.getKey(), entry.getValue());
+                    }
+                }
+            } catch (Throwable th) {
+                throw new Neo4jLoginException("Failed rebalancing shard " + shard.getId(), th);
+            }
+        }
+
+        LOG.info((copy ? "Copied " : "Pruned ") + moved + " misplaced users in "
+                 + (System.currentTimeMillis() - start) + "ms");
+        return moved;
+    }
+
+    private List<Record> readBatch(final Neo4jShard shard, final String after) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("after", after);
+        params.put("batchSize", m_batchSize);
+
+        try (Session sess = shard.session()) {
+            return sess.readTransaction(tx -> tx.run(new Query(m_readQuery, params)).list());
+        }
+    }
+
+    /**
+     * Copy credential nodes, and their role relationships, to their owning shard in a single
+     * transaction. The transaction is rolled back if a role is missing from the owning shard.
+     *
+     * @param owner The owning shard
+     * @param users The credential nodes read
+     * @return The number of nodes copied
+     */
+    private int copyUsers(final Neo4jShard owner, final List<Record> users) {
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        for (Record rec : users) {
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put("username", rec.get("username").asString());
+            row.put("props", rec.get("props").asMap());
+            row.put("roles", rec.get("roles").asList());
+            rows.add(row);
+        }
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("users", rows);
+        try (Session sess = owner.session()) {
+            sess.writeTransaction(tx -> {
+                List<String> missing = new ArrayList<String>();
+                for (Record rec : tx.run(new Query(m_copyQuery, params)).list()) {
+                    missing.add(rec.get("username").asString() + " : " + rec.get("role").asString());
+                }
+                if (! missing.isEmpty()) {
+                    throw new IllegalStateException("Roles missing from shard " + owner.getId() + ", " + missing);
+                }
+                return null;
+            });
+        }
+        return rows.size();
+    }
+
+    /**
+     * Delete credential nodes from a shard which does not own them, skipping any which the
+     * owning shard does not hold.
+     *
+     * @param shard The shard holding the nodes
+     * @param owner The owning shard
+     * @param users The credential nodes read
+     * @return The number of nodes deleted
+     */
+    private int deleteUsers(final Neo4jShard shard, final Neo4jShard owner, final List<Record> users) {
+        List<String> usernames = new ArrayList<String>();
+        for (Record rec : users) {
+            usernames.add(rec.get("username").asString());
+        }
+
+        Map<String,Object> existsParams = new HashMap<String,Object>();
+        existsParams.put("usernames", usernames);
+        Set<String> copied = new HashSet<String>();
+        try (Session sess = owner.session()) {
+            for (Record rec : sess.readTransaction(tx -> tx.run(new Query(m_existsQuery, existsParams)).list())) {
+                copied.add(rec.get("username").asString());
+            }
+        }
+
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        for (Record rec : users) {
+            String username = rec.get("username").asString();
+            if (copied.contains(username)) {
+                Map<String,Object> row = new HashMap<String,Object>();
+                row.put("id", rec.get("id").asLong());
+                row.put("username", username);
+                rows.add(row);
+            } else {
+                LOG.warn("Not pruning " + username + " from shard " + shard.getId()
+                         + ", it has not been copied to shard " + owner.getId());
+            }
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("users", rows);
+        try (Session sess = shard.session()) {
+            sess.writeTransaction(tx -> tx.run(new Query(m_deleteQuery, params)).consume());
+        }
+        return rows.size();
+    }
+}
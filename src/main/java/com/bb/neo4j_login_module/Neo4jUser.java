@@ -3,7 +3,7 @@
  */
 package com.bb.neo4j_login_module;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eclipse.jetty.jaas.JAASRole;
@@ -16,8 +16,15 @@ import org.eclipse.jetty.util.security.Credential;
  * @author Scott Stanley
  */
 class Neo4jUser {
+    private static final String[] LEGACY_CREDENTIAL_TYPES = { "MD5:", "CRYPT:" };
+    // The user, its principals and parsed credential, and the cache entry holding it
+    private static final long USER_OVERHEAD = 256;
+
+    private final String m_credential;
     private final UserPrincipal m_principal;
-    private final List<JAASRole> m_roles;
+    private final RoleRegistry m_registry;
+    private final Neo4jRoleSetPrincipal m_roleSetPrincipal;
+    private volatile List<JAASRole> m_roles = null;
     
     
     /**
@@ -29,15 +36,65 @@ class Neo4jUser {
      */
     Neo4jUser(final String neo4jUsername, final String neo4jCredential, 
               final List<String> neo4jRoles) {
+        this(neo4jUsername, neo4jCredential, RoleRegistry.getInstance().toRoleSet(neo4jRoles),
+             RoleRegistry.getInstance());
+    }
+    
+    /**
+     * Create a new Neo4jUser from role ids already assigned by the registry.
+     * 
+     * @param neo4jUsername The username from Neo4J
+     * @param neo4jCredential The credentials field from Neo4J
+     * @param roleSet The role ids
+     * @param registry The registry which assigned the role ids
+     */
+    Neo4jUser(final String neo4jUsername, final String neo4jCredential, 
+              final RoleSet roleSet, final RoleRegistry registry) {
+        m_credential = neo4jCredential;
         Credential credential = Credential.getCredential(neo4jCredential);
         m_principal = new UserPrincipal(neo4jUsername, credential);
-        m_roles = new ArrayList<JAASRole>();
-        
-        for (String role : neo4jRoles) {
-            m_roles.add(new JAASRole(role));
-        }
+        m_registry = registry;
+        m_roleSetPrincipal = new Neo4jRoleSetPrincipal(neo4jUsername, roleSet, registry);
     }
     
+    /**
+     * Create a new Neo4jUser whose roles are loaded the first time they are used.
+     * 
+     * @param neo4jUsername The username from Neo4J
+     * @param neo4jCredential The credentials field from Neo4J
+     * @param roleLoader The loader for the roles of the user
+     * @param registry The registry which assigns the role ids
+     */
+    Neo4jUser(final String neo4jUsername, final String neo4jCredential, 
+              final Neo4jRoleSetPrincipal.RoleLoader roleLoader, final RoleRegistry registry) {
+        m_credential = neo4jCredential;
+        Credential credential = Credential.getCredential(neo4jCredential);
+        m_principal = new UserPrincipal(neo4jUsername, credential);
+        m_registry = registry;
+        m_roleSetPrincipal = new Neo4jRoleSetPrincipal(neo4jUsername, roleLoader, registry);
+    }
+    
+    /**
+     * Estimate the heap retained by this user, for bounding the size of the cache. Roles loaded
+     * lazily are only counted once they have been loaded.
+     * 
+     * @return The estimated size in bytes
+     */
+    long getEstimatedSize() {
+        // The credential is held both as stored and parsed
+        long size = USER_OVERHEAD + getEstimatedSize(m_principal.getName()) + 2 * getEstimatedSize(m_credential);
+        if (m_roleSetPrincipal.isLoaded()) {
+            // The role list, built on first use, holds a reference to each shared role
+            RoleSet roles = getRoleSet();
+            size += roles.getEstimatedSize() + 16 + 4L * roles.size();
+        }
+        return size;
+    }
+
+    private static long getEstimatedSize(final String str) {
+        return (str != null) ? 40 + 2L * str.length() : 0;
+    }
+
     /**
      * Get the user principal for this user
      * 
@@ -47,12 +104,79 @@ class Neo4jUser {
         return m_principal;
     }
     
+    /**
+     * Get the credential as stored in Neo4J.
+     * 
+     * @return The stored credential
+     */
+    String getCredential() {
+        return m_credential;
+    }
+    
+    /**
+     * Is the credential stored using a legacy hash (MD5 or CRYPT) which should be upgraded?
+     * 
+     * @return true if the stored credential uses a legacy hash
+     */
+    boolean hasLegacyCredential() {
+        for (String type : LEGACY_CREDENTIAL_TYPES) {
+            if (m_credential.startsWith(type)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
     /**
      * Get the JAASRoles based on the information provided from Neo4J.
      * 
      * @return the JAASRole instances
      */
     List<JAASRole> getRoles() {
-        return m_roles;
+        // Built on first use, users attached by role set never need the list
+        List<JAASRole> roles = m_roles;
+        if (roles == null) {
+            // The shared role instances, no roles are created per user
+            RoleSet roleSet = getRoleSet();
+            JAASRole[] shared = new JAASRole[roleSet.size()];
+            int i = 0;
+            for (int id = roleSet.nextId(0); id >= 0; id = roleSet.nextId(id + 1)) {
+                shared[i++] = m_registry.getRole(id);
+            }
+            roles = Arrays.asList(shared);
+            if (m_roleSetPrincipal.isLoaded()) {
+                m_roles = roles;
+            }
+        }
+        return roles;
+    }
+    
+    /**
+     * Get the ids of the roles of this user, loading them if they are loaded lazily.
+     * 
+     * @return The role set
+     */
+    RoleSet getRoleSet() {
+        return m_roleSetPrincipal.getRoleSet();
+    }
+    
+    /**
+     * Get the single principal carrying all of the roles of this user.
+     * 
+     * @return The role set principal
+     */
+    Neo4jRoleSetPrincipal getRoleSetPrincipal() {
+        return m_roleSetPrincipal;
+    }
+    
+    /**
+     * Does this user have the given role? This is a single bit test, without scanning the roles.
+     * 
+     * @param role The role name
+     * @return true if the user has the role
+     */
+    boolean isUserInRole(final String role) {
+        return m_registry.isUserInRole(getRoleSet(), role);
     }
 }
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Neo4jUserCache holds the users recently loaded from Neo4J, so repeated logins for the same
+ * user do not query the database. Entries expire after the configured time to live, bounding
+ * how long a change to the credential node may go unnoticed.
+ *
+ * Once the cache holds more than the maximum number of entries, or if configured more than the
+ * maximum estimated bytes, expired entries are removed and then, if needed, further entries
+ * until the cache is back to 90% of the maximum. Each entry is weighed by the estimated size
+ * of its user when it is added, so a user with many roles counts for more than one with few.
+ * If configured, half of the cache is also released whenever the heap is still over a
+ * threshold after a garbage collection.
+ *
+ * With refresh ahead, an entry read after the configured fraction of its time to live is
+ * reloaded in the background while the cached user is still returned, so a user logging in
+ * regularly never waits on an expired entry. The refresh point is brought forward at random
+ * by probabilistic early expiration, the chance of an early refresh falling exponentially with
+ * the time until the refresh point in units of the time the entry took to load. Entries loaded
+ * together are then not all refreshed at the same moment, while few are refreshed much early.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jUserCache {
+    private final long m_ttlMs;
+    private final long m_refreshAfterMs;
+    private final int m_maxEntries;
+    private final long m_maxBytes;
+    private final Consumer<String> m_refresher;
+    private final ConcurrentHashMap<String,Entry> m_entries = new ConcurrentHashMap<String,Entry>();
+    private final LongAdder m_hits = new LongAdder();
+    private final LongAdder m_misses = new LongAdder();
+    private final LongAdder m_evictions = new LongAdder();
+    private final LongAdder m_refreshes = new LongAdder();
+    private final LongAdder m_heapSheds = new LongAdder();
+    private final AtomicLong m_weight = new AtomicLong();
+
+
+    /**
+     * Create a new Neo4jUserCache.
+     *
+     * @param config The login module configuration
+     */
+    Neo4jUserCache(final Neo4jLoginConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * Create a new Neo4jUserCache, refreshing entries ahead of their expiry if configured.
+     *
+     * @param config The login module configuration
+     * @param refresher Reloads the user with the given username in the background, and calls
+     *            refreshed or refreshFailed
+     */
+    Neo4jUserCache(final Neo4jLoginConfig config, final Consumer<String> refresher) {
+        m_ttlMs = config.getCacheTtlMs();
+        m_refreshAfterMs = (long) (m_ttlMs * config.getCacheRefreshAhead());
+        m_maxEntries = config.getCacheMaxEntries();
+        m_maxBytes = config.getCacheMaxBytes();
+        m_refresher = config.isCacheRefreshAhead() ? refresher : null;
+    }
+
+    /**
+     * Get the cached user.
+     *
+     * @param username The username
+     * @return The user, or null if the user is not cached or the entry has expired
+     */
+    Neo4jUser get(final String username) {
+        Entry entry = m_entries.get(username);
+        if (entry == null) {
+            m_misses.increment();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry.m_expiresAt <= now) {
+            if (remove(username, entry)) {
+                m_evictions.increment();
+            }
+            m_misses.increment();
+            return null;
+        }
+
+        m_hits.increment();
+        if (m_refresher != null && isRefreshDue(entry, now) && entry.m_refreshing.compareAndSet(false, true)) {
+            m_refreshes.increment();
+            m_refresher.accept(username);
+        }
+        return entry.m_user;
+    }
+
+    /**
+     * Is the entry due to be refreshed? The refresh point is brought forward by the time the
+     * entry took to load times -ln(u), for u uniform in (0, 1].
+     *
+     * @param entry The entry
+     * @param now The current time in milliseconds
+     * @return true if the entry should be refreshed
+     */
+    private static boolean isRefreshDue(final Entry entry, final long now) {
+        if (now >= entry.m_refreshAt) {
+            return true;
+        }
+        double u = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return now - entry.m_loadMs * Math.log(u) >= entry.m_refreshAt;
+    }
+
+    /**
+     * Add a user to the cache.
+     *
+     * @param username The username the user was loaded for
+     * @param user The user
+     */
+    void put(final String username, final Neo4jUser user) {
+        put(username, user, 0);
+    }
+
+    /**
+     * Add a user to the cache, recording how long the user took to load.
+     *
+     * @param username The username the user was loaded for
+     * @param user The user
+     * @param loadMs The time taken to load the user, in milliseconds
+     */
+    void put(final String username, final Neo4jUser user, final long loadMs) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(user, now + m_refreshAfterMs, now + m_ttlMs, loadMs);
+        Entry previous = m_entries.put(username, entry);
+        long weight = m_weight.addAndGet(entry.m_weight - ((previous != null) ? previous.m_weight : 0));
+
+        if (m_entries.size() > m_maxEntries) {
+            shrink(m_maxEntries - m_maxEntries / 10, Long.MAX_VALUE);
+        } else if (m_maxBytes > 0 && weight > m_maxBytes) {
+            shrink(Integer.MAX_VALUE, m_maxBytes - m_maxBytes / 10);
+        }
+    }
+
+    /**
+     * Replace the entry being refreshed with the reloaded user, or remove it if the user was
+     * not found. Nothing is changed if the entry was invalidated or replaced while the user
+     * was being reloaded, since the reloaded user may have been read before the change which
+     * invalidated it.
+     *
+     * @param username The username
+     * @param user The reloaded user, or null if the user was not found
+     * @param loadMs The time taken to reload the user, in milliseconds
+     * @return true if the refreshed entry was still cached and has been replaced or removed
+     */
+    boolean refreshed(final String username, final Neo4jUser user, final long loadMs) {
+        Entry current = m_entries.get(username);
+        if (current == null || ! current.m_refreshing.get()) {
+            return false;
+        }
+        if (user == null) {
+            return remove(username, current);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(user, now + m_refreshAfterMs, now + m_ttlMs, loadMs);
+        if (! m_entries.replace(username, current, entry)) {
+            return false;
+        }
+        m_weight.addAndGet(entry.m_weight - current.m_weight);
+        return true;
+    }
+
+    /**
+     * Record that refreshing the entry failed, so it is refreshed again on the next read.
+     *
+     * @param username The username
+     */
+    void refreshFailed(final String username) {
+        Entry entry = m_entries.get(username);
+        if (entry != null) {
+            entry.m_refreshing.set(false);
+        }
+    }
+
+    /**
+     * Remove a user from the cache.
+     *
+     * @param username The username
+     */
+    void invalidate(final String username) {
+        Entry entry = m_entries.remove(username);
+        if (entry != null) {
+            m_weight.addAndGet(-entry.m_weight);
+        }
+    }
+
+    /**
+     * Remove all users from the cache.
+     */
+    void invalidateAll() {
+        for (String username : m_entries.keySet()) {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * Release memory when the heap is under pressure, removing expired entries and then further
+     * entries until the cache holds at most half its current estimated size.
+     */
+    void shedForHeapPressure() {
+        m_heapSheds.increment();
+        shrink(Integer.MAX_VALUE, m_weight.get() / 2);
+    }
+
+    /**
+     * Get the number of cached users.
+     *
+     * @return The number of entries
+     */
+    int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * Get the estimated size of the cached users.
+     *
+     * @return The estimated size in bytes
+     */
+    long getWeight() {
+        return m_weight.get();
+    }
+
+    /**
+     * Get the number of lookups answered from the cache.
+     *
+     * @return The number of hits
+     */
+    long getHitCount() {
+        return m_hits.sum();
+    }
+
+    /**
+     * Get the number of lookups not answered from the cache.
+     *
+     * @return The number of misses
+     */
+    long getMissCount() {
+        return m_misses.sum();
+    }
+
+    /**
+     * Get the number of entries removed because they expired or the cache was full.
+     *
+     * @return The number of evictions
+     */
+    long getEvictionCount() {
+        return m_evictions.sum();
+    }
+
+    /**
+     * Get the number of entries refreshed ahead of their expiry.
+     *
+     * @return The number of refreshes
+     */
+    long getRefreshCount() {
+        return m_refreshes.sum();
+    }
+
+    /**
+     * Get the number of times entries were released because the heap was under pressure.
+     *
+     * @return The number of sheds
+     */
+    long getHeapShedCount() {
+        return m_heapSheds.sum();
+    }
+
+    /**
+     * Remove the entry if it is still cached for the username.
+     *
+     * @param username The username
+     * @param entry The entry
+     * @return true if the entry was removed
+     */
+    private boolean remove(final String username, final Entry entry) {
+        if (m_entries.remove(username, entry)) {
+            m_weight.addAndGet(-entry.m_weight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove entries until the cache is within both targets, starting with expired entries.
+     *
+     * @param maxEntries The number of entries to shrink to
+     * @param maxBytes The estimated size to shrink to
+     */
+    private synchronized void shrink(final int maxEntries, final long maxBytes) {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String,Entry> cached : m_entries.entrySet()) {
+            if (cached.getValue().m_expiresAt <= now && remove(cached.getKey(), cached.getValue())) {
+                m_evictions.increment();
+            }
+        }
+
+        Iterator<Map.Entry<String,Entry>> iter = m_entries.entrySet().iterator();
+        while ((m_entries.size() > maxEntries || m_weight.get() > maxBytes) && iter.hasNext()) {
+            Map.Entry<String,Entry> cached = iter.next();
+            if (remove(cached.getKey(), cached.getValue())) {
+                m_evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * A cached user.
+     */
+    private static class Entry {
+        private final Neo4jUser m_user;
+        private final long m_refreshAt;
+        private final long m_expiresAt;
+        private final long m_loadMs;
+        private final long m_weight;
+        private final AtomicBoolean m_refreshing = new AtomicBoolean();
+
+        Entry(final Neo4jUser user, final long refreshAt, final long expiresAt, final long loadMs) {
+            m_user = user;
+            m_refreshAt = refreshAt;
+            m_expiresAt = expiresAt;
+            m_loadMs = loadMs;
+            m_weight = user.getEstimatedSize();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.security.Principal;
+
+import javax.security.auth.Subject;
+
+import org.eclipse.jetty.server.UserIdentity;
+
+/**
+ * The UserIdentity returned by Neo4jLoginService and Neo4jJAASLoginService. Role checks follow
+ * the same rules as Jetty's DefaultUserIdentity, but test a bit in the RoleSet of the user
+ * rather than scanning an array of role names. Roles not held in the role set may be checked
+ * by a delegate identity, carrying roles granted by other login modules.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jUserIdentity
+        implements UserIdentity {
+    private final Subject m_subject;
+    private final Principal m_userPrincipal;
+    private final Neo4jRoleSetPrincipal m_roles;
+    private final UserIdentity m_delegate;
+
+
+    /**
+     * Create a new Neo4jUserIdentity.
+     *
+     * @param subject The authenticated subject
+     * @param user The authenticated user
+     */
+    Neo4jUserIdentity(final Subject subject, final Neo4jUser user) {
+        this(subject, user.getUserPrincipal(), user.getRoleSetPrincipal(), null);
+    }
+
+    /**
+     * Create a new Neo4jUserIdentity wrapping the identity created by Jetty.
+     *
+     * @param subject The authenticated subject
+     * @param userPrincipal The user principal
+     * @param roles The roles of the user
+     * @param delegate The identity checked for roles not in the role set, or null
+     */
+    Neo4jUserIdentity(final Subject subject, final Principal userPrincipal,
+                      final Neo4jRoleSetPrincipal roles, final UserIdentity delegate) {
+        m_subject = subject;
+        m_userPrincipal = userPrincipal;
+        m_roles = roles;
+        m_delegate = delegate;
+    }
+
+    @Override
+    public Subject getSubject() {
+        return m_subject;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return m_userPrincipal;
+    }
+
+    @Override
+    public boolean isUserInRole(final String role, final Scope scope) {
+        // Servlet Spec 3.1, the "*" role is never held
+        if ("*".equals(role)) {
+            return false;
+        }
+
+        String roleToTest = null;
+        if (scope != null && scope.getRoleRefMap() != null) {
+            roleToTest = scope.getRoleRefMap().get(role);
+        }
+        if (roleToTest == null) {
+            roleToTest = role;
+        }
+
+        if (m_roles.isUserInRole(roleToTest)) {
+            return true;
+        }
+        return m_delegate != null && m_delegate.isUserInRole(role, scope);
+    }
+
+    @Override
+    public String toString() {
+        return Neo4jUserIdentity.class.getSimpleName() + "('" + m_subject + "')";
+    }
+}
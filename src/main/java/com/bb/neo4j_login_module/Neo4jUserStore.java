@@ -0,0 +1,1536 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.security.auth.login.AccountLockedException;
+
+import org.neo4j.driver.AuthToken;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Config;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.internal.types.InternalTypeSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Neo4jUserStore is the long lived lookup engine shared by all login modules configured with
+ * the same options. It owns the Neo4J driver, and with it the connection pool, the optional
+ * user cache, along with the background writers which update the credential nodes outside of
+ * the login path.
+ *
+ * A JAAS LoginModule is created for every login attempt, so any state which should survive
+ * between logins is held here rather than in the Neo4jLoginModule.
+ *
+ * @author Scott Stanley
+ */
+class Neo4jUserStore {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jUserStore.class);
+
+    private static final Map<Neo4jLoginConfig,Neo4jUserStore> s_stores = new HashMap<Neo4jLoginConfig,Neo4jUserStore>();
+    private static final Map<Map<String,?>,Neo4jUserStore> s_storesByOptions =
+            new ConcurrentHashMap<Map<String,?>,Neo4jUserStore>();
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+    private static final long DEFAULT_ROLES_TIMEOUT_MS = 30000;
+    private static final int REFRESH_THREADS = 2;
+    private static boolean s_shutdownHookAdded = false;
+
+    private final Neo4jLoginConfig m_config;
+    private final String m_lookupQuery;
+    private final String m_preloadQuery;
+    private final String m_credentialQuery;
+    private final String m_rolesQuery;
+    private final String m_snapshotQuery;
+    private final ShardRouter m_router;
+    private ScheduledExecutorService m_scheduler = null;
+    private ExecutorService m_verificationPool = null;
+    private ExecutorService m_refreshPool = null;
+    private CredentialUpgradeWriter m_upgradeWriter = null;
+    private LoginAuditWriter m_auditWriter = null;
+    private AccountLockout m_lockout = null;
+    private final Neo4jLoginMetrics m_metrics = new Neo4jLoginMetrics();
+    private final LookupProfiler m_profiler;
+    private final LookupRetry m_retry;
+    private LoginRateLimiter m_rateLimiter = null;
+    private final UsernameNormalizer m_normalizer;
+    private NormalizedUsernameBackfill m_backfill = null;
+    private Neo4jUserCache m_cache = null;
+    private HeapPressureMonitor m_heapMonitor = null;
+    private final List<CacheVersionPoller> m_versionPollers = new ArrayList<CacheVersionPoller>();
+    private RoleHierarchy m_roleHierarchy = null;
+    private volatile CompactCredentialStore m_snapshot = null;
+    private volatile Set<String> m_snapshotInvalidations = null;
+    private final Object m_snapshotLock = new Object();
+    private Future<?> m_snapshotLoad = null;
+    private CircuitBreaker m_circuitBreaker = null;
+    private LookupHedger m_hedger = null;
+    private ConcurrencyLimiter m_limiter = null;
+    private final AtomicInteger m_inFlightLookups = new AtomicInteger();
+    private final Set<CompletableFuture<Void>> m_roleFetches = ConcurrentHashMap.newKeySet();
+    private volatile int m_preloadCount = 0;
+    private ObjectName m_mbeanName = null;
+    private int m_references = 0;
+
+
+    /**
+     * Get the store for the given configuration, creating it if needed.
+     *
+     * @param config The login module configuration
+     * @return The store
+     */
+    static synchronized Neo4jUserStore getInstance(final Neo4jLoginConfig config) {
+        Neo4jUserStore store = s_stores.get(config);
+        if (store == null) {
+            store = new Neo4jUserStore(config);
+            s_stores.put(config, store);
+
+            if (! s_shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(Neo4jUserStore::closeAll, "neo4j-login-shutdown"));
+                s_shutdownHookAdded = true;
+            }
+        }
+
+        return store;
+    }
+
+    /**
+     * Get the store for the given login module options, creating it if needed. The store is
+     * remembered for a copy of the options, so a login with the same options only compares
+     * them, rather than parsing them into a new configuration. Stores already remembered are
+     * found without locking, so concurrent logins do not contend.
+     *
+     * @param options The login module options
+     * @return The store
+     */
+    static Neo4jUserStore getInstance(final Map<String,?> options) {
+        Neo4jUserStore store = s_storesByOptions.get(options);
+        return (store != null) ? store : createInstance(options);
+    }
+
+    private static synchronized Neo4jUserStore createInstance(final Map<String,?> options) {
+        Neo4jUserStore store = s_storesByOptions.get(options);
+        if (store == null) {
+            store = getInstance(new Neo4jLoginConfig(options));
+            s_storesByOptions.put(new HashMap<String,Object>(options), store);
+        }
+
+        return store;
+    }
+
+    /**
+     * Get the store for the given configuration, creating it if needed, and hold a reference
+     * to it. Components which close the store when they stop, such as the login service, hold
+     * a reference while started, so the store they share is only closed once the last of them
+     * has released it.
+     *
+     * @param config The login module configuration
+     * @return The store
+     */
+    static synchronized Neo4jUserStore acquire(final Neo4jLoginConfig config) {
+        Neo4jUserStore store = getInstance(config);
+        store.m_references++;
+        return store;
+    }
+
+    /**
+     * Release a reference to a store obtained from acquire(), closing the store once no
+     * references remain.
+     *
+     * @param store The store
+     */
+    static synchronized void release(final Neo4jUserStore store) {
+        if (--store.m_references <= 0 && s_stores.get(store.m_config) == store) {
+            close(store.m_config);
+        }
+    }
+
+    /**
+     * Close the store for the given configuration, if it exists.
+     *
+     * @param config The login module configuration
+     */
+    static synchronized void close(final Neo4jLoginConfig config) {
+        Neo4jUserStore store = s_stores.remove(config);
+        if (store != null) {
+            s_storesByOptions.values().removeIf(store::equals);
+            store.close();
+        }
+    }
+
+    /**
+     * Close all of the stores, releasing their drivers and stopping their background writers.
+     */
+    static synchronized void closeAll() {
+        for (Neo4jUserStore store : new ArrayList<Neo4jUserStore>(s_stores.values())) {
+            store.close();
+        }
+        s_stores.clear();
+        s_storesByOptions.clear();
+    }
+
+    /**
+     * Create a new Neo4jUserStore.
+     *
+     * @param config The login module configuration
+     */
+    private Neo4jUserStore(final Neo4jLoginConfig config) {
+        m_config = config;
+        m_normalizer = config.getUsernameNormalizer();
+        m_router = new ShardRouter(config, this::createDriver);
+        // With lazy roles only the username and credential are returned, roles are loaded with the roles query
+        String userRolesClause = config.isLazyRoles()
+                ? String.format("WITH n {.%s, .%s} AS n, null AS roles ", config.getUsernameProp(),
+                                config.getCredentialsProp())
+                : getRolesClause(config);
+        if (config.isLookupProcedure()) {
+            // The procedures return the same columns as the queries, so the records are read alike
+            m_lookupQuery = String.format("%sRETURN {%s: username, %s: credential} AS n, %s",
+                                          getProcedureCall(config, ! config.isLazyRoles()), config.getUsernameProp(),
+                                          config.getCredentialsProp(), config.isLazyRoles() ? "null AS roles" : "roles");
+            m_credentialQuery = getProcedureCall(config, false) + "RETURN username, credential";
+            m_rolesQuery = getProcedureCall(config, true) + "RETURN roles";
+        } else {
+            m_lookupQuery = String.format("MATCH (n:%s {%s:$username}) %sRETURN n, roles",
+                                          config.getNodeType(), config.getLookupUsernameProp(), userRolesClause);
+            m_credentialQuery = String.format("MATCH (n:%s {%s:$username}) RETURN n.%s, n.%s", config.getNodeType(),
+                                              config.getLookupUsernameProp(), config.getUsernameProp(),
+                                              config.getCredentialsProp());
+            m_rolesQuery = String.format("MATCH (n:%s {%s:$username}) %sRETURN roles",
+                                         config.getNodeType(), config.getLookupUsernameProp(), getRolesClause(config));
+        }
+        m_snapshotQuery = String.format("MATCH (n:%s) %sRETURN n.%s, n.%s, roles", config.getNodeType(),
+                                        getRolesClause(config), config.getUsernameProp(),
+                                        config.getCredentialsProp());
+        m_preloadQuery = String.format("MATCH (n:%1$s) WHERE n.%2$s IS NOT NULL WITH n ORDER BY n.%2$s DESC LIMIT $count "
+                                       + "%3$sRETURN n, roles", config.getNodeType(), LoginAuditWriter.LAST_LOGIN_AT,
+                                       userRolesClause);
+
+        if (config.isRoleRelationships()) {
+            m_roleHierarchy = new RoleHierarchy(this, config, RoleRegistry.getInstance());
+        }
+
+        m_profiler = new LookupProfiler(config);
+        m_retry = new LookupRetry(config, m_metrics);
+
+        if (config.isUsernameNormalized()) {
+            NormalizedUsernameBackfill backfill = new NormalizedUsernameBackfill(this, config);
+            m_backfill = backfill;
+            if (config.getNormalizedBackfillIntervalMs() > 0) {
+                getScheduler().scheduleWithFixedDelay(() -> {
+                    try {
+                        backfill.run(false);
+                    } catch (Throwable th) {
+                        LOG.warn("Failed backfilling normalized usernames", th);
+                    }
+                }, config.getNormalizedBackfillIntervalMs(), config.getNormalizedBackfillIntervalMs(),
+                   TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (config.isCacheEnabled()) {
+            m_cache = new Neo4jUserCache(config, this::refreshUser);
+            if (config.isCacheHeapShedding()) {
+                m_heapMonitor = new HeapPressureMonitor(config.getCacheHeapThreshold(), m_cache::shedForHeapPressure);
+            }
+        }
+
+        if (config.isCacheVersionPolled()) {
+            // Each shard has its own version marker, the role marker is read from the primary shard
+            for (Neo4jShard shard : m_router.getShards()) {
+                CacheVersionPoller poller = new CacheVersionPoller(this, config, shard, shard == m_router.getPrimary());
+                m_versionPollers.add(poller);
+                getScheduler().scheduleWithFixedDelay(poller, 0, config.getCacheVersionPollMs(),
+                                                      TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (config.isCircuitBreakerEnabled()) {
+            m_circuitBreaker = new CircuitBreaker(config);
+        }
+
+        if (config.isAdaptiveConcurrency()) {
+            m_limiter = new ConcurrencyLimiter(config, m_metrics);
+        }
+
+        if (config.isHedgeLookups()) {
+            LookupHedger hedger = new LookupHedger(config, this::createDriver, m_profiler, m_metrics);
+            m_hedger = hedger;
+            getScheduler().scheduleWithFixedDelay(() -> hedger.refreshMembers(getDriver()), 0,
+                                                  LookupHedger.MEMBER_REFRESH_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.isUserSnapshot()) {
+            m_snapshotLoad = getScheduler().submit(() -> {
+                loadSnapshot();
+                return null;
+            });
+            if (config.getSnapshotReloadMs() > 0) {
+                getScheduler().scheduleWithFixedDelay(this::refreshSnapshot, config.getSnapshotReloadMs(),
+                                                      config.getSnapshotReloadMs(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (config.isUpgradeCredentials()) {
+            m_upgradeWriter = new CredentialUpgradeWriter(this, config, task -> getVerificationPool().execute(task));
+            getScheduler().scheduleWithFixedDelay(m_upgradeWriter, config.getUpgradeIntervalMs(),
+                                                  config.getUpgradeIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+
+        // The lockout state is persisted through the audit writer, which only records the
+        // lockout state unless logins are audited
+        if (config.isAuditLogins() || config.isLockoutEnabled()) {
+            m_auditWriter = new LoginAuditWriter(this, config);
+            getScheduler().scheduleWithFixedDelay(m_auditWriter, config.getAuditFlushIntervalMs(),
+                                                  config.getAuditFlushIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+
+        if (config.isLockoutEnabled()) {
+            AccountLockout lockout = new AccountLockout(this, config);
+            m_lockout = lockout;
+            getScheduler().execute(() -> {
+                try {
+                    lockout.reload();
+                } catch (Throwable th) {
+                    LOG.error("Failed reloading account lockout state", th);
+                }
+            });
+            getScheduler().scheduleWithFixedDelay(lockout::evictExpired, config.getLockoutWindowMs(),
+                                                  config.getLockoutWindowMs(), TimeUnit.MILLISECONDS);
+        }
+
+        if (config.isRateLimited()) {
+            m_rateLimiter = new LoginRateLimiter(config, m_metrics);
+            getScheduler().scheduleWithFixedDelay(m_rateLimiter::evictIdle, LoginRateLimiter.EVICTION_INTERVAL_MS,
+                                                  LoginRateLimiter.EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (config.isJmxEnabled()) {
+            registerMBean();
+        }
+    }
+
+    /**
+     * Get the clause binding the roles of the credential node n as roles. With role relationships
+     * only the directly assigned roles are returned, in the same round trip as the credential
+     * node, and the inherited roles are added from the RoleHierarchy.
+     *
+     * @param config The login module configuration
+     * @return The clause
+     */
+    private static String getRolesClause(final Neo4jLoginConfig config) {
+        if (config.isRoleRelationships()) {
+            return String.format("OPTIONAL MATCH (n)-[:%s]->(r:%s) WITH n, collect(r.%s) AS roles ",
+                                 config.getRoleRelationship(), config.getRoleNodeType(), config.getRoleNameProp());
+        }
+        return String.format("WITH n, n.%s AS roles ", config.getRolesProp());
+    }
+
+    /**
+     * Get the call of the lookup procedure yielding the username, credential and roles of the
+     * user with the username parameter. Roles from relationships are returned without those
+     * they inherit, which are added from the RoleHierarchy as for the queries.
+     *
+     * @param config The login module configuration
+     * @param roles false if the roles are not needed, in which case null roles are yielded
+     * @return The call
+     */
+    private static String getProcedureCall(final Neo4jLoginConfig config, final boolean roles) {
+        if (roles && config.isRoleRelationships()) {
+            return String.format("CALL auth.lookupWithRoles(%s, %s, $username, %s, %s, %s, %s, null, %s) "
+                                 + "YIELD username, credential, roles ",
+                                 literal(config.getNodeType()), literal(config.getUsernameProp()),
+                                 literal(config.getCredentialsProp()), literal(config.getRoleRelationship()),
+                                 literal(config.getRoleNodeType()), literal(config.getRoleNameProp()),
+                                 literal(config.getLookupUsernameProp()));
+        }
+        return String.format("CALL auth.lookup(%s, %s, $username, %s, %s, %s) YIELD username, credential, roles ",
+                             literal(config.getNodeType()), literal(config.getUsernameProp()),
+                             literal(config.getCredentialsProp()),
+                             literal(roles ? config.getRolesProp() : null),
+                             literal(config.getLookupUsernameProp()));
+    }
+
+    private static String literal(final String str) {
+        if (str == null) {
+            return "null";
+        }
+        return "'" + str.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * Get the configuration for this store.
+     *
+     * @return The configuration
+     */
+    Neo4jLoginConfig getConfig() {
+        return m_config;
+    }
+
+    /**
+     * Get the Neo4J driver of the primary shard, creating it on first use.
+     *
+     * @return The driver
+     */
+    Driver getDriver() {
+        return m_router.getPrimary().getDriver();
+    }
+
+    /**
+     * Get the shards holding the credential nodes, a single shard for the neo4jUri if the
+     * store is not sharded.
+     *
+     * @return The shards
+     */
+    List<Neo4jShard> getShards() {
+        return m_router.getShards();
+    }
+
+    /**
+     * Get the shard holding the role nodes, and the credential nodes if the store is not sharded.
+     *
+     * @return The primary shard
+     */
+    Neo4jShard getPrimaryShard() {
+        return m_router.getPrimary();
+    }
+
+    /**
+     * Get the shard holding the user.
+     *
+     * @param username The username
+     * @return The shard
+     */
+    Neo4jShard getShard(final String username) {
+        return m_router.route(normalizeUsername(username));
+    }
+
+    /**
+     * Create a driver for the given URI, with the configured credentials and driver settings.
+     *
+     * @param uri The Neo4J URI
+     * @return The driver
+     */
+    private Driver createDriver(final String uri) {
+        AuthToken token = AuthTokens.basic(m_config.getNeo4jUser(), m_config.getNeo4jPassword());
+        Config.ConfigBuilder driverConfig = Config.builder();
+        if (m_config.isJmxEnabled()) {
+            driverConfig.withDriverMetrics();
+        }
+        if (m_config.getConnectionTimeoutMs() > 0) {
+            driverConfig.withConnectionTimeout(m_config.getConnectionTimeoutMs(), TimeUnit.MILLISECONDS);
+        }
+        return GraphDatabase.driver(uri, token, driverConfig.build());
+    }
+
+    /**
+     * Get the Neo4J driver, without creating it.
+     *
+     * @return The driver, or null if it has not been created
+     */
+    Driver getDriverIfCreated() {
+        return m_router.getPrimary().getDriverIfCreated();
+    }
+
+    /**
+     * Is the rate of logins limited?
+     *
+     * @return true if logins are rate limited
+     */
+    boolean isRateLimited() {
+        return m_rateLimiter != null;
+    }
+
+    /**
+     * Is the rate of logins limited per client address?
+     *
+     * @return true if the client address is needed to check the rate limit
+     */
+    boolean isAddressRateLimited() {
+        return m_rateLimiter != null && m_rateLimiter.isAddressLimited();
+    }
+
+    /**
+     * Normalize the username, as configured, to the form users are looked up and held in
+     * memory by.
+     *
+     * @param username The username
+     * @return The normalized username
+     */
+    String normalizeUsername(final String username) {
+        return m_normalizer.normalize(username);
+    }
+
+    /**
+     * Create the index on the normalized username property, and set the property on the
+     * credential nodes.
+     *
+     * @param full true to check every credential node, false to only set the property where
+     *            it is missing
+     * @return The number of credential nodes updated, zero if usernames are not normalized
+     * @throws Neo4jLoginException if the backfill failed
+     */
+    int backfillNormalizedUsernames(final boolean full)
+            throws Neo4jLoginException {
+        return (m_backfill != null) ? m_backfill.run(full) : 0;
+    }
+
+    /**
+     * Check the login attempt against the rate limits.
+     *
+     * @param username The username
+     * @param address The client address, or null if not known
+     * @throws RateLimitedLoginException if a rate limit has been exceeded
+     */
+    void checkRateLimit(final String username, final String address)
+            throws RateLimitedLoginException {
+        if (m_rateLimiter != null) {
+            m_rateLimiter.check(normalizeUsername(username), address);
+        }
+    }
+
+    /**
+     * Check that the account for the given username is not locked.
+     *
+     * @param username The username
+     * @throws AccountLockedException if the account is locked
+     */
+    void checkLockout(final String username)
+            throws AccountLockedException {
+        if (m_lockout != null && m_lockout.isLocked(username)) {
+            m_metrics.accountLocked();
+            throw new AccountLockedException("Account is locked");
+        }
+    }
+
+    /**
+     * Get the Neo4jUser for the given username, from the snapshot or cache if they are enabled.
+     *
+     * @param username The username
+     * @return The Neo4jUser, or null if the user was not found
+     * @throws Neo4jLoginException if the lookup failed
+     */
+    Neo4jUser getUser(final String username)
+            throws Neo4jLoginException {
+        String key = normalizeUsername(username);
+        CompactCredentialStore snapshot = m_snapshot;
+        if (snapshot != null) {
+            Neo4jUser user = snapshot.get(key);
+            if (user == null) {
+                // Users created or invalidated since the snapshot was loaded
+                user = loadUser(key);
+                if (user != null) {
+                    snapshot.put(key, user.getCredential(), user.getRoleSet());
+                }
+            }
+            return user;
+        }
+
+        if (m_cache == null) {
+            return loadUser(key);
+        }
+
+        Neo4jUser user = m_cache.get(key);
+        if (user == null) {
+            long start = System.nanoTime();
+            user = loadUser(key);
+            if (user != null) {
+                m_cache.put(key, user, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+        return user;
+    }
+
+    /**
+     * Reload a cached user in the background, replacing the cached user while it is still
+     * being served. The reloaded user is dropped if the user was invalidated meanwhile, as it
+     * may have been read before the change.
+     *
+     * @param username The username
+     */
+    private void refreshUser(final String username) {
+        try {
+            getRefreshPool().execute(() -> {
+                try {
+                    long start = System.nanoTime();
+                    Neo4jUser user = loadUser(username);
+                    m_cache.refreshed(username, user, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } catch (Throwable th) {
+                    LOG.warn("Failed refreshing cached user " + username, th);
+                    m_cache.refreshFailed(username);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            m_cache.refreshFailed(username);
+        }
+    }
+
+    /**
+     * Get the user from the snapshot or cache, without querying Neo4J.
+     *
+     * @param username The username
+     * @return The user, or null if the user is not held in memory
+     */
+    Neo4jUser getCachedUser(final String username) {
+        String key = normalizeUsername(username);
+        CompactCredentialStore snapshot = m_snapshot;
+        if (snapshot != null) {
+            return snapshot.get(key);
+        }
+        return (m_cache != null) ? m_cache.get(key) : null;
+    }
+
+    /**
+     * Add a user loaded from Neo4J to the snapshot or cache, if either is enabled.
+     *
+     * @param user The user
+     */
+    void cacheUser(final Neo4jUser user) {
+        String username = normalizeUsername(user.getUserPrincipal().getName());
+        CompactCredentialStore snapshot = m_snapshot;
+        if (snapshot != null) {
+            snapshot.put(username, user.getCredential(), user.getRoleSet());
+        } else if (m_cache != null) {
+            m_cache.put(username, user);
+        }
+    }
+
+    /**
+     * Are passwords verified while the roles are fetched?
+     *
+     * @return true if pipelined login is enabled
+     */
+    boolean isPipelinedLogin() {
+        return m_config.isPipelinedLogin();
+    }
+
+    /**
+     * Start a pipelined login. The credential is fetched with a minimal query, then the password
+     * is verified on the verification pool while the roles are fetched through an asynchronous
+     * session.
+     *
+     * @param username The username
+     * @param password The password provided by the user
+     * @return The login in progress, or null if the user was not found
+     * @throws LookupShedException if the credential or roles lookup was shed by the concurrency limit
+     * @throws Neo4jLoginException if the credential could not be fetched
+     */
+    PipelinedLogin startPipelinedLogin(final String username, final Object password)
+            throws Neo4jLoginException {
+        Neo4jUser user = null;
+
+        if (m_circuitBreaker != null && ! m_circuitBreaker.allowRequest()) {
+            m_metrics.lookupFailed();
+            throw new Neo4jLoginException("Failed obtaining user, circuit breaker is open");
+        }
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", normalizeUsername(username));
+        Neo4jShard shard = getShard(username);
+
+        long started = (m_limiter != null) ? m_limiter.acquire() : 0;
+        long start = System.nanoTime();
+        boolean failed = true;
+        m_inFlightLookups.incrementAndGet();
+        try {
+            Function<Driver,Record> lookup = driver -> m_retry.readTransaction(driver, shard.getReadConfig(),
+                                                                               tx -> lookup(tx, "credential",
+                                                                                            m_credentialQuery, params));
+            Record rec = (m_hedger != null) ? m_hedger.lookup(shard.getDriver(), lookup)
+                                            : lookup.apply(shard.getDriver());
+            failed = false;
+            if (rec != null) {
+                user = new Neo4jUser(rec.get(0).asString(), rec.get(1).asString(), RoleSet.EMPTY,
+                                     RoleRegistry.getInstance());
+            }
+
+        } catch (Throwable th) {
+            LOG.error("Failed obtaining user", th);
+            m_metrics.lookupFailed();
+            if (m_circuitBreaker != null) {
+                m_circuitBreaker.recordFailure();
+            }
+            throw new Neo4jLoginException("Failed obtaining user", th);
+        } finally {
+            m_inFlightLookups.decrementAndGet();
+            shard.lookupCompleted(start, failed);
+            if (m_limiter != null) {
+                m_limiter.release(started, failed);
+            }
+        }
+
+        if (m_circuitBreaker != null) {
+            m_circuitBreaker.recordSuccess();
+        }
+        if (user == null) {
+            return null;
+        }
+
+        // The roles fetch holds its own slot, so it is shed before the password is verified
+        long rolesStarted = (m_limiter != null) ? m_limiter.acquire() : 0;
+        Neo4jUser credentialUser = user;
+        try {
+            CompletableFuture<Boolean> verified =
+                    CompletableFuture.supplyAsync(() -> credentialUser.getUserPrincipal().authenticate(password),
+                                                  getVerificationPool());
+            return new PipelinedLogin(this, credentialUser, verified, fetchRoles(shard, params, rolesStarted));
+        } catch (RuntimeException ex) {
+            // The slot is only released by the fetch once it has started
+            if (m_limiter != null) {
+                m_limiter.release(rolesStarted, true);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Fetch the roles of a user through an asynchronous session. If the returned future is
+     * cancelled before the result arrives, the result is discarded rather than fetched.
+     *
+     * @param shard The shard holding the user
+     * @param params The query parameters, holding the username
+     * @param started The time the concurrency limiter slot of the fetch was acquired, released
+     *            when the fetch completes
+     * @return The roles bound by the roles clause
+     */
+    private CompletableFuture<Value> fetchRoles(final Neo4jShard shard, final Map<String,Object> params,
+                                                final long started) {
+        CompletableFuture<Value> roles = new CompletableFuture<Value>();
+
+        AsyncSession sess = shard.asyncSession();
+        TransactionConfig txConfig = TransactionConfig.builder()
+                .withTimeout(Duration.ofMillis(getRolesTimeoutMs()))
+                .build();
+        CompletableFuture<Void> fetch = sess.runAsync(new Query(m_rolesQuery, params), txConfig)
+            .thenCompose(cursor -> roles.isDone() ? cursor.consumeAsync().thenApply(summary -> (Record) null)
+                                                  : cursor.singleAsync())
+            .handle((rec, th) -> {
+                if (th != null) {
+                    roles.completeExceptionally(th);
+                } else if (rec != null) {
+                    roles.complete(rec.get(0));
+                }
+                return null;
+            })
+            .thenCompose(ignored -> sess.closeAsync())
+            .toCompletableFuture();
+
+        // Closing the driver while the fetch is still acquiring a connection deadlocks the pool
+        m_roleFetches.add(fetch);
+        fetch.whenComplete((ignored, th) -> {
+            m_roleFetches.remove(fetch);
+            if (m_limiter != null) {
+                m_limiter.release(started, roles.isCompletedExceptionally() && ! roles.isCancelled());
+            }
+        });
+
+        return roles;
+    }
+
+    /**
+     * Reload a cached user which failed authentication, in case the credential has been
+     * changed in Neo4J since the user was cached.
+     *
+     * @param user The user which failed authentication
+     * @return The reloaded user, or null if users are not cached or the credential is unchanged
+     * @throws Neo4jLoginException if the lookup failed
+     */
+    Neo4jUser reloadIfStale(final Neo4jUser user)
+            throws Neo4jLoginException {
+        if (m_cache == null && m_snapshot == null) {
+            return null;
+        }
+
+        String username = user.getUserPrincipal().getName();
+        invalidateUser(username);
+        Neo4jUser reloaded = getUser(username);
+
+        if (reloaded != null && ! reloaded.getCredential().equals(user.getCredential())) {
+            return reloaded;
+        }
+        return null;
+    }
+
+    /**
+     * Remove a user from the cache and snapshot, if they are enabled.
+     *
+     * @param username The username
+     */
+    void invalidateUser(final String username) {
+        String key = normalizeUsername(username);
+        if (m_cache != null) {
+            m_cache.invalidate(key);
+        }
+
+        // Invalidations during a load are replayed on the new snapshot
+        Set<String> invalidations = m_snapshotInvalidations;
+        if (invalidations != null) {
+            invalidations.add(key);
+        }
+
+        CompactCredentialStore snapshot = m_snapshot;
+        if (snapshot != null) {
+            snapshot.remove(key);
+        }
+    }
+
+    /**
+     * Remove all users from the cache, and reload the snapshot in the background, if they
+     * are enabled.
+     */
+    void invalidateAllUsers() {
+        if (m_cache != null) {
+            m_cache.invalidateAll();
+        }
+
+        if (m_config.isUserSnapshot()) {
+            getScheduler().execute(this::refreshSnapshot);
+        }
+    }
+
+    /**
+     * Reload the snapshot in the background, keeping the current snapshot if the users could
+     * not be loaded.
+     */
+    private void refreshSnapshot() {
+        try {
+            loadSnapshot();
+        } catch (Throwable th) {
+            LOG.error("Failed reloading user snapshot", th);
+        }
+    }
+
+    /**
+     * Load every user into a new snapshot, replacing the current snapshot once loaded.
+     *
+     * @throws Neo4jLoginException if the users could not be loaded
+     */
+    void loadSnapshot()
+            throws Neo4jLoginException {
+        synchronized (m_snapshotLock) {
+            long start = System.currentTimeMillis();
+            Set<String> invalidations = ConcurrentHashMap.newKeySet();
+            m_snapshotInvalidations = invalidations;
+
+            try {
+                CompactCredentialStore snapshot = new CompactCredentialStore(RoleRegistry.getInstance());
+                for (Neo4jShard shard : m_router.getShards()) {
+                    try (Session sess = shard.session()) {
+                        Result res = sess.run(new Query(m_snapshotQuery));
+                        while (res.hasNext()) {
+                            Record rec = res.next();
+                            if (! rec.get(0).isNull() && ! rec.get(1).isNull()) {
+                                snapshot.put(normalizeUsername(rec.get(0).asString()), rec.get(1).asString(),
+                                             resolveRoles(rec.get(2)));
+                            }
+                        }
+                    }
+                }
+
+                m_snapshot = snapshot;
+                for (String username : invalidations) {
+                    snapshot.remove(username);
+                }
+                m_snapshotInvalidations = null;
+                for (String username : invalidations) {
+                    snapshot.remove(username);
+                }
+
+                LOG.info("Loaded " + snapshot.size() + " users in " + (System.currentTimeMillis() - start) + "ms, "
+                         + snapshot.getMemoryUsage() + " bytes");
+            } catch (Throwable th) {
+                LOG.error("Failed loading user snapshot", th);
+                throw new Neo4jLoginException("Failed loading user snapshot", th);
+            } finally {
+                m_snapshotInvalidations = null;
+            }
+        }
+    }
+
+    /**
+     * Wait for the initial snapshot load to finish.
+     *
+     * @throws Neo4jLoginException if the snapshot could not be loaded
+     */
+    void awaitSnapshot()
+            throws Neo4jLoginException {
+        if (m_snapshotLoad == null) {
+            return;
+        }
+
+        try {
+            m_snapshotLoad.get();
+        } catch (ExecutionException ex) {
+            throw new Neo4jLoginException("Failed loading user snapshot", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new Neo4jLoginException("Interrupted loading user snapshot", ex);
+        }
+    }
+
+    /**
+     * Get the snapshot of all users.
+     *
+     * @return The snapshot, or null if it is not enabled or not yet loaded
+     */
+    CompactCredentialStore getSnapshot() {
+        return m_snapshot;
+    }
+
+    /**
+     * Load the Neo4jUser for the given username from Neo4J.
+     *
+     * @param username The username
+     * @return The Neo4jUser, or null if the user was not found
+     * @throws LookupShedException if the lookup was shed by the concurrency limit
+     * @throws Neo4jLoginException if the lookup failed
+     */
+    Neo4jUser loadUser(final String username)
+            throws Neo4jLoginException {
+        Neo4jUser user = null;
+
+        if (m_circuitBreaker != null && ! m_circuitBreaker.allowRequest()) {
+            m_metrics.lookupFailed();
+            throw new Neo4jLoginException("Failed obtaining user, circuit breaker is open");
+        }
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", normalizeUsername(username));
+        Neo4jShard shard = getShard(username);
+
+        long started = (m_limiter != null) ? m_limiter.acquire() : 0;
+        long start = System.nanoTime();
+        boolean failed = true;
+        m_inFlightLookups.incrementAndGet();
+        try {
+            Function<Driver,Record> lookup = driver -> m_retry.readTransaction(driver, shard.getReadConfig(),
+                                                                               tx -> lookup(tx, "lookup", m_lookupQuery,
+                                                                                            params));
+            Record rec = (m_hedger != null) ? m_hedger.lookup(shard.getDriver(), lookup)
+                                            : lookup.apply(shard.getDriver());
+            failed = false;
+            if (rec != null) {
+                user = toUser(rec.get(0), rec.get(1));
+            }
+
+        } catch (Throwable th) {
+            LOG.error("Failed obtaining user", th);
+            m_metrics.lookupFailed();
+            if (m_circuitBreaker != null) {
+                m_circuitBreaker.recordFailure();
+            }
+            throw new Neo4jLoginException("Failed obtaining user", th);
+        } finally {
+            m_inFlightLookups.decrementAndGet();
+            shard.lookupCompleted(start, failed);
+            if (m_limiter != null) {
+                m_limiter.release(started, failed);
+            }
+        }
+
+        if (m_circuitBreaker != null) {
+            m_circuitBreaker.recordSuccess();
+        }
+        return user;
+    }
+
+    /**
+     * Run the lookup query once on a shard, whichever shard the username maps to, so the
+     * server of every shard has planned it.
+     *
+     * @param shard The shard
+     * @param username The username looked up
+     * @throws Neo4jLoginException if the lookup failed
+     */
+    void warmLookup(final Neo4jShard shard, final String username)
+            throws Neo4jLoginException {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", normalizeUsername(username));
+        try {
+            m_retry.readTransaction(shard.getDriver(), shard.getReadConfig(),
+                                    tx -> lookup(tx, "lookup", m_lookupQuery, params));
+        } catch (Throwable th) {
+            throw new Neo4jLoginException("Failed warming the lookup", th);
+        }
+    }
+
+    /**
+     * Run a lookup query in a read transaction, recording its summary.
+     *
+     * @param tx The transaction
+     * @param name The name of the lookup, for the profiler
+     * @param query The query
+     * @param params The query parameters
+     * @return The first record, or null if there are none
+     */
+    private Record lookup(final Transaction tx, final String name, final String query,
+                          final Map<String,Object> params) {
+        Result res = tx.run(new Query(m_profiler.prepare(query), params));
+        Record rec = res.hasNext() ? res.next() : null;
+        if (rec != null && res.hasNext() && m_normalizer.isEnabled()) {
+            // Usernames normalizing to the same value can not be told apart
+            LOG.warn("More than one user has the normalized username " + params.get("username"));
+            rec = null;
+        }
+        m_profiler.record(name, res.consume());
+        return rec;
+    }
+
+    /**
+     * Load the most recently active users, by lastLoginAt, into the cache.
+     *
+     * When sharded, an equal share of the users is loaded from each shard.
+     *
+     * @param count The maximum number of users to load
+     * @return The number of users loaded
+     * @throws Neo4jLoginException if the users could not be loaded
+     */
+    int preloadRecentUsers(final int count)
+            throws Neo4jLoginException {
+        m_preloadCount = count;
+        if (m_cache == null || count <= 0) {
+            return 0;
+        }
+
+        List<Neo4jShard> shards = m_router.getShards();
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("count", (count + shards.size() - 1) / shards.size());
+
+        int loaded = 0;
+        try {
+            for (Neo4jShard shard : shards) {
+                try (Session sess = shard.session()) {
+                    Result res = sess.run(new Query(m_preloadQuery, params));
+                    while (res.hasNext()) {
+                        Record rec = res.next();
+                        Neo4jUser user = toUser(rec.get(0), rec.get(1));
+                        m_cache.put(normalizeUsername(user.getUserPrincipal().getName()), user);
+                        loaded++;
+                    }
+                }
+            }
+        } catch (Throwable th) {
+            LOG.error("Failed preloading users", th);
+            throw new Neo4jLoginException("Failed preloading users", th);
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Discard the users and account lockout state held in memory and reload them from Neo4J.
+     * The cache is reloaded with the same number of users last preloaded.
+     *
+     * @throws Neo4jLoginException if the users could not be reloaded
+     */
+    void reloadSnapshot()
+            throws Neo4jLoginException {
+        if (m_roleHierarchy != null) {
+            m_roleHierarchy.load();
+        }
+
+        if (m_config.isUserSnapshot()) {
+            loadSnapshot();
+        }
+
+        if (m_cache != null) {
+            m_cache.invalidateAll();
+            preloadRecentUsers(m_preloadCount);
+        }
+
+        if (m_lockout != null) {
+            try {
+                m_lockout.reload();
+            } catch (Throwable th) {
+                LOG.error("Failed reloading account lockout state", th);
+                throw new Neo4jLoginException("Failed reloading account lockout state", th);
+            }
+        }
+    }
+
+    /**
+     * Create the Neo4jUser from the credential node.
+     *
+     * @param n The credential node, or a map of its username and credential
+     * @param rolesVal The roles bound by the roles clause
+     * @return The Neo4jUser
+     * @throws Neo4jLoginException if the roles are not a string or list of strings
+     */
+    private Neo4jUser toUser(final Value n, final Value rolesVal)
+            throws Neo4jLoginException {
+        String nodeUsername = n.get(m_config.getUsernameProp()).asString();
+        String creds = n.get(m_config.getCredentialsProp()).asString();
+
+        if (m_config.isLazyRoles()) {
+            return new Neo4jUser(nodeUsername, creds, this::loadRoles, RoleRegistry.getInstance());
+        }
+        return new Neo4jUser(nodeUsername, creds, resolveRoles(rolesVal), RoleRegistry.getInstance());
+    }
+
+    /**
+     * Load the roles of a user, on the first role check when roles are loaded lazily.
+     *
+     * @param username The username
+     * @return The role ids, empty if the user no longer exists
+     * @throws Neo4jLoginException if the roles could not be loaded
+     */
+    RoleSet loadRoles(final String username)
+            throws Neo4jLoginException {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", normalizeUsername(username));
+
+        Value rolesVal = null;
+        try {
+            Neo4jShard shard = getShard(username);
+            Record rec = m_retry.readTransaction(shard.getDriver(), shard.getReadConfig(),
+                                                 tx -> lookup(tx, "roles", m_rolesQuery, params));
+            if (rec != null) {
+                rolesVal = rec.get(0);
+            }
+        } catch (Throwable th) {
+            LOG.error("Failed obtaining roles", th);
+            m_metrics.lookupFailed();
+            throw new Neo4jLoginException("Failed obtaining roles", th);
+        }
+
+        m_metrics.lazyRolesLoaded();
+        return (rolesVal != null) ? resolveRoles(rolesVal) : RoleSet.EMPTY;
+    }
+
+    /**
+     * Get the role set of a user, including inherited roles when roles are resolved from
+     * relationships.
+     *
+     * @param rolesVal The roles bound by the roles clause
+     * @return The role ids
+     * @throws Neo4jLoginException if the roles are not a string or list of strings
+     */
+    RoleSet resolveRoles(final Value rolesVal)
+            throws Neo4jLoginException {
+        RoleSet roles = toRoles(rolesVal);
+        return (m_roleHierarchy != null) ? m_roleHierarchy.expand(roles) : roles;
+    }
+
+    /**
+     * Reload the role hierarchy, and the users whose roles were expanded through it.
+     *
+     * @throws Neo4jLoginException if the hierarchy could not be loaded
+     */
+    void reloadRoleHierarchy()
+            throws Neo4jLoginException {
+        if (m_roleHierarchy == null) {
+            return;
+        }
+
+        m_roleHierarchy.load();
+        invalidateAllUsers();
+    }
+
+    /**
+     * Get the role hierarchy.
+     *
+     * @return The role hierarchy, or null if roles are not resolved from relationships
+     */
+    RoleHierarchy getRoleHierarchy() {
+        return m_roleHierarchy;
+    }
+
+    /**
+     * Get the role set from the roles property of the credential node. Each role is interned
+     * directly from the list value as it is read, without copying the list or its entries,
+     * as a role list expanded from groups may hold many thousands of roles.
+     *
+     * @param rolesVal The roles property
+     * @return The role ids
+     * @throws Neo4jLoginException if the roles are not a string or list of strings
+     */
+    static RoleSet toRoles(final Value rolesVal)
+            throws Neo4jLoginException {
+        RoleRegistry registry = RoleRegistry.getInstance();
+        if (rolesVal.hasType(InternalTypeSystem.TYPE_SYSTEM.STRING())) {
+            return new RoleSet(new int[] { registry.getId(rolesVal.asString()) }, 1);
+        } else if (rolesVal.hasType(InternalTypeSystem.TYPE_SYSTEM.LIST())) {
+            int count = rolesVal.size();
+            if (count == 0) {
+                return RoleSet.EMPTY;
+            }
+
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                Value role = rolesVal.get(i);
+                if (! role.hasType(InternalTypeSystem.TYPE_SYSTEM.STRING())) {
+                    throw new Neo4jLoginException("Unexpected role type, " + role.type());
+                }
+                ids[i] = registry.getId(role.asString());
+            }
+            return new RoleSet(ids, count);
+        } else {
+            throw new Neo4jLoginException("Unexpected role value type, " + rolesVal.type());
+        }
+    }
+
+    /**
+     * Notify the store that a user successfully authenticated with the given password.
+     *
+     * @param user The user
+     * @param password The password provided by the user
+     */
+    void loginSucceeded(final Neo4jUser user, final Object password) {
+        m_metrics.loginSucceeded();
+
+        if (m_upgradeWriter != null && user.hasLegacyCredential()) {
+            m_upgradeWriter.queue(user, password);
+        }
+
+        boolean cleared = (m_lockout != null) && m_lockout.loginSucceeded(user.getUserPrincipal().getName());
+        if (m_auditWriter != null) {
+            if (m_config.isAuditLogins()) {
+                m_auditWriter.loginSucceeded(user.getUserPrincipal().getName());
+            } else if (cleared) {
+                m_auditWriter.failuresCleared(user.getUserPrincipal().getName());
+            }
+        }
+    }
+
+    /**
+     * Notify the store that a user failed to authenticate.
+     *
+     * @param user The user
+     */
+    void loginFailed(final Neo4jUser user) {
+        m_metrics.loginFailed();
+
+        // Failures are persisted when audited, and for the lockout state
+        if (m_auditWriter != null && (m_config.isAuditLogins() || m_lockout != null)) {
+            m_auditWriter.loginFailed(user.getUserPrincipal().getName());
+        }
+
+        if (m_lockout != null) {
+            m_lockout.loginFailed(user.getUserPrincipal().getName());
+        }
+    }
+
+    /**
+     * Get the writer upgrading legacy credentials.
+     *
+     * @return The writer, or null if credential upgrades are not enabled
+     */
+    CredentialUpgradeWriter getUpgradeWriter() {
+        return m_upgradeWriter;
+    }
+
+    /**
+     * Get the writer recording login outcomes.
+     *
+     * @return The writer, or null if login auditing is not enabled
+     */
+    LoginAuditWriter getAuditWriter() {
+        return m_auditWriter;
+    }
+
+    /**
+     * Get the account lockout.
+     *
+     * @return The account lockout, or null if account lockout is not enabled
+     */
+    AccountLockout getLockout() {
+        return m_lockout;
+    }
+
+    /**
+     * Get the rate limiter.
+     *
+     * @return The rate limiter, or null if rate limiting is not enabled
+     */
+    LoginRateLimiter getRateLimiter() {
+        return m_rateLimiter;
+    }
+
+    /**
+     * Get the user cache.
+     *
+     * @return The cache, or null if caching is not enabled
+     */
+    Neo4jUserCache getCache() {
+        return m_cache;
+    }
+
+    /**
+     * Get the monitor shedding the cache under heap pressure.
+     *
+     * @return The monitor, or null if heap shedding is not enabled
+     */
+    HeapPressureMonitor getHeapMonitor() {
+        return m_heapMonitor;
+    }
+
+    /**
+     * Get the poller invalidating users changed on other servers, for the primary shard.
+     *
+     * @return The poller, or null if the version marker is not polled
+     */
+    CacheVersionPoller getVersionPoller() {
+        return m_versionPollers.isEmpty() ? null : m_versionPollers.get(0);
+    }
+
+    /**
+     * Get the profiler recording the summaries of user lookups.
+     *
+     * @return The profiler
+     */
+    LookupProfiler getProfiler() {
+        return m_profiler;
+    }
+
+    /**
+     * Get the circuit breaker around user lookups.
+     *
+     * @return The circuit breaker, or null if it is not enabled
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return m_circuitBreaker;
+    }
+
+    /**
+     * Get the hedger sending slow lookups to a second cluster member.
+     *
+     * @return The hedger, or null if lookups are not hedged
+     */
+    LookupHedger getHedger() {
+        return m_hedger;
+    }
+
+    /**
+     * Get the limiter bounding the user lookups in flight.
+     *
+     * @return The limiter, or null if the adaptive concurrency limit is not enabled
+     */
+    ConcurrencyLimiter getConcurrencyLimiter() {
+        return m_limiter;
+    }
+
+    /**
+     * Get the number of user lookups currently querying Neo4J.
+     *
+     * @return The number of lookups
+     */
+    int getInFlightLookups() {
+        return m_inFlightLookups.get();
+    }
+
+    /**
+     * Get the name of the JMX MBean for this store.
+     *
+     * @return The name, or null if the MBean is not registered
+     */
+    ObjectName getMBeanName() {
+        return m_mbeanName;
+    }
+
+    /**
+     * Get the time allowed for the roles of a pipelined login, bounded by the connection
+     * timeout, or the driver default if it is not set.
+     *
+     * @return The timeout, in milliseconds
+     */
+    long getRolesTimeoutMs() {
+        return (m_config.getConnectionTimeoutMs() > 0) ? m_config.getConnectionTimeoutMs() 
+                                                        : DEFAULT_ROLES_TIMEOUT_MS;
+    }
+
+    /**
+     * Get the metrics for this store.
+     *
+     * @return The metrics
+     */
+    Neo4jLoginMetrics getMetrics() {
+        return m_metrics;
+    }
+
+    /**
+     * Register the JMX MBean for this store. A store already registered for the same realm
+     * name is left in place, and this store is not registered.
+     */
+    private void registerMBean() {
+        try {
+            String realm = (m_config.getRealmName() != null) ? m_config.getRealmName() : "default";
+            ObjectName name = new ObjectName(Neo4jLoginStats.DOMAIN + ":type=Neo4jLoginStats,realm="
+                                             + ObjectName.quote(realm));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                LOG.warn("JMX MBean " + name + " already registered, set " + Neo4jLoginModule.REALM_NAME_PROP
+                         + " to distinguish the realms");
+                return;
+            }
+
+            server.registerMBean(new Neo4jLoginStats(this), name);
+            m_mbeanName = name;
+        } catch (Exception ex) {
+            LOG.error("Failed registering JMX MBean", ex);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (m_mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_mbeanName);
+            } catch (Exception ex) {
+                LOG.error("Failed unregistering JMX MBean", ex);
+            } finally {
+                m_mbeanName = null;
+            }
+        }
+    }
+
+    /**
+     * Get the scheduler used to run the background writers, creating it on first use.
+     *
+     * @return The scheduler
+     */
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (m_scheduler == null) {
+            m_scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread th = new Thread(r, "neo4j-login-writer");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+
+        return m_scheduler;
+    }
+
+    /**
+     * Get the pool on which pipelined logins verify passwords, creating it on first use.
+     *
+     * @return The verification pool
+     */
+    private synchronized ExecutorService getVerificationPool() {
+        if (m_verificationPool == null) {
+            AtomicInteger count = new AtomicInteger();
+            m_verificationPool = Executors.newFixedThreadPool(m_config.getVerificationThreads(), r -> {
+                Thread th = new Thread(r, "neo4j-login-verify-" + count.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            });
+        }
+
+        return m_verificationPool;
+    }
+
+    /**
+     * Get the pool on which cached users are refreshed, creating it on first use.
+     *
+     * @return The refresh pool
+     */
+    private synchronized ExecutorService getRefreshPool() {
+        if (m_refreshPool == null) {
+            AtomicInteger count = new AtomicInteger();
+            m_refreshPool = Executors.newFixedThreadPool(REFRESH_THREADS, r -> {
+                Thread th = new Thread(r, "neo4j-login-refresh-" + count.incrementAndGet());
+                th.setDaemon(true);
+                return th;
+            });
+        }
+
+        return m_refreshPool;
+    }
+
+    /**
+     * Close the store, stopping the background writers and closing the driver.
+     */
+    synchronized void close() {
+        unregisterMBean();
+
+        if (m_heapMonitor != null) {
+            m_heapMonitor.close();
+            m_heapMonitor = null;
+        }
+
+        if (m_verificationPool != null) {
+            m_verificationPool.shutdown();
+            m_verificationPool = null;
+        }
+
+        // Refreshes use the driver, let them complete before it is closed
+        if (m_refreshPool != null) {
+            m_refreshPool.shutdown();
+            try {
+                m_refreshPool.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            m_refreshPool = null;
+        }
+
+        if (m_scheduler != null) {
+            m_scheduler.shutdown();
+            try {
+                m_scheduler.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            m_scheduler = null;
+        }
+
+        if (m_hedger != null) {
+            m_hedger.close();
+        }
+
+        boolean connected = m_router.isConnected();
+        if (m_upgradeWriter != null && connected) {
+            m_upgradeWriter.run();
+        }
+
+        if (m_auditWriter != null) {
+            if (m_config.isAuditFlushOnShutdown() && connected) {
+                m_auditWriter.flushAll();
+            } else {
+                m_auditWriter.discard();
+            }
+        }
+
+        if (connected) {
+            try {
+                CompletableFuture.allOf(m_roleFetches.toArray(new CompletableFuture<?>[0]))
+                                 .get(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException ex) {
+                LOG.warn("Closing Neo4jDriver with role fetches outstanding", ex);
+            }
+
+            m_router.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty LifeCycle which warms the shared Neo4jUserStore before the server accepts traffic,
+ * and closes it when the server is stopped, once no Neo4jLoginService still holds it.
+ * Starting blocks until,
+ *   * connectivity to Neo4J has been verified
+ *   * the minimum number of pooled connections have been opened
+ *   * if usernames are normalized, the normalized username has been indexed, and set on the
+ *     credential nodes missing it
+ *   * the lookup query has been run once on every shard, so each server has planned it
+ *   * the role hierarchy, if roles are resolved from relationships, has been loaded
+ *   * the user snapshot, if enabled, has been loaded
+ *   * optionally, the most recently active users have been loaded into the user cache
+ *
+ * The options are read from the JAAS configuration entry for the login module name, so the
+ * warmed store is the one shared by Neo4jLoginModule, or may be set directly with setOption()
+ * to match a Neo4jLoginService. The bean should be added to the server before the login
+ * service, so it is started before and stopped after it.
+ *
+ * @author Scott Stanley
+ */
+public class Neo4jUserStoreLifeCycle
+        extends AbstractLifeCycle {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jUserStoreLifeCycle.class);
+
+    private static final String WARMUP_USERNAME = "__neo4j_login_warmup__";
+
+    private final Map<String,Object> m_options = new HashMap<String,Object>();
+    private String m_loginModuleName = null;
+    private int m_minConnections = 1;
+    private int m_preloadUsers = 0;
+    private Neo4jUserStore m_store = null;
+
+
+    /**
+     * Create a new Neo4jUserStoreLifeCycle.
+     */
+    public Neo4jUserStoreLifeCycle() {
+    }
+
+    /**
+     * Set the name of the JAAS configuration entry to read the Neo4jLoginModule options from.
+     *
+     * @param loginModuleName The login module name
+     */
+    public void setLoginModuleName(final String loginModuleName) {
+        m_loginModuleName = loginModuleName;
+    }
+
+    /**
+     * Set one of the options supported by Neo4jLoginModule, overriding the JAAS configuration.
+     *
+     * @param name The option name
+     * @param value The option value
+     */
+    public void setOption(final String name, final String value) {
+        m_options.put(name, value);
+    }
+
+    /**
+     * Set the number of pooled connections opened before the server accepts traffic. This
+     * should not exceed the maximum connection pool size of the driver.
+     *
+     * @param minConnections The number of connections
+     */
+    public void setMinConnections(final int minConnections) {
+        m_minConnections = minConnections;
+    }
+
+    /**
+     * Set the number of most recently active users loaded into the user cache. Users are
+     * only preloaded if the cache is enabled, see cacheTtlMs.
+     *
+     * @param preloadUsers The number of users
+     */
+    public void setPreloadUsers(final int preloadUsers) {
+        m_preloadUsers = preloadUsers;
+    }
+
+    /**
+     * Warm the store, blocking until it is ready.
+     */
+    @Override
+    protected void doStart()
+            throws Exception {
+        Neo4jUserStore store = Neo4jUserStore.acquire(new Neo4jLoginConfig(getOptions()));
+        try {
+            warm(store);
+        } catch (Exception ex) {
+            Neo4jUserStore.release(store);
+            throw ex;
+        }
+        m_store = store;
+        super.doStart();
+    }
+
+    /**
+     * Warm the store.
+     *
+     * @param store The store
+     * @throws Exception if the store could not be warmed
+     */
+    private void warm(final Neo4jUserStore store)
+            throws Exception {
+        long start = System.currentTimeMillis();
+
+        for (Neo4jShard shard : store.getShards()) {
+            shard.getDriver().verifyConnectivity();
+            openConnections(shard);
+        }
+
+        // Users missing the normalized username can not login until it is set. Only the
+        // missing nodes are written, and failures are logged, so an account without write or
+        // schema access still starts
+        int backfilled = 0;
+        try {
+            backfilled = store.backfillNormalizedUsernames(false);
+        } catch (Neo4jLoginException ex) {
+            LOG.warn("Failed backfilling normalized usernames, users missing them can not login", ex);
+        }
+
+        // Run after the backfill, so the lookup is planned with the normalized username index
+        for (Neo4jShard shard : store.getShards()) {
+            store.warmLookup(shard, WARMUP_USERNAME);
+        }
+        if (store.getRoleHierarchy() != null) {
+            store.getRoleHierarchy().load();
+        }
+
+        store.awaitSnapshot();
+        int preloaded = store.preloadRecentUsers(m_preloadUsers);
+
+        LOG.info("Warmed Neo4J login store in " + (System.currentTimeMillis() - start) + "ms, "
+                 + m_minConnections + " connections, " + backfilled + " usernames normalized, "
+                 + preloaded + " users preloaded");
+    }
+
+    /**
+     * Release the store. Once no login service holds it, the store is closed, stopping the
+     * background writers, flushing their pending writes and then closing the driver.
+     */
+    @Override
+    protected void doStop()
+            throws Exception {
+        super.doStop();
+        if (m_store != null) {
+            Neo4jUserStore.release(m_store);
+            m_store = null;
+        }
+    }
+
+    /**
+     * Get the options for the store, from the JAAS configuration overridden by any set directly.
+     *
+     * @return The options
+     */
+    private Map<String,Object> getOptions() {
+        Map<String,Object> options = new HashMap<String,Object>();
+
+        if (m_loginModuleName != null) {
+            AppConfigurationEntry[] entries = Configuration.getConfiguration().getAppConfigurationEntry(m_loginModuleName);
+            if (entries == null) {
+                throw new IllegalStateException("No JAAS configuration for " + m_loginModuleName);
+            }
+
+            for (AppConfigurationEntry entry : entries) {
+                if (Neo4jLoginModule.class.getName().equals(entry.getLoginModuleName())) {
+                    options.putAll(entry.getOptions());
+                }
+            }
+        }
+        options.putAll(m_options);
+
+        return options;
+    }
+
+    /**
+     * Open the minimum number of connections, holding a transaction on each until all are
+     * open so the pool can not hand out the same connection twice.
+     *
+     * @param shard The shard to open connections to
+     */
+    private void openConnections(final Neo4jShard shard) {
+        List<Session> sessions = new ArrayList<Session>();
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        try {
+            for (int i = 0; i < m_minConnections; i++) {
+                Session sess = shard.session();
+                sessions.add(sess);
+                Transaction tx = sess.beginTransaction();
+                transactions.add(tx);
+                tx.run("RETURN 1").consume();
+            }
+        } finally {
+            for (Transaction tx : transactions) {
+                tx.close();
+            }
+            for (Session sess : sessions) {
+                sess.close();
+            }
+        }
+    }
+}
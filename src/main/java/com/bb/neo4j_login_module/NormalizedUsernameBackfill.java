@@ -0,0 +1,217 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NormalizedUsernameBackfill maintains the normalized username property looked up when
+ * usernames are normalized. It creates the index on the property if it does not exist, the
+ * first time a shard is backfilled and on every full pass, logging a warning rather than
+ * failing if the account may not create it. The missing pass then only sets the property on
+ * credential nodes where it is missing, and writes nothing when every node has it. The full
+ * pass, a maintenance operation run through JMX, also corrects the property where it no
+ * longer matches the username, for example after the normalization mode has changed.
+ *
+ * Nodes are read and written in batches, each batch in its own transaction. Batches are
+ * paged by username rather than by node id, so each batch is a range seek on the index of
+ * the username property instead of a scan of the label, a large label is never held in one
+ * transaction, and a failed run can simply be run again. Usernames normalizing to the same
+ * value can not be told apart at login, so they are logged once the backfill completes, and
+ * looking them up finds no user. When the store is sharded each shard is backfilled in turn.
+ *
+ * @author Scott Stanley
+ */
+class NormalizedUsernameBackfill {
+    private static final Logger LOG = LoggerFactory.getLogger(NormalizedUsernameBackfill.class);
+
+    private static final String INDEX_QUERY =
+            "CREATE INDEX %1$s IF NOT EXISTS FOR (n:%2$s) ON (n.%3$s)";
+    private static final String READ_QUERY =
+            "MATCH (n:%1$s) WHERE n.%2$s > $after %4$s"
+            + "RETURN n.%2$s AS username, n.%3$s AS normalized ORDER BY n.%2$s LIMIT $batchSize";
+    private static final String WRITE_QUERY =
+            "UNWIND $updates AS u "
+            + "MATCH (n:%1$s {%2$s: u.username}) "
+            + "SET n.%3$s = u.normalized";
+    private static final String CONFLICT_QUERY =
+            "MATCH (n:%1$s) WHERE n.%2$s IS NOT NULL "
+            + "WITH n.%2$s AS normalized, count(n) AS users WHERE users > 1 "
+            + "RETURN normalized, users LIMIT 100";
+
+    private final Neo4jUserStore m_store;
+    private final Neo4jLoginConfig m_config;
+    private final UsernameNormalizer m_normalizer;
+    private final String m_indexQuery;
+    private final String m_fullReadQuery;
+    private final String m_missingReadQuery;
+    private final String m_writeQuery;
+    private final String m_conflictQuery;
+    private final Set<String> m_indexedShards = ConcurrentHashMap.newKeySet();
+
+
+    /**
+     * Create a new NormalizedUsernameBackfill.
+     *
+     * @param store The store providing the Neo4J driver
+     * @param config The login module configuration
+     */
+    NormalizedUsernameBackfill(final Neo4jUserStore store, final Neo4jLoginConfig config) {
+        m_store = store;
+        m_config = config;
+        m_normalizer = config.getUsernameNormalizer();
+
+        String nodeType = config.getNodeType();
+        String normalizedProp = config.getNormalizedUsernameProp();
+        m_indexQuery = String.format(INDEX_QUERY, "neo4j_login_" + nodeType + "_" + normalizedProp,
+                                     nodeType, normalizedProp);
+        m_fullReadQuery = String.format(READ_QUERY, nodeType, config.getUsernameProp(), normalizedProp, "");
+        m_missingReadQuery = String.format(READ_QUERY, nodeType, config.getUsernameProp(), normalizedProp,
+                                           "AND n." + normalizedProp + " IS NULL ");
+        m_writeQuery = String.format(WRITE_QUERY, nodeType, config.getUsernameProp(), normalizedProp);
+        m_conflictQuery = String.format(CONFLICT_QUERY, nodeType, normalizedProp);
+    }
+
+    /**
+     * Create the index on the normalized username property of a shard, if it does not already
+     * exist.
+     *
+     * @param shard The shard
+     */
+    void createIndex(final Neo4jShard shard) {
+        try (Session sess = shard.session()) {
+            sess.writeTransaction(tx -> tx.run(m_indexQuery).consume());
+        }
+    }
+
+    /**
+     * Create the index on the normalized username property of a shard, logging a warning if
+     * it can not be created. Unless forced, the index is only created the first time.
+     *
+     * @param shard The shard
+     * @param force true to create the index even if it has been created before
+     */
+    private void ensureIndex(final Neo4jShard shard, final boolean force) {
+        if (! m_indexedShards.add(shard.getId()) && ! force) {
+            return;
+        }
+
+        try {
+            createIndex(shard);
+        } catch (RuntimeException ex) {
+            LOG.warn("Failed creating the normalized username index on shard " + shard.getId()
+                     + ", lookups will scan the label until it is created", ex);
+        }
+    }
+
+    /**
+     * Set the normalized username on the credential nodes.
+     *
+     * @param full true to check every credential node, false to only set the property where
+     *            it is missing
+     * @return The number of credential nodes updated
+     * @throws Neo4jLoginException if the backfill failed
+     */
+    int run(final boolean full)
+            throws Neo4jLoginException {
+        long start = System.currentTimeMillis();
+        int updated = 0;
+        try {
+            for (Neo4jShard shard : m_store.getShards()) {
+                ensureIndex(shard, full);
+
+                int shardUpdated = 0;
+                String after = "";
+                while (true) {
+                    List<Record> batch = readBatch(shard, full ? m_fullReadQuery : m_missingReadQuery, after);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    after = batch.get(batch.size() - 1).get("username").asString();
+                    shardUpdated += writeBatch(shard, batch);
+                }
+                updated += shardUpdated;
+
+                // Conflicts are only checked when the usernames may have changed
+                if (full || shardUpdated > 0) {
+                    logConflicts(shard);
+                }
+            }
+        } catch (Throwable th) {
+            throw new Neo4jLoginException("Failed backfilling normalized usernames", th);
+        }
+
+        if (updated > 0) {
+            LOG.info("Set the normalized username of " + updated + " users in "
+                     + (System.currentTimeMillis() - start) + "ms");
+        }
+        return updated;
+    }
+
+    private List<Record> readBatch(final Neo4jShard shard, final String query, final String after) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("after", after);
+        params.put("batchSize", m_config.getNormalizedBackfillBatchSize());
+
+        try (Session sess = shard.session()) {
+            return sess.readTransaction(tx -> tx.run(new Query(query, params)).list());
+        }
+    }
+
+    /**
+     * Write the normalized usernames differing from those stored, in a single transaction.
+     * A node whose username changed since it was read is left for the next run.
+     *
+     * @param shard The shard the nodes were read from
+     * @param batch The credential nodes read
+     * @return The number of nodes updated
+     */
+    private int writeBatch(final Neo4jShard shard, final List<Record> batch) {
+        List<Map<String,Object>> updates = new ArrayList<Map<String,Object>>();
+        for (Record rec : batch) {
+            String username = rec.get("username").asString();
+            String normalized = m_normalizer.normalize(username);
+            Value stored = rec.get("normalized");
+            if (stored.isNull() || ! normalized.equals(stored.asString())) {
+                Map<String,Object> row = new HashMap<String,Object>();
+                row.put("username", username);
+                row.put("normalized", normalized);
+                updates.add(row);
+            }
+        }
+        if (updates.isEmpty()) {
+            return 0;
+        }
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("updates", updates);
+        Query query = new Query(m_writeQuery, params);
+        try (Session sess = shard.session()) {
+            sess.writeTransaction(tx -> tx.run(query).consume());
+        }
+        return updates.size();
+    }
+
+    private void logConflicts(final Neo4jShard shard) {
+        try (Session sess = shard.session()) {
+            List<Record> conflicts = sess.readTransaction(tx -> tx.run(m_conflictQuery).list());
+            for (Record rec : conflicts) {
+                LOG.warn(rec.get("users").asLong() + " users have the normalized username "
+                         + rec.get("normalized").asString() + ", none of them can login until renamed");
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.eclipse.jetty.util.security.Credential;
+import org.eclipse.jetty.util.security.CredentialProvider;
+import org.eclipse.jetty.util.security.Password;
+
+/**
+ * A Jetty Credential using a salted PBKDF2WithHmacSHA256 hash. The stored form of the
+ * credential is,
+ *
+ *     PBKDF2:&lt;iterations&gt;:&lt;base64 salt&gt;:&lt;base64 hash&gt;
+ *
+ * The nested Provider is registered with the Jetty CredentialProvider service loader, so
+ * Credential.getCredential() understands this format in the same way as the MD5: and CRYPT:
+ * formats built into Jetty.
+ *
+ * @author Scott Stanley
+ */
+public class PBKDF2Credential
+        extends Credential {
+    private static final long serialVersionUID = -2398722389270356472L;
+
+    public static final String __TYPE = "PBKDF2:";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int m_iterations;
+    private final byte[] m_salt;
+    private final byte[] m_hash;
+
+
+    /**
+     * Create a credential from its stored form.
+     *
+     * @param credential The stored credential
+     * @throws IllegalArgumentException if the credential is malformed
+     */
+    PBKDF2Credential(final String credential) {
+        String[] parts = credential.substring(__TYPE.length()).split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Malformed " + __TYPE + " credential");
+        }
+
+        m_iterations = Integer.parseInt(parts[0]);
+        m_salt = Base64.getDecoder().decode(parts[1]);
+        m_hash = Base64.getDecoder().decode(parts[2]);
+    }
+
+    /**
+     * Check the provided credentials against this credential.
+     *
+     * @param credentials The credentials provided by the user, a String, char[] or Password
+     * @return true if the credentials match
+     */
+    @Override
+    public boolean check(final Object credentials) {
+        char[] password = toChars(credentials);
+        if (password == null) {
+            return false;
+        }
+
+        return byteEquals(m_hash, hash(password, m_salt, m_iterations));
+    }
+
+    /**
+     * Create the stored form of a new credential for the given password, using a random salt.
+     *
+     * @param password The plain text password
+     * @param iterations The number of PBKDF2 iterations
+     * @return The stored form of the credential
+     */
+    public static String digest(final String password, final int iterations) {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+
+        byte[] hash = hash(password.toCharArray(), salt, iterations);
+
+        return __TYPE + iterations
+                + ":" + Base64.getEncoder().encodeToString(salt)
+                + ":" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    /**
+     * Compute the PBKDF2 hash.
+     */
+    private static byte[] hash(final char[] password, final byte[] salt, final int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Unable to compute " + ALGORITHM + " hash", ex);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Convert the provided credentials to a char[].
+     *
+     * @return The characters, or null if the credential type is not supported
+     */
+    private static char[] toChars(final Object credentials) {
+        if (char[].class.isInstance(credentials)) {
+            return (char[]) credentials;
+        } else if (String.class.isInstance(credentials) || Password.class.isInstance(credentials)) {
+            return credentials.toString().toCharArray();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * The CredentialProvider registered with Jetty for the PBKDF2: prefix.
+     */
+    public static class Provider
+            implements CredentialProvider {
+        @Override
+        public Credential getCredential(final String credential) {
+            try {
+                return new PBKDF2Credential(credential);
+            } catch (RuntimeException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getPrefix() {
+            return __TYPE;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.neo4j.driver.Value;
+
+/**
+ * PipelinedLogin is a login in progress when the pipelinedLogin option is set. The credential
+ * is fetched first, with a minimal query, and then the password is verified on the verification
+ * pool while the roles are fetched by the driver, so an expensive hash overlaps the role query.
+ * The login module waits only for the verification in login(), and joins the roles in commit().
+ * If the verification fails, or the roles are not fetched within the connection timeout, the
+ * role fetch is cancelled.
+ *
+ * @author Scott Stanley
+ */
+class PipelinedLogin {
+    private final Neo4jUserStore m_store;
+    private final Neo4jUser m_credentialUser;
+    private final CompletableFuture<Boolean> m_verified;
+    private final CompletableFuture<Value> m_roles;
+
+
+    /**
+     * Create a new PipelinedLogin.
+     *
+     * @param store The store which started the login
+     * @param credentialUser The user, without roles, whose credential is being verified
+     * @param verified The password verification
+     * @param roles The role fetch, completing with the roles bound by the roles clause
+     */
+    PipelinedLogin(final Neo4jUserStore store, final Neo4jUser credentialUser,
+                   final CompletableFuture<Boolean> verified, final CompletableFuture<Value> roles) {
+        m_store = store;
+        m_credentialUser = credentialUser;
+        m_verified = verified;
+        m_roles = roles;
+    }
+
+    /**
+     * Get the user being authenticated, without roles.
+     *
+     * @return The user
+     */
+    Neo4jUser getCredentialUser() {
+        return m_credentialUser;
+    }
+
+    /**
+     * Wait for the password verification, cancelling the role fetch if it fails.
+     *
+     * @return true if the password is correct
+     * @throws Neo4jLoginException if the verification could not be completed
+     */
+    boolean awaitVerification()
+            throws Neo4jLoginException {
+        boolean verified = false;
+        try {
+            verified = m_verified.get();
+            return verified;
+        } catch (ExecutionException ex) {
+            throw new Neo4jLoginException("Failed verifying credentials", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new Neo4jLoginException("Interrupted verifying credentials", ex);
+        } finally {
+            if (! verified) {
+                cancel();
+            }
+        }
+    }
+
+    /**
+     * Wait for the roles and create the complete user, adding it to the cache or snapshot.
+     *
+     * @return The user, with roles
+     * @throws Neo4jLoginException if the roles could not be fetched in time
+     */
+    Neo4jUser join()
+            throws Neo4jLoginException {
+        Value rolesVal;
+        try {
+            rolesVal = m_roles.get(m_store.getRolesTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            cancel();
+            m_store.getMetrics().lookupFailed();
+            throw new Neo4jLoginException("Timed out obtaining roles", ex);
+        } catch (ExecutionException ex) {
+            m_store.getMetrics().lookupFailed();
+            throw new Neo4jLoginException("Failed obtaining roles", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new Neo4jLoginException("Interrupted obtaining roles", ex);
+        }
+
+        // Roles are resolved here rather than on the driver thread, as the role hierarchy may block loading
+        Neo4jUser user = new Neo4jUser(m_credentialUser.getUserPrincipal().getName(), m_credentialUser.getCredential(),
+                                       m_store.resolveRoles(rolesVal), RoleRegistry.getInstance());
+        m_store.cacheUser(user);
+        return user;
+    }
+
+    /**
+     * Cancel the role fetch. Records not yet received are discarded rather than fetched.
+     */
+    void cancel() {
+        if (m_roles.cancel(false)) {
+            m_store.getMetrics().roleFetchCancelled();
+        }
+    }
+
+    /**
+     * Has the role fetch been cancelled?
+     *
+     * @return true if cancelled
+     */
+    boolean isCancelled() {
+        return m_roles.isCancelled();
+    }
+}
@@ -0,0 +1,21 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Thrown when a login attempt is rejected because the rate limit for the username or client
+ * address has been exceeded. The attempt is rejected before Neo4J is queried.
+ * 
+ * @author Scott Stanley
+ */
+public class RateLimitedLoginException 
+        extends FailedLoginException {
+    private static final long serialVersionUID = -4402153365402718845L;
+
+    public RateLimitedLoginException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * RoleHierarchy holds the transitive closure of the role inheritance graph,
+ * (:Role)-[:INHERITS]->(:Role), in memory. The inheritance relationships are read once, with a
+ * single query returning each edge, and the closure of every role is computed here, so logins
+ * expand the roles directly assigned to a user without a variable length traversal. Cycles in
+ * the graph are tolerated.
+ *
+ * The closure is loaded on first use and reloaded when the role version marker moves, see
+ * Neo4jCredentialVersion.bumpRoles().
+ *
+ * @author Scott Stanley
+ */
+class RoleHierarchy {
+    private static final Logger LOG = LoggerFactory.getLogger(RoleHierarchy.class);
+
+    private final Neo4jUserStore m_store;
+    private final RoleRegistry m_registry;
+    private final String m_query;
+    private final Object m_loadLock = new Object();
+    private volatile RoleSet[] m_closure = null;
+
+
+    /**
+     * Create a new RoleHierarchy.
+     *
+     * @param store The store providing the Neo4J driver
+     * @param config The login module configuration
+     * @param registry The registry assigning role ids
+     */
+    RoleHierarchy(final Neo4jUserStore store, final Neo4jLoginConfig config, final RoleRegistry registry) {
+        m_store = store;
+        m_registry = registry;
+        m_query = String.format("MATCH (r:%1$s)-[:%2$s]->(p:%1$s) RETURN r.%3$s, p.%3$s",
+                                config.getRoleNodeType(), config.getRoleInherits(), config.getRoleNameProp());
+    }
+
+    /**
+     * Expand the roles directly assigned to a user to include every role they inherit.
+     *
+     * @param roles The directly assigned roles
+     * @return The roles, including inherited roles
+     * @throws Neo4jLoginException if the hierarchy could not be loaded
+     */
+    RoleSet expand(final RoleSet roles)
+            throws Neo4jLoginException {
+        RoleSet[] closure = m_closure;
+        if (closure == null) {
+            closure = load();
+        }
+
+        int[] ids = new int[Math.max(roles.size() * 2, 8)];
+        int count = 0;
+        for (int id = roles.nextId(0); id >= 0; id = roles.nextId(id + 1)) {
+            RoleSet inherited = (id < closure.length) ? closure[id] : null;
+            if (inherited == null) {
+                ids = grow(ids, count + 1);
+                ids[count++] = id;
+                continue;
+            }
+
+            ids = grow(ids, count + inherited.size());
+            for (int inheritedId = inherited.nextId(0); inheritedId >= 0; inheritedId = inherited.nextId(inheritedId + 1)) {
+                ids[count++] = inheritedId;
+            }
+        }
+
+        return new RoleSet(ids, count);
+    }
+
+    /**
+     * Get the number of roles which inherit at least one other role.
+     *
+     * @return The number of roles, or -1 if the hierarchy has not been loaded
+     */
+    int size() {
+        RoleSet[] closure = m_closure;
+        if (closure == null) {
+            return -1;
+        }
+
+        int size = 0;
+        for (RoleSet inherited : closure) {
+            if (inherited != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Load the inheritance relationships and compute the closure of every role, replacing the
+     * current closure.
+     *
+     * @return The closure, indexed by role id
+     * @throws Neo4jLoginException if the relationships could not be loaded
+     */
+    RoleSet[] load()
+            throws Neo4jLoginException {
+        synchronized (m_loadLock) {
+            long start = System.currentTimeMillis();
+            int[][] edges = new int[16][];
+            int edgeCount = 0;
+
+            try (Session sess = m_store.getPrimaryShard().session()) {
+                Result res = sess.run(new Query(m_query));
+                while (res.hasNext()) {
+                    Record rec = res.next();
+                    if (rec.get(0).isNull() || rec.get(1).isNull()) {
+                        continue;
+                    }
+                    if (edgeCount == edges.length) {
+                        edges = Arrays.copyOf(edges, edges.length * 2);
+                    }
+                    edges[edgeCount++] = new int[] { m_registry.getId(rec.get(0).asString()),
+                                                     m_registry.getId(rec.get(1).asString()) };
+                }
+            } catch (Throwable th) {
+                LOG.error("Failed loading role hierarchy", th);
+                throw new Neo4jLoginException("Failed loading role hierarchy", th);
+            }
+
+            RoleSet[] closure = computeClosure(edges, edgeCount, m_registry.size());
+            m_closure = closure;
+
+            LOG.info("Loaded " + edgeCount + " role inheritance relationships in "
+                     + (System.currentTimeMillis() - start) + "ms");
+            return closure;
+        }
+    }
+
+    /**
+     * Compute the closure of every role with an inheritance relationship, by a breadth first
+     * search from each role.
+     *
+     * @param edges The inheritance relationships, as role id pairs
+     * @param edgeCount The number of relationships
+     * @param roleCount The number of role ids
+     * @return The closure, indexed by role id, null for roles which inherit nothing
+     */
+    static RoleSet[] computeClosure(final int[][] edges, final int edgeCount, final int roleCount) {
+        // The adjacency lists, in compressed form
+        int[] offsets = new int[roleCount + 1];
+        for (int i = 0; i < edgeCount; i++) {
+            offsets[edges[i][0] + 1]++;
+        }
+        for (int i = 0; i < roleCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] targets = new int[edgeCount];
+        int[] next = Arrays.copyOf(offsets, roleCount);
+        for (int i = 0; i < edgeCount; i++) {
+            targets[next[edges[i][0]]++] = edges[i][1];
+        }
+
+        RoleSet[] closure = new RoleSet[roleCount];
+        int[] visited = new int[roleCount];
+        int[] reached = new int[roleCount];
+        Deque<Integer> queue = new ArrayDeque<Integer>();
+        for (int role = 0; role < roleCount; role++) {
+            if (offsets[role] == offsets[role + 1]) {
+                continue;
+            }
+
+            // Visited marks are the role being searched from plus one, so are never cleared
+            int count = 0;
+            visited[role] = role + 1;
+            reached[count++] = role;
+            queue.add(role);
+            while (! queue.isEmpty()) {
+                int current = queue.poll();
+                for (int i = offsets[current]; i < offsets[current + 1]; i++) {
+                    int target = targets[i];
+                    if (visited[target] != role + 1) {
+                        visited[target] = role + 1;
+                        reached[count++] = target;
+                        queue.add(target);
+                    }
+                }
+            }
+            closure[role] = new RoleSet(reached, count);
+        }
+
+        return closure;
+    }
+
+    private static int[] grow(final int[] ids, final int capacity) {
+        return (capacity <= ids.length) ? ids : Arrays.copyOf(ids, Math.max(capacity, ids.length * 2));
+    }
+}
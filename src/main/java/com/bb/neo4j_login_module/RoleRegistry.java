@@ -0,0 +1,137 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.jaas.JAASRole;
+
+/**
+ * RoleRegistry interns role names for the whole process. Every distinct role name is assigned
+ * a small int id, in order from zero and never reused, along with a single shared JAASRole, so
+ * logins create no role objects and the roles of a user can be held as a RoleSet of ids.
+ *
+ * @author Scott Stanley
+ */
+class RoleRegistry {
+    private static final RoleRegistry s_instance = new RoleRegistry();
+
+    private final Map<String,Integer> m_ids = new ConcurrentHashMap<String,Integer>();
+    private volatile JAASRole[] m_roles = new JAASRole[64];
+    private int m_count = 0;
+
+
+    /**
+     * Get the process wide registry.
+     *
+     * @return The registry
+     */
+    static RoleRegistry getInstance() {
+        return s_instance;
+    }
+
+    RoleRegistry() {
+    }
+
+    /**
+     * Get the id for a role name, assigning one if the role has not been seen before.
+     *
+     * @param name The role name
+     * @return The id
+     */
+    int getId(final String name) {
+        Integer id = m_ids.get(name);
+        return (id != null) ? id : register(name);
+    }
+
+    /**
+     * Get the id for a role name, without assigning one.
+     *
+     * @param name The role name
+     * @return The id, or -1 if the role has not been seen before
+     */
+    int findId(final String name) {
+        Integer id = m_ids.get(name);
+        return (id != null) ? id : -1;
+    }
+
+    /**
+     * Get the role name for an id.
+     *
+     * @param id The id
+     * @return The role name
+     */
+    String getName(final int id) {
+        return m_roles[id].getName();
+    }
+
+    /**
+     * Get the shared JAASRole for an id.
+     *
+     * @param id The id
+     * @return The role
+     */
+    JAASRole getRole(final int id) {
+        return m_roles[id];
+    }
+
+    /**
+     * Get the RoleSet for a list of role names, assigning ids to any not seen before.
+     *
+     * @param names The role names
+     * @return The role set
+     */
+    RoleSet toRoleSet(final List<String> names) {
+        if (names.isEmpty()) {
+            return RoleSet.EMPTY;
+        }
+
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getId(names.get(i));
+        }
+        return new RoleSet(ids, ids.length);
+    }
+
+    /**
+     * Is the role in the role set?
+     *
+     * @param roles The role set
+     * @param role The role name
+     * @return true if the role is in the set
+     */
+    boolean isUserInRole(final RoleSet roles, final String role) {
+        return roles.contains(findId(role));
+    }
+
+    /**
+     * Get the number of roles registered.
+     *
+     * @return The number of roles
+     */
+    synchronized int size() {
+        return m_count;
+    }
+
+    private synchronized int register(final String name) {
+        Integer id = m_ids.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        // The role is published before the id, so any id handed out has a role
+        JAASRole[] roles = m_roles;
+        if (m_count == roles.length) {
+            roles = Arrays.copyOf(roles, roles.length * 2);
+        }
+        roles[m_count] = new JAASRole(name);
+        m_roles = roles;
+        m_ids.put(name, m_count);
+
+        return m_count++;
+    }
+}
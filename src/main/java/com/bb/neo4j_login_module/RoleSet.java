@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.BitSet;
+
+/**
+ * RoleSet is an immutable set of role ids assigned by the RoleRegistry. While every id is
+ * below 64, which covers deployments with a modest number of distinct roles, the set is a
+ * single long mask. Otherwise the set is held in a BitSet.
+ *
+ * @author Scott Stanley
+ */
+final class RoleSet {
+    static final RoleSet EMPTY = new RoleSet(new int[0], 0);
+
+    private final long m_mask;
+    private final BitSet m_bits;
+    private final int m_size;
+
+
+    /**
+     * Create a new RoleSet.
+     *
+     * @param ids The role ids, which may contain duplicates
+     * @param count The number of ids to use
+     */
+    RoleSet(final int[] ids, final int count) {
+        int max = -1;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, ids[i]);
+        }
+
+        if (max < Long.SIZE) {
+            long mask = 0;
+            for (int i = 0; i < count; i++) {
+                mask |= 1L << ids[i];
+            }
+            m_mask = mask;
+            m_bits = null;
+            m_size = Long.bitCount(mask);
+        } else {
+            BitSet bits = new BitSet(max + 1);
+            for (int i = 0; i < count; i++) {
+                bits.set(ids[i]);
+            }
+            m_mask = 0;
+            m_bits = bits;
+            m_size = bits.cardinality();
+        }
+    }
+
+    /**
+     * Does the set contain the role id?
+     *
+     * @param id The role id
+     * @return true if the set contains the id
+     */
+    boolean contains(final int id) {
+        if (id < 0) {
+            return false;
+        }
+        if (m_bits == null) {
+            return id < Long.SIZE && (m_mask & (1L << id)) != 0;
+        }
+        return m_bits.get(id);
+    }
+
+    /**
+     * Estimate the heap used by the set.
+     *
+     * @return The estimated size in bytes
+     */
+    long getEstimatedSize() {
+        // The set itself, and for large role ids the BitSet and its words
+        return (m_bits != null) ? 32 + 40 + m_bits.size() / 8 : 32;
+    }
+
+    /**
+     * Get the number of roles in the set.
+     *
+     * @return The number of roles
+     */
+    int size() {
+        return m_size;
+    }
+
+    /**
+     * Get the first role id in the set at or after the given id.
+     *
+     * @param from The id to start from
+     * @return The role id, or -1 if there are no more
+     */
+    int nextId(final int from) {
+        if (m_bits != null) {
+            return m_bits.nextSetBit(from);
+        }
+        if (from >= Long.SIZE) {
+            return -1;
+        }
+
+        long remaining = m_mask & (-1L << from);
+        return (remaining != 0) ? Long.numberOfTrailingZeros(remaining) : -1;
+    }
+}
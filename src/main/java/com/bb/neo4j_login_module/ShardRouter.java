@@ -0,0 +1,164 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.neo4j.driver.Driver;
+
+/**
+ * ShardRouter assigns each user to one of the configured shards by rendezvous hashing. Every
+ * shard is scored by a hash of its identifier and the username, and the user belongs to the
+ * highest scoring shard. Adding a shard only moves the users who now score highest on the new
+ * shard, about 1/n of them, and removing a shard only moves the users it held, without any
+ * state beyond the list of shards.
+ *
+ * Without shards configured the router holds a single shard for the neo4jUri, so the store
+ * always reaches Neo4J through a shard.
+ *
+ * @author Scott Stanley
+ */
+class ShardRouter {
+    private final List<Neo4jShard> m_shards;
+    private final long[] m_seeds;
+
+
+    /**
+     * Create a new ShardRouter.
+     *
+     * @param config The login module configuration
+     * @param driverFactory Creates the driver for a shard's URI
+     * @throws IllegalArgumentException if a shard is invalid or two shards have the same identifier
+     */
+    ShardRouter(final Neo4jLoginConfig config, final Function<String,Driver> driverFactory) {
+        this(config.isSharded() ? config.getShards() : Collections.singletonList(config.getNeo4jUri()),
+             driverFactory);
+    }
+
+    /**
+     * Create a new ShardRouter for the given shards.
+     *
+     * @param shards The shards, each as [name=]uri[#database]
+     * @param driverFactory Creates the driver for a shard's URI
+     * @throws IllegalArgumentException if a shard is invalid or two shards have the same identifier
+     */
+    ShardRouter(final List<String> shards, final Function<String,Driver> driverFactory) {
+        List<Neo4jShard> parsed = new ArrayList<Neo4jShard>();
+        Set<String> ids = new HashSet<String>();
+        for (String spec : shards) {
+            Neo4jShard shard = new Neo4jShard(spec, driverFactory);
+            if (! ids.add(shard.getId())) {
+                throw new IllegalArgumentException("Duplicate shard, " + shard.getId());
+            }
+            parsed.add(shard);
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No shards configured");
+        }
+
+        m_shards = Collections.unmodifiableList(parsed);
+        m_seeds = new long[parsed.size()];
+        for (int i = 0; i < m_seeds.length; i++) {
+            m_seeds[i] = hash(parsed.get(i).getId());
+        }
+    }
+
+    /**
+     * Get the shard holding the user.
+     *
+     * @param username The normalized username
+     * @return The shard
+     */
+    Neo4jShard route(final String username) {
+        if (m_shards.size() == 1) {
+            return m_shards.get(0);
+        }
+
+        long userHash = hash(username);
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < m_seeds.length; i++) {
+            long score = mix(m_seeds[i] ^ userHash);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return m_shards.get(best);
+    }
+
+    /**
+     * Get all of the shards, in the configured order.
+     *
+     * @return The shards
+     */
+    List<Neo4jShard> getShards() {
+        return m_shards;
+    }
+
+    /**
+     * Get the first configured shard, which holds the role nodes read by the role hierarchy
+     * and is the shard used when the store is not sharded.
+     *
+     * @return The shard
+     */
+    Neo4jShard getPrimary() {
+        return m_shards.get(0);
+    }
+
+    /**
+     * Has a driver been created for any shard?
+     *
+     * @return true if any shard has been connected to
+     */
+    boolean isConnected() {
+        for (Neo4jShard shard : m_shards) {
+            if (shard.getDriverIfCreated() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Close the drivers of all of the shards.
+     */
+    void close() {
+        for (Neo4jShard shard : m_shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * Hash a string with 64 bit FNV-1a over its UTF-8 bytes, so the assignment of users to
+     * shards is the same on every server and JVM.
+     */
+    private static long hash(final String str) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : str.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The MurmurHash3 64 bit finalizer, spreading every input bit over the result.
+     */
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
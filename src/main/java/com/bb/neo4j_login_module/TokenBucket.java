@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free token bucket. The bucket is implemented using the generic cell rate algorithm,
+ * so the whole state of the bucket is a single theoretical arrival time updated with a
+ * compare and set. A bucket with a rate of r tokens per second and a burst of b tokens admits
+ * b requests at once, and one request every 1/r seconds after that.
+ *
+ * @author Scott Stanley
+ */
+class TokenBucket {
+    private final long m_intervalNanos;
+    private final long m_toleranceNanos;
+    private final AtomicLong m_arrival;
+
+
+    /**
+     * Create a new, full, TokenBucket.
+     *
+     * @param interval The interval, in nanoseconds, between tokens
+     * @param burst The maximum number of tokens held by the bucket
+     * @param now The current time in nanoseconds
+     */
+    TokenBucket(final long interval, final int burst, final long now) {
+        m_intervalNanos = interval;
+        m_toleranceNanos = interval * (Math.max(1, burst) - 1);
+        m_arrival = new AtomicLong(now);
+    }
+
+    /**
+     * Take a token from the bucket, if one is available.
+     *
+     * @param now The current time in nanoseconds
+     * @return true if a token was taken
+     */
+    boolean tryAcquire(final long now) {
+        while (true) {
+            long arrival = m_arrival.get();
+            long next = Math.max(arrival, now);
+            if (next - now > m_toleranceNanos) {
+                return false;
+            }
+
+            if (m_arrival.compareAndSet(arrival, next + m_intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Is the bucket full, meaning it has not been used recently and can be discarded?
+     *
+     * @param now The current time in nanoseconds
+     * @return true if the bucket is full
+     */
+    boolean isFull(final long now) {
+        return m_arrival.get() - now <= 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * UsernameNormalizer maps the usernames typed by users to the form held in the normalized
+ * username property, so a username matches whatever case it is typed in while the lookup
+ * remains an index seek on that property. Applications creating or renaming credential nodes
+ * set the property to normalize() of the username, or leave it to the backfill run by
+ * Neo4jUserStoreLifeCycle.
+ *
+ * The modes are,
+ *
+ *     none     : usernames are matched exactly against the username property
+ *     trim     : leading and trailing whitespace is removed
+ *     casefold : whitespace is trimmed, the username is NFKC normalized, and case is folded
+ *                by mapping to upper and then lower case, so for example "Straße" and
+ *                "STRASSE" are the same username
+ *
+ * @author Scott Stanley
+ */
+public class UsernameNormalizer {
+    public static final String MODE_NONE = "none";
+    public static final String MODE_TRIM = "trim";
+    public static final String MODE_CASE_FOLD = "casefold";
+
+    private final String m_mode;
+
+
+    /**
+     * Create a new UsernameNormalizer.
+     *
+     * @param mode The normalization mode
+     * @throws IllegalArgumentException if the mode is not supported
+     */
+    public UsernameNormalizer(final String mode) {
+        if (MODE_NONE.equalsIgnoreCase(mode)) {
+            m_mode = MODE_NONE;
+        } else if (MODE_TRIM.equalsIgnoreCase(mode)) {
+            m_mode = MODE_TRIM;
+        } else if (MODE_CASE_FOLD.equalsIgnoreCase(mode)) {
+            m_mode = MODE_CASE_FOLD;
+        } else {
+            throw new IllegalArgumentException("Unsupported username normalization, " + mode);
+        }
+    }
+
+    /**
+     * Are usernames normalized, and looked up against the normalized username property?
+     *
+     * @return true unless the mode is none
+     */
+    public boolean isEnabled() {
+        return m_mode != MODE_NONE;
+    }
+
+    /**
+     * Get the normalization mode.
+     *
+     * @return The mode
+     */
+    public String getMode() {
+        return m_mode;
+    }
+
+    /**
+     * Normalize the username.
+     *
+     * @param username The username, may be null
+     * @return The normalized username, or null if the username is null
+     */
+    public String normalize(final String username) {
+        if (username == null || m_mode == MODE_NONE) {
+            return username;
+        }
+
+        String trimmed = username.strip();
+        if (m_mode == MODE_TRIM) {
+            return trimmed;
+        }
+        return isAscii(trimmed) ? trimmed.toLowerCase(Locale.ROOT) : fold(trimmed);
+    }
+
+    /**
+     * Fold the case of a username with non ASCII characters. Mapping to upper case first
+     * expands characters such as "ß" whose upper case is more than one character, and the
+     * NFKC normalization makes composed and decomposed accents, and compatibility forms such
+     * as full width letters, equal.
+     *
+     * @param username The trimmed username
+     * @return The folded username
+     */
+    private static String fold(final String username) {
+        String normalized = Normalizer.normalize(username, Normalizer.Form.NFKC);
+        String folded = normalized.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        return Normalizer.normalize(folded, Normalizer.Form.NFKC);
+    }
+
+    private static boolean isAscii(final String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Map;
+
+import javax.security.auth.login.AccountLockedException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Value;
+
+public class AccountLockoutTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+    
+    private Map<String,?> getOptions(final String threshold, final String windowMs) {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.LOCKOUT_THRESHOLD_PROP, threshold);
+        options.put(Neo4jLoginModule.LOCKOUT_WINDOW_PROP, windowMs);
+        options.put(Neo4jLoginModule.LOCKOUT_DURATION_PROP, "60000");
+        options.put(Neo4jLoginModule.AUDIT_FLUSH_INTERVAL_PROP, "60000");
+        return options;
+    }
+    
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password3", "user");
+    }
+    
+    private Value getLockedUntil(final String username) {
+        return TestNeo4JInstance.runUserQuery("MATCH (n:%s {%s: $username}) RETURN n." + AccountLockout.LOCKED_UNTIL,
+                                              username).get(0).get(0);
+    }
+    
+    private void assertLocked(final Map<String,?> options, final String username) 
+            throws Exception {
+        try {
+            TestNeo4JInstance.login(options, username, "password3");
+            Assert.fail("Should have thrown an exception");
+        } catch (AccountLockedException le) {
+            // Ignore expected exception
+        }
+    }
+
+    @Test
+    public void testLockout() throws Exception {
+        String username = "testuser3";
+        createTestNeo4jNode(username);
+        
+        Map<String,?> options = getOptions("3", "60000");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        }
+        assertLocked(options, username);
+        
+        // Locked accounts are rejected without querying Neo4J
+        TestNeo4JInstance.runUserQuery("MATCH (n:%s {%s: $username}) DELETE n", username);
+        assertLocked(options, username);
+    }
+
+    @Test
+    public void testSuccessClearsFailures() throws Exception {
+        String username = "testuser3";
+        createTestNeo4jNode(username);
+        
+        Map<String,?> options = getOptions("3", "60000");
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password3"));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password3"));
+    }
+
+    @Test
+    public void testLockoutOnlyPersistence() throws Exception {
+        String username = "testuser3";
+        createTestNeo4jNode(username);
+        
+        Map<String,?> options = getOptions("3", "60000");
+        LoginAuditWriter writer = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getAuditWriter();
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password3"));
+        Assert.assertEquals("Untracked successes should not be written", 0, writer.getPendingCount());
+        
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password3"));
+        Assert.assertEquals("Clearing failures should be written", 1, writer.getPendingCount());
+        writer.flushAll();
+        
+        Value[] props = TestNeo4JInstance.runUserQuery("MATCH (n:%s {%s: $username}) RETURN n." 
+                + LoginAuditWriter.LAST_LOGIN_AT + ", n." + LoginAuditWriter.FAILED_LOGIN_COUNT, 
+                username).get(0).values().toArray(new Value[0]);
+        Assert.assertTrue("The login should not be audited", props[0].isNull());
+        Assert.assertEquals("The failures should be cleared", 0, props[1].asInt());
+    }
+
+    @Test
+    public void testSlidingWindow() throws Exception {
+        String username = "testuser3";
+        createTestNeo4jNode(username);
+        
+        Map<String,?> options = getOptions("3", "500");
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Thread.sleep(700);
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Assert.assertTrue("Failures outside the window should not lock the account", 
+                          TestNeo4JInstance.login(options, username, "password3"));
+        
+        AccountLockout lockout = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getLockout();
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        Thread.sleep(700);
+        lockout.evictExpired();
+        Assert.assertEquals("Expired counters should be evicted", 0, lockout.getTrackedCount());
+    }
+
+    @Test
+    public void testPersistAndReload() throws Exception {
+        String username = "testuser3";
+        createTestNeo4jNode(username);
+        
+        Map<String,?> options = getOptions("3", "60000");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, "wrong"));
+        }
+        assertLocked(options, username);
+        
+        Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getAuditWriter().flushAll();
+        Assert.assertFalse("Lock should be persisted", getLockedUntil(username).isNull());
+        
+        // A new store reloads the lock from Neo4J
+        Neo4jUserStore.closeAll();
+        AccountLockout lockout = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getLockout();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (! lockout.isLocked(username) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertLocked(options, username);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Record;
+
+/**
+ * Tests of the lookup procedures, registered on the test instance, and of logins through them.
+ */
+public class AuthLookupProceduresTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.LOOKUP_PROCEDURE_PROP, "true");
+        return options;
+    }
+
+    private void createTestNeo4jNodes() {
+        TestNeo4JInstance.runQuery("CREATE (:%s {%s: 'testuser1', %s: 'password1', %s: ['user', 'admin']}), "
+                                   + "(:%1$s {%2$s: 'testuser2', %3$s: 'password2', %4$s: 'user'}), "
+                                   + "(u:%1$s {%2$s: 'testuser3', %3$s: 'password3'}), "
+                                   + "(u)-[:HAS_ROLE]->(a:Role {name: 'editor'}), "
+                                   + "(a)-[:INHERITS]->(b:Role {name: 'author'}), "
+                                   + "(b)-[:INHERITS]->(a)", null);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        createTestNeo4jNodes();
+
+        List<Record> recs = TestNeo4JInstance.runQuery("CALL auth.lookup('%s', '%s', 'testuser1', '%s', '%s')", null);
+        Assert.assertEquals(1, recs.size());
+        Assert.assertEquals("testuser1", recs.get(0).get("username").asString());
+        Assert.assertEquals("password1", recs.get(0).get("credential").asString());
+        Assert.assertEquals(Arrays.asList("user", "admin"), recs.get(0).get("roles").asList());
+
+        recs = TestNeo4JInstance.runQuery("CALL auth.lookup('%s', '%s', 'testuser2', '%s', '%s')", null);
+        Assert.assertEquals("user", recs.get(0).get("roles").asString());
+        recs = TestNeo4JInstance.runQuery("CALL auth.lookup('%s', '%s', 'unknown', '%s', '%s')", null);
+        Assert.assertTrue(recs.isEmpty());
+
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("usernames", Arrays.asList("testuser2", "unknown", "testuser1", "testuser2"));
+        recs = TestNeo4JInstance.runQuery("CALL auth.lookupBatch('%s', '%s', $usernames, '%s', '%s') "
+                                          + "YIELD key, credential RETURN key, credential", params);
+        Assert.assertEquals(2, recs.size());
+        Assert.assertEquals("testuser2", recs.get(0).get("key").asString());
+        Assert.assertEquals("password1", recs.get(1).get("credential").asString());
+
+        // Inherited roles are only followed when the inheritance relationship is given
+        recs = TestNeo4JInstance.runQuery("CALL auth.lookupWithRoles('%s', '%s', 'testuser3', '%s', 'HAS_ROLE')", null);
+        Assert.assertEquals(Arrays.asList("editor"), recs.get(0).get("roles").asList());
+        recs = TestNeo4JInstance.runQuery("CALL auth.lookupWithRoles('%s', '%s', 'testuser3', '%s', 'HAS_ROLE', "
+                                          + "'Role', 'name', 'INHERITS')", null);
+        Assert.assertEquals(Arrays.asList("editor", "author"), recs.get(0).get("roles").asList());
+    }
+
+    @Test
+    public void testProcedureLogin() throws Exception {
+        createTestNeo4jNodes();
+        Map<String,String> options = getOptions();
+
+        Assert.assertTrue(TestNeo4JInstance.login(options, "testuser1", "password1"));
+        Assert.assertFalse(TestNeo4JInstance.login(options, "testuser1", "password2"));
+        Assert.assertFalse(TestNeo4JInstance.login(options, "unknown", "password1"));
+
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Neo4jUser user = store.getUser("testuser1");
+        Assert.assertEquals("testuser1", user.getUserPrincipal().getName());
+        Assert.assertTrue(user.isUserInRole("admin"));
+        Assert.assertTrue(store.getUser("testuser2").isUserInRole("user"));
+    }
+
+    @Test
+    public void testProcedureLoginWithRoleRelationships() throws Exception {
+        createTestNeo4jNodes();
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.ROLE_RELATIONSHIP_PROP, "HAS_ROLE");
+
+        Assert.assertTrue(TestNeo4JInstance.login(options, "testuser3", "password3"));
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Neo4jUser user = store.getUser("testuser3");
+        Assert.assertTrue(user.isUserInRole("editor"));
+        Assert.assertTrue("Inherited roles should be added from the hierarchy", user.isUserInRole("author"));
+
+        // Pipelined logins fetch the credential and the roles through the procedure
+        options.put(Neo4jLoginModule.PIPELINED_LOGIN_PROP, "true");
+        Assert.assertTrue(TestNeo4JInstance.login(options, "testuser3", "password3"));
+        Assert.assertFalse(TestNeo4JInstance.login(options, "testuser3", "password1"));
+    }
+
+    @Test
+    public void testProcedureLoginNormalized() throws Exception {
+        createTestNeo4jNodes();
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.USERNAME_NORMALIZATION_PROP, UsernameNormalizer.MODE_CASE_FOLD);
+        options.put(Neo4jLoginModule.LAZY_ROLES_PROP, "true");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        store.backfillNormalizedUsernames(true);
+
+        Assert.assertTrue(TestNeo4JInstance.login(options, "TestUser1", "password1"));
+        Neo4jUser user = store.getUser("TESTUSER1");
+        Assert.assertEquals("testuser1", user.getUserPrincipal().getName());
+        Assert.assertTrue("Lazy roles should be loaded through the procedure", user.isUserInRole("admin"));
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+
+public class CacheVersionPollerTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        options.put(Neo4jLoginModule.CACHE_VERSION_POLL_PROP, "50");
+        return options;
+    }
+
+    private void runQuery(final String queryStr, final String username, final boolean bump) {
+        try (Session sess = TestNeo4JInstance.getNeo4jDriver().session()) {
+            Map<String,Object> params = new HashMap<String,Object>();
+            params.put("username", username);
+            sess.writeTransaction(tx -> {
+                tx.run(new Query(String.format(queryStr, TestNeo4JInstance.NODE_TYPE, TestNeo4JInstance.USERNAME_FIELD,
+                                               TestNeo4JInstance.CREDS_FIELD, TestNeo4JInstance.ROLES_FIELD),
+                                 params)).consume();
+                return bump ? Neo4jCredentialVersion.bump(tx, TestNeo4JInstance.NODE_TYPE,
+                                                          TestNeo4JInstance.USERNAME_FIELD, username) : 0;
+            });
+        }
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password6", "user");
+    }
+
+    private CacheVersionPoller awaitVersion(final Map<String,String> options, final long version)
+            throws Exception {
+        CacheVersionPoller poller = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getVersionPoller();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (poller.getVersion() != version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("Poller should see the version", version, poller.getVersion());
+        return poller;
+    }
+
+    @Test
+    public void testBumpInvalidatesChangedUsers() throws Exception {
+        createTestNeo4jNode("testuser6");
+        createTestNeo4jNode("testuser7");
+
+        Map<String,String> options = getOptions();
+        awaitVersion(options, 0);
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser6", "password6"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser7", "password6"));
+
+        // Removing a role is invisible to the cache without the version bump
+        runQuery("MATCH (n:%s {%s: $username}) SET n.%4$s = []", "testuser6", true);
+        awaitVersion(options, 1);
+
+        Neo4jUserCache cache = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getCache();
+        Assert.assertNull("Changed user should be invalidated", cache.get("testuser6"));
+        Assert.assertNotNull("Unchanged user should be cached", cache.get("testuser7"));
+    }
+
+    @Test
+    public void testDeletedUserRemovedFromSnapshot() throws Exception {
+        createTestNeo4jNode("testuser6");
+        createTestNeo4jNode("testuser7");
+
+        Map<String,String> options = getOptions();
+        options.remove(Neo4jLoginModule.CACHE_TTL_PROP);
+        options.put(Neo4jLoginModule.USER_SNAPSHOT_PROP, "true");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        store.awaitSnapshot();
+        awaitVersion(options, 0);
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser6", "password6"));
+
+        // The deleted node can not be stamped, so a tombstone carries its version
+        runQuery("MATCH (n:%s {%s: $username}) DELETE n", "testuser6", true);
+        awaitVersion(options, 1);
+        Assert.assertFalse("Deleted user should be removed", store.getSnapshot().contains("testuser6"));
+        Assert.assertTrue("Other users should remain", store.getSnapshot().contains("testuser7"));
+        Assert.assertFalse("Deleted user should not login", TestNeo4JInstance.login(options, "testuser6", "password6"));
+
+        try (Session sess = TestNeo4JInstance.getNeo4jDriver().session()) {
+            Assert.assertEquals(0L, (long) sess.writeTransaction(
+                    tx -> Neo4jCredentialVersion.pruneDeleted(tx, TestNeo4JInstance.NODE_TYPE, 60000)));
+            Thread.sleep(10);
+            Assert.assertEquals(1L, (long) sess.writeTransaction(
+                    tx -> Neo4jCredentialVersion.pruneDeleted(tx, TestNeo4JInstance.NODE_TYPE, 0)));
+        }
+    }
+
+    @Test
+    public void testUnversionedChangeIgnored() throws Exception {
+        createTestNeo4jNode("testuser6");
+
+        Map<String,String> options = getOptions();
+        awaitVersion(options, 0);
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser6", "password6"));
+
+        runQuery("MATCH (n:%s {%s: $username}) SET n.%4$s = []", "testuser6", false);
+        Thread.sleep(200);
+
+        Neo4jUserCache cache = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getCache();
+        Assert.assertNotNull("User should remain cached", cache.get("testuser6"));
+    }
+
+    @Test
+    public void testResetInvalidatesAll() throws Exception {
+        createTestNeo4jNode("testuser6");
+        createTestNeo4jNode("testuser7");
+        runQuery("MATCH (n:%s {%s: $username}) SET n.%3$s = 'password6'", "testuser6", true);
+
+        Map<String,String> options = getOptions();
+        awaitVersion(options, 1);
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser6", "password6"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser7", "password6"));
+
+        runQuery("MATCH (v:" + Neo4jCredentialVersion.VERSION_LABEL + ") DELETE v", null, false);
+        awaitVersion(options, 0);
+        Assert.assertEquals("All users should be invalidated", 0,
+                            Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getCache().size());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompactCredentialStoreTest {
+    private static String CREDENTIAL = "PBKDF2:100000:c2FsdHNhbHRzYWx0c2FsdA==:aGFzaGhhc2hoYXNoaGFzaGhhc2hoYXNoaGFzaGhhc2g=";
+
+    private List<String> getRoleNames(final Neo4jUser user) {
+        List<String> names = new ArrayList<String>();
+        for (JAASRole role : user.getRoles()) {
+            names.add(role.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        CompactCredentialStore store = new CompactCredentialStore(new RoleRegistry());
+        store.put("user1", "password1", Arrays.asList("user", "admin"));
+        store.put("user2", "MD5:5f4dcc3b5aa765d61d8327deb882cf99", Collections.emptyList());
+
+        Neo4jUser user = store.get("user1");
+        Assert.assertEquals("user1", user.getUserPrincipal().getName());
+        Assert.assertEquals("password1", user.getCredential());
+        Assert.assertEquals(Arrays.asList("user", "admin"), getRoleNames(user));
+        Assert.assertTrue("Password should authenticate", user.getUserPrincipal().authenticate("password1"));
+
+        user = store.get("user2");
+        Assert.assertTrue("Legacy credential should be preserved", user.hasLegacyCredential());
+        Assert.assertTrue("User should have no roles", user.getRoles().isEmpty());
+
+        Assert.assertNull("Unknown user should not be found", store.get("user3"));
+        Assert.assertNull("Prefix of a username should not match", store.get("user"));
+        Assert.assertNull("Extension of a username should not match", store.get("user11"));
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() throws Exception {
+        CompactCredentialStore store = new CompactCredentialStore(new RoleRegistry());
+        store.put("user1", "password1", Arrays.asList("user"));
+        store.put("user1", "password2", Arrays.asList("admin"));
+
+        Assert.assertEquals(1, store.size());
+        Assert.assertEquals("password2", store.get("user1").getCredential());
+        Assert.assertEquals(Arrays.asList("admin"), getRoleNames(store.get("user1")));
+
+        Assert.assertTrue("User should be removed", store.remove("user1"));
+        Assert.assertFalse("User should already be removed", store.remove("user1"));
+        Assert.assertNull("Removed user should not be found", store.get("user1"));
+        Assert.assertEquals(0, store.size());
+
+        store.put("user1", "password3", Arrays.asList("user"));
+        Assert.assertEquals("password3", store.get("user1").getCredential());
+    }
+
+    @Test
+    public void testNonAsciiUsernames() throws Exception {
+        CompactCredentialStore store = new CompactCredentialStore(new RoleRegistry());
+        String[] usernames = { "jörg", "用户", "emoji😀", "lone\ud800", "plain" };
+        for (String username : usernames) {
+            store.put(username, "password", Arrays.asList("user"));
+        }
+
+        for (String username : usernames) {
+            Neo4jUser user = store.get(username);
+            Assert.assertNotNull("User should be found, " + username, user);
+            Assert.assertEquals(new String(username.getBytes("UTF-8"), "UTF-8"), user.getUserPrincipal().getName());
+        }
+        Assert.assertNull("Different characters should not match", store.get("jørg"));
+        Assert.assertNull("Different characters should not match", store.get("emoji😁"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        CompactCredentialStore store = new CompactCredentialStore(new RoleRegistry());
+        for (int i = 0; i < 100; i++) {
+            store.put("user" + i, CREDENTIAL, Arrays.asList("user"));
+        }
+        long memory = store.getMemoryUsage();
+
+        // Replacing users repeatedly must not grow the arena without bound
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put("user" + i, CREDENTIAL, Arrays.asList("user", "round" + (round % 2)));
+            }
+        }
+        Assert.assertEquals(100, store.size());
+        Assert.assertTrue("Arena should be compacted", store.getMemoryUsage() <= memory * 4);
+        Assert.assertEquals(Arrays.asList("user", "round1"), getRoleNames(store.get("user42")));
+    }
+
+    @Test
+    public void testOverheadPerUser() throws Exception {
+        int count = 1000000;
+        RoleRegistry roles = new RoleRegistry();
+        List<List<String>> roleSets = new ArrayList<List<String>>();
+        for (int i = 0; i < 40; i++) {
+            roleSets.add(Arrays.asList("user", "role" + i));
+        }
+
+        CompactCredentialStore store = new CompactCredentialStore(roles);
+        long payload = 0;
+        for (int i = 0; i < count; i++) {
+            String username = "user" + i + "@example.com";
+            store.put(username, CREDENTIAL, roleSets.get(i % roleSets.size()));
+            payload += username.length() + CREDENTIAL.length();
+        }
+
+        Assert.assertEquals(count, store.size());
+        long overhead = (store.getMemoryUsage() - payload) / count;
+        Assert.assertTrue("Overhead per user should be under 100 bytes, was " + overhead, overhead < 100);
+
+        for (int i = 0; i < count; i += 9973) {
+            Assert.assertNotNull("User should be found", store.get("user" + i + "@example.com"));
+        }
+        Assert.assertEquals(41, roles.size());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests of the ConcurrencyLimiter. Lookup latencies are simulated by releasing with a start
+ * time in the past.
+ */
+public class ConcurrencyLimiterTest {
+
+    private static ConcurrencyLimiter createLimiter(final int initialLimit, final int maxLimit,
+                                                    final long queueTimeoutMs, final Neo4jLoginMetrics metrics) {
+        Map<String,String> options = new HashMap<String,String>();
+        options.put(Neo4jLoginModule.ADAPTIVE_CONCURRENCY_PROP, "true");
+        options.put(Neo4jLoginModule.CONCURRENCY_INITIAL_LIMIT_PROP, Integer.toString(initialLimit));
+        options.put(Neo4jLoginModule.CONCURRENCY_MAX_LIMIT_PROP, Integer.toString(maxLimit));
+        options.put(Neo4jLoginModule.CONCURRENCY_QUEUE_TIMEOUT_PROP, Long.toString(queueTimeoutMs));
+        return new ConcurrencyLimiter(new Neo4jLoginConfig(options), metrics);
+    }
+
+    /**
+     * Run the limit's worth of lookups concurrently, each taking the given latency.
+     */
+    private static void runLookups(final ConcurrencyLimiter limiter, final long latencyMs) throws Exception {
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.release(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(latencyMs), false);
+        }
+    }
+
+    @Test
+    public void testShed() throws Exception {
+        Neo4jLoginMetrics metrics = new Neo4jLoginMetrics();
+        ConcurrencyLimiter limiter = createLimiter(2, 2, 20, metrics);
+        limiter.acquire();
+        limiter.acquire();
+
+        long start = System.nanoTime();
+        try {
+            limiter.acquire();
+            Assert.fail("Lookup over the limit should be shed");
+        } catch (LookupShedException ex) {
+            // Expected
+        }
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertEquals(1, metrics.getLookupShedCount());
+        Assert.assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void testQueue() throws Exception {
+        Neo4jLoginMetrics metrics = new Neo4jLoginMetrics();
+        ConcurrencyLimiter limiter = createLimiter(1, 1, 5000, metrics);
+        long started = limiter.acquire();
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            limiter.release(started, false);
+        });
+        releaser.start();
+
+        // Waits for the lookup in flight to complete rather than being shed
+        limiter.acquire();
+        releaser.join();
+        Assert.assertEquals(1, limiter.getInFlight());
+        Assert.assertEquals(0, metrics.getLookupShedCount());
+    }
+
+    @Test
+    public void testLimitGrows() throws Exception {
+        ConcurrencyLimiter limiter = createLimiter(4, 100, 0, new Neo4jLoginMetrics());
+
+        // A steady latency means nothing is queueing, so the limit grows to the maximum
+        for (int i = 0; i < 20; i++) {
+            runLookups(limiter, 1);
+        }
+        Assert.assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitNotGrownWhenUnused() throws Exception {
+        ConcurrencyLimiter limiter = createLimiter(20, 100, 0, new Neo4jLoginMetrics());
+        for (int i = 0; i < 100; i++) {
+            long started = limiter.acquire();
+            limiter.release(started - TimeUnit.MILLISECONDS.toNanos(1), false);
+        }
+        Assert.assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinks() throws Exception {
+        ConcurrencyLimiter limiter = createLimiter(50, 50, 0, new Neo4jLoginMetrics());
+        runLookups(limiter, 1);
+        Assert.assertEquals(50, limiter.getLimit());
+
+        // Ten times the latency means most of the lookups in flight are queued
+        for (int i = 0; i < 10; i++) {
+            runLookups(limiter, 10);
+        }
+        int limit = limiter.getLimit();
+        Assert.assertTrue("Limit is " + limit, limit < 20);
+
+        // Failed lookups shrink the limit whatever their latency
+        long started = limiter.acquire();
+        limiter.release(started, true);
+        Assert.assertTrue(limiter.getLimit() < limit);
+    }
+}
@@ -0,0 +1,127 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.FailedLoginException;
+
+import org.eclipse.jetty.util.security.Credential;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CredentialUpgradeWriterTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        TestNeo4JInstance.reset();
+    }
+    
+    private Map<String,?> getOptions(final String upgradeCredentials) {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.UPGRADE_CREDS_PROP, upgradeCredentials);
+        options.put(Neo4jLoginModule.UPGRADE_ITERATIONS_PROP, "1000");
+        options.put(Neo4jLoginModule.UPGRADE_INTERVAL_PROP, "50");
+        return options;
+    }
+    
+    private void createTestNeo4jNode(final String username, final String creds) {
+        TestNeo4JInstance.createTestNeo4jNode(username, creds, "user");
+    }
+    
+    private String getStoredCreds(final String username) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", username);
+        return TestNeo4JInstance.runQuery("MATCH (n:%s {%s: $username}) RETURN n.%s", params).get(0).get(0).asString();
+    }
+    
+    private boolean login(final Map<String,?> options, final String username, final Object password) 
+            throws Exception {
+        CallbackHandler handler = new TestCallbackHandler(username, password);
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), handler, new HashMap<String,Object>(), options);
+        
+        boolean result = mod.login();
+        mod.commit();
+        return result;
+    }
+    
+    private String waitForCreds(final String username, final String prefix) 
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        String creds = getStoredCreds(username);
+        while (! creds.startsWith(prefix) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            creds = getStoredCreds(username);
+        }
+        return creds;
+    }
+
+    @Test
+    public void testUpgradeMD5() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        createTestNeo4jNode(username, Credential.MD5.digest(password));
+        
+        Map<String,?> options = getOptions("PBKDF2");
+        Assert.assertTrue("Login against MD5 credential failed", login(options, username, password));
+        
+        String creds = waitForCreds(username, PBKDF2Credential.__TYPE);
+        Assert.assertTrue("Credential was not upgraded: " + creds, creds.startsWith(PBKDF2Credential.__TYPE));
+        
+        Assert.assertTrue("Login against upgraded credential failed", login(options, username, password));
+        try {
+            login(options, username, password + "ZZZZ");
+            Assert.fail("Should have thrown an exception");
+        } catch (FailedLoginException le) {
+            // Ignore expected exception
+        }
+    }
+
+    @Test
+    public void testNoUpgradeWhenDisabled() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        String md5 = Credential.MD5.digest(password);
+        createTestNeo4jNode(username, md5);
+        
+        Assert.assertTrue("Login against MD5 credential failed", login(getOptions("false"), username, password));
+        
+        Thread.sleep(250);
+        Assert.assertEquals("Credential should not be upgraded", md5, getStoredCreds(username));
+    }
+
+    @Test
+    public void testNoUpgradeForFailedLogin() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        String md5 = Credential.MD5.digest(password);
+        createTestNeo4jNode(username, md5);
+        
+        try {
+            login(getOptions("PBKDF2"), username, password + "ZZZZ");
+            Assert.fail("Should have thrown an exception");
+        } catch (FailedLoginException le) {
+            // Ignore expected exception
+        }
+        
+        Thread.sleep(250);
+        Assert.assertEquals("Credential should not be upgraded", md5, getStoredCreds(username));
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TCP proxy placed between the login module and the Bolt port of the test instance, which
+ * injects latency, jitter, bandwidth limits, connection resets and black holes. Faults can be
+ * changed at any time, or scheduled to start after a delay.
+ *
+ * Each direction of each connection is forwarded by its own thread, one read at a time, so the
+ * latency is added to every chunk forwarded rather than to every round trip. Connect through
+ * a bolt:// URI, as the routing table returned for a neo4j:// URI advertises the instance
+ * itself and would bypass the proxy.
+ */
+class FaultInjectingProxy
+        implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(FaultInjectingProxy.class);
+    private static final int BUFFER_SIZE = 8192;
+    private static final long BLACKHOLE_POLL_MS = 10;
+
+    private final String m_targetHost;
+    private final int m_targetPort;
+    private final ServerSocket m_serverSocket;
+    private final ScheduledExecutorService m_scheduler;
+    private final List<Socket> m_sockets = new CopyOnWriteArrayList<Socket>();
+    private volatile long m_latencyMs = 0;
+    private volatile long m_jitterMs = 0;
+    private volatile long m_bytesPerSecond = 0;
+    private volatile boolean m_blackhole = false;
+    private volatile boolean m_closed = false;
+
+
+    /**
+     * Create and start a proxy to the given target, listening on an ephemeral local port.
+     *
+     * @param targetHost The host to forward to
+     * @param targetPort The port to forward to
+     * @throws IOException if the proxy could not listen
+     */
+    FaultInjectingProxy(final String targetHost, final int targetPort)
+            throws IOException {
+        m_targetHost = targetHost;
+        m_targetPort = targetPort;
+        m_serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(r -> newThread(r, "proxy-scheduler"));
+        newThread(this::acceptLoop, "proxy-accept").start();
+    }
+
+    /**
+     * Get the bolt:// URI connecting through the proxy.
+     *
+     * @return The URI
+     */
+    String getUri() {
+        return "bolt://" + m_serverSocket.getInetAddress().getHostAddress() + ":" + m_serverSocket.getLocalPort();
+    }
+
+    /**
+     * Delay every chunk forwarded by the latency plus a uniformly random jitter.
+     *
+     * @param latencyMs The fixed delay in milliseconds
+     * @param jitterMs The maximum additional random delay in milliseconds
+     */
+    void setLatency(final long latencyMs, final long jitterMs) {
+        m_latencyMs = latencyMs;
+        m_jitterMs = jitterMs;
+    }
+
+    /**
+     * Limit the rate data is forwarded in each direction of each connection.
+     *
+     * @param bytesPerSecond The rate, zero for no limit
+     */
+    void setBandwidth(final long bytesPerSecond) {
+        m_bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Stop, or resume, forwarding. While black holed, data on open connections is held rather
+     * than forwarded, and new connections are accepted but not connected to the target, so
+     * neither side sees an error.
+     *
+     * @param blackhole true to stop forwarding
+     */
+    void setBlackhole(final boolean blackhole) {
+        m_blackhole = blackhole;
+    }
+
+    /**
+     * Reset all open connections, as a peer sending RST would.
+     */
+    void resetConnections() {
+        for (Socket socket : m_sockets) {
+            reset(socket);
+        }
+    }
+
+    /**
+     * Partition the target, resetting open connections and black holing new ones.
+     */
+    void partition() {
+        setBlackhole(true);
+        resetConnections();
+    }
+
+    /**
+     * Remove all faults.
+     */
+    void heal() {
+        m_latencyMs = 0;
+        m_jitterMs = 0;
+        m_bytesPerSecond = 0;
+        m_blackhole = false;
+    }
+
+    /**
+     * Run a fault change after a delay.
+     *
+     * @param delayMs The delay in milliseconds
+     * @param fault The fault change, for example proxy::partition
+     * @return The scheduled change
+     */
+    ScheduledFuture<?> schedule(final long delayMs, final Runnable fault) {
+        return m_scheduler.schedule(fault, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the number of connections open through the proxy, counting both sides.
+     *
+     * @return The number of sockets
+     */
+    int getSocketCount() {
+        return m_sockets.size();
+    }
+
+    @Override
+    public void close() {
+        m_closed = true;
+        m_scheduler.shutdownNow();
+        try {
+            m_serverSocket.close();
+        } catch (IOException ex) {
+            LOG.debug("Failed closing proxy server socket", ex);
+        }
+        resetConnections();
+    }
+
+    private void acceptLoop() {
+        while (! m_closed) {
+            try {
+                Socket client = m_serverSocket.accept();
+                m_sockets.add(client);
+                newThread(() -> connect(client), "proxy-connect").start();
+            } catch (IOException ex) {
+                if (! m_closed) {
+                    LOG.error("Proxy failed accepting connection", ex);
+                }
+            }
+        }
+    }
+
+    private void connect(final Socket client) {
+        Socket target = null;
+        try {
+            awaitForwarding(client);
+            target = new Socket();
+            m_sockets.add(target);
+            target.connect(new InetSocketAddress(m_targetHost, m_targetPort));
+            client.setTcpNoDelay(true);
+            target.setTcpNoDelay(true);
+
+            Socket server = target;
+            newThread(() -> pump(client, server), "proxy-upstream").start();
+            newThread(() -> pump(server, client), "proxy-downstream").start();
+        } catch (IOException ex) {
+            reset(client);
+            if (target != null) {
+                reset(target);
+            }
+        }
+    }
+
+    private void pump(final Socket from, final Socket to) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                awaitForwarding(from);
+                delay(read);
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+            to.shutdownOutput();
+        } catch (IOException ex) {
+            // The connection was reset or closed by either side, reset the other
+            reset(from);
+            reset(to);
+        }
+    }
+
+    private void awaitForwarding(final Socket socket)
+            throws IOException {
+        while (m_blackhole) {
+            if (m_closed || socket.isClosed()) {
+                throw new SocketException("Connection closed while black holed");
+            }
+            sleep(BLACKHOLE_POLL_MS);
+        }
+    }
+
+    private void delay(final int bytes) {
+        long delayMs = m_latencyMs;
+        if (m_jitterMs > 0) {
+            delayMs += ThreadLocalRandom.current().nextLong(m_jitterMs + 1);
+        }
+        long bytesPerSecond = m_bytesPerSecond;
+        if (bytesPerSecond > 0) {
+            delayMs += bytes * 1000L / bytesPerSecond;
+        }
+        sleep(delayMs);
+    }
+
+    private void reset(final Socket socket) {
+        m_sockets.remove(socket);
+        try {
+            if (! socket.isClosed()) {
+                socket.setSoLinger(true, 0);
+                socket.close();
+            }
+        } catch (IOException ex) {
+            LOG.debug("Failed resetting proxy connection", ex);
+        }
+    }
+
+    private static void sleep(final long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Thread newThread(final Runnable r, final String name) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+
+import org.eclipse.jetty.jaas.callback.ObjectCallback;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Enforces the allocation budget of a warm login, one served from the cache, so allocation
+ * regressions on the login path fail the build rather than showing up as GC pauses.
+ */
+public class LoginAllocationTest {
+    // The module, the JAAS callbacks and the Subject's own list nodes and iterators, about 450
+    // bytes, with headroom for JIT variance. Parsing the options on every login took 2.7KB
+    private static long LOGIN_BYTES_BUDGET = 600;
+    private static int WARMUP_LOGINS = 20000;
+    private static int MEASURED_LOGINS = 10000;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "600000");
+        return options;
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password1", Arrays.asList("user", "admin"));
+    }
+
+    private static void login(final Subject subject, final Map<String,?> options,
+                              final CallbackHandler handler) throws Exception {
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(subject, handler, Collections.emptyMap(), options);
+        if (! mod.login() || ! mod.commit() || ! mod.logout()) {
+            throw new AssertionError("Login should succeed");
+        }
+    }
+
+    @Test
+    public void testWarmLoginAllocation() throws Exception {
+        java.lang.management.ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation counting is not supported",
+                          mxBean instanceof com.sun.management.ThreadMXBean
+                          && ((com.sun.management.ThreadMXBean) mxBean).isThreadAllocatedMemorySupported());
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mxBean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        createTestNeo4jNode("testuser1");
+        Map<String,String> options = getOptions();
+        CallbackHandler handler = callbacks -> {
+            // Fill in the callbacks provided, so only the module allocates
+            ((NameCallback) callbacks[0]).setName("testuser1");
+            ((ObjectCallback) callbacks[1]).setObject("password1");
+        };
+        Subject subject = new Subject();
+
+        // Warm the cache and let the JIT compile the login path
+        for (int i = 0; i < WARMUP_LOGINS; i++) {
+            login(subject, options, handler);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_LOGINS; i++) {
+            login(subject, options, handler);
+        }
+        long bytesPerLogin = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_LOGINS;
+
+        Assert.assertTrue("Warm login allocated " + bytesPerLogin + " bytes, over the budget of "
+                          + LOGIN_BYTES_BUDGET, bytesPerLogin <= LOGIN_BYTES_BUDGET);
+    }
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Record;
+
+public class LoginAuditWriterTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+    
+    private Map<String,?> getOptions(final String flushIntervalMs, final String onShutdown) {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.AUDIT_LOGINS_PROP, "true");
+        options.put(Neo4jLoginModule.AUDIT_FLUSH_INTERVAL_PROP, flushIntervalMs);
+        options.put(Neo4jLoginModule.AUDIT_ON_SHUTDOWN_PROP, onShutdown);
+        return options;
+    }
+    
+    private void createTestNeo4jNode(final String username, final String creds) {
+        TestNeo4JInstance.createTestNeo4jNode(username, creds, "user");
+    }
+    
+    private Record getAuditProperties(final String username) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", username);
+        return TestNeo4JInstance.runQuery(String.format("MATCH (n:%%1$s {%%2$s: $username}) RETURN n.%s AS lastLoginAt, "
+                                                        + "n.%s AS failedLoginCount, n.%s AS lastFailedAt",
+                                                        LoginAuditWriter.LAST_LOGIN_AT, LoginAuditWriter.FAILED_LOGIN_COUNT,
+                                                        LoginAuditWriter.LAST_FAILED_AT), params).get(0);
+    }
+    
+    private Neo4jUserStore getStore(final Map<String,?> options) {
+        return Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+    }
+
+    @Test
+    public void testCoalescedFailures() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        createTestNeo4jNode(username, password);
+        
+        Map<String,?> options = getOptions("60000", "flush");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, password + "ZZZZ"));
+        }
+        
+        LoginAuditWriter writer = getStore(options).getAuditWriter();
+        Assert.assertEquals("Failures should be coalesced", 1, writer.getPendingCount());
+        Assert.assertTrue("Audit should not be written before flush", getAuditProperties(username).get("failedLoginCount").isNull());
+        
+        writer.flushAll();
+        Record rec = getAuditProperties(username);
+        Assert.assertEquals("Wrong failed login count", 3, rec.get("failedLoginCount").asInt());
+        Assert.assertFalse("Missing lastFailedAt", rec.get("lastFailedAt").isNull());
+        Assert.assertTrue("Unexpected lastLoginAt", rec.get("lastLoginAt").isNull());
+        
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, password + "ZZZZ"));
+        writer.flushAll();
+        Assert.assertEquals("Wrong failed login count", 4, getAuditProperties(username).get("failedLoginCount").asInt());
+        
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, password));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, username, password + "ZZZZ"));
+        writer.flushAll();
+        rec = getAuditProperties(username);
+        Assert.assertEquals("Wrong failed login count after login", 1, rec.get("failedLoginCount").asInt());
+        Assert.assertFalse("Missing lastLoginAt", rec.get("lastLoginAt").isNull());
+    }
+
+    @Test
+    public void testPeriodicFlush() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        createTestNeo4jNode(username, password);
+        
+        Map<String,?> options = getOptions("50", "flush");
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, password));
+        
+        long deadline = System.currentTimeMillis() + 10000;
+        while (getAuditProperties(username).get("lastLoginAt").isNull() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        
+        Record rec = getAuditProperties(username);
+        Assert.assertFalse("Missing lastLoginAt", rec.get("lastLoginAt").isNull());
+        Assert.assertEquals("Wrong failed login count", 0, rec.get("failedLoginCount").asInt());
+    }
+
+    @Test
+    public void testShutdownFlush() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        createTestNeo4jNode(username, password);
+        
+        Assert.assertTrue("Login should succeed",
+                          TestNeo4JInstance.login(getOptions("60000", "flush"), username, password));
+        Neo4jUserStore.closeAll();
+        
+        Assert.assertFalse("Audit should be written on shutdown", getAuditProperties(username).get("lastLoginAt").isNull());
+    }
+
+    @Test
+    public void testShutdownDiscard() throws Exception {
+        String username = "testuser3";
+        String password = "password3";
+        createTestNeo4jNode(username, password);
+        
+        Assert.assertTrue("Login should succeed",
+                          TestNeo4JInstance.login(getOptions("60000", "discard"), username, password));
+        Neo4jUserStore.closeAll();
+        
+        Assert.assertTrue("Audit should be discarded on shutdown", getAuditProperties(username).get("lastLoginAt").isNull());
+    }
+}
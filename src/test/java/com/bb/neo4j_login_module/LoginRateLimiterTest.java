@@ -0,0 +1,209 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.LoginException;
+
+import org.eclipse.jetty.jaas.callback.ObjectCallback;
+import org.eclipse.jetty.jaas.callback.ServletRequestCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import jakarta.servlet.ServletRequest;
+
+public class LoginRateLimiterTest {
+    // Nothing listens on this port, so any login reaching Neo4J fails with a Neo4jLoginException
+    private static final String UNREACHABLE_URI = "bolt://localhost:1";
+    
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+    }
+    
+    private Map<String,String> getOptions() {
+        Map<String,String> options = new HashMap<String,String>();
+        options.put(Neo4jLoginModule.NODE_TYPE, "CredentialsNode");
+        options.put(Neo4jLoginModule.USERNAME_PROP, "username");
+        options.put(Neo4jLoginModule.CREDS_PROP, "creds");
+        options.put(Neo4jLoginModule.ROLES_PROP, "roles");
+        options.put(Neo4jLoginModule.NEO4J_USER_PROP, "neo4j");
+        options.put(Neo4jLoginModule.NEO4J_PASSWORD_PROP, "neo4j");
+        options.put(Neo4jLoginModule.NEO4J_URI_PROP, UNREACHABLE_URI);
+        return options;
+    }
+    
+    private void login(final Map<String,?> options, final CallbackHandler handler) 
+            throws LoginException {
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), handler, new HashMap<String,Object>(), options);
+        mod.login();
+    }
+    
+    private void assertRateLimited(final Map<String,?> options, final CallbackHandler handler) {
+        try {
+            login(options, handler);
+            Assert.fail("Should have thrown an exception");
+        } catch (RateLimitedLoginException le) {
+            // Ignore expected exception
+        } catch (LoginException le) {
+            Assert.fail("Login should be rejected before querying Neo4J: " + le);
+        }
+    }
+    
+    private void assertNotRateLimited(final Map<String,?> options, final CallbackHandler handler) {
+        try {
+            login(options, handler);
+            Assert.fail("Should have thrown an exception");
+        } catch (RateLimitedLoginException le) {
+            Assert.fail("Login should not be rate limited");
+        } catch (LoginException le) {
+            // Ignore expected exception, Neo4J is unreachable
+        }
+    }
+    
+    @Test
+    public void testTokenBucket() {
+        long interval = 1000;
+        long now = 0;
+        TokenBucket bucket = new TokenBucket(interval, 3, now);
+        
+        Assert.assertTrue("New bucket should be full", bucket.isFull(now));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue("Burst should be admitted", bucket.tryAcquire(now));
+        }
+        Assert.assertFalse("Bucket should be empty", bucket.tryAcquire(now));
+        Assert.assertFalse("Empty bucket is not full", bucket.isFull(now));
+        
+        Assert.assertFalse("Token should not be available", bucket.tryAcquire(now + interval - 1));
+        Assert.assertTrue("Token should be available", bucket.tryAcquire(now + interval));
+        Assert.assertFalse("Bucket should be empty", bucket.tryAcquire(now + interval));
+        
+        Assert.assertTrue("Bucket should refill", bucket.isFull(now + 4 * interval));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue("Burst should be admitted", bucket.tryAcquire(now + 4 * interval));
+        }
+    }
+
+    @Test
+    public void testUserRateLimit() {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.RATE_LIMIT_PER_USER_PROP, "0.01");
+        options.put(Neo4jLoginModule.RATE_LIMIT_USER_BURST_PROP, "2");
+        
+        CallbackHandler handler = new TestCallbackHandler("testuser3", "password3");
+        assertNotRateLimited(options, handler);
+        assertNotRateLimited(options, handler);
+        assertRateLimited(options, handler);
+        
+        // Other users have their own bucket
+        assertNotRateLimited(options, new TestCallbackHandler("testuser4", "password4"));
+        
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertEquals("Wrong rate limited count", 1, store.getMetrics().getUserRateLimitedCount());
+        Assert.assertEquals("Wrong bucket count", 2, store.getRateLimiter().getUserBucketCount());
+    }
+
+    @Test
+    public void testAddressRateLimit() {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.RATE_LIMIT_PER_ADDRESS_PROP, "0.01");
+        options.put(Neo4jLoginModule.RATE_LIMIT_ADDRESS_BURST_PROP, "2");
+        
+        assertNotRateLimited(options, new RequestCallbackHandler("testuser3", "10.0.0.1"));
+        assertNotRateLimited(options, new RequestCallbackHandler("testuser4", "10.0.0.1"));
+        assertRateLimited(options, new RequestCallbackHandler("testuser5", "10.0.0.1"));
+        assertNotRateLimited(options, new RequestCallbackHandler("testuser5", "10.0.0.2"));
+        
+        // The address is not limited if the callback handler does not provide it
+        assertNotRateLimited(options, new RequestCallbackHandler("testuser5", null));
+        
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertEquals("Wrong rate limited count", 1, store.getMetrics().getAddressRateLimitedCount());
+    }
+
+    @Test
+    public void testEvictIdle() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.RATE_LIMIT_PER_USER_PROP, "20");
+        options.put(Neo4jLoginModule.RATE_LIMIT_USER_BURST_PROP, "1");
+        
+        LoginRateLimiter limiter = new LoginRateLimiter(new Neo4jLoginConfig(options), new Neo4jLoginMetrics());
+        for (int i = 0; i < 100; i++) {
+            limiter.check("testuser" + i, null);
+        }
+        Assert.assertEquals("Wrong bucket count", 100, limiter.getUserBucketCount());
+        
+        Thread.sleep(100);
+        limiter.evictIdle();
+        Assert.assertEquals("Idle buckets should be evicted", 0, limiter.getUserBucketCount());
+    }
+    
+    @Test
+    public void testMaxBuckets() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.RATE_LIMIT_PER_USER_PROP, "1");
+        options.put(Neo4jLoginModule.RATE_LIMIT_MAX_BUCKETS_PROP, "10");
+        
+        LoginRateLimiter limiter = new LoginRateLimiter(new Neo4jLoginConfig(options), new Neo4jLoginMetrics());
+        for (int i = 0; i < 10; i++) {
+            limiter.check("testuser" + i, null);
+        }
+        
+        // Usernames over the cap share the overflow bucket, so only the first is allowed
+        limiter.check("sprayed0", null);
+        try {
+            limiter.check("sprayed1", null);
+            Assert.fail("Should have thrown an exception");
+        } catch (RateLimitedLoginException le) {
+            // Ignore expected exception
+        }
+        Assert.assertEquals("Wrong bucket count", 10, limiter.getUserBucketCount());
+    }
+    
+    /**
+     * A CallbackHandler which also supplies the servlet request for the client address, 
+     * if an address is provided.
+     */
+    private static class RequestCallbackHandler implements CallbackHandler {
+        private final String m_username;
+        private final ServletRequest m_request;
+        
+        RequestCallbackHandler(final String username, final String address) {
+            m_username = username;
+            if (address != null) {
+                m_request = mock(ServletRequest.class);
+                when(m_request.getRemoteAddr()).thenReturn(address);
+            } else {
+                m_request = null;
+            }
+        }
+
+        @Override
+        public void handle(Callback[] callbacks) throws UnsupportedCallbackException {
+            for (Callback callback : callbacks) {
+                if (NameCallback.class.isInstance(callback)) {
+                    ((NameCallback) callback).setName(m_username);
+                } else if (ObjectCallback.class.isInstance(callback)) {
+                    ((ObjectCallback) callback).setObject("password3");
+                } else if (ServletRequestCallback.class.isInstance(callback) && m_request != null) {
+                    ((ServletRequestCallback) callback).setRequest(m_request);
+                } else {
+                    throw new UnsupportedCallbackException(callback);
+                }
+            }
+        }
+    }
+}
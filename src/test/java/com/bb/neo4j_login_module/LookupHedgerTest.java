@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests of hedged lookups. The module connects through a FaultInjectingProxy, which is made
+ * slow, while the routing table advertises the instance itself, so hedges go directly to the
+ * instance and bypass the proxy.
+ */
+public class LookupHedgerTest {
+    private static int WARMUP_LOOKUPS = 40;
+    private static long SLOW_LATENCY_MS = 200;
+
+    private FaultInjectingProxy m_proxy = null;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        m_proxy = TestNeo4JInstance.createProxy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        m_proxy.close();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.HEDGE_LOOKUPS_PROP, "true");
+        options.put(Neo4jLoginModule.NEO4J_URI_PROP, m_proxy.getUri());
+        return options;
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password1", Arrays.asList("user"));
+    }
+
+    /**
+     * Create the store and time enough healthy lookups for the hedge delay to be set.
+     */
+    private Neo4jUserStore createWarmStore(final Map<String,String> options) throws Exception {
+        createTestNeo4jNode("testuser1");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        LookupHedger hedger = store.getHedger();
+        Assert.assertNotNull(hedger);
+
+        for (int i = 0; i < WARMUP_LOOKUPS; i++) {
+            Assert.assertNotNull(store.loadUser("testuser1"));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hedger.getMembers().length == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("The instance should be the only member", 1, hedger.getMembers().length);
+        Assert.assertTrue(hedger.getHedgeDelayNanos() > 0);
+        Assert.assertTrue(hedger.getHedgeDelayNanos() < TimeUnit.MILLISECONDS.toNanos(SLOW_LATENCY_MS));
+        return store;
+    }
+
+    private static long timeLookup(final Neo4jUserStore store) throws Exception {
+        long start = System.nanoTime();
+        Neo4jUser user = store.loadUser("testuser1");
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals("testuser1", user.getUserPrincipal().getName());
+        return elapsedMs;
+    }
+
+    @Test
+    public void testHedgeSlowLookup() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.HEDGE_MAX_RATE_PROP, "1");
+        Neo4jUserStore store = createWarmStore(options);
+        long hedged = store.getMetrics().getLookupHedgedCount();
+        long won = store.getMetrics().getLookupHedgeWonCount();
+
+        // The hedge to the instance answers while the lookup through the proxy is delayed
+        m_proxy.setLatency(SLOW_LATENCY_MS, 0);
+        long elapsedMs = timeLookup(store);
+        Assert.assertTrue("Hedged lookup took " + elapsedMs + "ms", elapsedMs < SLOW_LATENCY_MS);
+        Assert.assertEquals(hedged + 1, store.getMetrics().getLookupHedgedCount());
+        Assert.assertEquals(won + 1, store.getMetrics().getLookupHedgeWonCount());
+    }
+
+    @Test
+    public void testHedgeRateCap() throws Exception {
+        // Each lookup earns a twentieth of a hedge, so the 45 lookups may hedge twice
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.HEDGE_MAX_RATE_PROP, "0.05");
+        Neo4jUserStore store = createWarmStore(options);
+        long warmHedged = store.getMetrics().getLookupHedgedCount();
+
+        m_proxy.setLatency(SLOW_LATENCY_MS, 0);
+        int slow = 0;
+        for (int i = 0; i < 5; i++) {
+            if (timeLookup(store) >= SLOW_LATENCY_MS) {
+                slow++;
+            }
+        }
+        long hedged = store.getMetrics().getLookupHedgedCount();
+        Assert.assertEquals(2, hedged);
+        Assert.assertEquals(5 - (hedged - warmHedged), slow);
+    }
+
+    @Test
+    public void testNotHedgedUntilTimed() throws Exception {
+        createTestNeo4jNode("testuser1");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.HEDGE_MAX_RATE_PROP, "1");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+
+        // Without enough lookups to know the 95th percentile no lookup is hedged
+        m_proxy.setLatency(50, 0);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertNotNull(store.loadUser("testuser1"));
+        }
+        Assert.assertEquals(0, store.getHedger().getHedgeDelayNanos());
+        Assert.assertEquals(0, store.getMetrics().getLookupHedgedCount());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LookupProfilerTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password1", "user");
+    }
+
+    private String getServer(final LookupProfiler profiler) {
+        // The address is the one routed to by the driver, which may differ from the URI host
+        String[] serverStats = profiler.getServerStats();
+        Assert.assertEquals("All lookups should run on the test instance", 1, serverStats.length);
+        String server = serverStats[0].substring("server=".length(), serverStats[0].indexOf(' '));
+        Assert.assertTrue(server, server.endsWith(":" + TestNeo4JInstance.getNeo4jParams().m_neo4jUri
+                                                   .replaceFirst(".*:", "")));
+        return server;
+    }
+
+    @Test
+    public void testServerStats() throws Exception {
+        createTestNeo4jNode("testuser1");
+
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(TestNeo4JInstance.getOptions()));
+        Assert.assertNotNull(store.loadUser("testuser1"));
+        Assert.assertNull(store.loadUser("testuser2"));
+
+        String server = getServer(store.getProfiler());
+        LookupProfiler.ServerStats stats = store.getProfiler().getServerStats(server);
+        Assert.assertNotNull("Lookups should be recorded for the server", stats);
+        Assert.assertEquals(2, stats.getCount());
+        Assert.assertEquals("Lookups should not be profiled by default", 0, stats.getProfiledCount());
+
+        String[] serverStats = new Neo4jLoginStats(store).getLookupServerStats();
+        Assert.assertEquals(1, serverStats.length);
+        Assert.assertTrue(serverStats[0], serverStats[0].startsWith("server=" + server + " lookups=2 "));
+    }
+
+    @Test
+    public void testProfiledLookup() throws Exception {
+        createTestNeo4jNode("testuser1");
+
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.PROFILE_SAMPLE_RATE_PROP, "1.0");
+        options.put(Neo4jLoginModule.SLOW_LOGIN_PROP, "1");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        LookupProfiler profiler = store.getProfiler();
+
+        profiler.loginStarted();
+        Neo4jUser user = store.loadUser("testuser1");
+        Assert.assertNotNull(user);
+        Assert.assertEquals("Roles should be returned from a profiled lookup", 1, user.getRoles().size());
+        Thread.sleep(5);
+        String entry = profiler.loginFinished("testuser1", "succeeded");
+
+        Assert.assertNotNull("A slow login should be logged", entry);
+        Assert.assertTrue(entry, entry.startsWith("slowLogin user=testuser1 outcome=succeeded totalMs="));
+        String server = getServer(profiler);
+        Assert.assertTrue(entry, entry.contains(" lookups=1 lookup={server=" + server + " "));
+        Assert.assertTrue(entry, entry.contains(" dbHits="));
+        Assert.assertTrue(entry, entry.contains(" plan=ProduceResults"));
+        Assert.assertEquals(1, profiler.getServerStats(server).getProfiledCount());
+    }
+
+    @Test
+    public void testFastLoginNotLogged() throws Exception {
+        createTestNeo4jNode("testuser1");
+
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.SLOW_LOGIN_PROP, "60000");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        LookupProfiler profiler = store.getProfiler();
+
+        profiler.loginStarted();
+        Assert.assertNotNull(store.loadUser("testuser1"));
+        Assert.assertNull("A fast login should not be logged", profiler.loginFinished("testuser1", "succeeded"));
+
+        // Without a threshold logins are not traced
+        store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(TestNeo4JInstance.getOptions()));
+        store.getProfiler().loginStarted();
+        Assert.assertNull(store.getProfiler().loginFinished("testuser1", "succeeded"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRate() throws Exception {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.PROFILE_SAMPLE_RATE_PROP, "2");
+        new Neo4jLoginConfig(options);
+    }
+}
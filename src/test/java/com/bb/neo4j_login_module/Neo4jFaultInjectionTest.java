@@ -0,0 +1,314 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.LoginException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.ConnectionPoolMetrics;
+import org.neo4j.driver.exceptions.ClientException;
+import org.neo4j.driver.exceptions.TransientException;
+
+/**
+ * Tests of the behavior of the login module while Neo4J is slow, flaky or partitioned, with the
+ * module connected through a FaultInjectingProxy.
+ */
+public class Neo4jFaultInjectionTest {
+    private static long CONNECTION_TIMEOUT_MS = 500;
+
+    private FaultInjectingProxy m_proxy = null;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        m_proxy = TestNeo4JInstance.createProxy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        m_proxy.close();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.CONNECTION_TIMEOUT_PROP, Long.toString(CONNECTION_TIMEOUT_MS));
+        // Fail on the first error, so the tests see each fault rather than the retries around it
+        options.put(Neo4jLoginModule.LOOKUP_MAX_RETRY_TIME_PROP, "0");
+        options.put(Neo4jLoginModule.NEO4J_URI_PROP, m_proxy.getUri());
+        return options;
+    }
+
+    private void createTestNeo4jNode(final String username, final Object roles) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password1", roles);
+    }
+
+    private boolean login(final Map<String,?> options, final String username) throws LoginException {
+        CallbackHandler handler = new TestCallbackHandler(username, "password1");
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), handler, new HashMap<String,Object>(), options);
+        return mod.login();
+    }
+
+    private static int getPooledConnections(final Neo4jUserStore store) {
+        int pooled = 0;
+        for (ConnectionPoolMetrics pool : store.getDriver().metrics().connectionPoolMetrics()) {
+            pooled += pool.idle() + pool.inUse();
+        }
+        return pooled;
+    }
+
+    private static long elapsedMs(final long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(getOptions()));
+
+        // Warm the connection pool, then measure the healthy throughput through the proxy
+        Assert.assertNotNull(store.loadUser("testuser1"));
+        int lookups = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            Assert.assertNotNull(store.loadUser("testuser1"));
+        }
+        long healthyMs = elapsedMs(start);
+        Assert.assertTrue("Healthy lookups took " + healthyMs + "ms", healthyMs < lookups * 40);
+
+        // Every lookup waits for at least the request and the response to be delayed
+        m_proxy.setLatency(25, 10);
+        lookups = 10;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            Assert.assertNotNull(store.loadUser("testuser1"));
+        }
+        long slowMs = elapsedMs(start);
+        Assert.assertTrue("Slow lookups took " + slowMs + "ms", slowMs >= lookups * 50);
+        Assert.assertTrue("Slow lookups took " + slowMs + "ms", slowMs < lookups * 1000);
+    }
+
+    @Test
+    public void testBandwidth() throws Exception {
+        String[] roles = new String[400];
+        for (int i = 0; i < roles.length; i++) {
+            roles[i] = String.format("application-role-%04d", i);
+        }
+        createTestNeo4jNode("testuser1", roles);
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(getOptions()));
+        Assert.assertNotNull(store.loadUser("testuser1"));
+
+        // The roles alone are over 8KB, taking over half a second at 16KB/s
+        m_proxy.setBandwidth(16 * 1024);
+        long start = System.nanoTime();
+        Neo4jUser user = store.loadUser("testuser1");
+        long elapsedMs = elapsedMs(start);
+        Assert.assertEquals(roles.length, user.getRoles().size());
+        Assert.assertTrue("Lookup took " + elapsedMs + "ms", elapsedMs >= 400);
+    }
+
+    @Test
+    public void testConnectionTimeout() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.JMX_ENABLED_PROP, "true");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertNotNull(store.loadUser("testuser1"));
+
+        // New connections stall in the handshake, and fail after the connection timeout. A
+        // lookup racing the reset of the pooled connection would fail immediately instead, so
+        // wait for the driver to drop it
+        m_proxy.partition();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getPooledConnections(store) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("Reset connections should leave the pool", 0, getPooledConnections(store));
+        long start = System.nanoTime();
+        try {
+            store.loadUser("testuser1");
+            Assert.fail("Lookup should fail while partitioned");
+        } catch (Neo4jLoginException ex) {
+            // Expected
+        }
+        long elapsedMs = elapsedMs(start);
+        Assert.assertTrue("Lookup failed after " + elapsedMs + "ms", elapsedMs >= CONNECTION_TIMEOUT_MS - 100);
+        Assert.assertTrue("Lookup failed after " + elapsedMs + "ms", elapsedMs < CONNECTION_TIMEOUT_MS + 4000);
+        Assert.assertEquals(1, store.getMetrics().getLookupFailedCount());
+
+        m_proxy.heal();
+        Assert.assertNotNull("Lookups should recover once healed", store.loadUser("testuser1"));
+    }
+
+    @Test
+    public void testTransientReset() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.LOOKUP_MAX_RETRY_TIME_PROP, "2000");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertNotNull(store.loadUser("testuser1"));
+
+        // Reset the pooled connection part way through the lookup, which is retried on a new one
+        m_proxy.setLatency(50, 0);
+        m_proxy.schedule(25, m_proxy::resetConnections);
+        Assert.assertNotNull("Lookup should succeed after a reset", store.loadUser("testuser1"));
+        Assert.assertTrue(store.getMetrics().getLookupRetryCount() >= 1);
+        Assert.assertEquals(0, store.getMetrics().getLookupFailedCount());
+
+        // Errors which are not transient are not retried
+        Assert.assertFalse(LookupRetry.isRetryable(new ClientException("Neo.ClientError.Statement.SyntaxError", "")));
+        Assert.assertFalse(LookupRetry.isRetryable(new TransientException("Neo.TransientError.Transaction.Terminated", "")));
+        Assert.assertTrue(LookupRetry.isRetryable(new TransientException("Neo.TransientError.Cluster.NotALeader", "")));
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.ADAPTIVE_CONCURRENCY_PROP, "true");
+        options.put(Neo4jLoginModule.CONCURRENCY_INITIAL_LIMIT_PROP, "1");
+        options.put(Neo4jLoginModule.CONCURRENCY_MAX_LIMIT_PROP, "1");
+        options.put(Neo4jLoginModule.CONCURRENCY_QUEUE_TIMEOUT_PROP, "20");
+        options.put(Neo4jLoginModule.CIRCUIT_BREAKER_THRESHOLD_PROP, "1");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertNotNull(store.loadUser("testuser1"));
+
+        // While a slow lookup holds the only slot, a second lookup is shed without querying Neo4J
+        m_proxy.setLatency(200, 0);
+        Thread slow = new Thread(() -> {
+            try {
+                store.loadUser("testuser1");
+            } catch (Neo4jLoginException ex) {
+                // Checked by the lookup count below
+            }
+        });
+        slow.start();
+        Thread.sleep(50);
+        try {
+            store.loadUser("testuser1");
+            Assert.fail("Lookup should be shed");
+        } catch (LookupShedException ex) {
+            // Expected
+        }
+        slow.join();
+
+        Assert.assertEquals(1, store.getMetrics().getLookupShedCount());
+        Assert.assertEquals(0, store.getMetrics().getLookupFailedCount());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, store.getCircuitBreaker().getState());
+        Assert.assertEquals(0, store.getConcurrencyLimiter().getInFlight());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CIRCUIT_BREAKER_THRESHOLD_PROP, "3");
+        options.put(Neo4jLoginModule.CIRCUIT_BREAKER_RESET_PROP, "1000");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertTrue(login(options, "testuser1"));
+
+        m_proxy.partition();
+        for (int i = 0; i < 3; i++) {
+            try {
+                login(options, "testuser1");
+                Assert.fail("Login should fail while partitioned");
+            } catch (LoginException ex) {
+                // Expected
+            }
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, store.getCircuitBreaker().getState());
+
+        // With the breaker open logins fail without waiting on the connection timeout
+        int logins = 100;
+        long start = System.nanoTime();
+        for (int i = 0; i < logins; i++) {
+            try {
+                login(options, "testuser1");
+                Assert.fail("Login should fail while the breaker is open");
+            } catch (LoginException ex) {
+                // Expected
+            }
+        }
+        long elapsedMs = elapsedMs(start);
+        Assert.assertTrue(logins + " logins failed in " + elapsedMs + "ms", elapsedMs < CONNECTION_TIMEOUT_MS);
+
+        m_proxy.heal();
+        Thread.sleep(1000);
+        Assert.assertTrue("Login should succeed once the breaker resets", login(options, "testuser1"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, store.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void testCacheFallback() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        createTestNeo4jNode("testuser2", "user");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        Assert.assertTrue(login(options, "testuser1"));
+
+        // Cached users keep logging in through the outage, without waiting on Neo4J
+        m_proxy.partition();
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue("Cached user should login while partitioned", login(options, "testuser1"));
+        }
+        long elapsedMs = elapsedMs(start);
+        Assert.assertTrue("Cached logins took " + elapsedMs + "ms", elapsedMs < CONNECTION_TIMEOUT_MS);
+
+        try {
+            login(options, "testuser2");
+            Assert.fail("Uncached user should fail while partitioned");
+        } catch (LoginException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testScheduledOutage() throws Exception {
+        createTestNeo4jNode("testuser1", "user");
+        Map<String,String> options = getOptions();
+        Assert.assertTrue(login(options, "testuser1"));
+
+        m_proxy.schedule(200, m_proxy::partition);
+        m_proxy.schedule(1500, m_proxy::heal);
+
+        int succeeded = 0;
+        int failed = 0;
+        long start = System.nanoTime();
+        while (elapsedMs(start) < 2500) {
+            try {
+                if (login(options, "testuser1")) {
+                    succeeded++;
+                }
+            } catch (LoginException ex) {
+                failed++;
+            }
+        }
+        Assert.assertTrue("Logins should fail during the outage", failed > 0);
+        Assert.assertTrue("Logins should succeed around the outage", succeeded > failed);
+        Assert.assertTrue("Login should succeed after the outage", login(options, "testuser1"));
+    }
+}
@@ -0,0 +1,114 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Map;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.eclipse.jetty.server.UserIdentity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.bb.neo4j_login_module.TestNeo4JInstance.Neo4jParams;
+
+public class Neo4jLoginServiceTest {
+    private Neo4jLoginService m_service = null;
+    
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        Neo4jParams neo4jParams = TestNeo4JInstance.getNeo4jParams();
+        
+        m_service = new Neo4jLoginService("test.realm");
+        m_service.setNeo4jUser(neo4jParams.m_neo4jUser);
+        m_service.setNeo4jPassword(neo4jParams.m_neo4jPassword);
+        m_service.setNeo4jUri(neo4jParams.m_neo4jUri);
+        m_service.setNodeType(TestNeo4JInstance.NODE_TYPE);
+        m_service.setUsernameProp(TestNeo4JInstance.USERNAME_FIELD);
+        m_service.setCredsProp(TestNeo4JInstance.CREDS_FIELD);
+        m_service.setRolesProp(TestNeo4JInstance.ROLES_FIELD);
+        m_service.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        m_service.stop();
+        TestNeo4JInstance.reset();
+    }
+    
+    @Test
+    public void testLoginSuccess() {
+        String[] roles = {"user", "admin"};
+        TestNeo4JInstance.createTestNeo4jNode("testuser3", "password3", roles);
+        
+        UserIdentity identity = m_service.login("testuser3", "password3", null);
+        Assert.assertNotNull("Login should succeed", identity);
+        Assert.assertEquals("Wrong user principal", "testuser3", identity.getUserPrincipal().getName());
+        for (String role : roles) {
+            Assert.assertTrue("Missing role: " + role, identity.isUserInRole(role, null));
+            Assert.assertTrue("Subject missing role: " + role, 
+                              identity.getSubject().getPrincipals().contains(new JAASRole(role)));
+        }
+        Assert.assertFalse("Unexpected role", identity.isUserInRole("other", null));
+    }
+
+    @Test
+    public void testLoginFailure() {
+        TestNeo4JInstance.createTestNeo4jNode("testuser3", "password3", new String[] {"user"});
+        
+        Assert.assertNull("Login should fail for wrong password", m_service.login("testuser3", "password3ZZZZ", null));
+        Assert.assertNull("Login should fail for unknown user", m_service.login("testuser4", "password3", null));
+        Assert.assertNull("Login should fail for missing password", m_service.login("testuser3", null, null));
+    }
+
+    @Test
+    public void testSharedStore() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        Assert.assertSame("Login modules and the login service should share the store", 
+                          Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)), m_service.getStore());
+    }
+
+    @Test
+    public void testStopClosesStore() throws Exception {
+        Neo4jUserStore store = m_service.getStore();
+        m_service.stop();
+        Assert.assertNull("Stopped service should release the store", m_service.getStore());
+        Assert.assertNotSame("Stopped service should close the store", store,
+                             Neo4jUserStore.getInstance(new Neo4jLoginConfig(TestNeo4JInstance.getOptions())));
+        Neo4jUserStore.closeAll();
+    }
+
+    @Test
+    public void testStopKeepsStoreInUse() throws Exception {
+        Neo4jLoginService other = new Neo4jLoginService("other.realm");
+        for (Map.Entry<String,String> option : TestNeo4JInstance.getOptions().entrySet()) {
+            other.setOption(option.getKey(), option.getValue());
+        }
+        other.start();
+        Neo4jUserStore store = m_service.getStore();
+        Assert.assertSame(store, other.getStore());
+
+        // The store is only closed once the last service holding it stops
+        m_service.stop();
+        Assert.assertSame("Store in use should not be closed", store,
+                          Neo4jUserStore.getInstance(new Neo4jLoginConfig(TestNeo4JInstance.getOptions())));
+        other.stop();
+        Assert.assertNotSame("Released store should be closed", store,
+                             Neo4jUserStore.getInstance(new Neo4jLoginConfig(TestNeo4JInstance.getOptions())));
+        Neo4jUserStore.closeAll();
+    }
+}
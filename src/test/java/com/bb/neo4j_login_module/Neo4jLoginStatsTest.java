@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class Neo4jLoginStatsTest {
+    private static String REALM = "stats.realm";
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.REALM_NAME_PROP, REALM);
+        options.put(Neo4jLoginModule.JMX_ENABLED_PROP, "true");
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        return options;
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password5", "user");
+    }
+
+    private Object getAttribute(final ObjectName name, final String attribute)
+            throws Exception {
+        return ManagementFactory.getPlatformMBeanServer().getAttribute(name, attribute);
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        createTestNeo4jNode("testuser5");
+        Map<String,String> options = getOptions();
+
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser5", "password5"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser5", "password5"));
+        Assert.assertFalse("Login should fail", TestNeo4JInstance.login(options, "testuser5", "wrong"));
+        Assert.assertFalse("Unknown user should be ignored", TestNeo4JInstance.login(options, "unknown", "password5"));
+
+        ObjectName name = new ObjectName(Neo4jLoginStats.DOMAIN + ":type=Neo4jLoginStats,realm=\"" + REALM + "\"");
+        Assert.assertTrue("MBean should be registered", ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        Assert.assertEquals(REALM, getAttribute(name, "RealmName"));
+        Assert.assertEquals(2L, getAttribute(name, "LoginSucceededCount"));
+        Assert.assertEquals(1L, getAttribute(name, "LoginFailedCount"));
+        Assert.assertEquals(1L, getAttribute(name, "UserNotFoundCount"));
+        Assert.assertEquals(1, getAttribute(name, "CacheSize"));
+        Assert.assertTrue("Cache should have hits", (Long) getAttribute(name, "CacheHitCount") > 0);
+        Assert.assertTrue("Hit ratio should be a fraction", (Double) getAttribute(name, "CacheHitRatio") > 0.0);
+        Assert.assertEquals(0, getAttribute(name, "InFlightLookups"));
+        Assert.assertEquals("DISABLED", getAttribute(name, "CircuitBreakerState"));
+        Assert.assertTrue("Connections should have been acquired", (Long) getAttribute(name, "PoolAcquired") > 0);
+        Assert.assertTrue("Connections should be idle", (Integer) getAttribute(name, "PoolIdle") > 0);
+
+        Neo4jUserStore.closeAll();
+        Assert.assertFalse("MBean should be unregistered", ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        options.remove(Neo4jLoginModule.JMX_ENABLED_PROP);
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser5", "password5"));
+        Assert.assertFalse("MBean should not be registered by default",
+                           ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        createTestNeo4jNode("testuser5");
+        createTestNeo4jNode("testuser6");
+        Map<String,String> options = getOptions();
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser5", "password5"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser6", "password5"));
+
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = store.getMBeanName();
+
+        server.invoke(name, "invalidateUser", new Object[] { "testuser5" }, new String[] { String.class.getName() });
+        Assert.assertNull("User should be invalidated", store.getCache().get("testuser5"));
+        Assert.assertNotNull("Other users should be cached", store.getCache().get("testuser6"));
+
+        server.invoke(name, "flushCaches", new Object[0], new String[0]);
+        Assert.assertEquals("Cache should be empty", 0, store.getCache().size());
+
+        store.preloadRecentUsers(10);
+        server.invoke(name, "reloadSnapshot", new Object[0], new String[0]);
+        Assert.assertEquals("No users have logged in with auditing", 0, store.getCache().size());
+        Assert.assertEquals("Usernames are not normalized", 0,
+                            server.invoke(name, "backfillNormalizedUsernames", new Object[0], new String[0]));
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.NEO4J_URI_PROP, "bolt://localhost:1");
+        options.put(Neo4jLoginModule.CIRCUIT_BREAKER_THRESHOLD_PROP, "2");
+        options.put(Neo4jLoginModule.CIRCUIT_BREAKER_RESET_PROP, "500");
+
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        ObjectName name = store.getMBeanName();
+        for (int i = 0; i < 2; i++) {
+            try {
+                store.getUser("testuser5");
+                Assert.fail("Lookup should fail");
+            } catch (Neo4jLoginException ex) {
+                // Ignore expected exception
+            }
+        }
+        Assert.assertEquals("OPEN", getAttribute(name, "CircuitBreakerState"));
+
+        try {
+            store.getUser("testuser5");
+            Assert.fail("Lookup should fail");
+        } catch (Neo4jLoginException ex) {
+            Assert.assertTrue("Lookup should be rejected by the breaker", ex.getMessage().contains("circuit breaker"));
+        }
+
+        Thread.sleep(600);
+        Assert.assertEquals("HALF_OPEN", getAttribute(name, "CircuitBreakerState"));
+        Assert.assertEquals(3L, getAttribute(name, "LookupFailedCount"));
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.eclipse.jetty.security.DefaultIdentityService;
+import org.eclipse.jetty.server.UserIdentity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Neo4jRoleSetPrincipalTest {
+    private static final Logger LOG = LoggerFactory.getLogger(Neo4jRoleSetPrincipalTest.class);
+    private static String LOGIN_MODULE_NAME = "neo4j.test.login.module";
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.COMPOSITE_ROLES_PROP, "true");
+        return options;
+    }
+
+    private List<String> getRoleNames(final String prefix, final int count) {
+        List<String> roles = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            roles.add(prefix + i);
+        }
+        return roles;
+    }
+
+    private Neo4jJAASLoginService createLoginService(final Map<String,String> options) throws Exception {
+        AppConfigurationEntry entry = new AppConfigurationEntry(Neo4jLoginModule.class.getName(),
+                                                                AppConfigurationEntry.LoginModuleControlFlag.REQUIRED,
+                                                                options);
+        Neo4jJAASLoginService service = new Neo4jJAASLoginService("test.realm");
+        service.setLoginModuleName(LOGIN_MODULE_NAME);
+        service.setConfiguration(new Configuration() {
+            @Override
+            public AppConfigurationEntry[] getAppConfigurationEntry(final String name) {
+                return LOGIN_MODULE_NAME.equals(name) ? new AppConfigurationEntry[] { entry } : null;
+            }
+        });
+        return service;
+    }
+
+    @Test
+    public void testCompositePrincipal() throws Exception {
+        List<String> roles = getRoleNames("group", 5000);
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", roles);
+
+        Subject subject = new Subject();
+        CallbackHandler handler = new TestCallbackHandler("testuser1", "password1");
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(subject, handler, new HashMap<String,Object>(), getOptions());
+        Assert.assertTrue("Login should succeed", mod.login());
+        Assert.assertTrue("Commit should succeed", mod.commit());
+
+        Assert.assertEquals("Only the user and role set principals should be attached", 2, subject.getPrincipals().size());
+        Assert.assertTrue("No JAASRoles should be attached", subject.getPrincipals(JAASRole.class).isEmpty());
+        Neo4jRoleSetPrincipal roleSet = subject.getPrincipals(Neo4jRoleSetPrincipal.class).iterator().next();
+        Assert.assertEquals("testuser1", roleSet.getName());
+        Assert.assertEquals(5000, roleSet.size());
+        Assert.assertTrue(roleSet.isUserInRole("group4999"));
+        Assert.assertFalse(roleSet.isUserInRole("group5000"));
+
+        Assert.assertTrue("Logout should succeed", mod.logout());
+        Assert.assertTrue("All principals should be removed", subject.getPrincipals().isEmpty());
+    }
+
+    @Test
+    public void testJAASLoginService() throws Exception {
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", getRoleNames("group", 200));
+
+        Neo4jJAASLoginService service = createLoginService(getOptions());
+        service.start();
+        try {
+            UserIdentity identity = service.login("testuser1", "password1", null);
+            Assert.assertNotNull("Login should succeed", identity);
+            Assert.assertEquals("testuser1", identity.getUserPrincipal().getName());
+            Assert.assertTrue("Role set should be checked", identity.isUserInRole("group0", null));
+            Assert.assertTrue("Role set should be checked", identity.isUserInRole("group199", null));
+            Assert.assertFalse(identity.isUserInRole("group200", null));
+            Assert.assertFalse("The * role is never held", identity.isUserInRole("*", null));
+
+            Assert.assertNull("Bad password should fail", service.login("testuser1", "badpassword", null));
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void testJAASLoginServiceCustomIdentityService() throws Exception {
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", getRoleNames("group", 200));
+
+        Neo4jJAASLoginService service = createLoginService(getOptions());
+        service.setIdentityService(new DefaultIdentityService() {
+        });
+        service.start();
+        try {
+            UserIdentity identity = service.login("testuser1", "password1", null);
+            Assert.assertNotNull("Login should succeed", identity);
+            Assert.assertFalse("Custom identities should not be replaced", identity instanceof Neo4jUserIdentity);
+            Assert.assertTrue("Role names should be expanded", identity.isUserInRole("group0", null));
+            Assert.assertTrue("Role names should be expanded", identity.isUserInRole("group199", null));
+            Assert.assertFalse(identity.isUserInRole("group200", null));
+        } finally {
+            service.stop();
+        }
+    }
+
+    private Subject loginAndCommit(final Map<String,String> options, final String username, final String password)
+            throws Exception {
+        Subject subject = new Subject();
+        CallbackHandler handler = new TestCallbackHandler(username, password);
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(subject, handler, new HashMap<String,Object>(), options);
+        Assert.assertTrue("Login should succeed", mod.login());
+        Assert.assertTrue("Commit should succeed", mod.commit());
+        return subject;
+    }
+
+    @Test
+    public void testLazyRoles() throws Exception {
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", getRoleNames("group", 10));
+
+        Map<String,String> options = getOptions();
+        options.remove(Neo4jLoginModule.COMPOSITE_ROLES_PROP);
+        options.put(Neo4jLoginModule.LAZY_ROLES_PROP, "true");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+
+        Subject subject = loginAndCommit(options, "testuser1", "password1");
+        Neo4jRoleSetPrincipal roleSet = subject.getPrincipals(Neo4jRoleSetPrincipal.class).iterator().next();
+        Assert.assertFalse("Roles should not be loaded by authentication", roleSet.isLoaded());
+        Assert.assertEquals(0, store.getMetrics().getLazyRoleLoadCount());
+
+        Assert.assertTrue("Roles should be loaded on the first check", roleSet.isUserInRole("group9"));
+        Assert.assertFalse(roleSet.isUserInRole("group10"));
+        Assert.assertTrue(roleSet.isLoaded());
+        Assert.assertEquals("Roles should be loaded once", 1, store.getMetrics().getLazyRoleLoadCount());
+    }
+
+    @Test
+    public void testLazyRolesCached() throws Exception {
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", getRoleNames("group", 10));
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.LAZY_ROLES_PROP, "true");
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+
+        Subject subject = loginAndCommit(options, "testuser1", "password1");
+        Assert.assertTrue(subject.getPrincipals(Neo4jRoleSetPrincipal.class).iterator().next().isUserInRole("group0"));
+
+        // Roles loaded for a cached user are reused by later logins
+        subject = loginAndCommit(options, "testuser1", "password1");
+        Assert.assertTrue(subject.getPrincipals(Neo4jRoleSetPrincipal.class).iterator().next().isUserInRole("group1"));
+        Assert.assertEquals("Roles should be loaded once", 1, store.getMetrics().getLazyRoleLoadCount());
+    }
+
+    @Test
+    public void testLazyRolesLoginService() throws Exception {
+        TestNeo4JInstance.createTestNeo4jNode("testuser1", "password1", getRoleNames("group", 10));
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.LAZY_ROLES_PROP, "true");
+        Neo4jLoginService service = new Neo4jLoginService("test.realm");
+        for (Map.Entry<String,String> option : options.entrySet()) {
+            service.setOption(option.getKey(), option.getValue());
+        }
+        service.start();
+        try {
+            UserIdentity identity = service.login("testuser1", "password1", null);
+            Assert.assertNotNull("Login should succeed", identity);
+            Neo4jUserStore store = service.getStore();
+            Assert.assertEquals(0, store.getMetrics().getLazyRoleLoadCount());
+
+            Assert.assertTrue(identity.isUserInRole("group5", null));
+            Assert.assertFalse(identity.isUserInRole("admin", null));
+            Assert.assertEquals(1, store.getMetrics().getLazyRoleLoadCount());
+        } finally {
+            service.stop();
+        }
+    }
+
+    /**
+     * Compare decoding the roles and attaching them to a Subject as one JAASRole per role against
+     * attaching a single role set principal. Attaching roles one at a time is quadratic in the
+     * number of roles, so it is only measured up to 10k roles. The benchmark is only run with
+     * -Dbenchmarks=true, and logs its timings.
+     */
+    @Test
+    public void testBenchmark() throws Exception {
+        Assume.assumeTrue("Benchmarks are run with -Dbenchmarks=true", Boolean.getBoolean("benchmarks"));
+        for (int count : new int[] { 1000, 10000, 100000 }) {
+            List<String> names = getRoleNames("bench" + count + "_", count);
+            Value rolesVal = Values.value(names);
+            Neo4jUserStore.toRoles(rolesVal);
+
+            long start = System.nanoTime();
+            Neo4jUser user = new Neo4jUser("benchuser", "password", Neo4jUserStore.toRoles(rolesVal),
+                                           RoleRegistry.getInstance());
+            Subject subject = new Subject();
+            subject.getPrincipals().add(user.getRoleSetPrincipal());
+            subject.getPrincipals().remove(user.getRoleSetPrincipal());
+            long compositeNanos = System.nanoTime() - start;
+            Assert.assertEquals(count, user.getRoleSetPrincipal().size());
+
+            String perRole = "skipped";
+            if (count <= 10000) {
+                start = System.nanoTime();
+                user = new Neo4jUser("benchuser", "password", Neo4jUserStore.toRoles(rolesVal),
+                                     RoleRegistry.getInstance());
+                subject.getPrincipals().addAll(user.getRoles());
+                Assert.assertEquals(count, subject.getPrincipals().size());
+                subject.getPrincipals().removeAll(user.getRoles());
+                perRole = ((System.nanoTime() - start) / 1000) + "us";
+            }
+
+            LOG.info("Roles: " + count + ", composite: " + (compositeNanos / 1000) + "us, per role: " + perRole);
+        }
+    }
+}
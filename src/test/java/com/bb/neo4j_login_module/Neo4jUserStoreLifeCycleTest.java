@@ -0,0 +1,367 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.lang.management.MemoryNotificationInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Notification;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class Neo4jUserStoreLifeCycleTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        return options;
+    }
+
+    private void runQuery(final String queryStr, final String username, final String password) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", username);
+        params.put("password", password);
+        TestNeo4JInstance.runQuery(queryStr, params);
+    }
+
+    private void createTestNeo4jNode(final String username, final String password) {
+        TestNeo4JInstance.createTestNeo4jNode(username, password, "user");
+    }
+
+    private Neo4jUserStoreLifeCycle createLifeCycle(final Map<String,String> options, final int preloadUsers) {
+        Neo4jUserStoreLifeCycle lifeCycle = new Neo4jUserStoreLifeCycle();
+        for (Map.Entry<String,String> option : options.entrySet()) {
+            lifeCycle.setOption(option.getKey(), option.getValue());
+        }
+        lifeCycle.setMinConnections(3);
+        lifeCycle.setPreloadUsers(preloadUsers);
+        return lifeCycle;
+    }
+
+    @Test
+    public void testStoreByOptions() throws Exception {
+        Map<String,String> options = getOptions();
+        Neo4jUserStore store = Neo4jUserStore.getInstance(options);
+        Assert.assertSame("Equal options should share the store", store,
+                          Neo4jUserStore.getInstance(new HashMap<String,String>(options)));
+        Assert.assertSame("The options and configuration should share the store", store,
+                          Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)));
+
+        Neo4jUserStore.close(new Neo4jLoginConfig(options));
+        Assert.assertNotSame("Closed stores should be replaced", store, Neo4jUserStore.getInstance(options));
+    }
+
+    @Test
+    public void testCachedUser() throws Exception {
+        String username = "testuser4";
+        createTestNeo4jNode(username, "password4");
+
+        Map<String,String> options = getOptions();
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password4"));
+
+        // Cached users are authenticated without querying Neo4J
+        runQuery("MATCH (n:%s {%s: $username}) DELETE n", username, null);
+        Assert.assertTrue("Login should succeed from the cache",
+                          TestNeo4JInstance.login(options, username, "password4"));
+
+        Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).invalidateUser(username);
+        Assert.assertFalse("Login should fail once invalidated",
+                           TestNeo4JInstance.login(options, username, "password4"));
+    }
+
+    @Test
+    public void testChangedPassword() throws Exception {
+        String username = "testuser4";
+        createTestNeo4jNode(username, "password4");
+
+        Map<String,String> options = getOptions();
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password4"));
+
+        runQuery("MATCH (n:%s {%s: $username}) SET n.%3$s = $password", username, "newpassword4");
+        Assert.assertTrue("Changed password should be reloaded",
+                          TestNeo4JInstance.login(options, username, "newpassword4"));
+        Assert.assertFalse("Old password should fail", TestNeo4JInstance.login(options, username, "password4"));
+    }
+
+    @Test
+    public void testCacheMaxEntries() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_MAX_ENTRIES_PROP, "100");
+        Neo4jUserCache cache = new Neo4jUserCache(new Neo4jLoginConfig(options));
+
+        for (int i = 0; i < 1000; i++) {
+            String username = "user" + i;
+            cache.put(username, new Neo4jUser(username, "password", Arrays.asList("user")));
+            Assert.assertTrue("Cache should be bounded", cache.size() <= 100);
+        }
+        Assert.assertNotNull("Latest user should be cached", cache.get("user999"));
+    }
+
+    @Test
+    public void testCacheMaxBytes() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_MAX_BYTES_PROP, "100000");
+        Neo4jUserCache cache = new Neo4jUserCache(new Neo4jLoginConfig(options));
+
+        // Users with many roles weigh more, so fewer are cached
+        List<String> roles = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            roles.add("role" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            String username = "user" + i;
+            cache.put(username, new Neo4jUser(username, "password", (i % 2 == 0) ? roles : Arrays.asList("user")));
+            Assert.assertTrue("Cache should be bounded by weight", cache.getWeight() <= 100000);
+        }
+        Assert.assertTrue(cache.size() < 1000);
+        Assert.assertNotNull("Latest user should be cached", cache.get("user999"));
+
+        cache.invalidate("user999");
+        cache.invalidateAll();
+        Assert.assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testCacheHeapShed() throws Exception {
+        String username = "testuser4";
+        createTestNeo4jNode(username, "password4");
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_HEAP_THRESHOLD_PROP, "0.9");
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password4"));
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Neo4jUserCache cache = store.getCache();
+        for (int i = 0; i < 100; i++) {
+            cache.put("user" + i, new Neo4jUser("user" + i, "password", Arrays.asList("user")));
+        }
+        long weight = cache.getWeight();
+
+        // Half the cache is released each time the heap is over the threshold after a collection
+        HeapPressureMonitor monitor = store.getHeapMonitor();
+        Assert.assertNotNull(monitor);
+        Assert.assertTrue(monitor.getPoolNames().length > 0);
+        monitor.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED,
+                                                    this, 1), null);
+        Assert.assertEquals(1, cache.getHeapShedCount());
+        Assert.assertTrue(cache.getWeight() <= weight / 2);
+        Assert.assertTrue(cache.size() <= 51);
+
+        // Other memory notifications are ignored
+        monitor.handleNotification(new Notification(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED, this, 2), null);
+        Assert.assertEquals(1, cache.getHeapShedCount());
+    }
+
+    @Test
+    public void testCacheRefreshAhead() throws Exception {
+        String username = "testuser4";
+        createTestNeo4jNode(username, "password4");
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "2000");
+        options.put(Neo4jLoginModule.CACHE_REFRESH_AHEAD_PROP, "0.25");
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, username, "password4"));
+        Neo4jUserCache cache = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getCache();
+        long misses = cache.getMissCount();
+
+        // Read after a quarter of the time to live, the cached user is served while it is reloaded
+        runQuery("MATCH (n:%s {%s: $username}) SET n.%3$s = $password", username, "newpassword4");
+        Thread.sleep(600);
+        Assert.assertNotNull(cache.get(username));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getRefreshCount() == 0 || cache.get(username).getCredential().equals("password4")) {
+            Assert.assertTrue("User should be refreshed", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, cache.getRefreshCount());
+        Assert.assertTrue("Refreshed password should be cached",
+                          TestNeo4JInstance.login(options, username, "newpassword4"));
+        Assert.assertEquals("Refreshed users should not miss", misses, cache.getMissCount());
+    }
+
+    @Test
+    public void testCacheEarlyRefresh() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "100000");
+        options.put(Neo4jLoginModule.CACHE_REFRESH_AHEAD_PROP, "0.5");
+        AtomicInteger refreshed = new AtomicInteger();
+        Neo4jUserCache cache = new Neo4jUserCache(new Neo4jLoginConfig(options), username -> refreshed.incrementAndGet());
+
+        // Users loaded together are refreshed early at random, with a chance falling with the
+        // time until the refresh point, here 50s, over the time taken to load, here 20s
+        for (int i = 0; i < 1000; i++) {
+            String username = "user" + i;
+            cache.put(username, new Neo4jUser(username, "password", Arrays.asList("user")), 20000);
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNotNull(cache.get("user" + i));
+        }
+        int early = refreshed.get();
+        Assert.assertTrue(early + " users refreshed early", early > 20 && early < 200);
+
+        // Each entry is refreshed once, and entries which loaded quickly are not refreshed early
+        for (int i = 0; i < 1000; i++) {
+            String username = "user" + i;
+            cache.get(username);
+            cache.put(username, new Neo4jUser(username, "password", Arrays.asList("user")), 0);
+            cache.get(username);
+        }
+        Assert.assertTrue(refreshed.get() < early + 200);
+        int refreshes = refreshed.get();
+        for (int i = 0; i < 1000; i++) {
+            cache.get("user" + i);
+        }
+        Assert.assertEquals(refreshes, refreshed.get());
+    }
+
+    @Test
+    public void testRefreshAfterInvalidate() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "100000");
+        options.put(Neo4jLoginModule.CACHE_REFRESH_AHEAD_PROP, "0.00001");
+        List<String> refreshing = new ArrayList<String>();
+        Neo4jUserCache cache = new Neo4jUserCache(new Neo4jLoginConfig(options), refreshing::add);
+
+        cache.put("testuser1", new Neo4jUser("testuser1", "password1", Arrays.asList("user")));
+        Thread.sleep(5);
+        Assert.assertNotNull(cache.get("testuser1"));
+        Assert.assertEquals(Arrays.asList("testuser1"), refreshing);
+        Assert.assertTrue("Refreshed user should replace the entry",
+                          cache.refreshed("testuser1", new Neo4jUser("testuser1", "password2", Arrays.asList("user")), 0));
+        Assert.assertEquals("password2", cache.get("testuser1").getCredential());
+
+        // A user read before an invalidation is not put back in the cache
+        Thread.sleep(5);
+        cache.get("testuser1");
+        Assert.assertEquals(2, refreshing.size());
+        cache.invalidate("testuser1");
+        Assert.assertFalse(cache.refreshed("testuser1", new Neo4jUser("testuser1", "password2", Arrays.asList("user")), 0));
+        Assert.assertNull(cache.get("testuser1"));
+    }
+
+    @Test
+    public void testStartPreloadsUsers() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            createTestNeo4jNode("testuser" + i, "password" + i);
+        }
+        runQuery("MATCH (n:%s) WHERE n.%s IN ['testuser1', 'testuser2'] SET n.lastLoginAt = datetime()", null, null);
+
+        Map<String,String> options = getOptions();
+        Neo4jUserStoreLifeCycle lifeCycle = createLifeCycle(options, 10);
+        lifeCycle.start();
+        try {
+            Neo4jUserCache cache = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getCache();
+            Assert.assertEquals("Recently active users should be preloaded", 2, cache.size());
+            Assert.assertNotNull("User should be preloaded", cache.get("testuser1"));
+            Assert.assertNotNull("User should be preloaded", cache.get("testuser2"));
+        } finally {
+            lifeCycle.stop();
+        }
+    }
+
+    @Test
+    public void testStartLoadsSnapshot() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            createTestNeo4jNode("testuser" + i, "password" + i);
+        }
+
+        Map<String,String> options = getOptions();
+        options.remove(Neo4jLoginModule.CACHE_TTL_PROP);
+        options.put(Neo4jLoginModule.USER_SNAPSHOT_PROP, "true");
+        Neo4jUserStoreLifeCycle lifeCycle = createLifeCycle(options, 0);
+        lifeCycle.start();
+        try {
+            CompactCredentialStore snapshot = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getSnapshot();
+            Assert.assertEquals("All users should be loaded", 5, snapshot.size());
+
+            // Users are authenticated from the snapshot without querying Neo4J
+            runQuery("MATCH (n:%s {%s: $username}) DELETE n", "testuser1", null);
+            Assert.assertTrue("Login should succeed from the snapshot",
+                              TestNeo4JInstance.login(options, "testuser1", "password1"));
+
+            // Users created after the snapshot are loaded and added
+            createTestNeo4jNode("testuser5", "password5");
+            Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser5", "password5"));
+            Assert.assertTrue("New user should be added", snapshot.contains("testuser5"));
+
+            // Changed passwords are picked up after a failed login
+            runQuery("MATCH (n:%s {%s: $username}) SET n.%3$s = $password", "testuser2", "newpassword2");
+            Assert.assertTrue("Changed password should be reloaded",
+                              TestNeo4JInstance.login(options, "testuser2", "newpassword2"));
+        } finally {
+            lifeCycle.stop();
+        }
+    }
+
+    @Test
+    public void testSnapshotReload() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+        createTestNeo4jNode("testuser2", "password2");
+
+        Map<String,String> options = getOptions();
+        options.remove(Neo4jLoginModule.CACHE_TTL_PROP);
+        options.put(Neo4jLoginModule.USER_SNAPSHOT_PROP, "true");
+        options.put(Neo4jLoginModule.SNAPSHOT_RELOAD_PROP, "100");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        store.awaitSnapshot();
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser1", "password1"));
+
+        // Users deleted without bumping the version marker are dropped by the next reload
+        runQuery("MATCH (n:%s {%s: $username}) DELETE n", "testuser1", null);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getSnapshot().contains("testuser1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse("Deleted user should not login", TestNeo4JInstance.login(options, "testuser1", "password1"));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser2", "password2"));
+    }
+
+    @Test
+    public void testStopClosesStore() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.AUDIT_LOGINS_PROP, "true");
+        options.put(Neo4jLoginModule.AUDIT_FLUSH_INTERVAL_PROP, "60000");
+        createTestNeo4jNode("testuser4", "password4");
+
+        Neo4jUserStoreLifeCycle lifeCycle = createLifeCycle(options, 0);
+        lifeCycle.start();
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertTrue("Login should succeed", TestNeo4JInstance.login(options, "testuser4", "password4"));
+        Assert.assertEquals("Audit should be pending", 1, store.getAuditWriter().getPendingCount());
+        lifeCycle.stop();
+
+        Assert.assertEquals("Audit should be flushed on stop", 0, store.getAuditWriter().getPendingCount());
+        Assert.assertNotSame("Store should be closed", store, Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownLoginModule() throws Exception {
+        Neo4jUserStoreLifeCycle lifeCycle = new Neo4jUserStoreLifeCycle();
+        lifeCycle.setLoginModuleName("unknown.login.module");
+        lifeCycle.start();
+    }
+}
@@ -0,0 +1,35 @@
+/* 
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import org.eclipse.jetty.util.security.Credential;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PBKDF2CredentialTest {
+
+    @Test
+    public void testDigestAndCheck() {
+        String password = "password3";
+        
+        String stored = PBKDF2Credential.digest(password, 1000);
+        Assert.assertTrue("Missing credential prefix", stored.startsWith(PBKDF2Credential.__TYPE));
+        
+        Credential credential = Credential.getCredential(stored);
+        Assert.assertTrue("Credential not provided by PBKDF2Credential.Provider", 
+                          PBKDF2Credential.class.isInstance(credential));
+        Assert.assertTrue("Valid password failed check", credential.check(password));
+        Assert.assertTrue("Valid char[] password failed check", credential.check(password.toCharArray()));
+        Assert.assertFalse("Invalid password passed check", credential.check(password + "ZZZZ"));
+        Assert.assertFalse("Unsupported credential type passed check", credential.check(Integer.valueOf(3)));
+    }
+    
+    @Test
+    public void testSaltedDigest() {
+        String password = "password3";
+        
+        Assert.assertNotEquals("Digests should use a random salt", 
+                               PBKDF2Credential.digest(password, 1000), PBKDF2Credential.digest(password, 1000));
+    }
+}
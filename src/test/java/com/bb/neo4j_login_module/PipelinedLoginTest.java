@@ -0,0 +1,210 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.login.FailedLoginException;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.eclipse.jetty.server.UserIdentity;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Value;
+
+public class PipelinedLoginTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.ROLE_RELATIONSHIP_PROP, "HAS_ROLE");
+        options.put(Neo4jLoginModule.PIPELINED_LOGIN_PROP, "true");
+        return options;
+    }
+
+    private void runQuery(final String queryStr) {
+        TestNeo4JInstance.runQuery(queryStr, null);
+    }
+
+    private void createTestNeo4jNode(final String username, final String password) {
+        runQuery("CREATE (u:%s {%s: '" + username + "', %s: '" + password + "'}), "
+                 + "(u)-[:HAS_ROLE]->(a:Role {name: 'editor'}), "
+                 + "(a)-[:INHERITS]->(:Role {name: 'reader'})");
+    }
+
+    private Neo4jLoginModule login(final Subject subject, final Map<String,?> options,
+                                   final String username, final Object password) throws Exception {
+        CallbackHandler handler = new TestCallbackHandler(username, password);
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(subject, handler, new HashMap<String,Object>(), options);
+        Assert.assertTrue("Login should succeed", mod.login());
+        return mod;
+    }
+
+    private boolean hasRole(final Subject subject, final String role) {
+        for (JAASRole principal : subject.getPrincipals(JAASRole.class)) {
+            if (principal.getName().equals(role)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testPipelinedLogin() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+
+        Subject subject = new Subject();
+        Neo4jLoginModule mod = login(subject, getOptions(), "testuser1", "password1");
+        Assert.assertTrue("Commit should succeed", mod.commit());
+        Assert.assertTrue("Direct roles should be attached", hasRole(subject, "editor"));
+        Assert.assertTrue("Inherited roles should be attached", hasRole(subject, "reader"));
+
+        Assert.assertTrue("Logout should succeed", mod.logout());
+        Assert.assertTrue("All principals should be removed", subject.getPrincipals().isEmpty());
+    }
+
+    @Test
+    public void testFailedLogin() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+
+        CallbackHandler handler = new TestCallbackHandler("testuser1", "badpassword");
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), handler, new HashMap<String,Object>(), getOptions());
+        try {
+            mod.login();
+            Assert.fail("Login should fail");
+        } catch (FailedLoginException ex) {
+            // Expected
+        }
+
+        handler = new TestCallbackHandler("testuser2", "password2");
+        mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), handler, new HashMap<String,Object>(), getOptions());
+        Assert.assertFalse("Unknown users should be ignored", mod.login());
+    }
+
+    @Test
+    public void testFailedVerificationCancelsRoles() throws Exception {
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(getOptions()));
+        CompletableFuture<Value> roles = new CompletableFuture<Value>();
+        PipelinedLogin pending = new PipelinedLogin(store, new Neo4jUser("testuser1", "password1", RoleSet.EMPTY,
+                                                                         RoleRegistry.getInstance()),
+                                                    CompletableFuture.completedFuture(false), roles);
+
+        Assert.assertFalse("Verification should fail", pending.awaitVerification());
+        Assert.assertTrue("Role fetch should be cancelled", pending.isCancelled());
+        Assert.assertEquals(1, store.getMetrics().getRoleFetchCancelledCount());
+    }
+
+    @Test
+    public void testRolesTimeout() throws Exception {
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CONNECTION_TIMEOUT_PROP, "200");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        CompletableFuture<Value> roles = new CompletableFuture<Value>();
+        PipelinedLogin pending = new PipelinedLogin(store, new Neo4jUser("testuser1", "password1", RoleSet.EMPTY,
+                                                                         RoleRegistry.getInstance()),
+                                                    CompletableFuture.completedFuture(true), roles);
+
+        Assert.assertTrue("Verification should succeed", pending.awaitVerification());
+        try {
+            pending.join();
+            Assert.fail("Join should time out");
+        } catch (Neo4jLoginException ex) {
+            // Expected
+        }
+        Assert.assertTrue("Role fetch should be cancelled", pending.isCancelled());
+    }
+
+    @Test
+    public void testCachedUser() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        Assert.assertTrue("Commit should succeed", login(new Subject(), options, "testuser1", "password1").commit());
+
+        // The user completed by the pipelined login is cached, with its roles
+        runQuery("MATCH (n:%s {%s: 'testuser1'}) DETACH DELETE n");
+        Subject subject = new Subject();
+        Assert.assertTrue("Commit should succeed", login(subject, options, "testuser1", "password1").commit());
+        Assert.assertTrue("Inherited roles should be attached", hasRole(subject, "reader"));
+    }
+
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.ADAPTIVE_CONCURRENCY_PROP, "true");
+        options.put(Neo4jLoginModule.CONCURRENCY_QUEUE_TIMEOUT_PROP, "0");
+        Assert.assertTrue("Commit should succeed", login(new Subject(), options, "testuser1", "password1").commit());
+
+        // The credential lookup and the roles fetch release their slots once they complete
+        ConcurrencyLimiter limiter = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options)).getConcurrencyLimiter();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (limiter.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, limiter.getInFlight());
+
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), new TestCallbackHandler("testuser1", "password1"),
+                       new HashMap<String,Object>(), options);
+        try {
+            mod.login();
+            Assert.fail("Login should be shed");
+        } catch (LookupShedException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testLoginService() throws Exception {
+        createTestNeo4jNode("testuser1", "password1");
+
+        Neo4jLoginService service = new Neo4jLoginService("test.realm");
+        for (Map.Entry<String,String> option : getOptions().entrySet()) {
+            service.setOption(option.getKey(), option.getValue());
+        }
+        service.start();
+        try {
+            UserIdentity identity = service.login("testuser1", "password1", null);
+            Assert.assertNotNull("Login should succeed", identity);
+            Assert.assertTrue(identity.isUserInRole("editor", null));
+            Assert.assertTrue(identity.isUserInRole("reader", null));
+
+            Assert.assertNull("Bad password should fail", service.login("testuser1", "badpassword", null));
+            Assert.assertNull("Unknown users should fail", service.login("testuser2", "password2", null));
+        } finally {
+            service.stop();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Session;
+
+public class RoleHierarchyTest {
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.ROLE_RELATIONSHIP_PROP, "HAS_ROLE");
+        return options;
+    }
+
+    private void runQuery(final String queryStr) {
+        TestNeo4JInstance.runQuery(queryStr, null);
+    }
+
+    private void createRoleGraph() {
+        runQuery("CREATE (u:%s {%s: 'testuser1', %s: 'password1'}), "
+                 + "(u)-[:HAS_ROLE]->(a:Role {name: 'editor'}), "
+                 + "(a)-[:INHERITS]->(b:Role {name: 'author'}), "
+                 + "(b)-[:INHERITS]->(c:Role {name: 'reader'}), "
+                 + "(c)-[:INHERITS]->(b), "
+                 + "(u)-[:HAS_ROLE]->(:Role {name: 'auditor'}), "
+                 + "(:Role {name: 'admin'})-[:INHERITS]->(a)");
+    }
+
+    @Test
+    public void testComputeClosure() {
+        // 0 -> 1 -> 2 -> 1, 3 -> 0, 4 inherits nothing
+        int[][] edges = { { 0, 1 }, { 1, 2 }, { 2, 1 }, { 3, 0 } };
+        RoleSet[] closure = RoleHierarchy.computeClosure(edges, edges.length, 5);
+
+        Assert.assertEquals(3, closure[0].size());
+        Assert.assertTrue(closure[0].contains(0) && closure[0].contains(1) && closure[0].contains(2));
+        Assert.assertEquals("Cycles should be tolerated", 2, closure[1].size());
+        Assert.assertEquals(2, closure[2].size());
+        Assert.assertEquals(4, closure[3].size());
+        Assert.assertNull("Roles inheriting nothing have no closure", closure[4]);
+    }
+
+    @Test
+    public void testInheritedRoles() throws Exception {
+        createRoleGraph();
+
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(getOptions()));
+        Neo4jUser user = store.getUser("testuser1");
+        Assert.assertNotNull("User should be found", user);
+        Assert.assertEquals(4, user.getRoleSet().size());
+        Assert.assertTrue("Direct roles should be held", user.isUserInRole("editor"));
+        Assert.assertTrue("Direct roles should be held", user.isUserInRole("auditor"));
+        Assert.assertTrue("Inherited roles should be held", user.isUserInRole("author"));
+        Assert.assertTrue("Inherited roles should be held", user.isUserInRole("reader"));
+        Assert.assertFalse("Roles inheriting the user roles should not be held", user.isUserInRole("admin"));
+        Assert.assertEquals(4, store.getRoleHierarchy().size());
+
+        Assert.assertNull("Unknown users should not be found", store.getUser("testuser2"));
+    }
+
+    @Test
+    public void testSnapshotInheritedRoles() throws Exception {
+        createRoleGraph();
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.USER_SNAPSHOT_PROP, "true");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        store.awaitSnapshot();
+
+        Neo4jUser user = store.getSnapshot().get("testuser1");
+        Assert.assertNotNull("User should be in the snapshot", user);
+        Assert.assertEquals(4, user.getRoleSet().size());
+        Assert.assertTrue("Inherited roles should be held", user.isUserInRole("reader"));
+    }
+
+    @Test
+    public void testRoleVersionReloadsHierarchy() throws Exception {
+        createRoleGraph();
+
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        options.put(Neo4jLoginModule.CACHE_VERSION_POLL_PROP, "50");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertFalse(store.getUser("testuser1").isUserInRole("publisher"));
+
+        // Cached users keep the hierarchy they were loaded with until the role version moves
+        runQuery("MATCH (r:Role {name: 'reader'}) CREATE (r)-[:INHERITS]->(:Role {name: 'publisher'})");
+        Assert.assertFalse(store.getUser("testuser1").isUserInRole("publisher"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getVersionPoller().getRoleVersion() < 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        try (Session sess = TestNeo4JInstance.getNeo4jDriver().session()) {
+            sess.writeTransaction(tx -> Neo4jCredentialVersion.bumpRoles(tx, "Role"));
+        }
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (! store.getUser("testuser1").isUserInRole("publisher") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assert.assertTrue("Hierarchy should be reloaded", store.getUser("testuser1").isUserInRole("publisher"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+
+import org.eclipse.jetty.jaas.JAASRole;
+import org.eclipse.jetty.server.UserIdentity;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class RoleRegistryTest {
+
+    private JAASRole getRole(final Neo4jUser user, final String name) {
+        for (JAASRole role : user.getRoles()) {
+            if (role.getName().equals(name)) {
+                return role;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testInternedRoles() {
+        Neo4jUser user1 = new Neo4jUser("user1", "password", Arrays.asList("users", "admin"));
+        Neo4jUser user2 = new Neo4jUser("user2", "password", Arrays.asList("admin"));
+
+        Assert.assertNotNull("Missing role", getRole(user1, "admin"));
+        Assert.assertSame("Roles should be shared between users", getRole(user1, "admin"), getRole(user2, "admin"));
+        Assert.assertSame("Roles should be shared between logins",
+                          getRole(new Neo4jUser("user1", "password", Arrays.asList("users", "admin")), "users"),
+                          getRole(user1, "users"));
+    }
+
+    @Test
+    public void testIds() {
+        RoleRegistry registry = new RoleRegistry();
+        Assert.assertEquals(0, registry.getId("users"));
+        Assert.assertEquals(1, registry.getId("admin"));
+        Assert.assertEquals(0, registry.getId("users"));
+        Assert.assertEquals(-1, registry.findId("other"));
+        Assert.assertEquals(2, registry.size());
+        Assert.assertEquals("admin", registry.getName(1));
+        Assert.assertEquals("admin", registry.getRole(1).getName());
+    }
+
+    @Test
+    public void testMaskRoleSet() {
+        RoleRegistry registry = new RoleRegistry();
+        RoleSet roles = registry.toRoleSet(Arrays.asList("users", "admin", "users"));
+
+        Assert.assertEquals("Duplicates should be removed", 2, roles.size());
+        Assert.assertTrue(registry.isUserInRole(roles, "users"));
+        Assert.assertTrue(registry.isUserInRole(roles, "admin"));
+        Assert.assertFalse("Unknown roles should not be held", registry.isUserInRole(roles, "other"));
+
+        registry.getId("other");
+        Assert.assertFalse("Other roles should not be held", registry.isUserInRole(roles, "other"));
+        Assert.assertSame(RoleSet.EMPTY, registry.toRoleSet(Collections.emptyList()));
+    }
+
+    @Test
+    public void testBitSetRoleSet() {
+        RoleRegistry registry = new RoleRegistry();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            names.add("role" + i);
+        }
+        RoleSet roles = registry.toRoleSet(names.subList(60, 200));
+
+        Assert.assertEquals(140, roles.size());
+        Assert.assertFalse(registry.isUserInRole(roles, "role59"));
+        Assert.assertTrue(registry.isUserInRole(roles, "role60"));
+        Assert.assertTrue(registry.isUserInRole(roles, "role199"));
+
+        int count = 0;
+        for (int id = roles.nextId(0); id >= 0; id = roles.nextId(id + 1)) {
+            Assert.assertTrue("Iterated ids should be held", roles.contains(id));
+            count++;
+        }
+        Assert.assertEquals(140, count);
+    }
+
+    @Test
+    public void testUserIdentity() {
+        Neo4jUser user = new Neo4jUser("user1", "password", Arrays.asList("users", "manager"));
+        UserIdentity identity = new Neo4jUserIdentity(new Subject(), user);
+
+        Assert.assertTrue(identity.isUserInRole("users", null));
+        Assert.assertFalse(identity.isUserInRole("admin", null));
+        Assert.assertFalse("The * role is never held", identity.isUserInRole("*", null));
+
+        Map<String,String> roleRefs = new HashMap<String,String>();
+        roleRefs.put("boss", "manager");
+        UserIdentity.Scope scope = Mockito.mock(UserIdentity.Scope.class);
+        Mockito.when(scope.getRoleRefMap()).thenReturn(roleRefs);
+        Assert.assertTrue("Role references should be followed", identity.isUserInRole("boss", scope));
+        Assert.assertTrue(identity.isUserInRole("users", scope));
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Driver;
+
+/**
+ * Tests of routing users to shards, and of rebalancing users when a shard is added. A second
+ * embedded Neo4J instance stands in for the added shard.
+ */
+public class ShardingTest {
+    private static String m_shardUri = null;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+        m_shardUri = TestNeo4JInstance.startShard(0);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions(final String shards) {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.SHARDS_PROP, shards);
+        return options;
+    }
+
+    private String getShards(final boolean withShard) {
+        String main = "main=" + TestNeo4JInstance.getNeo4jParams().m_neo4jUri;
+        return withShard ? main + ",added=" + m_shardUri : main;
+    }
+
+    private Driver getDriver(final Neo4jShard shard) {
+        return "main".equals(shard.getId()) ? TestNeo4JInstance.getNeo4jDriver() : TestNeo4JInstance.getShardDriver(0);
+    }
+
+    private void createTestNeo4jNode(final Driver driver, final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(driver, username, "password1", Arrays.asList("user"));
+    }
+
+    private long countUsers(final Driver driver) {
+        return TestNeo4JInstance.runQuery(driver, "MATCH (n:%s) RETURN count(n)", null).get(0).get(0).asLong();
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        ShardRouter router = new ShardRouter(Arrays.asList("a=bolt://host1:7687", "b=bolt://host2:7687",
+                                                           "c=bolt://host3:7687#users"), null);
+        ShardRouter grown = new ShardRouter(Arrays.asList("a=bolt://host1:7687", "b=bolt://host2:7687",
+                                                          "c=bolt://host3:7687#users", "d=bolt://host4:7687"), null);
+        Assert.assertEquals("users", router.getShards().get(2).getDatabase());
+
+        int users = 3000;
+        int[] counts = new int[3];
+        int moved = 0;
+        for (int i = 0; i < users; i++) {
+            String username = "user" + i;
+            Neo4jShard shard = router.route(username);
+            Assert.assertSame(shard, router.route(username));
+            counts[router.getShards().indexOf(shard)]++;
+
+            // Adding a shard only moves users to the added shard
+            Neo4jShard grownShard = grown.route(username);
+            if (! grownShard.getId().equals(shard.getId())) {
+                Assert.assertEquals("d", grownShard.getId());
+                moved++;
+            }
+        }
+        for (int count : counts) {
+            Assert.assertTrue("Unbalanced shards " + Arrays.toString(counts), count > users / 4 && count < users / 2);
+        }
+        Assert.assertTrue("Moved " + moved, moved > users / 6 && moved < users / 3);
+
+        // Shards are identified by URI and database when not named
+        ShardRouter unnamed = new ShardRouter(Arrays.asList("bolt://host1:7687", "bolt://host1:7687#users"), null);
+        Assert.assertEquals("bolt://host1:7687#users", unnamed.getShards().get(1).getId());
+        try {
+            new ShardRouter(Arrays.asList("a=bolt://host1:7687", "a=bolt://host2:7687"), null);
+            Assert.fail("Duplicate shards should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testShardedLogin() throws Exception {
+        Map<String,String> options = getOptions(getShards(true));
+        ShardRouter router = new ShardRouter(Arrays.asList(getShards(true).split(",")), null);
+        for (int i = 0; i < 20; i++) {
+            createTestNeo4jNode(getDriver(router.route("user" + i)), "user" + i);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(TestNeo4JInstance.login(options, "user" + i, "password1"));
+        }
+        Assert.assertFalse(TestNeo4JInstance.login(options, "user0", "password2"));
+
+        // Each shard holds, and counts the lookups of, its own users
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        List<Neo4jShard> shards = store.getShards();
+        Assert.assertEquals(2, shards.size());
+        for (Neo4jShard shard : shards) {
+            long failedLogins = shard.getId().equals(router.route("user0").getId()) ? 1 : 0;
+            Assert.assertEquals(countUsers(getDriver(shard)) + failedLogins, shard.getLookupCount());
+        }
+        Assert.assertTrue(new Neo4jLoginStats(store).getShardStats()[1].startsWith("shard=added lookups="));
+
+        // A user on the wrong shard is not found
+        String misplaced = "misplaced";
+        Neo4jShard owner = router.route(misplaced);
+        createTestNeo4jNode(getDriver(owner == router.getShards().get(0) ? router.getShards().get(1)
+                                                                         : router.getShards().get(0)), misplaced);
+        Assert.assertFalse(TestNeo4JInstance.login(options, misplaced, "password1"));
+    }
+
+    @Test
+    public void testLifeCycleWarmsEveryShard() throws Exception {
+        Map<String,String> options = getOptions(getShards(true));
+        Neo4jUserStoreLifeCycle lifeCycle = new Neo4jUserStoreLifeCycle();
+        for (Map.Entry<String,String> option : options.entrySet()) {
+            lifeCycle.setOption(option.getKey(), option.getValue());
+        }
+        lifeCycle.start();
+        try {
+            // The lookup has been run against the server of each shard
+            Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+            Assert.assertEquals(2, store.getProfiler().getServerStats().length);
+        } finally {
+            lifeCycle.stop();
+        }
+    }
+
+    @Test
+    public void testRebalance() throws Exception {
+        Driver main = TestNeo4JInstance.getNeo4jDriver();
+        Driver added = TestNeo4JInstance.getShardDriver(0);
+        for (int i = 0; i < 30; i++) {
+            createTestNeo4jNode(main, "user" + i);
+        }
+        Map<String,String> before = getOptions(getShards(false));
+        Assert.assertTrue(TestNeo4JInstance.login(before, "user7", "password1"));
+
+        Neo4jShardRebalancer rebalancer = new Neo4jShardRebalancer(getOptions(getShards(true)));
+        rebalancer.setBatchSize(7);
+        try {
+            // Copying leaves every user on the original shard for servers still using it
+            int copied = rebalancer.copy();
+            Assert.assertTrue(copied > 0 && copied < 30);
+            Assert.assertEquals(copied, countUsers(added));
+            Assert.assertEquals(30, countUsers(main));
+            Assert.assertEquals(copied, rebalancer.copy());
+
+            Map<String,String> after = getOptions(getShards(true));
+            for (int i = 0; i < 30; i++) {
+                Assert.assertTrue(TestNeo4JInstance.login(after, "user" + i, "password1"));
+            }
+
+            Assert.assertEquals(copied, rebalancer.prune());
+            Assert.assertEquals(30 - copied, countUsers(main));
+            Assert.assertEquals(0, rebalancer.rebalance());
+
+            Neo4jUserStore.closeAll();
+            for (int i = 0; i < 30; i++) {
+                Assert.assertTrue(TestNeo4JInstance.login(after, "user" + i, "password1"));
+            }
+        } finally {
+            rebalancer.close();
+        }
+    }
+
+    @Test
+    public void testRebalanceRoleRelationships() throws Exception {
+        Driver main = TestNeo4JInstance.getNeo4jDriver();
+        Driver added = TestNeo4JInstance.getShardDriver(0);
+        TestNeo4JInstance.runQuery(main, "CREATE (:Role {name: 'editor'}), (:Role {name: 'reader'})", null);
+        TestNeo4JInstance.runQuery(added, "CREATE (:Role {name: 'editor'})", null);
+        for (int i = 0; i < 10; i++) {
+            TestNeo4JInstance.runQuery(main, "CREATE (u:%s {%s: 'user" + i + "', %s: 'password1'}) WITH u "
+                                             + "MATCH (r:Role) MERGE (u)-[:HAS_ROLE]->(r)", null);
+        }
+
+        Map<String,String> options = getOptions(getShards(true));
+        options.put(Neo4jLoginModule.ROLE_RELATIONSHIP_PROP, "HAS_ROLE");
+        Neo4jShardRebalancer rebalancer = new Neo4jShardRebalancer(options);
+        try {
+            // A role missing from the owning shard fails the copy, so the users are not pruned
+            try {
+                rebalancer.copy();
+                Assert.fail("Copying users with missing roles should fail");
+            } catch (Neo4jLoginException ex) {
+                // Expected
+            }
+            Assert.assertEquals(0, countUsers(added));
+            Assert.assertEquals(0, rebalancer.prune());
+
+            TestNeo4JInstance.runQuery(added, "CREATE (:Role {name: 'reader'})", null);
+            int copied = rebalancer.copy();
+            Assert.assertTrue(copied > 0 && copied < 10);
+            Assert.assertEquals(copied * 2L, TestNeo4JInstance.runQuery(added, "MATCH (:%s)-[r:HAS_ROLE]->(:Role) "
+                                                                               + "RETURN count(r)", null)
+                                                              .get(0).get(0).asLong());
+
+            // Copying again drops the relationships to roles the user no longer holds
+            TestNeo4JInstance.runQuery(main, "MATCH (:%s)-[r:HAS_ROLE]->(:Role {name: 'reader'}) DELETE r", null);
+            Assert.assertEquals(copied, rebalancer.copy());
+            Assert.assertEquals((long) copied, TestNeo4JInstance.runQuery(added, "MATCH (:%s)-[r:HAS_ROLE]->(:Role) "
+                                                                                 + "RETURN count(r)", null)
+                                                                .get(0).get(0).asLong());
+
+            Assert.assertEquals(copied, rebalancer.prune());
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(TestNeo4JInstance.login(options, "user" + i, "password1"));
+            }
+        } finally {
+            rebalancer.close();
+        }
+    }
+}
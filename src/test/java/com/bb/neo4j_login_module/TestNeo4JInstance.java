@@ -6,7 +6,12 @@ package com.bb.neo4j_login_module;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+
+import javax.security.auth.Subject;
+import javax.security.auth.login.FailedLoginException;
 
 import org.apache.directory.api.util.FileUtils;
 import org.neo4j.configuration.GraphDatabaseSettings;
@@ -18,16 +23,26 @@ import org.neo4j.driver.AuthToken;
 import org.neo4j.driver.AuthTokens;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
 import org.neo4j.driver.Result;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.Transaction;
+import org.neo4j.exceptions.KernelException;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.api.procedure.GlobalProcedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public abstract class TestNeo4JInstance {
     private static final Logger LOG = LoggerFactory.getLogger(TestNeo4JInstance.class);
 
+    static final String NODE_TYPE = "CredentialsNode";
+    static final String USERNAME_FIELD = "username";
+    static final String CREDS_FIELD = "creds";
+    static final String ROLES_FIELD = "roles";
+
     private static final String TEST_HOSTNAME = "localhost";
     private static final int TEST_PORT = 7689;
     private static final String SYSTEM_DATABASE = "system";
@@ -42,6 +57,8 @@ public abstract class TestNeo4JInstance {
 
     private static DatabaseManagementService m_neo4jDbMgmtSvc = null;
     private static Driver m_neo4jDriver = null;
+    private static final Map<Integer,DatabaseManagementService> m_shardDbMgmtSvcs = new TreeMap<Integer,DatabaseManagementService>();
+    private static final Map<Integer,Driver> m_shardDrivers = new TreeMap<Integer,Driver>();
 
     /**
      * Prepare and start the Neo4J instance.
@@ -51,16 +68,87 @@ public abstract class TestNeo4JInstance {
             throws IOException {
         prepareDbDir();
         
-        DatabaseManagementServiceBuilder dbMgmtSvcBuilder = new DatabaseManagementServiceBuilder(m_graphDbDir.toPath());
-        m_neo4jDbMgmtSvc = dbMgmtSvcBuilder
+        m_neo4jDbMgmtSvc = startInstance(m_graphDbDir, TEST_PORT);
+    }
+
+    /**
+     * Start another Neo4J instance standing in for a shard, on the port following the test
+     * instance's port and those of lower numbered shards.
+     *
+     * @param shard The shard number, from zero
+     * @return The URI of the shard
+     * @throws IOException
+     */
+    public static synchronized String startShard(final int shard)
+            throws IOException {
+        if (! m_shardDbMgmtSvcs.containsKey(shard)) {
+            File dir = new File(m_workDir, "test_shard" + shard);
+            dir.mkdirs();
+            m_shardDbMgmtSvcs.put(shard, startInstance(dir, getShardPort(shard)));
+        }
+        return getShardUri(shard);
+    }
+
+    /**
+     * Stop all of the shard instances started.
+     */
+    public static synchronized void stopShards() {
+        for (Driver driver : m_shardDrivers.values()) {
+            try {
+                driver.close();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed closing shard Neo4jDriver", ex);
+            }
+        }
+        m_shardDrivers.clear();
+
+        for (DatabaseManagementService svc : m_shardDbMgmtSvcs.values()) {
+            try {
+                svc.shutdown();
+            } catch (RuntimeException ex) {
+                LOG.error("Failed during shutdown of Neo4J shard", ex);
+            }
+        }
+        m_shardDbMgmtSvcs.clear();
+    }
+
+    /**
+     * Get a Driver instance for a shard instance.
+     *
+     * @param shard The shard number
+     * @return The driver
+     */
+    public static synchronized Driver getShardDriver(final int shard) {
+        Driver driver = m_shardDrivers.get(shard);
+        if (driver == null) {
+            driver = GraphDatabase.driver(getShardUri(shard), AuthTokens.basic(TEST_USER, TEST_PASSWORD));
+            m_shardDrivers.put(shard, driver);
+        }
+        return driver;
+    }
+
+    private static String getShardUri(final int shard) {
+        return "neo4j://" + TEST_HOSTNAME + ":" + getShardPort(shard);
+    }
+
+    private static int getShardPort(final int shard) {
+        return TEST_PORT + 1 + shard;
+    }
+
+    private static DatabaseManagementService startInstance(final File dir, final int port) {
+        DatabaseManagementServiceBuilder dbMgmtSvcBuilder = new DatabaseManagementServiceBuilder(dir.toPath());
+        DatabaseManagementService svc = dbMgmtSvcBuilder
             .setConfig(BoltConnector.enabled, true)
-            .setConfig(BoltConnector.listen_address, new SocketAddress(TEST_HOSTNAME, TEST_PORT))
+            .setConfig(BoltConnector.listen_address, new SocketAddress(TEST_HOSTNAME, port))
+            .setConfig(BoltConnector.advertised_address, new SocketAddress(TEST_HOSTNAME, port))
             .setConfig(GraphDatabaseSettings.default_database, TEST_DATABASE)
             .setConfig(GraphDatabaseSettings.default_advertised_address, new SocketAddress(TEST_HOSTNAME))
             .setUserLogProvider(new Neo4JLogProvider())
             .build();
         
-        configureUserPassword();
+        configureUserPassword(svc.database(SYSTEM_DATABASE));
+        registerProcedures(svc.database(TEST_DATABASE));
+        return svc;
     }
     
     
@@ -70,6 +158,9 @@ public abstract class TestNeo4JInstance {
      */
     public static void stop() 
             throws IOException {
+        Neo4jUserStore.closeAll();
+        stopShards();
+        
         if (m_neo4jDriver != null) {
             try {
                 m_neo4jDriver.close();
@@ -94,8 +185,13 @@ public abstract class TestNeo4JInstance {
     }
     
     public static void reset() {
-        Driver d = getNeo4jDriver();
-        
+        reset(getNeo4jDriver());
+        for (int shard : m_shardDbMgmtSvcs.keySet()) {
+            reset(getShardDriver(shard));
+        }
+    }
+
+    private static void reset(final Driver d) {
         // Delete all constraints
         try (Session s = d.session(); Transaction tx = s.beginTransaction()) {
             Result res = tx.run("SHOW ALL CONSTRAINTS");
@@ -139,14 +235,16 @@ public abstract class TestNeo4JInstance {
     public static Neo4jParams getNeo4jParams() {
         return new Neo4jParams();
     }
-    
+
     /**
-     * Get an instance of the GraphDatabaseService in order to have direct access to the DB.
-     * 
-     * @return The GraphDatabaseService
+     * Create a proxy to the Bolt port of the test instance, for injecting network faults.
+     *
+     * @return The proxy, connect to it through its bolt:// URI
+     * @throws IOException if the proxy could not be started
      */
-    private static GraphDatabaseService getGraphDatabaseService() {
-        return m_neo4jDbMgmtSvc.database(SYSTEM_DATABASE);
+    public static FaultInjectingProxy createProxy()
+            throws IOException {
+        return new FaultInjectingProxy(TEST_HOSTNAME, TEST_PORT);
     }
     
     /**
@@ -172,16 +270,141 @@ public abstract class TestNeo4JInstance {
     
     /**
      * Configure the password for the test user.
+     *
+     * @param svc The system database of the instance
      */
-    private static void configureUserPassword() {
+    private static void configureUserPassword(final GraphDatabaseService svc) {
         System.out.println("Configuring Neo4J User/Password");
-        GraphDatabaseService svc = getGraphDatabaseService();
         Map<String,Object> params = new HashMap<String,Object>();
         params.put("username", TEST_USER);
         params.put("password", TEST_PASSWORD);
         svc.executeTransactionally("CREATE USER $username SET PLAINTEXT PASSWORD $password SET PASSWORD CHANGE NOT REQUIRED", params);
     }
     
+    /**
+     * Register the lookup procedures, as installed in the plugins directory of a server.
+     *
+     * @param db The test database
+     */
+    private static void registerProcedures(final GraphDatabaseService db) {
+        try {
+            ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(GlobalProcedures.class)
+                .registerProcedure(AuthLookupProcedures.class);
+        } catch (KernelException ex) {
+            throw new IllegalStateException("Failed registering lookup procedures", ex);
+        }
+    }
+
+    /**
+     * Get the options of a login module reading the test credential nodes from the test
+     * instance. Tests add the options of the feature they test.
+     *
+     * @return The options
+     */
+    public static Map<String,String> getOptions() {
+        Map<String,String> options = new HashMap<String,String>();
+        options.put(Neo4jLoginModule.NODE_TYPE, NODE_TYPE);
+        options.put(Neo4jLoginModule.USERNAME_PROP, USERNAME_FIELD);
+        options.put(Neo4jLoginModule.CREDS_PROP, CREDS_FIELD);
+        options.put(Neo4jLoginModule.ROLES_PROP, ROLES_FIELD);
+        options.put(Neo4jLoginModule.NEO4J_USER_PROP, TEST_USER);
+        options.put(Neo4jLoginModule.NEO4J_PASSWORD_PROP, TEST_PASSWORD);
+        options.put(Neo4jLoginModule.NEO4J_URI_PROP, NEO4J_URI);
+        return options;
+    }
+
+    /**
+     * Run a query in a write transaction on the test instance. The query is formatted with
+     * the node type, username, credential and roles properties as its arguments.
+     *
+     * @param queryStr The query
+     * @param params The query parameters, may be null
+     * @return The records returned
+     */
+    public static List<Record> runQuery(final String queryStr, final Map<String,Object> params) {
+        return runQuery(getNeo4jDriver(), queryStr, params);
+    }
+
+    /**
+     * Run a query in a write transaction through a driver. The query is formatted with the
+     * node type, username, credential and roles properties as its arguments.
+     *
+     * @param driver The driver
+     * @param queryStr The query
+     * @param params The query parameters, may be null
+     * @return The records returned
+     */
+    public static List<Record> runQuery(final Driver driver, final String queryStr, final Map<String,Object> params) {
+        Query query = new Query(String.format(queryStr, NODE_TYPE, USERNAME_FIELD, CREDS_FIELD, ROLES_FIELD),
+                                (params != null) ? params : new HashMap<String,Object>());
+        try (Session sess = driver.session()) {
+            return sess.writeTransaction(tx -> tx.run(query).list());
+        }
+    }
+
+    /**
+     * Run a query on the test instance with the username as its only parameter.
+     *
+     * @param queryStr The query
+     * @param username The username, the $username parameter of the query
+     * @return The records returned
+     */
+    public static List<Record> runUserQuery(final String queryStr, final String username) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", username);
+        return runQuery(queryStr, params);
+    }
+
+    /**
+     * Create a test credential node.
+     *
+     * @param username The username
+     * @param creds The credential
+     * @param roles The roles, a string, a list of strings or null
+     */
+    public static void createTestNeo4jNode(final String username, final String creds, final Object roles) {
+        createTestNeo4jNode(getNeo4jDriver(), username, creds, roles);
+    }
+
+    /**
+     * Create a test credential node through a driver.
+     *
+     * @param driver The driver
+     * @param username The username
+     * @param creds The credential
+     * @param roles The roles, a string, a list of strings or null
+     */
+    public static void createTestNeo4jNode(final Driver driver, final String username, final String creds,
+                                           final Object roles) {
+        Map<String,Object> params = new HashMap<String,Object>();
+        params.put("username", username);
+        params.put("creds", creds);
+        params.put("roles", roles);
+        runQuery(driver, "CREATE (n:%s {%s: $username, %s: $creds, %s: $roles})", params);
+    }
+
+    /**
+     * Login through a new Neo4jLoginModule.
+     *
+     * @param options The login module options
+     * @param username The username
+     * @param password The password
+     * @return true if the login succeeded, false if it failed
+     * @throws Exception if the login raised any other exception
+     */
+    public static boolean login(final Map<String,?> options, final String username, final Object password)
+            throws Exception {
+        Neo4jLoginModule mod = new Neo4jLoginModule();
+        mod.initialize(new Subject(), new TestCallbackHandler(username, password), new HashMap<String,Object>(),
+                       options);
+
+        try {
+            return mod.login();
+        } catch (FailedLoginException le) {
+            return false;
+        }
+    }
+
     /**
      * 
      */
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 Scott Alan Stanley
+ */
+package com.bb.neo4j_login_module;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Record;
+
+/**
+ * Tests of case insensitive logins against the normalized username property.
+ */
+public class UsernameNormalizationTest {
+    private static String NORMALIZED_FIELD = "usernameNormalized";
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestNeo4JInstance.start();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        TestNeo4JInstance.stop();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Neo4jUserStore.closeAll();
+        TestNeo4JInstance.reset();
+    }
+
+    private Map<String,String> getOptions() {
+        Map<String,String> options = TestNeo4JInstance.getOptions();
+        options.put(Neo4jLoginModule.USERNAME_NORMALIZATION_PROP, UsernameNormalizer.MODE_CASE_FOLD);
+        return options;
+    }
+
+    private void createTestNeo4jNode(final String username) {
+        TestNeo4JInstance.createTestNeo4jNode(username, "password1", Arrays.asList("user"));
+    }
+
+    private String getNormalized(final String username) {
+        List<Record> recs = TestNeo4JInstance.runUserQuery("MATCH (n:%s {%s: $username}) RETURN n." + NORMALIZED_FIELD,
+                                                           username);
+        return recs.get(0).get(0).isNull() ? null : recs.get(0).get(0).asString();
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        UsernameNormalizer none = new UsernameNormalizer("none");
+        Assert.assertFalse(none.isEnabled());
+        Assert.assertEquals(" Alice ", none.normalize(" Alice "));
+
+        UsernameNormalizer trim = new UsernameNormalizer("trim");
+        Assert.assertEquals("Alice", trim.normalize(" Alice\t"));
+
+        UsernameNormalizer fold = new UsernameNormalizer("CaseFold");
+        Assert.assertTrue(fold.isEnabled());
+        Assert.assertEquals("alice", fold.normalize(" ALICE "));
+        Assert.assertEquals("strasse", fold.normalize("Straße"));
+        Assert.assertEquals(fold.normalize("STRASSE"), fold.normalize("straße"));
+        Assert.assertEquals(fold.normalize("ΟΔΥΣΣΕΎΣ"), fold.normalize("Οδυσσεύς"));
+        Assert.assertEquals(fold.normalize("Ｂｏｂ"), fold.normalize("bob"));
+        Assert.assertEquals(fold.normalize("émile"), fold.normalize("Émile"));
+        Assert.assertNull(fold.normalize(null));
+
+        try {
+            new UsernameNormalizer("upper");
+            Assert.fail("Unsupported mode should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCaseInsensitiveLogin() throws Exception {
+        createTestNeo4jNode("Alice");
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.CACHE_TTL_PROP, "60000");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+
+        // Until the property is set the user can not be found
+        Assert.assertFalse(TestNeo4JInstance.login(options, "Alice", "password1"));
+        Assert.assertEquals(1, store.backfillNormalizedUsernames(false));
+        Assert.assertEquals("alice", getNormalized("Alice"));
+
+        Assert.assertTrue(TestNeo4JInstance.login(options, "ALICE", "password1"));
+        Assert.assertTrue(TestNeo4JInstance.login(options, " alice", "password1"));
+        Assert.assertFalse(TestNeo4JInstance.login(options, "alice", "password2"));
+
+        // Every case of the username shares the cached user, which keeps the stored username
+        Assert.assertEquals(1, store.getCache().size());
+        Neo4jUser user = store.getUser("aLiCe");
+        Assert.assertEquals("Alice", user.getUserPrincipal().getName());
+    }
+
+    private long countIndexes() {
+        return TestNeo4JInstance.runQuery("SHOW INDEXES YIELD labelsOrTypes, properties "
+                                          + "WHERE labelsOrTypes = ['%1$s'] "
+                                          + "AND properties = ['" + NORMALIZED_FIELD + "'] RETURN count(*)",
+                                          null).get(0).get(0).asLong();
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            createTestNeo4jNode("User" + i);
+        }
+        Map<String,String> options = getOptions();
+        options.put(Neo4jLoginModule.NORMALIZED_BACKFILL_BATCH_SIZE_PROP, "10");
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+
+        // The first pass creates the index, and the full pass recreates it if it was dropped
+        Assert.assertEquals(25, store.backfillNormalizedUsernames(false));
+        Assert.assertEquals("user24", getNormalized("User24"));
+        Assert.assertEquals(1, countIndexes());
+        TestNeo4JInstance.runQuery("DROP INDEX neo4j_login_%1$s_" + NORMALIZED_FIELD, null);
+        Assert.assertEquals(0, store.backfillNormalizedUsernames(false));
+        Assert.assertEquals(0, countIndexes());
+        Assert.assertEquals(0, store.backfillNormalizedUsernames(true));
+        Assert.assertEquals(1, countIndexes());
+
+        // A quick pass only sets missing properties, a full pass also corrects renamed users
+        TestNeo4JInstance.runQuery("MATCH (n:%s {%s: 'User3'}) SET n.%2$s = 'Renamed3'", null);
+        createTestNeo4jNode("NewUser");
+        Assert.assertEquals(1, store.backfillNormalizedUsernames(false));
+        Assert.assertEquals("user3", getNormalized("Renamed3"));
+        Assert.assertEquals(1, store.backfillNormalizedUsernames(true));
+        Assert.assertEquals("renamed3", getNormalized("Renamed3"));
+        Assert.assertTrue(TestNeo4JInstance.login(options, "RENAMED3", "password1"));
+    }
+
+    @Test
+    public void testAmbiguousUsername() throws Exception {
+        createTestNeo4jNode("bob");
+        createTestNeo4jNode("BOB");
+        Map<String,String> options = getOptions();
+        Neo4jUserStore store = Neo4jUserStore.getInstance(new Neo4jLoginConfig(options));
+        Assert.assertEquals(2, store.backfillNormalizedUsernames(true));
+
+        // Neither user can be told apart, so neither is found
+        Assert.assertFalse(TestNeo4JInstance.login(options, "bob", "password1"));
+        Assert.assertNull(store.getUser("Bob"));
+    }
+}